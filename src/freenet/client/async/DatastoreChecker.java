@@ -379,12 +379,18 @@ public class DatastoreChecker implements PrioRunnable {
 			sched = getter.getScheduler(context);
 		}
 		boolean anyValid = false;
-		for(Key key : keys) {
+		// One batch per request: the stores skip keys not in their bloom filters and read
+		// the rest in disk order.
+		KeyBlock[] found = null;
+		if(blocks == null)
+			found = node.fetchBatch(keys, true, true, false);
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			KeyBlock block = null;
 			if(blocks != null)
 				block = blocks.get(key);
-			if(blocks == null)
-				block = node.fetch(key, true, true, false, false);
+			else
+				block = found[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
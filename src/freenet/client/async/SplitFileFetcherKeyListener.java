@@ -74,7 +74,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	 * should be created from scratch.
 	 * @throws IOException 
 	 */
-	public SplitFileFetcherKeyListener(SplitFileFetcher parent, int keyCount, File bloomFile, File altBloomFile, int mainBloomSizeBytes, int mainBloomK, byte[] localSalt, int segments, int segmentFilterSizeBytes, int segmentBloomK, boolean persistent, boolean newFilter) throws IOException {
+	public SplitFileFetcherKeyListener(SplitFileFetcher parent, int keyCount, File bloomFile, File altBloomFile, int mainBloomSizeBytes, int mainBloomK, byte[] localSalt, int segments, int segmentFilterSizeBytes, int segmentBloomK, int bloomHashVersion, boolean persistent, boolean newFilter) throws IOException {
 		fetcher = parent;
 		this.persistent = persistent;
 		this.keyCount = keyCount;
@@ -97,6 +97,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 			baseBuffer.limit(end);
 			ByteBuffer slice = baseBuffer.slice();
 			segmentFilters[i] = new BinaryBloomFilter(slice, segmentFilterSizeBytes * 8, segmentBloomK);
+			segmentFilters[i].setHashVersion(bloomHashVersion);
 			start += segmentFilterSizeBytes;
 			end += segmentFilterSizeBytes;
 		}
@@ -104,6 +105,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		filterBuffer = new byte[mainBloomSizeBytes];
 		if(newFilter) {
 			filter = new CountingBloomFilter(mainBloomSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+			filter.setHashVersion(bloomHashVersion);
 			filter.setWarnOnRemoveFromEmpty();
 		} else {
 			// Read from file.
@@ -112,6 +114,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 			dis.readFully(filterBuffer);
 			dis.close();
 			filter = new CountingBloomFilter(mainBloomSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+			filter.setHashVersion(bloomHashVersion);
 			filter.setWarnOnRemoveFromEmpty();
 			fis = new FileInputStream(altBloomFile);
 			dis = new DataInputStream(fis);
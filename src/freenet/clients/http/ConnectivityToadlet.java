@@ -112,6 +112,9 @@ public class ConnectivityToadlet extends Toadlet {
 			HTMLNode row = table.addChild("tr");
 			row.addChild("td", handler.getTitle());
 			row.addChild("td", AddressTracker.statusString(tracker.getPortForwardStatus()));
+			if(handler.getReceiveThreads() > 0)
+				row.addChild("td", l10n("receiveQueue", new String[] { "queued", "dropped" },
+						new String[] { Integer.toString(handler.getReceiveQueueDepth()), Long.toString(handler.getReceiveDrops()) }));
 		}
 		
 		if(mode >= PageMaker.MODE_ADVANCED) {
@@ -208,6 +211,10 @@ public class ConnectivityToadlet extends Toadlet {
 		return NodeL10n.getBase().getString("ConnectivityToadlet."+key);
 	}
 
+	private String l10n(String key, String[] patterns, String[] values) {
+		return NodeL10n.getBase().getString("ConnectivityToadlet."+key, patterns, values);
+	}
+
 	@Override
 	public String path() {
 		return "/connectivity/";
@@ -24,6 +24,9 @@ import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
 import freenet.node.RequestStarterGroup;
 import freenet.node.Version;
+import freenet.store.CachingFreenetStore;
+import freenet.store.FreenetStore;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
@@ -557,6 +560,65 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", thousendPoint.format(storeFalsePos));
 			row.addChild("td", thousendPoint.format(cacheFalsePos));
 		}
+
+		if (node.getChkDatastore().getStore() instanceof CachingFreenetStore
+		        && node.getChkDatacache().getStore() instanceof CachingFreenetStore) {
+			CachingFreenetStore<?> hotStore = (CachingFreenetStore<?>) node.getChkDatastore().getStore();
+			CachingFreenetStore<?> hotCache = (CachingFreenetStore<?>) node.getChkDatacache().getStore();
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Hot Cache Size");
+			row.addChild("td", SizeUtil.formatSize(hotStore.getCacheSize()) + " / "
+			        + SizeUtil.formatSize(hotStore.getMaxCacheSize()));
+			row.addChild("td", SizeUtil.formatSize(hotCache.getCacheSize()) + " / "
+			        + SizeUtil.formatSize(hotCache.getMaxCacheSize()));
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Hot Cache Hits");
+			row.addChild("td", formatHitRate(hotStore.getCacheHits(), hotStore.getCacheMisses()));
+			row.addChild("td", formatHitRate(hotCache.getCacheHits(), hotCache.getCacheMisses()));
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Hot Cache Evictions");
+			row.addChild("td", thousendPoint.format(hotStore.getCacheEvictions()) + " ("
+			        + thousendPoint.format(hotStore.getCacheRejections()) + " rejected)");
+			row.addChild("td", thousendPoint.format(hotCache.getCacheEvictions()) + " ("
+			        + thousendPoint.format(hotCache.getCacheRejections()) + " rejected)");
+		}
+
+		FreenetStore<?> chkStore = CachingFreenetStore.unwrap(node.getChkDatastore().getStore());
+		FreenetStore<?> chkCache = CachingFreenetStore.unwrap(node.getChkDatacache().getStore());
+		if (chkStore instanceof SaltedHashFreenetStore && chkCache instanceof SaltedHashFreenetStore) {
+			SaltedHashFreenetStore saltStore = (SaltedHashFreenetStore) chkStore;
+			SaltedHashFreenetStore saltCache = (SaltedHashFreenetStore) chkCache;
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Syscalls/Fetch");
+			row.addChild("td", fix1p2.format(saltStore.getSyscallsPerFetch()));
+			row.addChild("td", fix1p2.format(saltCache.getSyscallsPerFetch()));
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Syscalls/Put");
+			row.addChild("td", fix1p2.format(saltStore.getSyscallsPerPut()));
+			row.addChild("td", fix1p2.format(saltCache.getSyscallsPerPut()));
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Digest Cache Hits");
+			row.addChild("td", formatHitRate(saltStore.getDigestCacheHits(), saltStore.getDigestCacheMisses()));
+			row.addChild("td", formatHitRate(saltCache.getDigestCacheHits(), saltCache.getDigestCacheMisses()));
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Lock Waits");
+			row.addChild("td", thousendPoint.format(saltStore.getLockWaitCount()) + " / "
+			        + thousendPoint.format(saltStore.getLockCount()));
+			row.addChild("td", thousendPoint.format(saltCache.getLockWaitCount()) + " / "
+			        + thousendPoint.format(saltCache.getLockCount()));
+
+			row = storeSizeTable.addChild("tr");
+			row.addChild("td", "Lock Wait Time");
+			row.addChild("td", TimeUtil.formatTime(saltStore.getLockWaitTime(), 2, true));
+			row.addChild("td", TimeUtil.formatTime(saltCache.getLockWaitTime(), 2, true));
+		}
 		
 		// location-based stats
 		double nodeLoc=0.0;
@@ -611,6 +673,13 @@ public class StatisticsToadlet extends Toadlet {
 		node.drawSlashdotCacheBox(storeSizeInfobox);
 	}
 
+	private String formatHitRate(long hits, long misses) {
+		long accesses = hits + misses;
+		if (accesses == 0)
+			return "N/A";
+		return fix1p4.format(100.0 * hits / accesses) + "% (" + thousendPoint.format(hits) + ")";
+	}
+
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
 		
 		unclaimedFIFOMessageCountsInfobox.addChild("div", "class", "infobox-header", "unclaimedFIFO Message Counts");
@@ -1031,6 +1100,8 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "backedOffPercent:\u00a0" + fix3p1pct.format(backedOffPercent));
 		overviewList.addChild("li", "pInstantReject:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantly()));
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "messageFilters:\u00a0" + node.usm.getFilterCount() + "\u00a0(" + fix1p1.format(node.usm.getAverageFiltersChecked())
+				+ "\u00a0checked,\u00a0" + fix1p1.format(node.usm.getAverageFilterMatchTime() / 1000) + "\u00b5s\u00a0per\u00a0message)");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring of entropy samples waiting to be accumulated. Any number of threads may offer
+ * samples without locking; a single thread polls them. When the ring is full, new samples
+ * are dropped: losing a little entropy is better than holding up the packet threads.
+ *
+ * Each slot has a sequence number: equal to the position when the slot is free to be written
+ * at that position, and the position plus one once the sample is there. A producer claims a
+ * position by advancing the tail, writes the sample and then publishes it by setting the
+ * sequence number.
+ */
+final class EntropyRing {
+
+	/** A sample, filled in by poll() */
+	static final class Sample {
+		EntropySource source;
+		long data;
+		int entropyGuess;
+		double bias;
+		/** If true, data is the time the sample was taken, and the entropy is in the interval
+		 * since the last one from the same source */
+		boolean timer;
+	}
+
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final EntropySource[] sources;
+	private final long[] data;
+	private final int[] entropyGuesses;
+	private final double[] biases;
+	private final boolean[] timers;
+	/** The next position to write */
+	private final AtomicLong tail = new AtomicLong();
+	/** The next position to read. Only used by the polling thread. */
+	private long head;
+
+	/** @param size The capacity, a power of 2. */
+	EntropyRing(int size) {
+		if(Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("Size must be a power of 2: "+size);
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+			sequences.set(i, i);
+		sources = new EntropySource[size];
+		data = new long[size];
+		entropyGuesses = new int[size];
+		biases = new double[size];
+		timers = new boolean[size];
+	}
+
+	/**
+	 * Add a sample, if there is room.
+	 * @return False if the ring was full and the sample was dropped.
+	 */
+	boolean offer(EntropySource source, long value, int entropyGuess, double bias, boolean timer) {
+		long pos;
+		int slot;
+		while(true) {
+			pos = tail.get();
+			slot = (int) pos & mask;
+			long seq = sequences.get(slot);
+			if(seq < pos)
+				return false; // Full, still holds the sample from the last time round.
+			if(seq == pos && tail.compareAndSet(pos, pos + 1))
+				break;
+			// Another thread got there first.
+		}
+		sources[slot] = source;
+		data[slot] = value;
+		entropyGuesses[slot] = entropyGuess;
+		biases[slot] = bias;
+		timers[slot] = timer;
+		sequences.set(slot, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Take the oldest sample. Must only be called by one thread at a time.
+	 * @return False if there are no samples ready.
+	 */
+	boolean poll(Sample sample) {
+		int slot = (int) head & mask;
+		if(sequences.get(slot) != head + 1)
+			return false;
+		sample.source = sources[slot];
+		sample.data = data[slot];
+		sample.entropyGuess = entropyGuesses[slot];
+		sample.bias = biases[slot];
+		sample.timer = timers[slot];
+		sources[slot] = null;
+		sequences.set(slot, head + mask + 1);
+		head++;
+		return true;
+	}
+}
@@ -24,6 +24,8 @@ public class PCFBMode {
     protected BlockCipher c;
     protected byte[] feedback_register;
     protected int registerPointer;
+    /** Temporary buffer for decipherWholeBlocks() */
+    private byte[] keystream;
     
     public static PCFBMode create(BlockCipher c) {
     	if(c instanceof Rijndael)
@@ -115,20 +117,51 @@ public class PCFBMode {
      */
     //public synchronized byte[] blockDecipher(byte[] buf, int off, int len) {
     public byte[] blockDecipher(byte[] buf, int off, int len) {
-        while (len > 0) {
-            if (registerPointer == feedback_register.length) refillBuffer();
-            int n = Math.min(len, feedback_register.length - registerPointer);
-            for (int i=off; i<off+n; ++i) {
-                byte b = buf[i];
-                buf[i] ^= feedback_register[registerPointer];
-                feedback_register[registerPointer++] = b;
-            }
-            off += n;
-            len -= n;
+        // Use up what is left of the encrypted buffer
+        int n = Math.min(len, feedback_register.length - registerPointer);
+        decipherPartial(buf, off, n);
+        off += n;
+        len -= n;
+        // Then whole blocks, then the rest
+        int whole = len - len % feedback_register.length;
+        if (whole > 0) {
+            decipherWholeBlocks(buf, off, whole);
+            off += whole;
+            len -= whole;
+        }
+        if (len > 0) {
+            refillBuffer();
+            decipherPartial(buf, off, len);
         }
         return buf;
     }
 
+    private void decipherPartial(byte[] buf, int off, int n) {
+        for (int i=off; i<off+n; ++i) {
+            byte b = buf[i];
+            buf[i] ^= feedback_register[registerPointer];
+            feedback_register[registerPointer++] = b;
+        }
+    }
+
+    /**
+     * Decipher whole blocks, starting with an empty encrypted buffer, and leaving
+     * it empty. The ciphertext of each block is the feedback for the next, so we
+     * don't need to track registerPointer within the block.
+     * @param len A multiple of the block size.
+     */
+    protected void decipherWholeBlocks(byte[] buf, int off, int len) {
+        int bs = feedback_register.length;
+        if (keystream == null) keystream = new byte[bs];
+        for (int end = off + len; off < end; off += bs) {
+            encipherBlock(feedback_register, keystream);
+            System.arraycopy(buf, off, feedback_register, 0, bs);
+            for (int i=0; i<bs; i++)
+                buf[off+i] ^= keystream[i];
+        }
+        registerPointer = bs;
+    }
+
     /**
      * Enciphers one byte of data, by XOR'ing the plaintext byte with
      * one byte from the encrypted buffer.  Then places the enciphered 
@@ -148,22 +181,56 @@ public class PCFBMode {
      */
     //public synchronized byte[] blockEncipher(byte[] buf, int off, int len) {
     public byte[] blockEncipher(byte[] buf, int off, int len) {
-        while (len > 0) {
-            if (registerPointer == feedback_register.length) refillBuffer();
-            int n = Math.min(len, feedback_register.length - registerPointer);
-            for (int i=off; i<off+n; ++i)
-                buf[i] = (feedback_register[registerPointer++] ^= buf[i]);
-            off += n;
-            len -= n;
+        // Use up what is left of the encrypted buffer
+        int n = Math.min(len, feedback_register.length - registerPointer);
+        encipherPartial(buf, off, n);
+        off += n;
+        len -= n;
+        // Then whole blocks, then the rest
+        int whole = len - len % feedback_register.length;
+        if (whole > 0) {
+            encipherWholeBlocks(buf, off, whole);
+            off += whole;
+            len -= whole;
+        }
+        if (len > 0) {
+            refillBuffer();
+            encipherPartial(buf, off, len);
         }
         return buf;
     }
-        
+
+    private void encipherPartial(byte[] buf, int off, int n) {
+        for (int i=off; i<off+n; ++i)
+            buf[i] = (feedback_register[registerPointer++] ^= buf[i]);
+    }
+
+    /**
+     * Encipher whole blocks, starting with an empty encrypted buffer, and leaving
+     * it empty.
+     * @param len A multiple of the block size.
+     */
+    protected void encipherWholeBlocks(byte[] buf, int off, int len) {
+        int bs = feedback_register.length;
+        for (int end = off + len; off < end; off += bs) {
+            encipherBlock(feedback_register, feedback_register);
+            for (int i=0; i<bs; i++)
+                feedback_register[i] ^= buf[off+i];
+            System.arraycopy(feedback_register, 0, buf, off, bs);
+        }
+        registerPointer = bs;
+    }
+
+    /** Encrypt one block with the cipher. */
+    protected void encipherBlock(byte[] block, byte[] result) {
+        c.encipher(block, result);
+    }
+
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
     protected void refillBuffer() {
         // Encrypt feedback into result
-        c.encipher(feedback_register, feedback_register);
+        encipherBlock(feedback_register, feedback_register);
 
         registerPointer=0;
     }
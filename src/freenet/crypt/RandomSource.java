@@ -67,7 +67,25 @@ public abstract class RandomSource extends Random {
      * Must be <= 1.0.
      */
     public abstract int acceptEntropyBytes(EntropySource myPacketDataSource, byte[] buf, int offset, int length, double bias);
-    
+
+    /**
+     * Like acceptTimerEntropy(), but may queue the sample to be accumulated later on another
+     * thread, so it is cheap enough to call for every packet. May drop the sample if too many
+     * are queued. By default, accepts it immediately.
+     */
+    public void queueTimerEntropy(EntropySource timer, double bias) {
+        acceptTimerEntropy(timer, bias);
+    }
+
+    /**
+     * Like acceptEntropyBytes(), but may queue the data to be accumulated later on another
+     * thread, so it is cheap enough to call for every packet. The bytes are copied before
+     * returning. By default, accepts them immediately.
+     */
+    public void queueEntropyBytes(EntropySource source, byte[] buf, int offset, int length, double bias) {
+        acceptEntropyBytes(source, buf, offset, length, bias);
+    }
+
     /**
      * If entropy estimation is supported, this method will block
      * until the specified number of bits of entropy are available.  If
@@ -1,27 +1,81 @@
 package freenet.crypt;
 
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
 import freenet.crypt.ciphers.Rijndael;
 
 /**
  * Optimised PCFBMode for Rijndael.
- * All this actually does is avoid two new int[4]'s per cycle.
+ * Avoids two new int[4]'s per cycle. With a 128-bit block, i.e. AES, PCFB is
+ * plain CFB, so runs of whole blocks go through the JCA's AES/CFB if Rijndael
+ * uses the JCA, which may use the CPU's AES instructions.
  */
 public final class RijndaelPCFBMode extends PCFBMode {
 
     /** Temporary variables to remove allocations from inner crypto loop. These are wiped
      * by the encrypt function. */
     private final int[] a, t;
+    /** JCA AES/CFB ciphers, created on demand */
+    private Cipher jcaEncrypt, jcaDecrypt;
+    /** Set if the JCA can't be used for this key */
+    private boolean noJca;
+
+    /** Minimum run of whole blocks to pass to the JCA, smaller runs aren't worth the setup */
+    private static final int MIN_JCA_BYTES = 1024;
+
+    @Override
+    protected void encipherBlock(byte[] block, byte[] result) {
+        ((Rijndael)c).encipher(block, result, a, t);
+    }
 
-    // Refills the encrypted buffer with data.
-    //private synchronized void refillBuffer() {
     @Override
-	protected void refillBuffer() {
-        // Encrypt feedback into result
-        ((Rijndael)c).encipher(feedback_register, feedback_register, a, t);
+    protected void encipherWholeBlocks(byte[] buf, int off, int len) {
+        if (len < MIN_JCA_BYTES || noJca) {
+            super.encipherWholeBlocks(buf, off, len);
+            return;
+        }
+        Cipher cipher = jcaEncrypt = ((Rijndael)c).initJcaCFB(jcaEncrypt, feedback_register, true);
+        if (cipher == null) {
+            noJca = true;
+            super.encipherWholeBlocks(buf, off, len);
+            return;
+        }
+        jcaCrypt(cipher, buf, off, len);
+        // The last ciphertext block is the feedback
+        System.arraycopy(buf, off + len - feedback_register.length, feedback_register, 0, feedback_register.length);
+        registerPointer = feedback_register.length;
+    }
+
+    @Override
+    protected void decipherWholeBlocks(byte[] buf, int off, int len) {
+        if (len < MIN_JCA_BYTES || noJca) {
+            super.decipherWholeBlocks(buf, off, len);
+            return;
+        }
+        Cipher cipher = jcaDecrypt = ((Rijndael)c).initJcaCFB(jcaDecrypt, feedback_register, false);
+        if (cipher == null) {
+            noJca = true;
+            super.decipherWholeBlocks(buf, off, len);
+            return;
+        }
+        // The last ciphertext block is the feedback
+        System.arraycopy(buf, off + len - feedback_register.length, feedback_register, 0, feedback_register.length);
+        jcaCrypt(cipher, buf, off, len);
+        registerPointer = feedback_register.length;
+    }
 
-        registerPointer=0;
+    private static void jcaCrypt(Cipher cipher, byte[] buf, int off, int len) {
+        try {
+            if (cipher.doFinal(buf, off, len, buf, off) != len)
+                throw new IllegalStateException("JCA AES/CFB returned a partial result");
+        } catch (GeneralSecurityException e) {
+            // Impossible with CFB, no padding and whole blocks
+            throw new Error(e);
+        }
     }
-	
+
     public RijndaelPCFBMode(Rijndael c) {
     	super(c);
     	int tempSize = c.getTempArraySize();
@@ -35,5 +89,5 @@ public final class RijndaelPCFBMode extends PCFBMode {
     	a = new int[tempSize];
     	t = new int[tempSize];
     }
-    
+
 }
@@ -35,9 +35,9 @@ package freenet.crypt;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -50,6 +50,9 @@ import freenet.support.OOMHook;
 import freenet.support.io.Closer;
 
 /**
+ * SHA-256 MessageDigest's. Digests are cached per thread rather than in a shared pool, so
+ * hashing never takes a lock.
+ *
  * @author  Jeroen C. van Gelderen (gelderen@cryptix.org)
  */
 public class SHA256 {
@@ -67,8 +70,16 @@ public class SHA256 {
 	/** Size (in bytes) of this hash */
 	private static final int HASH_SIZE = 32;
 
-	private static final int MESSAGE_DIGESTS_TO_CACHE = 16;
-	private static final ArrayList<MessageDigest> digests = new ArrayList<MessageDigest>();
+	/** A returned MessageDigest per thread, for getMessageDigest(). Null if in use. */
+	private static final ThreadLocal<MessageDigest> cachedDigests = new ThreadLocal<MessageDigest>();
+
+	/** A MessageDigest per thread for the one-shot digest() methods, never handed out. */
+	private static final ThreadLocal<MessageDigest> oneShotDigests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			return newMessageDigest();
+		}
+	};
 
 	/**
 	 * It won't reset the Message Digest for you!
@@ -96,16 +107,17 @@ public class SHA256 {
 	 * Either succeed or stop the node.
 	 */
 	public static MessageDigest getMessageDigest() {
-		try {
-			MessageDigest md = null;
-			synchronized(digests) {
-				int x = digests.size();
-				if(x == 0) md = null;
-				else md = digests.remove(x-1);
-			}
-			if(md == null)
-				md = MessageDigest.getInstance("SHA-256");
+		MessageDigest md = cachedDigests.get();
+		if(md != null) {
+			cachedDigests.set(null);
 			return md;
+		}
+		return newMessageDigest();
+	}
+
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
 		} catch(NoSuchAlgorithmException e2) {
 			//TODO: maybe we should point to a HOWTO for freejvms
 			Logger.error(Node.class, "Check your JVM settings especially the JCE!" + e2);
@@ -117,52 +129,61 @@ public class SHA256 {
 	}
 
 	/**
-	 * Return a MessageDigest to the pool.
+	 * Return a MessageDigest to the calling thread's cache.
 	 * Must be SHA-256 !
 	 */
 	public static void returnMessageDigest(MessageDigest md256) {
 		if(md256 == null)
 			return;
-		String algo = md256.getAlgorithm();
-		if(!(algo.equals("SHA-256") || algo.equals("SHA256")))
-			throw new IllegalArgumentException("Should be SHA-256 but is " + algo);
-		md256.reset();
-		synchronized (digests) {
-			int mdPoolSize = digests.size();
-			if (mdPoolSize > MESSAGE_DIGESTS_TO_CACHE || noCache) { // don't cache too many of them
-				if(logMINOR) Logger.normal(SHA256.class, "Throwing away a SHA256 MessageDigest ("+mdPoolSize+'>'+MESSAGE_DIGESTS_TO_CACHE+')');
-				return;
-			}
-			digests.add(md256);
+		if(md256.getDigestLength() != HASH_SIZE)
+			throw new IllegalArgumentException("Should be SHA-256 but is " + md256.getAlgorithm());
+		if(noCache) {
+			if(logMINOR) Logger.minor(SHA256.class, "Throwing away a SHA256 MessageDigest (low memory)");
+			return;
 		}
+		md256.reset();
+		// Keep at most one per thread
+		if(cachedDigests.get() == null)
+			cachedDigests.set(md256);
 	}
 
 	public static byte[] digest(byte[] data) {
-		MessageDigest md = getMessageDigest();
-		byte[] hash = md.digest(data);
-		returnMessageDigest(md);
+		byte[] hash = new byte[HASH_SIZE];
+		digest(data, 0, data.length, hash);
 		return hash;
 	}
 
+	/**
+	 * Hash part of an array, without locking or allocating.
+	 * @param out Where to put the hash, in the first {@link #getDigestLength()} bytes.
+	 */
+	public static void digest(byte[] data, int offset, int length, byte[] out) {
+		if(out.length < HASH_SIZE)
+			throw new IllegalArgumentException("Output buffer too small: " + out.length);
+		MessageDigest md = oneShotDigests.get();
+		md.update(data, offset, length);
+		try {
+			md.digest(out, 0, HASH_SIZE);
+		} catch (DigestException e) {
+			// Impossible, we checked the length
+			throw new Error(e);
+		}
+	}
+
 	public static int getDigestLength() {
 		return HASH_SIZE;
 	}
-	
-	private static boolean noCache = false;
-	
+
+	private static volatile boolean noCache = false;
+
 	static {
 		OOMHandler.addOOMHook(new OOMHook() {
 			public void handleLowMemory() throws Exception {
-				synchronized(digests) {
-					digests.clear();
-				}
+				// Other threads' cached digests go when they next get one
 				noCache = true;
 			}
 
 			public void handleOutOfMemory() throws Exception {
-				synchronized(digests) {
-					digests.clear();
-				}
 				noCache = true;
 			}
 		});
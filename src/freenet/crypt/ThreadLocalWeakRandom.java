@@ -0,0 +1,45 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Random;
+
+import org.spaceroots.mantissa.random.MersenneTwister;
+
+/**
+ * Fast, non-cryptographic random numbers, from a MersenneTwister per thread, each seeded from
+ * a secure RandomSource the first time the thread uses it. So callers never contend for a
+ * lock, unlike with Yarrow or a shared Random. Only for things like timing jitter and
+ * picking a random element, never for keys, nonces or IVs.
+ */
+@SuppressWarnings("serial")
+public class ThreadLocalWeakRandom extends Random {
+
+	private static final int SEED_BYTES = 16;
+
+	private final ThreadLocal<Random> randoms;
+
+	public ThreadLocalWeakRandom(final RandomSource seedSource) {
+		randoms = new ThreadLocal<Random>() {
+			@Override
+			protected Random initialValue() {
+				byte[] seed = new byte[SEED_BYTES];
+				seedSource.nextBytes(seed);
+				return new MersenneTwister(seed);
+			}
+		};
+	}
+
+	/** All the other methods use this, apart from nextGaussian(). */
+	@Override
+	protected int next(int bits) {
+		return randoms.get().nextInt() >>> (32 - bits);
+	}
+
+	/** Per-thread generators can't be reseeded together. */
+	@Override
+	public void setSeed(long seed) {
+		// Ignore. Called by the Random constructor.
+	}
+}
@@ -26,6 +26,7 @@ import java.util.Properties;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
 
 /**
  * An implementation of the Yarrow PRNG in Java.
@@ -463,17 +464,20 @@ public class Yarrow extends RandomSource {
 		int length, double bias) {
 		int totalRealEntropy = 0;
 		for(int i = 0; i < length; i += 8) {
-			long thingy = 0;
-			int bytes = 0;
-			for(int j = 0; j < Math.min(length, i + 8); j++) {
-				thingy = (thingy << 8) + buf[j];
-				bytes++;
-			}
-			totalRealEntropy += acceptEntropy(source, thingy, bytes * 8, bias);
+			int bytes = Math.min(8, length - i);
+			totalRealEntropy += acceptEntropy(source, bytesToLong(buf, offset + i, bytes), bytes * 8, bias);
 		}
 		return totalRealEntropy;
 	}
 
+	/** Pack up to 8 bytes into a long */
+	private static long bytesToLong(byte[] buf, int offset, int length) {
+		long thingy = 0;
+		for(int j = offset; j < offset + length; j++)
+			thingy = (thingy << 8) + (buf[j] & 0xff);
+		return thingy;
+	}
+
 	private int acceptEntropy(
 		EntropySource source,
 		long data,
@@ -482,70 +486,20 @@ public class Yarrow extends RandomSource {
 		return accept_entropy(
 			data,
 			source,
-			(int) (bias * Math.min(
+			estimateEntropy(source, data, entropyGuess, bias));
+	}
+
+	private int estimateEntropy(EntropySource source, long data, int entropyGuess, double bias) {
+		return (int) (bias * Math.min(
 			32,
-			Math.min(estimateEntropy(source, data), entropyGuess))));
+			Math.min(estimateEntropy(source, data), entropyGuess)));
 	}
 
 	private int accept_entropy(long data, EntropySource source, int actualEntropy) {
 
-		boolean performedPoolReseed = false;
-		byte[] b = new byte[] {
-				(byte) data,
-				(byte) (data >> 8),
-				(byte) (data >> 16),
-				(byte) (data >> 24),
-				(byte) (data >> 32),
-				(byte) (data >> 40),
-				(byte) (data >> 48),
-				(byte) (data >> 56)
-		};
-		
+		boolean performedPoolReseed;
 		synchronized(this) {
-			fast_select = !fast_select;
-			MessageDigest pool = (fast_select ? fast_pool : slow_pool);
-			pool.update(b);
-
-			if(fast_select) {
-				fast_entropy += actualEntropy;
-				if(fast_entropy > FAST_THRESHOLD) {
-					fast_pool_reseed();
-					performedPoolReseed = true;
-				}
-			} else {
-				slow_entropy += actualEntropy;
-
-				if(source != null) {
-					int[] contributedEntropy = entropySeen.get(source);
-					if(contributedEntropy == null) {
-						contributedEntropy = new int[] { actualEntropy };
-						entropySeen.put(source, contributedEntropy);
-					} else
-						contributedEntropy[0]+=actualEntropy;
-
-					if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
-						int kc = 0;
-						for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
-							EntropySource key = e.getKey();
-							int[] v = e.getValue();
-							if(DEBUG)
-								Logger.normal(this, "Key: <" + key + "> " + v);
-							if(v[0] > SLOW_THRESHOLD) {
-								kc++;
-								if(kc >= SLOW_K) {
-									slow_pool_reseed();
-									performedPoolReseed = true;
-									break;
-								}
-							}
-						}
-					}
-				}
-			}
-			if(DEBUG)
-				//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
-				// "+slow_entropy, Logger.NORMAL);
-				System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+			performedPoolReseed = accumulate(data, source, actualEntropy);
 		}
 		if(performedPoolReseed && (seedfile != null)) {
 			//Dont do this while synchronized on 'this' since
@@ -560,6 +514,154 @@ public class Yarrow extends RandomSource {
 		return actualEntropy;
 	}
 
+	/** Temporary buffer for accumulate() */
+	private final byte[] accumulateBuffer = new byte[8];
+
+	/**
+	 * Add a sample to the pools, reseeding if there is enough entropy.
+	 * Caller must hold the lock.
+	 * @return True if we reseeded.
+	 */
+	private boolean accumulate(long data, EntropySource source, int actualEntropy) {
+		boolean performedPoolReseed = false;
+		byte[] b = accumulateBuffer;
+		for(int i = 0; i < 8; i++)
+			b[i] = (byte) (data >> (i * 8));
+
+		fast_select = !fast_select;
+		MessageDigest pool = (fast_select ? fast_pool : slow_pool);
+		pool.update(b);
+
+		if(fast_select) {
+			fast_entropy += actualEntropy;
+			if(fast_entropy > FAST_THRESHOLD) {
+				fast_pool_reseed();
+				performedPoolReseed = true;
+			}
+		} else {
+			slow_entropy += actualEntropy;
+
+			if(source != null) {
+				int[] contributedEntropy = entropySeen.get(source);
+				if(contributedEntropy == null) {
+					contributedEntropy = new int[] { actualEntropy };
+					entropySeen.put(source, contributedEntropy);
+				} else
+					contributedEntropy[0]+=actualEntropy;
+
+				if(slow_entropy >= (SLOW_THRESHOLD * 2)) {
+					int kc = 0;
+					for(Map.Entry<EntropySource, int[]> e : entropySeen.entrySet()) {
+						EntropySource key = e.getKey();
+						int[] v = e.getValue();
+						if(DEBUG)
+							Logger.normal(this, "Key: <" + key + "> " + v);
+						if(v[0] > SLOW_THRESHOLD) {
+							kc++;
+							if(kc >= SLOW_K) {
+								slow_pool_reseed();
+								performedPoolReseed = true;
+								break;
+							}
+						}
+					}
+				}
+			}
+		}
+		if(DEBUG)
+			//	    Core.logger.log(this,"Fast pool: "+fast_entropy+"\tSlow pool:
+			// "+slow_entropy, Logger.NORMAL);
+			System.err.println("Fast pool: " + fast_entropy + "\tSlow pool: " + slow_entropy);
+		return performedPoolReseed;
+	}
+
+	/**
+	 * Entropy queued by the packet threads, accumulated in batches by a background thread,
+	 * so that neither the per-byte work nor a reseed happens on the caller's thread, and
+	 * queueing never waits for the lock on the generator.
+	 */
+	private final EntropyRing stagedEntropy = new EntropyRing(STAGED_ENTROPY_SIZE);
+	private static final int STAGED_ENTROPY_SIZE = 4096;
+	/** How often the background thread accumulates the queued entropy */
+	private static final int ACCUMULATE_INTERVAL = 100;
+	/** Samples to accumulate in one go while holding the lock */
+	private static final int ACCUMULATE_BATCH = 256;
+	private volatile boolean accumulatorStarted;
+
+	@Override
+	public void queueTimerEntropy(EntropySource timer, double bias) {
+		queueEntropy(timer, System.currentTimeMillis(), 32, bias, true);
+	}
+
+	@Override
+	public void queueEntropyBytes(EntropySource source, byte[] buf, int offset, int length, double bias) {
+		for(int i = 0; i < length; i += 8) {
+			int bytes = Math.min(8, length - i);
+			queueEntropy(source, bytesToLong(buf, offset + i, bytes), bytes * 8, bias, false);
+		}
+	}
+
+	private void queueEntropy(EntropySource source, long data, int entropyGuess, double bias, boolean timer) {
+		if(!stagedEntropy.offer(source, data, entropyGuess, bias, timer)) {
+			if(logMINOR) Logger.minor(this, "Entropy queue full, dropping sample from "+source);
+		}
+		if(!accumulatorStarted)
+			startAccumulator();
+	}
+
+	private void startAccumulator() {
+		synchronized(stagedEntropy) {
+			if(accumulatorStarted) return;
+			accumulatorStarted = true;
+		}
+		NativeThread t = new NativeThread(new Runnable() {
+			public void run() {
+				EntropyRing.Sample sample = new EntropyRing.Sample();
+				while(true) {
+					try {
+						Thread.sleep(ACCUMULATE_INTERVAL);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					try {
+						accumulateQueuedEntropy(sample);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" accumulating entropy", t);
+					}
+				}
+			}
+		}, "Yarrow entropy accumulator", NativeThread.LOW_PRIORITY, false);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Feed all the queued entropy into the pools, taking the lock once per batch.
+	 * Only called by the accumulator thread.
+	 */
+	private void accumulateQueuedEntropy(EntropyRing.Sample sample) {
+		boolean performedPoolReseed = false;
+		boolean more = true;
+		while(more) {
+			synchronized(this) {
+				for(int i = 0; i < ACCUMULATE_BATCH; i++) {
+					if(!stagedEntropy.poll(sample)) {
+						more = false;
+						break;
+					}
+					EntropySource source = sample.source;
+					long data = sample.timer ? sample.data - source.lastVal : sample.data;
+					int actualEntropy = estimateEntropy(source, data, sample.entropyGuess, sample.bias);
+					if(accumulate(data, source, actualEntropy))
+						performedPoolReseed = true;
+				}
+			}
+		}
+		sample.source = null;
+		if(performedPoolReseed && (seedfile != null))
+			write_seed(seedfile);
+	}
+
 	private int estimateEntropy(EntropySource source, long newVal) {
 		int delta = (int) (newVal - source.lastVal);
 		int delta2 = delta - source.lastDelta;
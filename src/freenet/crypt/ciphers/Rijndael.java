@@ -1,6 +1,12 @@
 package freenet.crypt.ciphers;
 
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.UnsupportedCipherException;
@@ -15,10 +21,48 @@ import freenet.support.Logger;
 /**
  * Interfaces with the Rijndael AES candidate to implement the Rijndael
  * algorithm
+ *
+ * Thread safe without locking: the key schedule doesn't change after initialize(), and each
+ * call has its own temporary arrays. With a 128-bit block, i.e. AES, we use the JCA's AES if
+ * it works, as the JVM may use the CPU's AES instructions. The JCA Cipher's have state, so
+ * there is one per thread.
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	private volatile Object sessionKey;
 	private final int keysize, blocksize;
+	/** Per-thread JCA ciphers for this key, encrypting and decrypting, or null if not used */
+	private volatile ThreadLocal<Cipher[]> jcaCiphers;
+	/** The key for the JCA, or null if not used */
+	private volatile SecretKeySpec jcaKey;
+
+	/** True if the JCA's AES is available, with 256-bit keys, and gives the same results */
+	private static final boolean USE_JCA_AES = checkJcaAES();
+
+	private static boolean checkJcaAES() {
+		try {
+			byte[] key = new byte[32];
+			for(int i=0;i<key.length;i++) key[i] = (byte) (i * 7 + 1);
+			byte[] block = new byte[16];
+			for(int i=0;i<block.length;i++) block[i] = (byte) (i * 13 + 5);
+			Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+			byte[] jca = cipher.doFinal(block);
+			byte[] ours = new byte[16];
+			Rijndael_Algorithm.blockEncrypt(block, ours, 0, Rijndael_Algorithm.makeKey(key, 16), 16);
+			if(!Arrays.equals(jca, ours)) {
+				Logger.error(Rijndael.class, "JCA AES gives different results to Rijndael, not using it");
+				return false;
+			}
+			return true;
+		} catch (GeneralSecurityException e) {
+			// Not available, or restricted to 128-bit keys.
+			Logger.normal(Rijndael.class, "Not using JCA AES: "+e);
+			return false;
+		} catch (Throwable t) {
+			Logger.error(Rijndael.class, "Not using JCA AES: "+t, t);
+			return false;
+		}
+	}
 
 	/**
 	 * Create a Rijndael instance.
@@ -58,15 +102,77 @@ public class Rijndael implements BlockCipher {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
 			sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			if(USE_JCA_AES && blocksize == 128) {
+				jcaKey = new SecretKeySpec(nkey, "AES");
+				jcaCiphers = makeJcaCiphers(jcaKey);
+			} else {
+				jcaKey = null;
+				jcaCiphers = null;
+			}
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 			Logger.error(this,"Invalid key");
 		}
 	}
 
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	private static ThreadLocal<Cipher[]> makeJcaCiphers(final SecretKeySpec spec) {
+		return new ThreadLocal<Cipher[]>() {
+			@Override
+			protected Cipher[] initialValue() {
+				try {
+					Cipher enc = Cipher.getInstance("AES/ECB/NoPadding");
+					enc.init(Cipher.ENCRYPT_MODE, spec);
+					Cipher dec = Cipher.getInstance("AES/ECB/NoPadding");
+					dec.init(Cipher.DECRYPT_MODE, spec);
+					return new Cipher[] { enc, dec };
+				} catch (GeneralSecurityException e) {
+					// Worked in checkJcaAES()
+					throw new Error("JCA AES no longer works: "+e, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Initialise a JCA AES/CFB cipher with this key, for bulk encryption in CFB mode, which is
+	 * PCFB with a 128-bit block. The JCA cipher buffers partial blocks, so only feed it whole
+	 * blocks.
+	 * @param cipher A cipher previously returned by this method, or null to create one.
+	 * @param iv The IV, i.e. the feedback register.
+	 * @return The cipher, or null if we don't use the JCA for this key.
+	 */
+	public Cipher initJcaCFB(Cipher cipher, byte[] iv, boolean encrypt) {
+		SecretKeySpec key = jcaKey;
+		if(key == null) return null;
+		try {
+			if(cipher == null)
+				cipher = Cipher.getInstance("AES/CFB/NoPadding");
+			cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			Logger.error(this, "Unable to use JCA AES/CFB: "+e, e);
+			return null;
+		}
+	}
+
+	/** Encrypt or decrypt a block with the JCA */
+	private static void jcaCrypt(Cipher cipher, byte[] block, byte[] result) {
+		try {
+			cipher.doFinal(block, 0, 16, result, 0);
+		} catch (GeneralSecurityException e) {
+			// Impossible with ECB, no padding and a whole block
+			throw new Error(e);
+		}
+	}
+
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
+		ThreadLocal<Cipher[]> jca = jcaCiphers;
+		if(jca != null) {
+			jcaCrypt(jca.get()[0], block, result);
+			return;
+		}
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
 	}
 
@@ -75,22 +181,48 @@ public class Rijndael implements BlockCipher {
 	 * things up by avoiding unnecessary allocations between rounds.
 	 */
 	// only consumer is RijndaelPCFBMode
-	public synchronized final int getTempArraySize() {
+	public final int getTempArraySize() {
 		return blocksize/(8*4);
 	}
 
 	// only consumer is RijndaelPCFBMode
-	public synchronized final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
+	public final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		if(a.length != t.length || t.length != blocksize/(8*4))
 			throw new IllegalArgumentException();
+		ThreadLocal<Cipher[]> jca = jcaCiphers;
+		if(jca != null) {
+			jcaCrypt(jca.get()[0], block, result);
+			return;
+		}
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8, a, t);
 	}
 
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
+		ThreadLocal<Cipher[]> jca = jcaCiphers;
+		if(jca != null) {
+			jcaCrypt(jca.get()[1], block, result);
+			return;
+		}
 		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
 	}
+
+	/**
+	 * Decipher a block using the caller's temporary arrays, see getTempArraySize().
+	 */
+	public final void decipher(byte[] block, byte[] result, int[] a, int[] t) {
+		if(block.length != blocksize/8)
+			throw new IllegalArgumentException();
+		if(a.length != t.length || t.length != blocksize/(8*4))
+			throw new IllegalArgumentException();
+		ThreadLocal<Cipher[]> jca = jcaCiphers;
+		if(jca != null) {
+			jcaCrypt(jca.get()[1], block, result);
+			return;
+		}
+		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8, a, t);
+	}
 }
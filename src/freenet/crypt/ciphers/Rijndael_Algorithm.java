@@ -685,6 +685,32 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 			return;
 		}
 
+		int BC = blockSize / 4;
+
+		int[] a = new int[BC];
+		int[] t = new int[BC]; // temporary work array
+
+		blockDecrypt(in, result, inOffset, sessionKey, blockSize, a, t);
+	}
+
+	/**
+	 * Decrypt exactly one block of ciphertext.
+	 *
+	 * @param  in         The ciphertext.
+	 * @param  result     The resulting ciphertext.
+	 * @param  inOffset   Index of in from which to start considering data.
+	 * @param  sessionKey The session key to use for decryption.
+	 * @param  blockSize  The block size in bytes of this Rijndael.
+	 * @param  a          Temporary array of blockSize / 4 ints.
+	 * @param  t          Temporary array of blockSize / 4 ints.
+	 */
+	static final void
+	blockDecrypt (byte[] in, byte[] result, int inOffset, Object sessionKey, int blockSize, int[] a, int[] t) {
+		if (blockSize == BLOCK_SIZE) {
+			blockDecrypt(in, result, inOffset, sessionKey);
+			return;
+		}
+
 		if (RDEBUG) trace(IN, "blockDecrypt("+in+", "+inOffset+", "+sessionKey+", "+blockSize+ ')');
 		Object[] sKey = (Object[]) sessionKey; // extract decryption round keys
 		int[][] Kd = (int[][]) sKey[1];
@@ -695,8 +721,6 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 		int s1 = shifts[SC][1][1];
 		int s2 = shifts[SC][2][1];
 		int s3 = shifts[SC][3][1];
-		int[] a = new int[BC];
-		int[] t = new int[BC]; // temporary work array
 		int i;
 		int j = 0, tt;
 
@@ -19,21 +19,10 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
-import freenet.support.ByteBufferInputStream;
-import freenet.support.Fields;
-import freenet.support.Logger;
-import freenet.support.LogThresholdCallback;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 
 /**
@@ -44,102 +33,35 @@ import freenet.support.ShortBuffer;
 public class Message {
 
     public static final String VERSION = "$Id: Message.java,v 1.11 2005/09/15 18:16:04 amphibian Exp $";
-	private static volatile boolean logMINOR;
-	private static volatile boolean logDEBUG;
-
-	static {
-		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
-			@Override
-			public void shouldUpdate(){
-				logMINOR = Logger.shouldLog(Logger.MINOR, this);
-				logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
-			}
-		});
-	}
-
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
-	private List<Message> _subMessages;
+	/** Field values, by index in the spec. Primitive fields are set to PRIMITIVE and their values
+	 * are in _primitives, so they don't need to be boxed. */
+	final Object[] _values;
+	/** Values of primitive fields, by index, or null if there are none. Doubles are stored as
+	 * their raw long bits. */
+	final long[] _primitives;
+	List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
+	
+	/** Marks a primitive field which has been set */
+	private static final Object PRIMITIVE = new Object();
 
+	/**
+	 * Decode a message.
+	 * Buffer and ShortBuffer fields refer to buf, so it must not be changed afterwards.
+	 */
 	public static Message decodeMessageFromPacket(byte[] buf, int offset, int length, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf, offset, length);
-		return decodeMessage(bb, peer, length + overhead, true, false);
-	}
-	
-	private static Message decodeMessage(ByteBufferInputStream bb, PeerContext peer, int recvByteCount,
-	        boolean mayHaveSubMessages, boolean inSubMessage) {
-		MessageType mspec;
-        try {
-            mspec = MessageType.getSpec(Integer.valueOf(bb.readInt()));
-        } catch (IOException e1) {
-        	if(logDEBUG)
-        		Logger.debug(Message.class,"Failed to read message type: "+e1, e1);
-            return null;
-        }
-        if (mspec == null) {
-		    return null;
-		}
-		if(mspec.isInternalOnly())
-		    return null; // silently discard internal-only messages
-		Message m = new Message(mspec, peer, recvByteCount);
-		try {
-		    for (String name : mspec.getOrderedFields()) {
-		        Class<?> type = mspec.getFields().get(name);
-		        if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-		            m.set(name, Serializer
-					        .readListFromDataInputStream(mspec.getLinkedListTypes().get(name),
-					        bb));
-		        } else {
-		            m.set(name, Serializer.readFromDataInputStream(type, bb));
-		        }
-			}
-			if (mayHaveSubMessages) {
-		    	while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
-		    		ByteBufferInputStream bb2;
-		    		try {
-		    			int size = bb.readUnsignedShort();
-						if (bb.remaining() < size)
-							return m;
-
-						bb2 = bb.slice(size);
-		    		} catch (EOFException e) {
-		    			if(logMINOR) Logger.minor(Message.class, "No submessages, returning: "+m);
-		    			return m;
-		    		}
-		    		try {
-		    			Message subMessage = decodeMessage(bb2, peer, 0, false, true);
-		    			if(subMessage == null) return m;
-		    			if(logMINOR) Logger.minor(Message.class, "Adding submessage: "+subMessage);
-		    			m.addSubMessage(subMessage);
-		    		} catch (Throwable t) {
-		    			Logger.error(Message.class, "Failed to read sub-message: "+t, t);
-		    		}
-		    	}
-		    }
-		} catch (EOFException e) {
-			String msg = peer.getPeer()+" sent a message packet that ends prematurely while deserialising "+mspec.getName();
-			if(inSubMessage)
-				Logger.minor(Message.class, msg+" in sub-message", e);
-			else
-				Logger.error(Message.class, msg, e);
-		    return null;
-		} catch (IOException e) {
-		    Logger.error(Message.class, "Unexpected IOException: "+e+" reading from buffer stream", e);
-		    return null;
-		}
-		if(logMINOR) Logger.minor(Message.class, "Returning message: "+m);
-		return m;
+		return MessageCodec.decode(buf, offset, length, peer, length + overhead, true, false);
 	}
 	
 	public Message(MessageType spec) {
 		this(spec, null, 0);
 	}
 
-	private Message(MessageType spec, PeerContext source, int recvByteCount) {
+	Message(MessageType spec, PeerContext source, int recvByteCount) {
 		localInstantiationTime = System.currentTimeMillis();
 		_spec = spec;
 		if(source == null) {
@@ -150,72 +72,121 @@ public class Message {
 			_sourceRef = source.getWeakRef();
 		}
 		_receivedByteCount = recvByteCount;
+		_values = new Object[spec.getFieldCount()];
+		_primitives = spec.hasPrimitiveFields() ? new long[_values.length] : null;
+	}
+
+	/** @return The value of a primitive field of the given type */
+	private long getPrimitive(String key, byte code) {
+		int i = _spec.getFieldIndex(key);
+		if(i < 0 || _spec.getFieldCode(i) != code)
+			throw new ClassCastException("Field " + key + " of " + _spec.getName() + " is a " + (i < 0 ? null : _spec.getFieldType(i)));
+		if(_values[i] == null)
+			throw new FieldNotSetException(key+" not set");
+		return _primitives[i];
 	}
 
 	public boolean getBoolean(String key) {
-		return ((Boolean) _payload.get(key)).booleanValue();
+		return getPrimitive(key, MessageCodec.T_BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return ((Byte) _payload.get(key)).byteValue();
+		return (byte) getPrimitive(key, MessageCodec.T_BYTE);
 	}
 
 	public short getShort(String key) {
-		return ((Short) _payload.get(key)).shortValue();
+		return (short) getPrimitive(key, MessageCodec.T_SHORT);
 	}
 
 	public int getInt(String key) {
-		return ((Integer) _payload.get(key)).intValue();
+		return (int) getPrimitive(key, MessageCodec.T_INT);
 	}
 
 	public long getLong(String key) {
-		return ((Long) _payload.get(key)).longValue();
+		return getPrimitive(key, MessageCodec.T_LONG);
 	}
 
 	public double getDouble(String key) {
-	    return ((Double) _payload.get(key)).doubleValue();
+	    return Double.longBitsToDouble(getPrimitive(key, MessageCodec.T_DOUBLE));
 	}
 	
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int i = _spec.getFieldIndex(key);
+		if(i < 0) return null;
+		Object value = _values[i];
+		if(value == PRIMITIVE)
+			return MessageCodec.box(_spec.getFieldCode(i), _primitives[i]);
+		return value;
+	}
+
+	/** Set a primitive field without boxing, if it is of the given type */
+	private boolean setPrimitive(String key, byte code, long value) {
+		int i = _spec.getFieldIndex(key);
+		if(i < 0 || _spec.getFieldCode(i) != code) return false;
+		setPrimitive(i, value);
+		return true;
+	}
+
+	void setPrimitive(int index, long value) {
+		_values[index] = PRIMITIVE;
+		_primitives[index] = value;
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if(!setPrimitive(key, MessageCodec.T_BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if(!setPrimitive(key, MessageCodec.T_BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if(!setPrimitive(key, MessageCodec.T_SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if(!setPrimitive(key, MessageCodec.T_INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if(!setPrimitive(key, MessageCodec.T_LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
     public void set(String key, double d) {
-        set(key, new Double(d));
+		if(!setPrimitive(key, MessageCodec.T_DOUBLE, Double.doubleToRawLongBits(d)))
+			set(key, Double.valueOf(d));
     }
     
 	public void set(String key, Object value) {
+		int i = _spec.getFieldIndex(key);
+		if (i < 0) {
+			throw new IncorrectTypeException("No field " + key + " in " + _spec.getName());
+		}
 		if (!_spec.checkType(key, value)) {
 			if (value == null) {
 				throw new IncorrectTypeException("Got null for " + key);				
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		set(i, value);
+	}
+
+	/** Set a field which has already been type checked */
+	void set(int index, Object value) {
+		byte code = _spec.getFieldCode(index);
+		if(MessageCodec.isPrimitive(code))
+			setPrimitive(index, MessageCodec.unbox(code, value));
+		else
+			_values[index] = value;
 	}
 
 	public byte[] encodeToPacket(PeerContext destination) {
@@ -223,41 +194,7 @@ public class Message {
 	}
 	
 	private byte[] encodeToPacket(PeerContext destination, boolean includeSubMessages, boolean isSubMessage) {
-//		if (this.getSpec() != MessageTypes.ping && this.getSpec() != MessageTypes.pong)
-//		Logger.logMinor("<<<<< Send message : " + this);
-
-    	if(logDEBUG)
-    		Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos, destination);
-			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
-		}
-		
-		if(_subMessages != null && includeSubMessages) {
-			for(int i=0;i<_subMessages.size();i++) {
-				byte[] temp = _subMessages.get(i).encodeToPacket(destination, false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
-			}
-		}
-		
-		byte[] buf = baos.toByteArray();
-    	if(logDEBUG)
-    		Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
+		return MessageCodec.encode(this, destination, includeSubMessages);
 	}
 
 	@Override
@@ -267,7 +204,7 @@ public class Message {
         ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-            ret.append(name).append('=').append(_payload.get(name));
+            ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -287,11 +224,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int i = _spec.getFieldIndex(fieldName);
+		return i >= 0 && _values[i] != null;
 	}
 	
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -0,0 +1,460 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Fields;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Encodes and decodes Messages, in the same format as Serializer, but driven by the field
+ * indexes of the MessageType.
+ *
+ * A message is encoded straight into a packet-sized array, allocated once at the right size.
+ * Primitive fields are read into the Message's primitive slots without boxing. Buffer and
+ * ShortBuffer fields are copied straight into the packet when encoding, and refer to the
+ * received packet when decoding, so the received packet must not be modified afterwards.
+ * getData() on such a slice copies it; bulk data consumers use copyTo() or the backing array
+ * instead, so the payload is only copied to where it is stored, and they don't keep the buffer,
+ * which would keep the whole packet in memory.
+ * Other field types (keys, peers, lists etc) still go through Serializer.
+ */
+final class MessageCodec {
+
+	private static volatile boolean logMINOR;
+	private static volatile boolean logDEBUG;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(Logger.MINOR, this);
+				logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
+			}
+		});
+	}
+
+	// Field type codes. The primitive ones come first.
+	static final byte T_BOOLEAN = 0;
+	static final byte T_BYTE = 1;
+	static final byte T_SHORT = 2;
+	static final byte T_INT = 3;
+	static final byte T_LONG = 4;
+	static final byte T_DOUBLE = 5;
+	static final byte T_STRING = 6;
+	static final byte T_BUFFER = 7;
+	static final byte T_SHORTBUFFER = 8;
+	/** Anything else, handled by Serializer */
+	static final byte T_OTHER = 9;
+
+	private MessageCodec() {
+	}
+
+	static byte typeCode(Class<?> type) {
+		if (type == Boolean.class) return T_BOOLEAN;
+		if (type == Byte.class) return T_BYTE;
+		if (type == Short.class) return T_SHORT;
+		if (type == Integer.class) return T_INT;
+		if (type == Long.class) return T_LONG;
+		if (type == Double.class) return T_DOUBLE;
+		if (type == String.class) return T_STRING;
+		if (type == Buffer.class) return T_BUFFER;
+		if (type == ShortBuffer.class) return T_SHORTBUFFER;
+		return T_OTHER;
+	}
+
+	static boolean isPrimitive(byte code) {
+		return code <= T_DOUBLE;
+	}
+
+	/** Box the value of a primitive slot */
+	static Object box(byte code, long value) {
+		switch (code) {
+		case T_BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		case T_BYTE:
+			return Byte.valueOf((byte) value);
+		case T_SHORT:
+			return Short.valueOf((short) value);
+		case T_INT:
+			return Integer.valueOf((int) value);
+		case T_LONG:
+			return Long.valueOf(value);
+		case T_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		default:
+			throw new IllegalArgumentException("Not a primitive type code: " + code);
+		}
+	}
+
+	/** Unbox a value for a primitive slot. The value must be of the right type. */
+	static long unbox(byte code, Object value) {
+		switch (code) {
+		case T_BOOLEAN:
+			return ((Boolean) value).booleanValue() ? 1 : 0;
+		case T_BYTE:
+			return ((Byte) value).byteValue();
+		case T_SHORT:
+			return ((Short) value).shortValue();
+		case T_INT:
+			return ((Integer) value).intValue();
+		case T_LONG:
+			return ((Long) value).longValue();
+		case T_DOUBLE:
+			return Double.doubleToRawLongBits(((Double) value).doubleValue());
+		default:
+			throw new IllegalArgumentException("Not a primitive type code: " + code);
+		}
+	}
+
+	static byte[] encode(Message m, PeerContext destination, boolean includeSubMessages) {
+		MessageType spec = m.getSpec();
+		if (logDEBUG)
+			Logger.debug(m, "My spec code: " + spec.getName().hashCode() + " for " + spec.getName());
+		byte[][] others = serializeOthers(m, destination);
+		int size = encodedSize(m, others);
+		byte[][] subs = null;
+		List<Message> subMessages = m._subMessages;
+		if (subMessages != null && includeSubMessages) {
+			subs = new byte[subMessages.size()][];
+			for (int i = 0; i < subs.length; i++) {
+				subs[i] = encode(subMessages.get(i), destination, false);
+				size += 2 + subs[i].length;
+			}
+		}
+		byte[] buf = new byte[size];
+		int pos = write(m, others, buf, 0);
+		if (subs != null) {
+			for (byte[] sub : subs) {
+				pos = putShort(buf, pos, (short) sub.length);
+				System.arraycopy(sub, 0, buf, pos, sub.length);
+				pos += sub.length;
+			}
+		}
+		if (pos != size)
+			throw new IllegalStateException("Encoded " + pos + " bytes but expected " + size + " for " + m);
+		if (logDEBUG)
+			Logger.debug(m, "Length: " + buf.length + ", hash: " + Fields.hashCode(buf));
+		return buf;
+	}
+
+	/** Serialize the fields we can't write directly, or return null if there are none. */
+	private static byte[][] serializeOthers(Message m, PeerContext destination) {
+		MessageType spec = m.getSpec();
+		byte[][] others = null;
+		int count = spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
+			if (spec.getFieldCode(i) != T_OTHER)
+				continue;
+			Object value = field(m, i);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			try {
+				Serializer.writeToDataOutputStream(value, dos, destination);
+				dos.flush();
+			} catch (IOException e) {
+				// Can't happen, we are writing to memory
+				Logger.error(MessageCodec.class, "Caught " + e + " encoding " + m, e);
+				IllegalStateException ise = new IllegalStateException(e.toString());
+				ise.initCause(e);
+				throw ise;
+			}
+			if (others == null)
+				others = new byte[count][];
+			others[i] = baos.toByteArray();
+		}
+		return others;
+	}
+
+	private static Object field(Message m, int index) {
+		Object value = m._values[index];
+		if (value == null)
+			throw new NullPointerException("Field " + m.getSpec().getOrderedFields().get(index) + " not set on " + m.getSpec().getName());
+		return value;
+	}
+
+	private static int encodedSize(Message m, byte[][] others) {
+		MessageType spec = m.getSpec();
+		int size = 4;
+		int count = spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
+			switch (spec.getFieldCode(i)) {
+			case T_BOOLEAN:
+			case T_BYTE:
+				size += 1;
+				break;
+			case T_SHORT:
+				size += 2;
+				break;
+			case T_INT:
+				size += 4;
+				break;
+			case T_LONG:
+			case T_DOUBLE:
+				size += 8;
+				break;
+			case T_STRING:
+				size += 4 + 2 * ((String) field(m, i)).length();
+				break;
+			case T_BUFFER:
+				size += 4 + ((Buffer) field(m, i)).getLength();
+				break;
+			case T_SHORTBUFFER:
+				size += 2 + ((ShortBuffer) field(m, i)).getLength();
+				break;
+			default:
+				size += others[i].length;
+			}
+		}
+		return size;
+	}
+
+	private static int write(Message m, byte[][] others, byte[] buf, int pos) {
+		MessageType spec = m.getSpec();
+		pos = putInt(buf, pos, spec.getName().hashCode());
+		int count = spec.getFieldCount();
+		for (int i = 0; i < count; i++) {
+			byte code = spec.getFieldCode(i);
+			if (isPrimitive(code)) {
+				field(m, i);
+				long value = m._primitives[i];
+				switch (code) {
+				case T_BOOLEAN:
+				case T_BYTE:
+					buf[pos++] = (byte) value;
+					break;
+				case T_SHORT:
+					pos = putShort(buf, pos, (short) value);
+					break;
+				case T_INT:
+					pos = putInt(buf, pos, (int) value);
+					break;
+				case T_LONG:
+					pos = putLong(buf, pos, value);
+					break;
+				default:
+					// Canonical NaN, as DataOutputStream.writeDouble()
+					pos = putLong(buf, pos, Double.doubleToLongBits(Double.longBitsToDouble(value)));
+				}
+				continue;
+			}
+			switch (code) {
+			case T_STRING:
+				String s = (String) field(m, i);
+				pos = putInt(buf, pos, s.length());
+				for (int x = 0; x < s.length(); x++)
+					pos = putShort(buf, pos, (short) s.charAt(x));
+				break;
+			case T_BUFFER:
+				Buffer b = (Buffer) field(m, i);
+				pos = putInt(buf, pos, b.getLength());
+				b.copyTo(buf, pos);
+				pos += b.getLength();
+				break;
+			case T_SHORTBUFFER:
+				ShortBuffer sb = (ShortBuffer) field(m, i);
+				pos = putShort(buf, pos, (short) sb.getLength());
+				sb.copyTo(buf, pos);
+				pos += sb.getLength();
+				break;
+			default:
+				System.arraycopy(others[i], 0, buf, pos, others[i].length);
+				pos += others[i].length;
+			}
+		}
+		return pos;
+	}
+
+	private static int putShort(byte[] buf, int pos, short x) {
+		buf[pos] = (byte) (x >> 8);
+		buf[pos + 1] = (byte) x;
+		return pos + 2;
+	}
+
+	private static int putInt(byte[] buf, int pos, int x) {
+		buf[pos] = (byte) (x >> 24);
+		buf[pos + 1] = (byte) (x >> 16);
+		buf[pos + 2] = (byte) (x >> 8);
+		buf[pos + 3] = (byte) x;
+		return pos + 4;
+	}
+
+	private static int putLong(byte[] buf, int pos, long x) {
+		pos = putInt(buf, pos, (int) (x >> 32));
+		return putInt(buf, pos, (int) x);
+	}
+
+	/** Reads big-endian values from part of an array. */
+	private static final class Reader {
+		final byte[] buf;
+		int pos;
+		final int end;
+
+		Reader(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		int remaining() {
+			return end - pos;
+		}
+
+		void need(int bytes) throws EOFException {
+			if (bytes < 0 || end - pos < bytes)
+				throw new EOFException();
+		}
+
+		byte readByte() throws EOFException {
+			need(1);
+			return buf[pos++];
+		}
+
+		short readShort() throws EOFException {
+			need(2);
+			short x = (short) (((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff));
+			pos += 2;
+			return x;
+		}
+
+		int readInt() throws EOFException {
+			need(4);
+			int x = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16) | ((buf[pos + 2] & 0xff) << 8)
+			        | (buf[pos + 3] & 0xff);
+			pos += 4;
+			return x;
+		}
+
+		long readLong() throws EOFException {
+			long hi = readInt();
+			long lo = readInt() & 0xffffffffL;
+			return (hi << 32) | lo;
+		}
+	}
+
+	static Message decode(byte[] buf, int offset, int length, PeerContext peer, int recvByteCount,
+	        boolean mayHaveSubMessages, boolean inSubMessage) {
+		Reader r = new Reader(buf, offset, length);
+		MessageType mspec;
+		try {
+			mspec = MessageType.getSpec(Integer.valueOf(r.readInt()));
+		} catch (EOFException e1) {
+			if(logDEBUG)
+				Logger.debug(Message.class, "Failed to read message type: "+e1, e1);
+			return null;
+		}
+		if (mspec == null) {
+			return null;
+		}
+		if(mspec.isInternalOnly())
+			return null; // silently discard internal-only messages
+		Message m = new Message(mspec, peer, recvByteCount);
+		try {
+			int count = mspec.getFieldCount();
+			for (int i = 0; i < count; i++)
+				readField(r, m, mspec, i);
+			if (mayHaveSubMessages) {
+				while (r.remaining() > 2) { // sizeof(unsigned short) == 2
+					int size = r.readShort() & 0xffff;
+					if (r.remaining() < size)
+						return m;
+					int subOffset = r.pos;
+					r.pos += size;
+					try {
+						Message subMessage = decode(buf, subOffset, size, peer, 0, false, true);
+						if(subMessage == null) return m;
+						if(logMINOR) Logger.minor(Message.class, "Adding submessage: "+subMessage);
+						m.addSubMessage(subMessage);
+					} catch (Throwable t) {
+						Logger.error(Message.class, "Failed to read sub-message: "+t, t);
+					}
+				}
+			}
+		} catch (EOFException e) {
+			String msg = peer.getPeer()+" sent a message packet that ends prematurely while deserialising "+mspec.getName();
+			if(inSubMessage)
+				Logger.minor(Message.class, msg+" in sub-message", e);
+			else
+				Logger.error(Message.class, msg, e);
+			return null;
+		} catch (IOException e) {
+			Logger.error(Message.class, "Unexpected IOException: "+e+" reading from buffer stream", e);
+			return null;
+		}
+		if(logMINOR) Logger.minor(Message.class, "Returning message: "+m);
+		return m;
+	}
+
+	private static void readField(Reader r, Message m, MessageType spec, int i) throws IOException {
+		byte code = spec.getFieldCode(i);
+		switch (code) {
+		case T_BOOLEAN:
+			int bool = r.readByte();
+			if (bool != 0 && bool != 1)
+				throw new IOException("Boolean is non boolean value: "+bool);
+			m.setPrimitive(i, bool);
+			break;
+		case T_BYTE:
+			m.setPrimitive(i, r.readByte());
+			break;
+		case T_SHORT:
+			m.setPrimitive(i, r.readShort());
+			break;
+		case T_INT:
+			m.setPrimitive(i, r.readInt());
+			break;
+		case T_LONG:
+		case T_DOUBLE:
+			m.setPrimitive(i, r.readLong());
+			break;
+		case T_STRING:
+			int length = r.readInt();
+			r.need(length * 2);
+			char[] chars = new char[length];
+			for (int x = 0; x < length; x++)
+				chars[x] = (char) r.readShort();
+			m._values[i] = new String(chars);
+			break;
+		case T_BUFFER:
+			int bufLength = r.readInt();
+			if(bufLength < 0)
+				throw new IllegalArgumentException("Negative Length: "+bufLength);
+			r.need(bufLength);
+			m._values[i] = new Buffer(r.buf, r.pos, bufLength);
+			r.pos += bufLength;
+			break;
+		case T_SHORTBUFFER:
+			short shortLength = r.readShort();
+			if(shortLength < 0)
+				throw new IllegalArgumentException("Negative Length: "+shortLength);
+			r.need(shortLength);
+			m._values[i] = new ShortBuffer(r.buf, r.pos, shortLength);
+			r.pos += shortLength;
+			break;
+		default:
+			ByteBufferInputStream bb = new ByteBufferInputStream(r.buf, r.pos, r.remaining());
+			Class<?> type = spec.getFieldType(i);
+			Object value;
+			if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
+				String name = spec.getOrderedFields().get(i);
+				value = Serializer.readListFromDataInputStream(spec.getLinkedListTypes().get(name), bb);
+			} else {
+				value = Serializer.readFromDataInputStream(type, bb);
+			}
+			r.pos = r.end - bb.remaining();
+			m.set(i, value);
+		}
+	}
+}
@@ -18,12 +18,11 @@
  */
 package freenet.io.comm;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Vector;
 
 import freenet.node.PeerNode;
 import freenet.node.Ticker;
@@ -48,8 +47,9 @@ public class MessageCore {
 	}
 
 	private Dispatcher _dispatcher;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	/** _filters serves as lock for both. Checking the filters and adding to _unclaimed must be
+	 * atomic, see checkFilters(). */
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = 10*60*1000;  // 10 minutes; maybe this should be per message type??
@@ -62,7 +62,6 @@ public class MessageCore {
 	}
 
 	public MessageCore() {
-		_timedOutFilters = new Vector<MessageFilter>(32);
 	}
 
 	/**
@@ -82,10 +81,6 @@ public class MessageCore {
         }
     }
 
-    /** Only used by removeTimedOutFilters() - if future code uses this elsewhere, we need to
-     * reconsider its locking. */
-    private final Vector<MessageFilter> _timedOutFilters;
-    
     public void start(final Ticker ticker) {
     	synchronized(this) {
     		startedTime = System.currentTimeMillis();
@@ -114,28 +109,20 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
+		List<MessageFilter> timedOutFilters;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					_timedOutFilters.add(f);
-				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
-			}
+			// Only looks at the filters whose timeout has passed, and those with a client
+			// callback, which may say they should be timed out.
+			// See also the end of waitFor() for another weird case.
+			timedOutFilters = _filters.removeTimedOut(tStart);
 		}
 		
-		for(MessageFilter f : _timedOutFilters) {
+		for(MessageFilter f : timedOutFilters) {
+			if(logMINOR)
+				Logger.minor(this, "Removed "+f);
 			f.setMessage(null);
 			f.onTimedOut();
 		}
-		_timedOutFilters.clear();
 		
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - tStart > 50) {
@@ -165,21 +152,12 @@ public class MessageCore {
 		}
 		MessageFilter match = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				if (f.match(m)) {
-					matched = true;
-					i.remove();
-					match = f;
-					if(logMINOR) Logger.minor(this, "Matched: "+f);
-					break; // Only one match permitted per message
-				}
-			}
+			// Only one match permitted per message
+			match = _filters.match(m);
+		}
+		if(match != null) {
+			matched = true;
+			if(logMINOR) Logger.minor(this, "Matched: "+match);
 		}
 		if(match != null) {
 			match.setMessage(m);
@@ -220,17 +198,11 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					if (f.match(m)) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched: "+f);
-						break; // Only one match permitted per message
-					}
-				}
-				if(!matched) {
+				match = _filters.match(m);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched: "+match);
+				} else {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
 				        Message removed = _unclaimed.removeFirst();
 				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
@@ -261,18 +233,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeConnection(ctx, false);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -283,18 +246,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeConnection(ctx, true);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -349,22 +303,9 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						break;
-					}
-				}
+				// Filters are matched in order of timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter, timeout="+filter.getTimeout());
 			}
 		}
 		if(ret != null) {
@@ -421,22 +362,9 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						break;
-					}
-				}
+				// Filters are matched in order of timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter, timeout="+filter.getTimeout());
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -474,9 +402,6 @@ public class MessageCore {
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
 			synchronized(_filters) {
-				// Fortunately, it will be close to the beginning of the filters list, having
-				// just timed out. That is assuming it hasn't already been removed; in that
-				// case, this will be slower.
 				_filters.remove(filter);
 			}
 		}
@@ -523,6 +448,34 @@ public class MessageCore {
 		}
 	}
 	
+	/**
+	 * @return the number of filters waiting for a message
+	 */
+	public int getFilterCount() {
+		synchronized (_filters) {
+			return _filters.size();
+		}
+	}
+	
+	/**
+	 * @return the average time taken to find the filter matching a received message, in
+	 * nanoseconds
+	 */
+	public double getAverageFilterMatchTime() {
+		synchronized (_filters) {
+			return _filters.averageLookupNanos();
+		}
+	}
+	
+	/**
+	 * @return the average number of filters a received message was compared with
+	 */
+	public double getAverageFiltersChecked() {
+		synchronized (_filters) {
+			return _filters.averageFiltersChecked();
+		}
+	}
+	
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
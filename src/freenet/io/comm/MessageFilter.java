@@ -130,6 +130,27 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	/** The message type this filter (not chain) matches, or null for any type */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The value a field must have to match this filter (not chain), or null if any */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			return _fields.get(fieldName);
+		}
+	}
+
+	/** The next filter of the chain, see {@link #or(MessageFilter)} */
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	boolean hasCallback() {
+		return _callback != null;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -0,0 +1,278 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import freenet.support.Logger;
+
+/**
+ * The filters waiting for messages, indexed so that a message is only matched against the
+ * filters which could possibly match it.
+ *
+ * Each filter of a chain (see {@link MessageFilter#or(MessageFilter)}) is indexed by its message
+ * type, source and UID, the last two of which may be unset. Chains with a filter without a type
+ * are kept apart and checked against every message.
+ *
+ * Filters keep the priority they had in the old list: by timeout when added, then in the order
+ * they were added. A message goes to the first matching filter in that order. The same order
+ * is used to find the filters which have timed out.
+ *
+ * Not thread safe, MessageCore synchronizes.
+ */
+class MessageFilterIndex {
+
+	private static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final Object uid;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return type.equals(k.type) && (source == null ? k.source == null : source.equals(k.source))
+			        && (uid == null ? k.uid == null : uid.equals(k.uid));
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() ^ (source == null ? 0 : source.hashCode() * 31)
+			        ^ (uid == null ? 0 : uid.hashCode() * 17);
+		}
+	}
+
+	private static final class Entry {
+		final MessageFilter filter;
+		final long timeout;
+		final long seq;
+		/** The buckets this filter is in, null for the unindexed set */
+		final Key[] keys;
+
+		Entry(MessageFilter filter, long seq, Key[] keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.keys = keys;
+		}
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			if (e1.timeout != e2.timeout)
+				return e1.timeout < e2.timeout ? -1 : 1;
+			if (e1.seq != e2.seq)
+				return e1.seq < e2.seq ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private final HashMap<Key, TreeSet<Entry>> buckets = new HashMap<Key, TreeSet<Entry>>();
+	/** Chains which can't be indexed because a filter has no type */
+	private final TreeSet<Entry> unindexed = new TreeSet<Entry>(ORDER);
+	/** All the filters, in order */
+	private final TreeSet<Entry> all = new TreeSet<Entry>(ORDER);
+	/** Filters with a callback, which can time out before their timeout */
+	private final HashSet<Entry> withCallback = new HashSet<Entry>();
+	private final HashMap<MessageFilter, Entry> entries = new HashMap<MessageFilter, Entry>();
+	private long seq;
+
+	private long lookups;
+	private long filtersChecked;
+	private long lookupNanos;
+
+	void add(MessageFilter filter) {
+		if (entries.containsKey(filter)) {
+			Logger.error(this, "Filter added twice: " + filter, new Exception("error"));
+			remove(filter);
+		}
+		ArrayList<Key> keys = new ArrayList<Key>(1);
+		for (MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			if (type == null) {
+				keys = null;
+				break;
+			}
+			Key key = new Key(type, f.getSource(), f.getField(DMT.UID));
+			if (!keys.contains(key))
+				keys.add(key);
+		}
+		Entry e = new Entry(filter, seq++, keys == null ? null : keys.toArray(new Key[keys.size()]));
+		entries.put(filter, e);
+		all.add(e);
+		if (filter.hasCallback())
+			withCallback.add(e);
+		if (e.keys == null) {
+			unindexed.add(e);
+		} else {
+			for (Key key : e.keys) {
+				TreeSet<Entry> bucket = buckets.get(key);
+				if (bucket == null) {
+					bucket = new TreeSet<Entry>(ORDER);
+					buckets.put(key, bucket);
+				}
+				bucket.add(e);
+			}
+		}
+	}
+
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.get(filter);
+		if (e == null)
+			return false;
+		remove(e);
+		return true;
+	}
+
+	private void remove(Entry e) {
+		entries.remove(e.filter);
+		all.remove(e);
+		withCallback.remove(e);
+		if (e.keys == null) {
+			unindexed.remove(e);
+		} else {
+			for (Key key : e.keys) {
+				TreeSet<Entry> bucket = buckets.get(key);
+				if (bucket == null)
+					continue;
+				bucket.remove(e);
+				if (bucket.isEmpty())
+					buckets.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Find the first filter which matches a message, and remove it.
+	 * @return The filter, or null if none matches.
+	 */
+	MessageFilter match(Message m) {
+		long start = System.nanoTime();
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		List<Entry> stale = null;
+
+		Entry[] best = new Entry[1];
+		stale = scan(buckets.get(new Key(type, null, null)), m, best, stale);
+		if (source != null)
+			stale = scan(buckets.get(new Key(type, source, null)), m, best, stale);
+		if (uid != null) {
+			stale = scan(buckets.get(new Key(type, null, uid)), m, best, stale);
+			if (source != null)
+				stale = scan(buckets.get(new Key(type, source, uid)), m, best, stale);
+		}
+		stale = scan(unindexed, m, best, stale);
+
+		if (stale != null) {
+			for (Entry e : stale)
+				remove(e);
+		}
+		if (best[0] != null)
+			remove(best[0]);
+		lookups++;
+		lookupNanos += System.nanoTime() - start;
+		return best[0] == null ? null : best[0].filter;
+	}
+
+	/**
+	 * Find the first filter of a bucket which matches, if it comes before best[0].
+	 * @return The list of filters found to be already matched, to be removed.
+	 */
+	private List<Entry> scan(TreeSet<Entry> bucket, Message m, Entry[] best, List<Entry> stale) {
+		if (bucket == null)
+			return stale;
+		for (Entry e : bucket) {
+			if (best[0] != null && ORDER.compare(e, best[0]) >= 0)
+				break;
+			if (e.filter.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: " + e.filter);
+				if (stale == null)
+					stale = new ArrayList<Entry>();
+				if (!stale.contains(e))
+					stale.add(e);
+				continue;
+			}
+			filtersChecked++;
+			if (e.filter.match(m)) {
+				best[0] = e;
+				break;
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * Remove the filters which have timed out, or whose callback says they should.
+	 */
+	List<MessageFilter> removeTimedOut(long now) {
+		List<Entry> timedOut = new ArrayList<Entry>();
+		for (Entry e : all) {
+			if (e.timeout >= now)
+				break;
+			if (e.filter.timedOut(now))
+				timedOut.add(e);
+		}
+		for (Entry e : withCallback) {
+			if (e.timeout < now)
+				continue; // Already done
+			if (e.filter.timedOut(now))
+				timedOut.add(e);
+		}
+		List<MessageFilter> filters = new ArrayList<MessageFilter>(timedOut.size());
+		for (Entry e : timedOut) {
+			remove(e);
+			filters.add(e.filter);
+		}
+		return filters;
+	}
+
+	/**
+	 * Remove the filters waiting for a message from a peer which disconnected or restarted.
+	 * @return The filters removed, or null.
+	 */
+	List<MessageFilter> removeConnection(PeerContext ctx, boolean restarted) {
+		List<MessageFilter> removed = null;
+		for (Iterator<Entry> i = all.iterator(); i.hasNext();) {
+			MessageFilter f = i.next().filter;
+			if (restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if (removed == null)
+					removed = new ArrayList<MessageFilter>();
+				removed.add(f);
+			}
+		}
+		if (removed != null) {
+			for (MessageFilter f : removed)
+				remove(f);
+		}
+		return removed;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/** @return The average number of filters a message was matched against */
+	double averageFiltersChecked() {
+		return lookups == 0 ? 0 : (double) filtersChecked / lookups;
+	}
+
+	/** @return The average time taken to find the filter for a message, in nanoseconds */
+	double averageLookupNanos() {
+		return lookups == 0 ? 0 : (double) lookupNanos / lookups;
+	}
+}
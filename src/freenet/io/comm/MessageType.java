@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -36,6 +37,13 @@ public class MessageType {
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/** Index of each field in _orderedFields, which is its slot in a Message */
+	private final HashMap<String, Integer> _fieldIndexes = new HashMap<String, Integer>();
+	/** Type of each field, by index */
+	private final ArrayList<Class<?>> _fieldTypes = new ArrayList<Class<?>>();
+	/** Type code of each field, by index, see MessageCodec */
+	private byte[] _fieldCodes = new byte[0];
+	private boolean _hasPrimitiveFields;
 	private final boolean internalOnly;
 	private final short priority;
 
@@ -64,8 +72,21 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if (_fields.containsKey(name)) {
+			throw new RuntimeException("Message type " + _name + " already has a field called " + name);
+		}
 		_fields.put(name, type);
+		_fieldIndexes.put(name, Integer.valueOf(_orderedFields.size()));
 		_orderedFields.addLast(name);
+		_fieldTypes.add(type);
+		byte code = MessageCodec.typeCode(type);
+		byte[] codes = new byte[_fieldCodes.length + 1];
+		System.arraycopy(_fieldCodes, 0, codes, 0, _fieldCodes.length);
+		codes[_fieldCodes.length] = code;
+		_fieldCodes = codes;
+		if (MessageCodec.isPrimitive(code)) {
+			_hasPrimitiveFields = true;
+		}
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -129,6 +150,30 @@ public class MessageType {
 		return _linkedListTypes;
 	}
 
+	/**
+	 * @return The index of a field in the ordered field list, or -1 if there is no such field.
+	 */
+	public int getFieldIndex(String name) {
+		Integer i = _fieldIndexes.get(name);
+		return i == null ? -1 : i.intValue();
+	}
+
+	public int getFieldCount() {
+		return _fieldTypes.size();
+	}
+
+	public Class<?> getFieldType(int index) {
+		return _fieldTypes.get(index);
+	}
+
+	byte getFieldCode(int index) {
+		return _fieldCodes[index];
+	}
+
+	boolean hasPrimitiveFields() {
+		return _hasPrimitiveFields;
+	}
+
     /**
      * @return True if this message is internal-only.
      * If this is the case, any incoming messages in UDP form of this
@@ -0,0 +1,86 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import freenet.node.Node;
+
+/**
+ * UDP transport on a {@link DatagramChannel}.
+ *
+ * Packets are read straight into the receive buffers, which are handed to the packet handler
+ * threads without copying. Sends copy the encrypted packet into one reused direct buffer, which
+ * the JDK would otherwise do into a temporary buffer of its own, and reuse the destination
+ * address while consecutive packets go to the same peer.
+ */
+public class NioUdpSocketHandler extends UdpSocketHandler {
+	private static final int SEND_BUFFER_SIZE = 1500;
+	private final DatagramChannel channel;
+	/** Larger packets are wrapped instead. Protected by itself. */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+	/** The last destination, protected by sendBuffer */
+	private InetSocketAddress lastDestination;
+
+	public NioUdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title,
+	        IOStatisticCollector collector) throws SocketException {
+		super(openChannel(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+		channel = _sock.getChannel();
+	}
+
+	private static DatagramSocket openChannel(int listenPort, InetAddress bindto) throws SocketException {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(bindto, listenPort));
+			return channel.socket();
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// Ignore
+				}
+			}
+			if (e instanceof SocketException)
+				throw (SocketException) e;
+			SocketException se = new SocketException("Could not open datagram channel: " + e);
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	@Override
+	protected void receive(DatagramPacket packet, ByteBuffer buf) throws IOException {
+		InetSocketAddress sender = (InetSocketAddress) channel.receive(buf);
+		packet.setAddress(sender.getAddress());
+		packet.setPort(sender.getPort());
+		packet.setLength(buf.position());
+	}
+
+	@Override
+	protected void send(byte[] blockToSend, InetAddress address, int port) throws IOException {
+		if(blockToSend.length > SEND_BUFFER_SIZE) {
+			channel.send(ByteBuffer.wrap(blockToSend), new InetSocketAddress(address, port));
+			return;
+		}
+		// The channel only sends one packet at a time anyway
+		synchronized(sendBuffer) {
+			InetSocketAddress destination = lastDestination;
+			if(destination == null || destination.getPort() != port || !address.equals(destination.getAddress()))
+				lastDestination = destination = new InetSocketAddress(address, port);
+			sendBuffer.clear();
+			sendBuffer.put(blockToSend);
+			sendBuffer.flip();
+			channel.send(sendBuffer, destination);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of receive buffers, so that a packet can be read from the socket and handed to another
+ * thread without allocating or copying anything.
+ *
+ * The buffers are heap buffers, because the packet is decrypted from its backing array.
+ */
+public class PacketBufferPool {
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final int bufferSize;
+
+	/**
+	 * @param bufferSize
+	 *            size of each buffer.
+	 * @param maxFree
+	 *            maximum number of buffers kept for reuse.
+	 */
+	public PacketBufferPool(int bufferSize, int maxFree) {
+		this.bufferSize = bufferSize;
+		free = new ArrayBlockingQueue<ByteBuffer>(maxFree);
+	}
+
+	/** @return an empty buffer, reused if possible */
+	public ByteBuffer take() {
+		ByteBuffer buf = free.poll();
+		if (buf == null)
+			return ByteBuffer.allocate(bufferSize);
+		buf.clear();
+		return buf;
+	}
+
+	/** Return a buffer to the pool, once nothing refers to it any more */
+	public void release(ByteBuffer buf) {
+		if (buf.capacity() == bufferSize)
+			free.offer(buf);
+	}
+}
@@ -7,7 +7,11 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -19,7 +23,7 @@ import freenet.support.io.NativeThread;
 
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
-	private final DatagramSocket _sock;
+	protected final DatagramSocket _sock;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -41,8 +45,25 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private long startTime;
 	private Thread _thread;
 	private final IOStatisticCollector collector;
+	/** Number of threads handling received packets, or 0 to handle them on the receiving thread */
+	private int receiveThreads;
+	/** Per worker queues of received packets, null if handled on the receiving thread */
+	private volatile ReceiveWorker[] workers;
+	/** Packets dropped because the worker's queue was full */
+	private final AtomicLong receiveDrops = new AtomicLong();
+	/** Maximum number of packets waiting for each worker */
+	private static final int RECEIVE_QUEUE_SIZE = 256;
+	/** Buffers passed to the workers, created in start() */
+	private PacketBufferPool bufferPool;
 	
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/**
+	 * @param sock The socket, already bound to bindto:listenPort.
+	 */
+	protected UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -53,7 +74,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //				_sock = (DatagramSocket) Updater.getResource();
 //			} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		_sock = sock;
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536)
 			_sock.setReceiveBufferSize(65536);
@@ -131,14 +152,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
-		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		ByteBuffer buf = ByteBuffer.allocate(MAX_RECEIVE_SIZE);
+		DatagramPacket packet = new DatagramPacket(buf.array(), buf.capacity());
 		while (/*_active*/true) {
 			synchronized(this) {
 				if(!_active) return; // Finished
 			}
 			try {
-				realRun(packet);
+				realRun(packet, buf);
             } catch (OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -150,9 +171,16 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 	
-	private void realRun(DatagramPacket packet) {
+	private void realRun(DatagramPacket packet, ByteBuffer buf) {
 		// Single receiving thread
-		boolean gotPacket = getPacket(packet);
+		ByteBuffer pooled = null;
+		if(workers != null) {
+			// Receive straight into a buffer which the worker will give back to the pool
+			buf = pooled = bufferPool.take();
+			packet.setData(buf.array());
+		}
+		buf.clear();
+		boolean gotPacket = getPacket(packet, buf);
 		long now = System.currentTimeMillis();
 		if (gotPacket) {
 			long startTime = System.currentTimeMillis();
@@ -168,31 +196,101 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			byte[] data = packet.getData();
 			int offset = packet.getOffset();
 			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000)
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					else
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+			if(pooled != null) {
+				queuePacket(pooled, length, peer, now);
+				pooled = null;
+			} else
+				processPacket(data, offset, length, peer, now);
+		} else if(logDEBUG) Logger.debug(this, "No packet received");
+		if(pooled != null)
+			bufferPool.release(pooled);
+	}
+
+	private void processPacket(byte[] data, int offset, int length, Peer peer, long now) {
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000)
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				else
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
+	/**
+	 * Hand a received packet to a worker. All packets from the same address go to the same
+	 * worker, so they are processed in the order they were received.
+	 */
+	private void queuePacket(ByteBuffer buf, int length, Peer peer, long now) {
+		ReceiveWorker worker = workers[(peer.hashCode() & Integer.MAX_VALUE) % workers.length];
+		if(!worker.queue.offer(new ReceivedPacket(buf, length, peer, now))) {
+			bufferPool.release(buf);
+			receiveDrops.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Receive queue full, dropped packet from "+peer);
+		}
+	}
+
+	private static class ReceivedPacket {
+		final ByteBuffer buf;
+		final int length;
+		final Peer peer;
+		final long receivedTime;
+
+		ReceivedPacket(ByteBuffer buf, int length, Peer peer, long receivedTime) {
+			this.buf = buf;
+			this.length = length;
+			this.peer = peer;
+			this.receivedTime = receivedTime;
+		}
+	}
+
+	/** Decrypts and handles the packets from a subset of the addresses */
+	private class ReceiveWorker implements PrioRunnable {
+		final ArrayBlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(RECEIVE_QUEUE_SIZE);
+
+		public void run() {
+			while(true) {
+				synchronized(UdpSocketHandler.this) {
+					if(!_active) return; // Finished
+				}
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == null) continue;
+				try {
+					processPacket(packet.buf.array(), 0, packet.length, packet.peer, packet.receivedTime);
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t, t);
+				} finally {
+					bufferPool.release(packet.buf);
 				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
 			}
-		} else if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
 	}
 	
     private static final int MAX_RECEIVE_SIZE = 1500;
     
-    private boolean getPacket(DatagramPacket packet) {
+    private boolean getPacket(DatagramPacket packet, ByteBuffer buf) {
 		try {
-			_sock.receive(packet);
+			receive(packet, buf);
 			collector.addInfo(packet.getAddress() + ":" + packet.getPort(),
 					packet.getLength(), 0); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
 		} catch (SocketTimeoutException e1) {
@@ -207,6 +305,26 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return true;
 	}
 
+	/**
+	 * Read a packet from the socket. Called by the receiving thread only.
+	 * @param packet Receives the packet. Its data is the backing array of buf. The length and the
+	 * sender's address must be set on return.
+	 * @param buf The same buffer, cleared.
+	 */
+	protected void receive(DatagramPacket packet, ByteBuffer buf) throws IOException {
+		_sock.receive(packet);
+	}
+
+	/**
+	 * Write a packet to the socket. May be called by any thread.
+	 */
+	protected void send(byte[] blockToSend, InetAddress address, int port) throws IOException {
+		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
+		packet.setAddress(address);
+		packet.setPort(port);
+		_sock.send(packet);
+	}
+
 	/**
 	 * Send a block of encoded bytes to a peer. This is called by
 	 * send, and by IncomingPacketFilter.processOutgoing(..).
@@ -238,18 +356,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
-		
 		
 		try {
-			_sock.send(packet);
+			send(blockToSend, address, port);
 			tracker.sentPacketTo(destination);
 			collector.addInfo(address + ":" + port, 0, blockToSend.length + UDP_HEADERS_LENGTH); 
 			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address)
+			if(address instanceof Inet6Address)
 				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e, e);
 			else
 				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
@@ -291,11 +405,55 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
     	return getMaxPacketSize() - 100;
     }
 	
+	/**
+	 * Handle received packets on separate threads, so that slow processing doesn't hold up
+	 * reading the socket. Must be called before start().
+	 * @param threads The number of threads, or 0 to handle packets on the receiving thread.
+	 */
+	public synchronized void setReceiveThreads(int threads) {
+		if(_started) throw new IllegalStateException("Already started");
+		receiveThreads = threads;
+	}
+
+	public synchronized int getReceiveThreads() {
+		return receiveThreads;
+	}
+
+	/** @return The number of received packets waiting to be handled */
+	public int getReceiveQueueDepth() {
+		ReceiveWorker[] w;
+		synchronized(this) {
+			w = workers;
+		}
+		if(w == null) return 0;
+		int depth = 0;
+		for(int i=0;i<w.length;i++)
+			depth += w[i].queue.size();
+		return depth;
+	}
+
+	/** @return The number of received packets dropped because the queue was full */
+	public long getReceiveDrops() {
+		return receiveDrops.get();
+	}
+	
 	public void start() {
+		ReceiveWorker[] w = null;
 		synchronized(this) {
 			if(!_active) return;
 			_started = true;
 			startTime = System.currentTimeMillis();
+			if(receiveThreads > 0) {
+				bufferPool = new PacketBufferPool(MAX_RECEIVE_SIZE, receiveThreads * RECEIVE_QUEUE_SIZE + 1);
+				w = new ReceiveWorker[receiveThreads];
+				for(int i=0;i<w.length;i++)
+					w[i] = new ReceiveWorker();
+				workers = w;
+			}
+		}
+		if(w != null) {
+			for(int i=0;i<w.length;i++)
+				node.executor.execute(w[i], "UDP packet handler "+i+" for port "+listenPort);
 		}
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
 	}
@@ -131,8 +131,9 @@ public class BulkReceiver {
 			}
 			if(m.getSpec() == DMT.FNPBulkPacketSend) {
 				int packetNo = m.getInt(DMT.PACKET_NO);
-				byte[] data = ((ShortBuffer) m.getObject(DMT.DATA)).getData();
-				prb.received(packetNo, data, 0, data.length);
+				ShortBuffer data = (ShortBuffer) m.getObject(DMT.DATA);
+				// Usually a slice of the packet, don't copy it twice.
+				prb.received(packetNo, data.getBackingArray(), data.getOffset(), data.getLength());
 				if(callback != null && runner != null)
 					try {
 						runner.queue(new DBJob() {
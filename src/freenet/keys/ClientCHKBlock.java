@@ -101,15 +101,12 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         pcfb.blockDecipher(hbuf, 0, hbuf.length);
         pcfb.blockDecipher(dbuf, 0, dbuf.length);
         // Check: Decryption key == hash of data (not including header)
-        MessageDigest md256 = SHA256.getMessageDigest();
-        byte[] dkey = md256.digest(dbuf);
+        byte[] dkey = SHA256.digest(dbuf);
         if(!java.util.Arrays.equals(dkey, key.cryptoKey)) {
-        	SHA256.returnMessageDigest(md256);
             throw new CHKDecodeException("Check failed: decrypt key == H(data)");
         }
         // Check: IV == hash of decryption key
-        byte[] predIV = md256.digest(dkey);
-        SHA256.returnMessageDigest(md256); md256 = null;
+        byte[] predIV = SHA256.digest(dkey);
         // Extract the IV
         byte[] iv = new byte[32];
         System.arraycopy(hbuf, 0, iv, 0, 32);
@@ -153,13 +150,10 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
 		}
         // Now do the actual encode
         
-        MessageDigest md256 = SHA256.getMessageDigest();
         // First pad it
         if(finalData.length != 32768) {
             // Hash the data
-            if(finalData.length != 0)
-            	md256.update(finalData);
-            byte[] digest = md256.digest();
+            byte[] digest = SHA256.digest(finalData);
             MersenneTwister mt = new MersenneTwister(digest);
             data = new byte[32768];
             System.arraycopy(finalData, 0, data, 0, finalData.length);
@@ -170,10 +164,9 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         	data = finalData;
         }
         // Now make the header
-        byte[] encKey = md256.digest(data);
-        md256.reset();
+        byte[] encKey = SHA256.digest(data);
         // IV = E(H(crypto key))
-        byte[] plainIV = md256.digest(encKey);
+        byte[] plainIV = SHA256.digest(encKey);
         header = new byte[plainIV.length+2+2];
         header[0] = (byte)(KeyBlock.HASH_SHA256 >> 8);
         header[1] = (byte)(KeyBlock.HASH_SHA256 & 0xff);
@@ -197,6 +190,7 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         pcfb.blockEncipher(data, 0, data.length);
         
         // Now calculate the final hash
+        MessageDigest md256 = SHA256.getMessageDigest();
         md256.update(header);
         byte[] finalHash = md256.digest(data);
         
@@ -149,14 +149,18 @@ public class SSKBlock implements KeyBlock {
 			byte[] overallHash = md.digest();
 			SHA256.returnMessageDigest(md);
 			
-			// Now verify it
-			NativeBigInteger r = new NativeBigInteger(1, bufR);
-			NativeBigInteger s = new NativeBigInteger(1, bufS);
-			if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
-					(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
-				if (dontVerify)
-					Logger.error(this, "DSA verification failed with dontVerify!!!!");
-				throw new SSKVerifyException("Signature verification failed for node-level SSK");
+			// Now verify it, unless we have already
+			byte[] cacheEntry = SSKVerifyCache.makeEntry(nodeKey.getPubKeyHash(), overallHash, bufR, bufS);
+			if(!SSKVerifyCache.isVerified(cacheEntry)) {
+				NativeBigInteger r = new NativeBigInteger(1, bufR);
+				NativeBigInteger s = new NativeBigInteger(1, bufS);
+				if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
+						(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
+					if (dontVerify)
+						Logger.error(this, "DSA verification failed with dontVerify!!!!");
+					throw new SSKVerifyException("Signature verification failed for node-level SSK");
+				}
+				SSKVerifyCache.verified(cacheEntry);
 			}
 		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
 		if(!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import freenet.crypt.SHA256;
+
+/**
+ * Remembers recently verified SSK signatures, so we don't redo the DSA verification when the
+ * same block is constructed again: when it is read from the store, turned into a
+ * ClientSSKBlock, or fetched again by another request for a popular key.
+ *
+ * An entry is the hash of the pubkey hash, the signed hash of the headers and data, and the
+ * signature, so it only matches a block whose signature has been checked. The pubkey hash is
+ * the one in the NodeSSK, which has already been checked against the pubkey, so the pubkey
+ * doesn't have to be serialized again. The cache is
+ * direct-mapped on the hash: a new entry simply replaces whatever was in its slot, so it is
+ * bounded and never locks.
+ */
+final class SSKVerifyCache {
+
+	private static final int SLOTS_BITS = 12;
+	private static final int SLOTS = 1 << SLOTS_BITS;
+
+	private static final AtomicReferenceArray<byte[]> entries = new AtomicReferenceArray<byte[]>(SLOTS);
+
+	private SSKVerifyCache() {
+		// Static only
+	}
+
+	/**
+	 * @param pubKeyHash The hash of the pubkey the signature is checked with, see
+	 * {@link NodeSSK#getPubKeyHash()}.
+	 * @param overallHash The hash which is signed, of the headers before the signature and
+	 * of the data.
+	 * @return The entry for a signature, to pass to isVerified() and verified().
+	 */
+	static byte[] makeEntry(byte[] pubKeyHash, byte[] overallHash, byte[] sigR, byte[] sigS) {
+		MessageDigest md = SHA256.getMessageDigest();
+		md.update(pubKeyHash);
+		md.update(overallHash);
+		md.update(sigR);
+		md.update(sigS);
+		byte[] entry = md.digest();
+		SHA256.returnMessageDigest(md);
+		return entry;
+	}
+
+	private static int slot(byte[] entry) {
+		return (((entry[0] & 0xff) << 8) | (entry[1] & 0xff)) & (SLOTS - 1);
+	}
+
+	/** @return True if the signature was verified recently. */
+	static boolean isVerified(byte[] entry) {
+		return Arrays.equals(entries.get(slot(entry)), entry);
+	}
+
+	/** Record that a signature has been verified. */
+	static void verified(byte[] entry) {
+		entries.set(slot(entry), entry);
+	}
+}
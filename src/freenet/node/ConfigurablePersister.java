@@ -11,8 +11,8 @@ import freenet.support.api.StringCallback;
 public class ConfigurablePersister extends Persister {
 
 	public ConfigurablePersister(Persistable t, SubConfig nodeConfig, String optionName, 
-			String defaultFilename, int sortOrder, boolean expert, boolean forceWrite, String shortDesc, String longDesc, PacketSender ps, File baseDir) throws NodeInitException {
-		super(t, ps);
+			String defaultFilename, int sortOrder, boolean expert, boolean forceWrite, String shortDesc, String longDesc, Ticker ticker, File baseDir) throws NodeInitException {
+		super(t, ticker);
 		nodeConfig.register(optionName, new File(baseDir, defaultFilename).toString(), sortOrder, expert, forceWrite, shortDesc, longDesc, new StringCallback() {
 
 			@Override
@@ -47,6 +47,7 @@ import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
+import freenet.support.LRUHashtable;
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
 import freenet.support.SimpleFieldSet;
@@ -89,6 +90,13 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 	 * can be performed in constant time( given the key)
 	 */
 	private final HashMap<ByteArrayWrapper, byte[]> authenticatorCache;
+	/**
+	 * Peers by the addresses they have recently sent packets from, apart from the one we
+	 * currently use, so that process() doesn't have to try every peer's keys each time a
+	 * peer switches between them.
+	 */
+	private final LRUHashtable<Peer, PeerNode> peersByAddress = new LRUHashtable<Peer, PeerNode>();
+	private static final int MAX_PEER_ADDRESSES = 1024;
 	/** The following is used in the HMAC calculation of JFK message3 and message4 */
 	private static final byte[] JFK_PREFIX_INITIATOR, JFK_PREFIX_RESPONDER;
 	static {
@@ -218,7 +226,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 	 * Note that the buffer can be modified by this method.
 	 */
 	public void process(byte[] buf, int offset, int length, Peer peer, long now) {
-		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
+		node.random.queueTimerEntropy(fnpTimingSource, 0.25);
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
 
 		/**
@@ -256,27 +264,19 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		PeerNode[] peers = crypto.getPeerNodes();
 		// Existing connection, changed IP address?
 		if(length > HASH_LENGTH + RANDOM_BYTES_LENGTH + 4 + 6) {
+			// Try a peer which has used this address before first, this is the common case
+			// (NATs which alternate between mappings, multi-homed peers).
+			PeerNode apn = getPeerByAddress(peer, peers);
+			if(apn != null && apn != opn) {
+				if(logMINOR) Logger.minor(this, "Trying key trackers of "+apn+" for known address "+peer);
+				if(tryProcessSessions(buf, offset, length, apn, peer, now)) return;
+			}
+			// Then all of them, the IV depends on the packet so we can't index the sessions
 			for(int i=0;i<peers.length;i++) {
 				pn = peers[i];
-				if(pn == opn) continue;
-				if(logMINOR) Logger.minor(this, "Trying current key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return;
-				}
-				if(logMINOR) Logger.minor(this, "Trying previous key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return;
-				}
-				if(logMINOR) Logger.minor(this, "Trying unverified key tracker for loop");
-				if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
-					// IP address change
-					pn.changedIP(peer);
-					return;
-				}
+				if(pn == opn || pn == apn) continue;
+				if(logMINOR) Logger.minor(this, "Trying key trackers for loop");
+				if(tryProcessSessions(buf, offset, length, pn, peer, now)) return;
 			}
 		}
 		if(node.isStopping()) return;
@@ -294,18 +294,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 				pn = anonPeers[i];
 				if(pn == opn) continue;
 				if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) return;
-				if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now)) {
-					pn.changedIP(peer);
-					return;
-				}
-				if(tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now)) {
-					pn.changedIP(peer);
-					return;
-				}
-				if(tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
-					pn.changedIP(peer);
-					return;
-				}
+				if(tryProcessSessions(buf, offset, length, pn, peer, now)) return;
 			}
 		}
 		
@@ -329,6 +318,49 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		Logger.normal(this,"Unmatchable packet from "+peer);
 	}
 
+	/**
+	 * Try the current, previous and unverified key trackers of a peer which is not known to use
+	 * this address. If one matches, the peer has changed its IP address.
+	 * @return True if the packet was decrypted and processed.
+	 */
+	private boolean tryProcessSessions(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
+		if(tryProcess(buf, offset, length, pn.getCurrentKeyTracker(), now) ||
+				tryProcess(buf, offset, length, pn.getPreviousKeyTracker(), now) ||
+				tryProcess(buf, offset, length, pn.getUnverifiedKeyTracker(), now)) {
+			// IP address change
+			Peer oldPeer = pn.getPeer();
+			if(oldPeer != null)
+				rememberAddress(oldPeer, pn);
+			rememberAddress(peer, pn);
+			pn.changedIP(peer);
+			return true;
+		}
+		return false;
+	}
+
+	private void rememberAddress(Peer peer, PeerNode pn) {
+		synchronized(peersByAddress) {
+			peersByAddress.push(peer, pn);
+			while(peersByAddress.size() > MAX_PEER_ADDRESSES)
+				peersByAddress.popKey();
+		}
+	}
+
+	/**
+	 * @param peers The current peers, to ignore any peer which has been removed since.
+	 * @return The last peer which sent us a packet from this address, after changing its IP
+	 * address to or from it, or null.
+	 */
+	private PeerNode getPeerByAddress(Peer peer, PeerNode[] peers) {
+		PeerNode pn = peersByAddress.get(peer);
+		if(pn == null) return null;
+		for(int i=0;i<peers.length;i++) {
+			if(peers[i] == pn) return pn;
+		}
+		peersByAddress.removeKey(peer);
+		return null;
+	}
+
 	/**
 	 * Is this a negotiation packet? If so, process it.
 	 * @param buf The buffer to read bytes from
@@ -375,14 +407,11 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			return false;
 		}
 		// Decrypt the data
-		MessageDigest md = SHA256.getMessageDigest();
 		byte[] payload = new byte[dataLength];
 		System.arraycopy(buf, dataStart, payload, 0, dataLength);
 		pcfb.blockDecipher(payload, 0, payload.length);
 
-		md.update(payload);
-		byte[] realHash = md.digest();
-		SHA256.returnMessageDigest(md); md = null;
+		byte[] realHash = SHA256.digest(payload);
 
 		if(Arrays.equals(realHash, hash)) {
 			// Got one
@@ -413,11 +442,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		// Does the packet match IV E( H(data) data ) ?
 		PCFBMode pcfb = PCFBMode.create(authKey);
 		int ivLength = pcfb.lengthIV();
-		MessageDigest md = SHA256.getMessageDigest();
 		int digestLength = HASH_LENGTH;
 		if(length < digestLength + ivLength + 5) {
 			if(logMINOR) Logger.minor(this, "Too short: "+length+" should be at least "+(digestLength + ivLength + 5));
-			SHA256.returnMessageDigest(md);
 			return false;
 		}
 		// IV at the beginning
@@ -437,7 +464,6 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		if(logMINOR) Logger.minor(this, "Data length: "+dataLength+" (1 = "+byte1+" 2 = "+byte2+ ')');
 		if(dataLength > length - (ivLength+hash.length+2)) {
 			if(logMINOR) Logger.minor(this, "Invalid data length "+dataLength+" ("+(length - (ivLength+hash.length+2))+") in tryProcessAuthAnon");
-			SHA256.returnMessageDigest(md);
 			return false;
 		}
 		// Decrypt the data
@@ -445,9 +471,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		System.arraycopy(buf, dataStart, payload, 0, dataLength);
 		pcfb.blockDecipher(payload, 0, payload.length);
 
-		md.update(payload);
-		byte[] realHash = md.digest();
-		SHA256.returnMessageDigest(md); md = null;
+		byte[] realHash = SHA256.digest(payload);
 
 		if(Arrays.equals(realHash, hash)) {
 			// Got one
@@ -1915,7 +1939,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			packetHash[i] ^= buf[offset+i];
 		}
 		if(logMINOR) Logger.minor(this, "Contributing entropy");
-		node.random.acceptEntropyBytes(myPacketDataSource, packetHash, 0, HASH_LENGTH, 0.5);
+		node.random.queueEntropyBytes(myPacketDataSource, packetHash, 0, HASH_LENGTH, 0.5);
 		if(logMINOR) Logger.minor(this, "Contributed entropy");
 
 		// Lots more to do yet!
@@ -2788,9 +2812,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			throw new IllegalStateException("Block size must be half key size: blockSize="+
 					sessionCipher.getBlockSize()+", keySize="+sessionCipher.getKeySize());
 
-		MessageDigest md = SHA256.getMessageDigest();
-
-		int digestLength = md.getDigestLength();
+		int digestLength = SHA256.getDigestLength();
 
 		if(digestLength != blockSize)
 			throw new IllegalStateException("Block size must be digest length!");
@@ -2798,15 +2820,9 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		byte[] output = new byte[plaintext.length + digestLength];
 		System.arraycopy(plaintext, 0, output, digestLength, plaintext.length);
 
-		md.update(plaintext);
-
 		//Logger.minor(this, "Plaintext:\n"+HexUtil.bytesToHex(plaintext));
 
-		byte[] digestTemp;
-
-		digestTemp = md.digest();
-
-		SHA256.returnMessageDigest(md); md = null;
+		byte[] digestTemp = SHA256.digest(plaintext);
 
 		if(logMINOR) Logger.minor(this, "\nHash:      "+HexUtil.bytesToHex(digestTemp));
 
@@ -85,7 +85,7 @@ public class FailureTable implements OOMHook {
 		offerAuthenticatorKey = new byte[32];
 		node.random.nextBytes(offerAuthenticatorKey);
 		offerExecutor = new SerialExecutor(NativeThread.HIGH_PRIORITY);
-		node.ps.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
+		node.ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
 	}
 	
 	public void start() {
@@ -603,7 +603,7 @@ public class FailureTable implements OOMHook {
 			} catch (Throwable t) {
 				Logger.error(this, "FailureTableCleaner caught "+t, t);
 			} finally {
-				node.ps.queueTimedJob(this, CLEANUP_PERIOD);
+				node.ticker.queueTimedJob(this, CLEANUP_PERIOD);
 			}
 		}
 
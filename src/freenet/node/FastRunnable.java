@@ -4,7 +4,7 @@
 package freenet.node;
 
 /**
- * Runnable which can be executed in-line on the PacketSender.
+ * Runnable which can be executed in-line on the Ticker thread.
  */
 public interface FastRunnable extends Runnable {
 
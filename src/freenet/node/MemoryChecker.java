@@ -11,12 +11,12 @@ import freenet.support.math.SimpleRunningAverage;
 
 public class MemoryChecker implements Runnable {
 	private volatile boolean goon = false;
-	private final PacketSender ps;
+	private final Ticker ticker;
 	private int aggressiveGCModificator;
 	private RunningAverage avgFreeMemory;
 	
-	public MemoryChecker(PacketSender ps, int modificator){
-		this.ps = ps;
+	public MemoryChecker(Ticker ticker, int modificator){
+		this.ticker = ticker;
 		this.aggressiveGCModificator = modificator;
 	}
 
@@ -80,10 +80,10 @@ public class MemoryChecker implements Runnable {
 		
 		int sleeptime = aggressiveGCModificator;
 		if(sleeptime <= 0) { // We are done
-			ps.queueTimedJob(this, 120 * 250); // 30 sec
+			ticker.queueTimedJob(this, 120 * 250); // 30 sec
 			return;
 		} else
-			ps.queueTimedJob(this, 120L * sleeptime);
+			ticker.queueTimedJob(this, 120L * sleeptime);
 		
 		// FIXME
 		// Do not remove until all known memory issues fixed,
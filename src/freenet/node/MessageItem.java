@@ -23,6 +23,8 @@ public class MessageItem {
     final boolean formatted;
     final ByteCounter ctrCallback;
     private final short priority;
+    /** The next item in the PeerMessageQueue this item is on, if any. */
+    volatile MessageItem next;
     
     public MessageItem(Message msg2, AsyncMessageCallback[] cb2, ByteCounter ctr, PeerNode pn) {
         this.msg = msg2;
@@ -14,10 +14,12 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -26,7 +28,6 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.Vector;
 
-import org.spaceroots.mantissa.random.MersenneTwister;
 import org.tanukisoftware.wrapper.WrapperManager;
 
 import com.db4o.Db4o;
@@ -66,6 +67,7 @@ import freenet.crypt.DSAPublicKey;
 import freenet.crypt.DiffieHellman;
 import freenet.crypt.EncryptingIoAdapter;
 import freenet.crypt.RandomSource;
+import freenet.crypt.ThreadLocalWeakRandom;
 import freenet.crypt.Yarrow;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -115,6 +117,7 @@ import freenet.node.useralerts.UserAlert;
 import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.PluginManager;
 import freenet.store.BerkeleyDBFreenetStore;
+import freenet.store.CachingFreenetStore;
 import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
@@ -125,6 +128,7 @@ import freenet.store.SSKStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreFetchCallback;
 import freenet.store.FreenetStore.StoreType;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Base64;
@@ -142,6 +146,7 @@ import freenet.support.PooledExecutor;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.SizeUtil;
+import freenet.support.TimerWheelTicker;
 import freenet.support.TokenBucket;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
@@ -183,7 +188,7 @@ public class Node implements TimeSkewDetectorCallback {
 			System.err.println("Migrating old "+(clientCache ? "client cache" : "datastore"));
 			if(clientCache) {
 				migrateOldStore(oldCHKClientCache, chkClientcache, true);
-				StoreCallback old;
+				StoreCallback<?> old;
 				synchronized(Node.this) {
 					old = oldCHKClientCache;
 					oldCHKClientCache = null;
@@ -233,7 +238,7 @@ public class Node implements TimeSkewDetectorCallback {
 	volatile SSKStore oldSSKClientCache;
 	
 	private <T extends StorableBlock> void migrateOldStore(StoreCallback<T> old, StoreCallback<T> newStore, boolean canReadClientCache) {
-		FreenetStore<T> store = (FreenetStore<T>)old.getStore();
+		FreenetStore<T> store = CachingFreenetStore.unwrap(old.getStore());
 		if(store instanceof RAMFreenetStore) {
 			RAMFreenetStore<T> ramstore = (RAMFreenetStore<T>)store;
 			try {
@@ -243,17 +248,17 @@ public class Node implements TimeSkewDetectorCallback {
 			}
 			ramstore.clear();
 		} else if(store instanceof SaltedHashFreenetStore) {
-			SaltedHashFreenetStore saltstore = (SaltedHashFreenetStore) store;
+			SaltedHashFreenetStore<T> saltstore = (SaltedHashFreenetStore<T>) store;
 			// FIXME
 			Logger.error(this, "Migrating from from a saltedhashstore not fully supported yet: will not keep old keys");
 		}
 	}
 	
 	
-	public void closeOldStore(StoreCallback old) {
-		FreenetStore store = (FreenetStore)old.getStore();
+	public <T extends StorableBlock> void closeOldStore(StoreCallback<T> old) {
+		FreenetStore<T> store = CachingFreenetStore.unwrap(old.getStore());
 		if(store instanceof SaltedHashFreenetStore) {
-			SaltedHashFreenetStore saltstore = (SaltedHashFreenetStore) store;
+			SaltedHashFreenetStore<T> saltstore = (SaltedHashFreenetStore<T>) store;
 			saltstore.close();
 			saltstore.destruct();
 		}
@@ -537,6 +542,24 @@ public class Node implements TimeSkewDetectorCallback {
 	private int storeBloomFilterSize;
 	private final boolean storeBloomFilterCounting;
 	private boolean storeSaltHashResizeOnStart;
+	/** Number of lock stripes for the salt-hash store, 0 for the classic lock manager */
+	private int storeSaltHashLockStripes;
+	/** Whether the salt-hash store should memory map its meta-data files */
+	private boolean storeSaltHashMapMetadata;
+	/** Whether the salt-hash store should read all probe offsets of a key in one go */
+	private boolean storeSaltHashBatchProbe;
+	/** Number of entries in the digested routing key cache of each salt-hash store */
+	private int storeSaltHashDigestCacheSize;
+	/** Memory budget of the write-behind queue of each salt-hash store, 0 to write synchronously */
+	private long storeSaltHashWriteBehindSize;
+	/** Number of I/O threads serving asynchronous fetches from each salt-hash store */
+	private int storeSaltHashFetchThreads;
+	/** Number of threads resizing or rebuilding the bloom filter of each salt-hash store */
+	private int storeSaltHashCleanerThreads;
+	/** Disk I/O limit of salt-hash store maintenance in bytes per second, 0 for the default pacing */
+	private long storeSaltHashCleanerIORate;
+	/** Memory budget of the hot block cache in front of each CHK salt-hash store, 0 for none */
+	private long storeSaltHashHotCacheSize;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -685,11 +708,15 @@ public class Node implements TimeSkewDetectorCallback {
 	private int maxOpennetPeers;
 	private boolean acceptSeedConnections;
 	private boolean passOpennetRefsThroughDarknet;
+	/** If true, RequestSender waits for replies with async filters rather than blocking a thread */
+	private volatile boolean asyncRequestSenders;
 	
 	// General stuff
 	
 	public final Executor executor;
 	public final PacketSender ps;
+	/** Runs timed jobs, see {@link #getTicker()} */
+	public final TimerWheelTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
@@ -1046,9 +1073,7 @@ public class Node implements TimeSkewDetectorCallback {
 		isPRNGReady = true;
 		toadlets.getStartupToadlet().setIsPRNGReady();
 		if(weakRandom == null) {
-			byte buffer[] = new byte[16];
-			random.nextBytes(buffer);
-			this.fastWeakRandom = new MersenneTwister(buffer);
+			this.fastWeakRandom = new ThreadLocalWeakRandom(random);
 		}else
 			this.fastWeakRandom = weakRandom;
 
@@ -1539,9 +1564,10 @@ public class Node implements TimeSkewDetectorCallback {
 
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
+		ticker = new TimerWheelTicker(executor, "Ticker thread for " + getDarknetPortNumber());
 		ps = new PacketSender(this);
 		if(executor instanceof PooledExecutor)
-			((PooledExecutor)executor).setTicker(ps);
+			((PooledExecutor)executor).setTicker(ticker);
 		
 		Logger.normal(Node.class, "Creating node...");
 
@@ -1719,7 +1745,7 @@ public class Node implements TimeSkewDetectorCallback {
 		peers.writePeers();
 		peers.updatePMUserAlert();
 
-		uptime = new UptimeEstimator(nodeDir, ps, darknetCrypto.identityHash);
+		uptime = new UptimeEstimator(nodeDir, ticker, darknetCrypto.identityHash);
 		
 		// ULPRs
 		
@@ -1886,6 +1912,23 @@ public class Node implements TimeSkewDetectorCallback {
 
 		passOpennetRefsThroughDarknet = nodeConfig.getBoolean("passOpennetPeersThroughDarknet");
 		
+		nodeConfig.register("asyncRequestSenders", false, sortOrder++, true, false, "Node.asyncRequestSenders", "Node.asyncRequestSendersLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return asyncRequestSenders;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						asyncRequestSenders = val;
+					}
+			
+		});
+
+		asyncRequestSenders = nodeConfig.getBoolean("asyncRequestSenders");
+		
 		// Extra Peer Data Directory
 		nodeConfig.register("extraPeerDataDir", new File(nodeDir, "extra-peer-data-"+getDarknetPortNumber()).toString(), sortOrder++, true, true /* can't be changed on the fly, also for packages */, "Node.extraPeerDir", "Node.extraPeerDirLong",
 				new StringCallback() {
@@ -2061,6 +2104,236 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashLockStripes", 0, sortOrder++, true, false,
+				"Node.storeSaltHashLockStripes", "Node.storeSaltHashLockStripesLong", new IntCallback() {
+			private Integer cachedLockStripes;
+
+			@Override
+			public Integer get() {
+				if (cachedLockStripes == null)
+					cachedLockStripes = storeSaltHashLockStripes;
+				return cachedLockStripes;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 0)
+					throw new InvalidConfigValueException("Number of lock stripes must not be negative");
+				cachedLockStripes = val;
+				throw new NodeNeedRestartException("Store locking mode cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, false);
+		storeSaltHashLockStripes = nodeConfig.getInt("storeSaltHashLockStripes");
+
+		nodeConfig.register("storeSaltHashMapMetadata", false, sortOrder++, true, false,
+				"Node.storeSaltHashMapMetadata", "Node.storeSaltHashMapMetadataLong", new BooleanCallback() {
+			private Boolean cachedMapMetadata;
+
+			@Override
+			public Boolean get() {
+				if (cachedMapMetadata == null)
+					cachedMapMetadata = storeSaltHashMapMetadata;
+				return cachedMapMetadata;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				cachedMapMetadata = val;
+				throw new NodeNeedRestartException("Store meta-data mapping cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		});
+		storeSaltHashMapMetadata = nodeConfig.getBoolean("storeSaltHashMapMetadata");
+
+		nodeConfig.register("storeSaltHashBatchProbe", false, sortOrder++, true, false,
+				"Node.storeSaltHashBatchProbe", "Node.storeSaltHashBatchProbeLong", new BooleanCallback() {
+			private Boolean cachedBatchProbe;
+
+			@Override
+			public Boolean get() {
+				if (cachedBatchProbe == null)
+					cachedBatchProbe = storeSaltHashBatchProbe;
+				return cachedBatchProbe;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				cachedBatchProbe = val;
+				throw new NodeNeedRestartException("Store probing mode cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		});
+		storeSaltHashBatchProbe = nodeConfig.getBoolean("storeSaltHashBatchProbe");
+
+		nodeConfig.register("storeSaltHashDigestCacheSize", 1024, sortOrder++, true, false,
+				"Node.storeSaltHashDigestCacheSize", "Node.storeSaltHashDigestCacheSizeLong", new IntCallback() {
+			private Integer cachedDigestCacheSize;
+
+			@Override
+			public Integer get() {
+				if (cachedDigestCacheSize == null)
+					cachedDigestCacheSize = storeSaltHashDigestCacheSize;
+				return cachedDigestCacheSize;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 1)
+					throw new InvalidConfigValueException("Digest cache size must be at least 1");
+				cachedDigestCacheSize = val;
+				throw new NodeNeedRestartException("Store digest cache size cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, false);
+		storeSaltHashDigestCacheSize = nodeConfig.getInt("storeSaltHashDigestCacheSize");
+
+		nodeConfig.register("storeSaltHashWriteBehindSize", "0", sortOrder++, true, false,
+				"Node.storeSaltHashWriteBehindSize", "Node.storeSaltHashWriteBehindSizeLong", new LongCallback() {
+			private Long cachedWriteBehindSize;
+
+			@Override
+			public Long get() {
+				if (cachedWriteBehindSize == null)
+					cachedWriteBehindSize = storeSaltHashWriteBehindSize;
+				return cachedWriteBehindSize;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 0)
+					throw new InvalidConfigValueException("Write-behind size cannot be negative");
+				cachedWriteBehindSize = val;
+				throw new NodeNeedRestartException("Store write-behind size cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, true);
+		storeSaltHashWriteBehindSize = nodeConfig.getLong("storeSaltHashWriteBehindSize");
+
+		nodeConfig.register("storeSaltHashFetchThreads", 2, sortOrder++, true, false,
+				"Node.storeSaltHashFetchThreads", "Node.storeSaltHashFetchThreadsLong", new IntCallback() {
+			private Integer cachedFetchThreads;
+
+			@Override
+			public Integer get() {
+				if (cachedFetchThreads == null)
+					cachedFetchThreads = storeSaltHashFetchThreads;
+				return cachedFetchThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 0)
+					throw new InvalidConfigValueException("Fetch threads cannot be negative");
+				cachedFetchThreads = val;
+				throw new NodeNeedRestartException("Store fetch threads cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, false);
+		storeSaltHashFetchThreads = nodeConfig.getInt("storeSaltHashFetchThreads");
+
+		nodeConfig.register("storeSaltHashCleanerThreads", 1, sortOrder++, true, false,
+				"Node.storeSaltHashCleanerThreads", "Node.storeSaltHashCleanerThreadsLong", new IntCallback() {
+			private Integer cachedCleanerThreads;
+
+			@Override
+			public Integer get() {
+				if (cachedCleanerThreads == null)
+					cachedCleanerThreads = storeSaltHashCleanerThreads;
+				return cachedCleanerThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 1)
+					throw new InvalidConfigValueException("Cleaner threads must be at least 1");
+				cachedCleanerThreads = val;
+				throw new NodeNeedRestartException("Store cleaner threads cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, false);
+		storeSaltHashCleanerThreads = nodeConfig.getInt("storeSaltHashCleanerThreads");
+
+		nodeConfig.register("storeSaltHashCleanerIORate", "0", sortOrder++, true, false,
+				"Node.storeSaltHashCleanerIORate", "Node.storeSaltHashCleanerIORateLong", new LongCallback() {
+			private Long cachedCleanerIORate;
+
+			@Override
+			public Long get() {
+				if (cachedCleanerIORate == null)
+					cachedCleanerIORate = storeSaltHashCleanerIORate;
+				return cachedCleanerIORate;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 0)
+					throw new InvalidConfigValueException("Cleaner I/O rate cannot be negative");
+				cachedCleanerIORate = val;
+				throw new NodeNeedRestartException("Store cleaner I/O rate cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, true);
+		storeSaltHashCleanerIORate = nodeConfig.getLong("storeSaltHashCleanerIORate");
+
+		nodeConfig.register("storeSaltHashHotCacheSize", "0", sortOrder++, true, false,
+				"Node.storeSaltHashHotCacheSize", "Node.storeSaltHashHotCacheSizeLong", new LongCallback() {
+			private Long cachedHotCacheSize;
+
+			@Override
+			public Long get() {
+				if (cachedHotCacheSize == null)
+					cachedHotCacheSize = storeSaltHashHotCacheSize;
+				return cachedHotCacheSize;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val < 0)
+					throw new InvalidConfigValueException("Hot cache size cannot be negative");
+				cachedHotCacheSize = val;
+				throw new NodeNeedRestartException("Hot cache size cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		}, true);
+		storeSaltHashHotCacheSize = nodeConfig.getLong("storeSaltHashHotCacheSize");
+
 		nodeConfig.register("storeDir", "datastore", sortOrder++, true, true, "Node.storeDirectory", "Node.storeDirectoryLong", 
 				new StringCallback() {
 					@Override
@@ -2111,12 +2384,12 @@ public class Node implements TimeSkewDetectorCallback {
                     public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
 						storePreallocate = val;
 						if (storeType.equals("salt-hash")) {
-							((SaltedHashFreenetStore) chkDatastore.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore) chkDatacache.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore) pubKeyDatastore.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore) pubKeyDatacache.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore) sskDatastore.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore) sskDatacache.getStore()).setPreallocate(val);
+							((SaltedHashFreenetStore) CachingFreenetStore.unwrap(chkDatastore.getStore())).setPreallocate(val);
+							((SaltedHashFreenetStore) CachingFreenetStore.unwrap(chkDatacache.getStore())).setPreallocate(val);
+							((SaltedHashFreenetStore) CachingFreenetStore.unwrap(pubKeyDatastore.getStore())).setPreallocate(val);
+							((SaltedHashFreenetStore) CachingFreenetStore.unwrap(pubKeyDatacache.getStore())).setPreallocate(val);
+							((SaltedHashFreenetStore) CachingFreenetStore.unwrap(sskDatastore.getStore())).setPreallocate(val);
+							((SaltedHashFreenetStore) CachingFreenetStore.unwrap(sskDatacache.getStore())).setPreallocate(val);
 						}
                     }}
 		);
@@ -2476,12 +2749,12 @@ public class Node implements TimeSkewDetectorCallback {
 		maxSlashdotCacheKeys = (int) Math.min(maxSlashdotCacheSize / sizePerKey, Integer.MAX_VALUE);
 		
 		chkSlashdotcache = new CHKStore();
-		chkSlashdotcacheStore = new SlashdotStore(chkSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ps, this.clientCore.tempBucketFactory);
+		chkSlashdotcacheStore = new SlashdotStore(chkSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
 		pubKeySlashdotcache = new PubkeyStore();
-		pubKeySlashdotcacheStore = new SlashdotStore(pubKeySlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ps, this.clientCore.tempBucketFactory);
+		pubKeySlashdotcacheStore = new SlashdotStore(pubKeySlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
 		getPubKey.setLocalSlashdotcache(pubKeySlashdotcache);
 		sskSlashdotcache = new SSKStore(getPubKey);
-		sskSlashdotcacheStore = new SlashdotStore(sskSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ps, this.clientCore.tempBucketFactory);
+		sskSlashdotcacheStore = new SlashdotStore(sskSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ticker, this.clientCore.tempBucketFactory);
 		
 		// MAXIMUM seclevel = no slashdot cache.
 		
@@ -3041,11 +3314,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initNoClientCacheFS() {
 		chkClientcache = new CHKStore();
-		new NullFreenetStore(chkClientcache);
+		new NullFreenetStore<CHKBlock>(chkClientcache);
 		pubKeyClientcache = new PubkeyStore();
-		new NullFreenetStore(pubKeyClientcache);
+		new NullFreenetStore<DSAPublicKey>(pubKeyClientcache);
 		sskClientcache = new SSKStore(getPubKey);
-		new NullFreenetStore(sskClientcache);
+		new NullFreenetStore<SSKBlock>(sskClientcache);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
@@ -3055,12 +3328,12 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 	
 	private void finishInitSaltHashFS(final String suffix, NodeClientCore clientCore) {
-		((SaltedHashFreenetStore) chkDatastore.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore) chkDatacache.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore) pubKeyDatastore.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore) pubKeyDatacache.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore) sskDatastore.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore) sskDatacache.getStore()).setUserAlertManager(clientCore.alerts);
+		((SaltedHashFreenetStore) CachingFreenetStore.unwrap(chkDatastore.getStore())).setUserAlertManager(clientCore.alerts);
+		((SaltedHashFreenetStore) CachingFreenetStore.unwrap(chkDatacache.getStore())).setUserAlertManager(clientCore.alerts);
+		((SaltedHashFreenetStore) CachingFreenetStore.unwrap(pubKeyDatastore.getStore())).setUserAlertManager(clientCore.alerts);
+		((SaltedHashFreenetStore) CachingFreenetStore.unwrap(pubKeyDatacache.getStore())).setUserAlertManager(clientCore.alerts);
+		((SaltedHashFreenetStore) CachingFreenetStore.unwrap(sskDatastore.getStore())).setUserAlertManager(clientCore.alerts);
+		((SaltedHashFreenetStore) CachingFreenetStore.unwrap(sskDatacache.getStore())).setUserAlertManager(clientCore.alerts);
 
 		if (isBDBStoreExist(suffix)) {
 			clientCore.alerts.register(new SimpleUserAlert(true, NodeL10n.getBase().getString("Node.storeSaltHashMigratedShort"),
@@ -3170,29 +3443,34 @@ public class Node implements TimeSkewDetectorCallback {
 			        : (bloomSize + 6) / 6 * 8; // + 6 to make size different, trigger rebuild 
 
 			final CHKStore chkDatastore = new CHKStore();
-			final SaltedHashFreenetStore chkDataFS = makeStore(bloomFilterSizeInM, "CHK", true, chkDatastore, dontResizeOnStart, masterKey);
+			final SaltedHashFreenetStore<CHKBlock> chkDataFS = makeStore(bloomFilterSizeInM, "CHK", true, chkDatastore, dontResizeOnStart, masterKey);
 			final CHKStore chkDatacache = new CHKStore();
-			final SaltedHashFreenetStore chkCacheFS = makeStore(bloomFilterSizeInM, "CHK", false, chkDatacache, dontResizeOnStart, masterKey);
+			final SaltedHashFreenetStore<CHKBlock> chkCacheFS = makeStore(bloomFilterSizeInM, "CHK", false, chkDatacache, dontResizeOnStart, masterKey);
+			if (storeSaltHashHotCacheSize > 0) {
+				// Popular CHKs are served from memory, split between the store and the cache
+				chkDatastore.setStore(new CachingFreenetStore<CHKBlock>(chkDatastore, chkDataFS, storeSaltHashHotCacheSize / 2));
+				chkDatacache.setStore(new CachingFreenetStore<CHKBlock>(chkDatacache, chkCacheFS, storeSaltHashHotCacheSize / 2));
+			}
 			final PubkeyStore pubKeyDatastore = new PubkeyStore();
-			final SaltedHashFreenetStore pubkeyDataFS = makeStore(bloomFilterSizeInM, "PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
+			final SaltedHashFreenetStore<DSAPublicKey> pubkeyDataFS = makeStore(bloomFilterSizeInM, "PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
 			final PubkeyStore pubKeyDatacache = new PubkeyStore();
-			final SaltedHashFreenetStore pubkeyCacheFS = makeStore(bloomFilterSizeInM, "PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
+			final SaltedHashFreenetStore<DSAPublicKey> pubkeyCacheFS = makeStore(bloomFilterSizeInM, "PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
 			final SSKStore sskDatastore = new SSKStore(getPubKey);
-			final SaltedHashFreenetStore sskDataFS = makeStore(bloomFilterSizeInM, "SSK", true, sskDatastore, dontResizeOnStart, masterKey);
+			final SaltedHashFreenetStore<SSKBlock> sskDataFS = makeStore(bloomFilterSizeInM, "SSK", true, sskDatastore, dontResizeOnStart, masterKey);
 			final SSKStore sskDatacache = new SSKStore(getPubKey);
-			final SaltedHashFreenetStore sskCacheFS = makeStore(bloomFilterSizeInM, "SSK", false, sskDatacache, dontResizeOnStart, masterKey);
+			final SaltedHashFreenetStore<SSKBlock> sskCacheFS = makeStore(bloomFilterSizeInM, "SSK", false, sskDatacache, dontResizeOnStart, masterKey);
 
 			final Runnable migrate = new MigrateOldStoreData(false);
 			
 			executor.execute(new Runnable() {
 
 				public void run() {
-					chkDataFS.start(ps);
-					chkCacheFS.start(ps);
-					pubkeyDataFS.start(ps);
-					pubkeyCacheFS.start(ps);
-					sskDataFS.start(ps);
-					sskCacheFS.start(ps);
+					chkDataFS.start(ticker);
+					chkCacheFS.start(ticker);
+					pubkeyDataFS.start(ticker);
+					pubkeyCacheFS.start(ticker);
+					sskDataFS.start(ticker);
+					sskCacheFS.start(ticker);
 					
 					Node.this.chkDatastore = chkDatastore;
 					Node.this.chkDatacache = chkDatacache;
@@ -3236,23 +3514,23 @@ public class Node implements TimeSkewDetectorCallback {
 			        : (bloomSize + 6) / 6 * 8; // + 6 to make size different, trigger rebuild 
 
 			final CHKStore chkClientcache = new CHKStore();
-			final SaltedHashFreenetStore chkDataFS = makeClientcache(bloomFilterSizeInM, "CHK", true, chkClientcache, dontResizeOnStart, clientCacheMasterKey);
+			final SaltedHashFreenetStore<CHKBlock> chkDataFS = makeClientcache(bloomFilterSizeInM, "CHK", true, chkClientcache, dontResizeOnStart, clientCacheMasterKey);
 			final PubkeyStore pubKeyClientcache = new PubkeyStore();
-			final SaltedHashFreenetStore pubkeyDataFS = makeClientcache(bloomFilterSizeInM, "PUBKEY", true, pubKeyClientcache, dontResizeOnStart, clientCacheMasterKey);
+			final SaltedHashFreenetStore<DSAPublicKey> pubkeyDataFS = makeClientcache(bloomFilterSizeInM, "PUBKEY", true, pubKeyClientcache, dontResizeOnStart, clientCacheMasterKey);
 			final SSKStore sskClientcache = new SSKStore(getPubKey);
-			final SaltedHashFreenetStore sskDataFS = makeClientcache(bloomFilterSizeInM, "SSK", true, sskClientcache, dontResizeOnStart, clientCacheMasterKey);
+			final SaltedHashFreenetStore<SSKBlock> sskDataFS = makeClientcache(bloomFilterSizeInM, "SSK", true, sskClientcache, dontResizeOnStart, clientCacheMasterKey);
 			
 			final Runnable migrate = new MigrateOldStoreData(true);
 			
 			executor.execute(new Runnable() {
 
 				public void run() {
-					chkDataFS.start(ps);
+					chkDataFS.start(ticker);
 					Node.this.chkClientcache = chkClientcache;
-					pubkeyDataFS.start(ps);
+					pubkeyDataFS.start(ticker);
 					Node.this.pubKeyClientcache = pubKeyClientcache;
 					getPubKey.setLocalDataStore(pubKeyClientcache);
-					sskDataFS.start(ps);
+					sskDataFS.start(ticker);
 					Node.this.sskClientcache = sskClientcache;
 					
 					migrate.run();
@@ -3267,30 +3545,38 @@ public class Node implements TimeSkewDetectorCallback {
 		}
     }
 
-	private void tryMigrate(SaltedHashFreenetStore chkDataFS, String type, boolean isStore, String suffix) {
+	private void tryMigrate(SaltedHashFreenetStore<?> chkDataFS, String type, boolean isStore, String suffix) {
 		String store = isStore ? "store" : "cache";
 		chkDataFS.migrationFrom(//
 		        new File(storeDir, type + suffix + "."+store), // 
 		        new File(storeDir, type + suffix + "."+store+".keys"));
 	}
 
-	private SaltedHashFreenetStore makeClientcache(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
-		SaltedHashFreenetStore store = makeStore(bloomFilterSizeInM, type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeClientcache(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
+		SaltedHashFreenetStore<T> store = makeStore(bloomFilterSizeInM, type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
 		return store;
 	}
 	
-	private SaltedHashFreenetStore makeStore(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
+	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeStore(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
 		String store = isStore ? "store" : "cache";
 		long maxKeys = isStore ? maxStoreKeys : maxCacheKeys;
 		return makeStore(bloomFilterSizeInM, type, store, maxKeys, cb, dontResizeOnStart, clientCacheMasterKey);
 	}
 	
-	private SaltedHashFreenetStore makeStore(int bloomFilterSizeInM, String type, String store, long maxKeys, StoreCallback cb, boolean lateStart, byte[] clientCacheMasterKey) throws IOException {
+	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeStore(int bloomFilterSizeInM, String type, String store, long maxKeys, StoreCallback<T> cb, boolean lateStart, byte[] clientCacheMasterKey) throws IOException {
 		Logger.normal(this, "Initializing "+type+" Data"+store);
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
-		SaltedHashFreenetStore fs = SaltedHashFreenetStore.construct(storeDir, type+"-"+store, cb,
-		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ps : null, clientCacheMasterKey);
+		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.construct(storeDir, type+"-"+store, cb,
+		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeSaltHashLockStripes);
+		fs.setMapMetadata(storeSaltHashMapMetadata);
+		fs.setBatchProbe(storeSaltHashBatchProbe);
+		fs.setDigestCacheSize(storeSaltHashDigestCacheSize);
+		fs.setWriteBehindSize(storeSaltHashWriteBehindSize);
+		fs.setFetchThreads(storeSaltHashFetchThreads, executor);
+		fs.setCleanerThreads(storeSaltHashCleanerThreads);
+		fs.setCleanerIORate(storeSaltHashCleanerIORate);
 		cb.setStore(fs);
 		return fs;
 	}
@@ -3387,33 +3673,33 @@ public class Node implements TimeSkewDetectorCallback {
 			System.out.println("Initializing CHK Datastore ("+maxStoreKeys+" keys)");
 			chkDatastore = new CHKStore();
 			BerkeleyDBFreenetStore.construct(storeDir, true, suffix, maxStoreKeys, StoreType.CHK, 
-					storeEnvironment, shutdownHook, reconstructFile, chkDatastore, random);
+					storeEnvironment, shutdownHook, reconstructFile, chkDatastore, random, executor);
 			Logger.normal(this, "Initializing CHK Datacache");
 			System.out.println("Initializing CHK Datacache ("+maxCacheKeys+ ':' +maxCacheKeys+" keys)");
 			chkDatacache = new CHKStore();
 			BerkeleyDBFreenetStore.construct(storeDir, false, suffix, maxCacheKeys, StoreType.CHK, 
-					storeEnvironment, shutdownHook, reconstructFile, chkDatacache, random);
+					storeEnvironment, shutdownHook, reconstructFile, chkDatacache, random, executor);
 			Logger.normal(this, "Initializing pubKey Datastore");
 			System.out.println("Initializing pubKey Datastore");
 			pubKeyDatastore = new PubkeyStore();
 			BerkeleyDBFreenetStore.construct(storeDir, true, suffix, maxStoreKeys, StoreType.PUBKEY, 
-					storeEnvironment, shutdownHook, reconstructFile, pubKeyDatastore, random);
+					storeEnvironment, shutdownHook, reconstructFile, pubKeyDatastore, random, executor);
 			Logger.normal(this, "Initializing pubKey Datacache");
 			System.out.println("Initializing pubKey Datacache ("+maxCacheKeys+" keys)");
 			pubKeyDatacache = new PubkeyStore();
 			BerkeleyDBFreenetStore.construct(storeDir, false, suffix, maxCacheKeys, StoreType.PUBKEY, 
-					storeEnvironment, shutdownHook, reconstructFile, pubKeyDatacache, random);
+					storeEnvironment, shutdownHook, reconstructFile, pubKeyDatacache, random, executor);
 			getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
 			Logger.normal(this, "Initializing SSK Datastore");
 			System.out.println("Initializing SSK Datastore");
 			sskDatastore = new SSKStore(getPubKey);
 			BerkeleyDBFreenetStore.construct(storeDir, true, suffix, maxStoreKeys, StoreType.SSK, 
-					storeEnvironment, shutdownHook, reconstructFile, sskDatastore, random);
+					storeEnvironment, shutdownHook, reconstructFile, sskDatastore, random, executor);
 			Logger.normal(this, "Initializing SSK Datacache");
 			System.out.println("Initializing SSK Datacache ("+maxCacheKeys+" keys)");
 			sskDatacache = new SSKStore(getPubKey);
 			BerkeleyDBFreenetStore.construct(storeDir, false, suffix, maxStoreKeys, StoreType.SSK, 
-					storeEnvironment, shutdownHook, reconstructFile, sskDatacache, random);
+					storeEnvironment, shutdownHook, reconstructFile, sskDatacache, random, executor);
 		} catch (final FileNotFoundException e1) {
 			final String msg = "Could not open datastore: "+e1;
 			Logger.error(this, msg, e1);
@@ -3452,8 +3738,9 @@ public class Node implements TimeSkewDetectorCallback {
 		darknetCrypto.start();
 		if(opennet != null)
 			opennet.start();
+		ticker.start();
 		ps.start(nodeStats);
-		usm.start(ps);
+		usm.start(ticker);
 		
 		if(isUsingWrapper()) {
 			Logger.normal(this, "Using wrapper correctly: "+nodeStarter);
@@ -3513,7 +3800,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// After everything has been created, write the config file back to disk.
 		if(config instanceof FreenetFilePersistentConfig) {
 			FreenetFilePersistentConfig cfg = (FreenetFilePersistentConfig) config;
-			cfg.finishedInit(this.ps);
+			cfg.finishedInit(this.ticker);
 			cfg.setHasNodeStarted();
 		}
 		config.store();
@@ -3741,19 +4028,97 @@ public class Node implements TimeSkewDetectorCallback {
 			throw new IllegalStateException("Unknown key type: " + key.getClass());
 		
 		if (kb != null) {
-			// Probably somebody waiting for it. Trip it.
-			if (clientCore != null && clientCore.requestStarters != null) {
-				if (kb instanceof CHKBlock)
-					clientCore.requestStarters.chkFetchScheduler.tripPendingKey(kb);
-				else
-					clientCore.requestStarters.sskFetchScheduler.tripPendingKey(kb);
-			}
-			failureTable.onFound(kb);
+			foundLocally(kb);
 			return kb;
 		}
 
 		return null;
 	}
+
+	private void foundLocally(KeyBlock kb) {
+		// Probably somebody waiting for it. Trip it.
+		if (clientCore != null && clientCore.requestStarters != null) {
+			if (kb instanceof CHKBlock)
+				clientCore.requestStarters.chkFetchScheduler.tripPendingKey(kb);
+			else
+				clientCore.requestStarters.sskFetchScheduler.tripPendingKey(kb);
+		}
+		failureTable.onFound(kb);
+	}
+
+	/**
+	 * Callback for {@link Node#makeRequestSenderAsync}.
+	 */
+	public interface RequestSenderCallback {
+		/**
+		 * @param o
+		 *            A KeyBlock, a RequestSender or null, as returned by
+		 *            {@link Node#makeRequestSender}. May be called on a datastore I/O thread, 
+		 *            so must not block.
+		 */
+		public void onRequestSender(Object o);
+
+		/**
+		 * Creating the request sender, or onRequestSender(), threw. Called instead of or after
+		 * onRequestSender(), so the caller can release the UID.
+		 */
+		public void onThrew(Throwable t);
+	}
+
+	/**
+	 * Like {@link #makeRequestSender}, but without blocking the calling thread while the
+	 * datastore is read. Equivalent to makeRequestSender() with localOnly and ignoreStore 
+	 * false.
+	 */
+	public void makeRequestSenderAsync(final Key key, final short htl, final long uid, final PeerNode source, final boolean offersOnly, final boolean canReadClientCache, final boolean canWriteClientCache, final RequestSenderCallback cb) {
+		final boolean canWriteDatastore = canWriteDatastoreRequest(htl);
+		if(logMINOR) Logger.minor(this, "makeRequestSenderAsync("+key+ ',' +htl+ ',' +uid+ ',' +source+") on "+getDarknetPortNumber());
+
+		if (key instanceof NodeSSK) {
+			NodeSSK sskKey = (NodeSSK) key;
+			DSAPublicKey pubKey = sskKey.getPubKey();
+			if (pubKey == null) {
+				// FIXME the pubkey lookup is still synchronous. Pubkeys are small and mostly cached.
+				pubKey = getPubKey.getKey(sskKey.getPubKeyHash(), canReadClientCache, offersOnly);
+				if (logMINOR)
+					Logger.minor(this, "Fetched pubkey: " + pubKey);
+				try {
+					sskKey.setPubKey(pubKey);
+				} catch (SSKVerifyException e) {
+					Logger.error(this, "Error setting pubkey: " + e, e);
+				}
+			}
+			if (pubKey == null) {
+				if (logMINOR)
+					Logger.minor(this, "Not found because no pubkey: " + uid);
+				cb.onRequestSender(makeRequestSender(key, htl, uid, source, false, true, offersOnly, canReadClientCache, canWriteClientCache));
+				return;
+			}
+		}
+
+		fetchAsync(key, false, canReadClientCache, canWriteClientCache, canWriteDatastore, false, new StoreFetchCallback<KeyBlock>() {
+
+			public void onFetched(KeyBlock kb) {
+				// Called on a datastore thread, so nobody else will see a failure here.
+				try {
+					if (kb != null) {
+						foundLocally(kb);
+						cb.onRequestSender(kb);
+						return;
+					}
+					cb.onRequestSender(makeRequestSender(key, htl, uid, source, false, true, offersOnly, canReadClientCache, canWriteClientCache));
+				} catch (Throwable t) {
+					cb.onThrew(t);
+				}
+			}
+
+			public void onFetchFailed(IOException e) {
+				// Not called, errors are logged and treated as not found.
+				onFetched(null);
+			}
+
+		});
+	}
 	
 	/**
 	 * Check the datastore, then if the key is not in the store,
@@ -4026,6 +4391,184 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 	
+	/**
+	 * Look up many keys at once, in the same stores and in the same order as
+	 * {@link #fetch(Key, boolean, boolean, boolean, boolean)}. Each store is asked for all the 
+	 * keys not found so far in a single call, so it can skip and sort them.
+	 * @return The block for each key, in the same order, or null if not found.
+	 */
+	public KeyBlock[] fetchBatch(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore) {
+		KeyBlock[] blocks = new KeyBlock[keys.length];
+		if(canReadClientCache)
+			fetchBatch(chkClientcache, sskClientcache, keys, blocks, !canWriteClientCache, canReadClientCache, "client cache");
+		if(useSlashdotCache || canReadClientCache)
+			fetchBatch(chkSlashdotcache, sskSlashdotcache, keys, blocks, false, canReadClientCache, "slashdot/ULPR cache");
+		fetchBatch(chkDatastore, sskDatastore, keys, blocks, !canWriteDatastore, canReadClientCache, "datastore");
+		fetchBatch(oldCHK, oldSSK, keys, blocks, !canWriteDatastore, canReadClientCache, "old datastore");
+		fetchBatch(chkDatacache, sskDatacache, keys, blocks, !canWriteDatastore, canReadClientCache, "datacache");
+		fetchBatch(oldCHKCache, oldSSKCache, keys, blocks, !canWriteDatastore, canReadClientCache, "old datacache");
+		return blocks;
+	}
+
+	private void fetchBatch(CHKStore chkStore, SSKStore sskStore, Key[] keys, KeyBlock[] blocks, boolean dontPromote, boolean canReadClientCache, String storeName) {
+		ArrayList<Integer> chks = new ArrayList<Integer>();
+		ArrayList<Integer> ssks = new ArrayList<Integer>();
+		for(int i=0;i<keys.length;i++) {
+			if(blocks[i] != null) continue;
+			if(keys[i] instanceof NodeCHK)
+				chks.add(i);
+			else if(keys[i] instanceof NodeSSK)
+				ssks.add(i);
+			else throw new IllegalArgumentException("Unknown key type: " + keys[i].getClass());
+		}
+		if(chkStore != null && !chks.isEmpty()) {
+			NodeCHK[] chkKeys = new NodeCHK[chks.size()];
+			for(int i=0;i<chkKeys.length;i++)
+				chkKeys[i] = (NodeCHK) keys[chks.get(i)];
+			try {
+				List<CHKBlock> found = chkStore.fetchBatch(chkKeys, dontPromote);
+				for(int i=0;i<chkKeys.length;i++)
+					blocks[chks.get(i)] = found.get(i);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from "+storeName+": "+e, e);
+			}
+		}
+		if(sskStore != null && !ssks.isEmpty()) {
+			NodeSSK[] sskKeys = new NodeSSK[ssks.size()];
+			for(int i=0;i<sskKeys.length;i++)
+				sskKeys[i] = (NodeSSK) keys[ssks.get(i)];
+			try {
+				List<SSKBlock> found = sskStore.fetchBatch(sskKeys, dontPromote, canReadClientCache, false);
+				for(int i=0;i<sskKeys.length;i++)
+					blocks[ssks.get(i)] = found.get(i);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from "+storeName+": "+e, e);
+			}
+		}
+	}
+
+	/**
+	 * Look up a key in the same stores and in the same order as 
+	 * {@link #fetch(Key, boolean, boolean, boolean, boolean)}, without blocking on disk I/O.
+	 * Errors are logged, and the callback is called with null, as for a key not found. For an 
+	 * SSK, the pubkey must already be set on the key.
+	 */
+	public void fetchAsync(Key key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, StoreFetchCallback<KeyBlock> callback) {
+		boolean readSlashdot = forULPR || useSlashdotCache || canReadClientCache;
+		if(key instanceof NodeCHK) {
+			AsyncLocalFetch<CHKBlock> fetch = new AsyncLocalFetch<CHKBlock>(key, null, false, false, callback);
+			if(canReadClientCache)
+				fetch.add(chkClientcache, AsyncLocalFetch.CLIENT_CACHE, dontPromote || !canWriteClientCache);
+			if(readSlashdot)
+				fetch.add(chkSlashdotcache, AsyncLocalFetch.SLASHDOT_CACHE, dontPromote);
+			fetch.add(chkDatastore, AsyncLocalFetch.DATASTORE, dontPromote || !canWriteDatastore);
+			fetch.add(oldCHK, AsyncLocalFetch.DATASTORE, dontPromote || !canWriteDatastore);
+			fetch.add(chkDatacache, AsyncLocalFetch.DATACACHE, dontPromote || !canWriteDatastore);
+			fetch.add(oldCHKCache, AsyncLocalFetch.DATACACHE, dontPromote || !canWriteDatastore);
+			fetch.next();
+		} else if(key instanceof NodeSSK) {
+			AsyncLocalFetch<SSKBlock> fetch = new AsyncLocalFetch<SSKBlock>(key, ((NodeSSK)key).getFullKey(), canReadClientCache, forULPR, callback);
+			if(canReadClientCache)
+				fetch.add(sskClientcache, AsyncLocalFetch.CLIENT_CACHE, dontPromote || !canWriteClientCache);
+			if(readSlashdot)
+				fetch.add(sskSlashdotcache, AsyncLocalFetch.SLASHDOT_CACHE, dontPromote);
+			fetch.add(sskDatastore, AsyncLocalFetch.DATASTORE, dontPromote || !canWriteDatastore);
+			fetch.add(oldSSK, AsyncLocalFetch.DATASTORE, dontPromote || !canWriteDatastore);
+			fetch.add(sskDatacache, AsyncLocalFetch.DATACACHE, dontPromote || !canWriteDatastore);
+			fetch.add(oldSSKCache, AsyncLocalFetch.DATACACHE, dontPromote || !canWriteDatastore);
+			fetch.next();
+		} else throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Tries a list of stores in turn, each asynchronously, until the key is found.
+	 */
+	private class AsyncLocalFetch<T extends KeyBlock> implements StoreFetchCallback<T> {
+		static final int CLIENT_CACHE = 0;
+		static final int SLASHDOT_CACHE = 1;
+		static final int DATASTORE = 2;
+		static final int DATACACHE = 3;
+
+		private final Key key;
+		private final byte[] fullKey;
+		private final boolean canReadClientCache;
+		private final boolean canReadSlashdotCache;
+		private final StoreFetchCallback<KeyBlock> callback;
+		private final List<StoreCallback<T>> stores = new ArrayList<StoreCallback<T>>();
+		private final List<Integer> types = new ArrayList<Integer>();
+		private final List<Boolean> dontPromote = new ArrayList<Boolean>();
+		/** The store being read */
+		private int current = -1;
+		private double loc = -1;
+
+		AsyncLocalFetch(Key key, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, StoreFetchCallback<KeyBlock> callback) {
+			this.key = key;
+			this.fullKey = fullKey;
+			this.canReadClientCache = canReadClientCache;
+			this.canReadSlashdotCache = canReadSlashdotCache;
+			this.callback = callback;
+		}
+
+		void add(StoreCallback<T> store, int type, boolean dontPromote) {
+			if(store == null) return;
+			stores.add(store);
+			types.add(type);
+			this.dontPromote.add(dontPromote);
+		}
+
+		void next() {
+			current++;
+			if(current == stores.size()) {
+				callback.onFetched(null);
+				return;
+			}
+			int type = types.get(current);
+			if(type >= DATASTORE && loc < 0) {
+				if(logMINOR) dumpStoreHits();
+				loc = key.toNormalizedDouble();
+				nodeStats.avgRequestLocation.report(loc);
+			}
+			stores.get(current).getStore().fetchAsync(key.getRoutingKey(), fullKey, dontPromote.get(current), canReadClientCache, canReadSlashdotCache, this);
+		}
+
+		public void onFetched(T block) {
+			if(block == null) {
+				next();
+				return;
+			}
+			int type = types.get(current);
+			if(type >= DATASTORE) {
+				double dist=Location.distance(lm.getLocation(), loc);
+				if(type == DATASTORE) {
+					nodeStats.avgStoreSuccess.report(loc);
+					if (dist > nodeStats.furthestStoreSuccess)
+						nodeStats.furthestStoreSuccess=dist;
+				} else {
+					nodeStats.avgCacheSuccess.report(loc);
+					if (dist > nodeStats.furthestCacheSuccess)
+						nodeStats.furthestCacheSuccess=dist;
+				}
+			}
+			callback.onFetched(block);
+		}
+
+		public void onFetchFailed(IOException e) {
+			switch(types.get(current)) {
+			case CLIENT_CACHE:
+				Logger.error(this, "Could not read from client cache: "+e, e);
+				next();
+				break;
+			case SLASHDOT_CACHE:
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+				next();
+				break;
+			default:
+				Logger.error(this, "Cannot fetch data: "+e, e);
+				callback.onFetched(null);
+			}
+		}
+	}
+
 	public CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -5041,7 +5584,7 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public Ticker getTicker() {
-		return ps;
+		return ticker;
 	}
 
 	public int getUnclaimedFIFOSize() {
@@ -5165,6 +5708,14 @@ public class Node implements TimeSkewDetectorCallback {
 		return passOpennetRefsThroughDarknet;
 	}
 
+	/**
+	 * @return True if requests should be routed without blocking a thread while waiting for
+	 * replies, see RequestSender.
+	 */
+	public boolean asyncRequestSenders() {
+		return asyncRequestSenders;
+	}
+
 	/**
 	 * Get the set of public ports that need to be forwarded. These are internal
 	 * ports, not necessarily external - they may be rewritten by the NAT.
@@ -5501,7 +6052,7 @@ public class Node implements TimeSkewDetectorCallback {
 					System.arraycopy(keys.clientCacheMasterKey, 0, copied, 0, copied.length);
 					cachedClientCacheKey = copied;
 					// Wipe it if haven't specified datastore size in 10 minutes.
-					ps.queueTimedJob(new Runnable() {
+					ticker.queueTimedJob(new Runnable() {
 						public void run() {
 							synchronized(Node.this) {
 								MasterKeys.clear(cachedClientCacheKey);
@@ -7,7 +7,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.zip.DeflaterOutputStream;
@@ -32,6 +34,7 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Peer;
+import freenet.io.comm.NioUdpSocketHandler;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
 import freenet.keys.InsertableClientSSK;
@@ -117,7 +120,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = makeSocketHandler(portNo, bindto.getAddress(), startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -131,7 +134,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = makeSocketHandler(port, bindto.getAddress(), startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -147,6 +150,7 @@ public class NodeCrypto {
 		config.setPort(port);
 		
 		socket.setDropProbability(config.getDropProbability());
+		socket.setReceiveThreads(config.getReceiveThreads());
 		
 		socket.setLowLevelFilter(packetMangler = new FNPPacketMangler(node, this, socket));
 		
@@ -171,6 +175,13 @@ public class NodeCrypto {
 		}
 	}
 	
+	private UdpSocketHandler makeSocketHandler(int port, InetAddress bindto, long startupTime) throws SocketException {
+		if(config.useNIOTransport())
+			return new NioUdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+		else
+			return new UdpSocketHandler(port, bindto, node, startupTime, getTitle(port), node.collector);
+	}
+	
 	private String getTitle(int port) {
 		// FIXME l10n
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
@@ -55,6 +55,12 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** Number of threads handling received packets, 0 to handle them on the thread reading the socket. */
+	private int receiveThreads;
+	
+	/** If true, use a DatagramChannel rather than a DatagramSocket. */
+	private boolean nioTransport;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true, "Node.port", "Node.portLong",	new IntCallback() {
 			@Override
@@ -131,6 +137,53 @@ public class NodeCryptoConfig {
 		}, false);
 		dropProbability = config.getInt("testingDropPacketsEvery"); 
 		
+		config.register("receiveThreads", 0, sortOrder++, true, false, "Node.receiveThreads", "Node.receiveThreadsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						synchronized(NodeCryptoConfig.this) {
+							return receiveThreads;
+						}
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0) throw new InvalidConfigValueException("receiveThreads must not be negative");
+						synchronized(NodeCryptoConfig.this) {
+							if(val == receiveThreads) return;
+							receiveThreads = val;
+							if(crypto == null) return;
+						}
+						throw new NodeNeedRestartException("receiveThreads cannot be changed on the fly");
+					}
+			
+		}, false);
+		receiveThreads = config.getInt("receiveThreads");
+		
+		config.register("nioTransport", false, sortOrder++, true, false, "Node.nioTransport", "Node.nioTransportLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(NodeCryptoConfig.this) {
+							return nioTransport;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(NodeCryptoConfig.this) {
+							if(val == nioTransport) return;
+							nioTransport = val;
+							if(crypto == null) return;
+						}
+						throw new NodeNeedRestartException("nioTransport cannot be changed on the fly");
+					}
+			
+		});
+		nioTransport = config.getBoolean("nioTransport");
+		
 		config.register("oneConnectionPerIP", isOpennet, sortOrder++, true, false, "Node.oneConnectionPerIP", "Node.oneConnectionPerIPLong",
 				new BooleanCallback() {
 
@@ -316,6 +369,14 @@ public class NodeCryptoConfig {
 		return dropProbability;
 	}
 
+	public synchronized int getReceiveThreads() {
+		return receiveThreads;
+	}
+
+	public synchronized boolean useNIOTransport() {
+		return nioTransport;
+	}
+
 	public synchronized boolean oneConnectionPerAddress() {
 		return oneConnectionPerAddress;
 	}
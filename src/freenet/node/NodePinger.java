@@ -50,7 +50,7 @@ public class NodePinger implements Runnable {
         recalculateMean(peers);
         } finally {
         	// Requeue after to avoid exacerbating overload
-        	node.ps.queueTimedJob(this, 200);
+        	node.ticker.queueTimedJob(this, 200);
         }
 	}
 
@@ -267,7 +267,7 @@ public class NodeStats implements Persistable {
 		},false);
 		aggressiveGCModificator = statsConfig.getInt("aggressiveGC");
 		
-		myMemoryChecker = new MemoryChecker(node.ps, aggressiveGCModificator);
+		myMemoryChecker = new MemoryChecker(node.ticker, aggressiveGCModificator);
 		statsConfig.register("memoryChecker", true, sortOrder++, true, false, "NodeStat.memCheck", "NodeStat.memCheckLong", 
 				new BooleanCallback(){
 					@Override
@@ -352,7 +352,7 @@ public class NodeStats implements Persistable {
 		});
 		
 		persister = new ConfigurablePersister(this, statsConfig, "nodeThrottleFile", "node-throttle.dat", sortOrder++, true, false, 
-				"NodeStat.statsPersister", "NodeStat.statsPersisterLong", node.ps, nodeDir);
+				"NodeStat.statsPersister", "NodeStat.statsPersisterLong", node.ticker, nodeDir);
 
 		SimpleFieldSet throttleFS = persister.read();
 		if(logMINOR) Logger.minor(this, "Read throttleFS:\n"+throttleFS);
@@ -946,7 +946,7 @@ public class NodeStats implements Persistable {
 	
 	/**
 	 * Update peerManagerUserAlertStats if the timer has expired.
-	 * Only called from PacketSender so doesn't need sync.
+	 * Only called from the ticker thread so doesn't need sync.
 	 */
 	public void maybeUpdatePeerManagerUserAlertStats(long now) {
 		if(now > nextPeerManagerUserAlertStatsUpdateTime) {
@@ -1107,6 +1107,9 @@ public class NodeStats implements Persistable {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("messageFilters", node.usm.getFilterCount());
+		fs.put("messageFilterMatchTime", node.usm.getAverageFilterMatchTime());
+		fs.put("messageFiltersChecked", node.usm.getAverageFiltersChecked());
 		
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
@@ -4,9 +4,10 @@
 package freenet.node;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Vector;
 
 import freenet.io.comm.Peer;
@@ -25,11 +26,17 @@ import freenet.support.io.NativeThread;
  * 
  *         Thread that sends a packet whenever: - A packet needs to be resent immediately -
  *         Acknowledgments or resend requests need to be sent urgently.
+ *         
+ *         Peers join the ready queue, keyed by the time at which they will next have something
+ *         urgent to send, when a message, ack, resend request or resend is queued on them, and
+ *         after each time we send to them. So each wakeup only looks at the peers which are due.
+ *         All peers are checked every FULL_SCAN_INTERVAL for handshakes, timeouts and anything
+ *         which did not queue the peer.
+ *         
+ *         Timed jobs, and the periodic updates which don't send packets, run on the node's
+ *         Ticker instead, so they don't delay sending packets.
  */
-// j16sdiz (22-Dec-2008):
-// FIXME this is the only class implements Ticker, everbody is using this as 
-// a generic task scheduler. Either rename this class, or create another tricker for non-Packet tasks
-public class PacketSender implements Runnable, Ticker {
+public class PacketSender implements Runnable {
 
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
@@ -56,8 +63,11 @@ public class PacketSender implements Runnable, Ticker {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final int MIN_OLD_OPENNET_CONNECT_DELAY = 60 * 1000;
-	/** ~= Ticker :) */
-	private final TreeMap<Long, Object> timedJobsByTime;
+	/** How often to run the periodic updates on the ticker */
+	static final int MAINTENANCE_INTERVAL = MAX_COALESCING_DELAY;
+	/** How often to check all the peers, for handshakes, timeouts, connection setup etc. In
+	 * between, we only look at the peers on the ready queue. */
+	static final int FULL_SCAN_INTERVAL = 1000;
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
@@ -66,24 +76,43 @@ public class PacketSender implements Runnable, Ticker {
 	long lastReceivedPacketFromAnyNode;
 	private Vector<ResendPacketItem> rpiTemp;
 	private int[] rpiIntTemp;
-
-	private final static class Job {
-		final String name;
-		final Runnable job;
-		Job(String name, Runnable job) {
-			this.name = name;
-			this.job = job;
+	
+	/** A peer waiting on the ready queue */
+	private static final class ReadyPeer implements Comparable<ReadyPeer> {
+		final PeerNode pn;
+		final long time;
+		final long seq;
+		
+		ReadyPeer(PeerNode pn, long time, long seq) {
+			this.pn = pn;
+			this.time = time;
+			this.seq = seq;
 		}
 		
-		public boolean equals(Object o) {
-			if(!(o instanceof Job)) return false;
-			// Ignore the name, we are only interested in the job, needed for noDupes.
-			return ((Job)o).job == job;
+		public int compareTo(ReadyPeer o) {
+			if(time != o.time) return time < o.time ? -1 : 1;
+			if(seq != o.seq) return seq < o.seq ? -1 : 1;
+			return 0;
 		}
 	}
 	
+	/** Peers which will have something to send, by the time at which they will have to send it */
+	private final TreeSet<ReadyPeer> readyQueue = new TreeSet<ReadyPeer>();
+	/** The entry of each peer in readyQueue. Protected by readyQueue. */
+	private final HashMap<PeerNode, ReadyPeer> readyPeers = new HashMap<PeerNode, ReadyPeer>();
+	private long readySeq;
+	/** When the sender thread will wake up, if it is asleep, or 0 if it is running */
+	private volatile long sleepingUntil;
+	
+	// State of the current pass of realRun(), only used by the sender thread.
+	private long nextFullScan;
+	private long nextActionTime;
+	private long oldTempNow;
+	private int MAX_PACKET_SIZE;
+	private boolean canSendThrottled;
+	private long canSendThrottledAt;
+
 	PacketSender(Node node) {
-		timedJobsByTime = new TreeMap<Long, Object>();
 		this.node = node;
 		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
@@ -98,7 +127,7 @@ public class PacketSender implements Runnable, Ticker {
 		long now = System.currentTimeMillis();
 		long transition = Version.transitionTime();
 		if(now < transition)
-			queueTimedJob(new Runnable() {
+			node.ticker.queueTimedJob(new Runnable() {
 
 					public void run() {
 						freenet.support.Logger.OSThread.logPID(this);
@@ -109,8 +138,49 @@ public class PacketSender implements Runnable, Ticker {
 						}
 					}
 				}, transition - now);
+		node.ticker.queueTimedJob(maintenance, MAINTENANCE_INTERVAL);
 		myThread.start();
 	}
+	
+	/** Periodic updates which don't send packets, run on the ticker thread */
+	private final FastRunnable maintenance = new FastRunnable() {
+		
+		public void run() {
+			try {
+				maintenance();
+			} finally {
+				node.ticker.queueTimedJob(this, MAINTENANCE_INTERVAL);
+			}
+		}
+		
+	};
+	
+	private void maintenance() {
+		long now = System.currentTimeMillis();
+		PeerManager pm = node.peers;
+		PeerNode[] nodes = pm.myPeers;
+		// Run the time sensitive status updater separately
+		for(int i = 0; i < nodes.length; i++) {
+			PeerNode pn = nodes[i];
+			// Only routing backed off nodes should need status updating since everything else
+			// should get updated immediately when it's changed
+			if(pn.getPeerNodeStatus() == PeerManager.PEER_NODE_STATUS_ROUTING_BACKED_OFF)
+				pn.setPeerNodeStatus(now);
+		}
+		pm.maybeLogPeerNodeStatusSummary(now);
+		pm.maybeUpdateOldestNeverConnectedPeerAge(now);
+		stats.maybeUpdatePeerManagerUserAlertStats(now);
+		stats.maybeUpdateNodeIOStats(now);
+		pm.maybeUpdatePeerNodeRoutableConnectionStats(now);
+		// Needs to be run very frequently. Fairly lightweight, but it takes the
+		// LocationManager lock, which is why it is not run on the PacketSender thread.
+		node.lm.removeTooOldQueuedItems();
+		
+		if(now - lastClearedOldSwapChains > 10000) {
+			node.lm.clearOldSwapChains();
+			lastClearedOldSwapChains = now;
+		}
+	}
 
 	public void run() {
 		if(logMINOR) Logger.minor(this, "In PacketSender.run()");
@@ -121,7 +191,6 @@ public class PacketSender implements Runnable, Ticker {
 		 */
 		int brokeAt = 0;
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				brokeAt = realRun(brokeAt);
 			} catch(OutOfMemoryError e) {
@@ -137,47 +206,94 @@ public class PacketSender implements Runnable, Ticker {
 
 	private int realRun(int brokeAt) {
 		long now = System.currentTimeMillis();
-		PeerManager pm = node.peers;
-		PeerNode[] nodes = pm.myPeers;
-		// Run the time sensitive status updater separately
-		for(int i = 0; i < nodes.length; i++) {
-			PeerNode pn = nodes[i];
-			// Only routing backed off nodes should need status updating since everything else
-			// should get updated immediately when it's changed
-			if(pn.getPeerNodeStatus() == PeerManager.PEER_NODE_STATUS_ROUTING_BACKED_OFF)
-				pn.setPeerNodeStatus(now);
-		}
-		pm.maybeLogPeerNodeStatusSummary(now);
-		pm.maybeUpdateOldestNeverConnectedPeerAge(now);
-		stats.maybeUpdatePeerManagerUserAlertStats(now);
-		stats.maybeUpdateNodeIOStats(now);
-		pm.maybeUpdatePeerNodeRoutableConnectionStats(now);
-		long nextActionTime = Long.MAX_VALUE;
-		long oldTempNow = now;
-		// Needs to be run very frequently. Maybe change to a regular once per second schedule job?
-		// Maybe not worth it as it is fairly lightweight.
-		// FIXME given the lock contention, maybe it's worth it? What about 
-		// running it on the UdpSocketHandler thread? That would surely be better...?
-		node.lm.removeTooOldQueuedItems();
+		nextActionTime = Long.MAX_VALUE;
+		oldTempNow = now;
 		
-		boolean canSendThrottled = false;
+		MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
+		updateCanSendThrottled(now);
 		
-		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
+		if(now >= nextFullScan) {
+			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
+			PeerNode[] nodes = node.peers.myPeers;
+			int newBrokeAt = brokeAt;
+			for(int i = 0; i < nodes.length; i++) {
+				int idx = (i + brokeAt + 1) % nodes.length;
+				PeerNode pn = nodes[idx];
+				unqueue(pn);
+				if(processPeer(pn, now, true))
+					newBrokeAt = idx;
+			}
+			brokeAt = newBrokeAt;
+			
+			tryOldOpennetPeers(now);
+			
+			if(now - node.startupTime > 60 * 1000 * 5)
+				if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
+					Logger.error(this, "Have not received any packets from any node in last " + Node.ALARM_TIME / 1000 + " seconds");
+					lastReportedNoPackets = now;
+				}
+			nextFullScan = now + FULL_SCAN_INTERVAL;
+		} else {
+			// Only the peers which have something to send now
+			for(PeerNode pn : takeReadyPeers(now))
+				processPeer(pn, now, false);
+		}
+
+		long oldNow = now;
+
+		// Send may have taken some time
+		now = System.currentTimeMillis();
+
+		if((now - oldNow) > (10 * 1000))
+			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+
+		synchronized(this) {
+			// Anything queued from here on wakes us up, until we know how long we will sleep for.
+			sleepingUntil = Long.MAX_VALUE;
+			long wakeTime = Math.min(nextActionTime, Math.min(nextFullScan, firstReadyTime()));
+			long sleepTime = wakeTime - now;
+			if(sleepTime > 0) {
+				sleepingUntil = wakeTime;
+				try {
+					if(logMINOR)
+						Logger.minor(this, "Sleeping for " + sleepTime);
+					wait(sleepTime);
+				} catch(InterruptedException e) {
+				// Ignore, just wake up. Probably we got interrupt()ed
+				// because a new packet came in.
+				}
+			}
+			sleepingUntil = 0;
+		}
+		return brokeAt;
+	}
+	
+	/** Work out whether we can send throttled packets now, and if not, when we can. */
+	private void updateCanSendThrottled(long now) {
 		long count = node.outputThrottle.getCount();
 		if(count > MAX_PACKET_SIZE)
 			canSendThrottled = true;
 		else {
+			canSendThrottled = false;
 			long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
 			canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			canSendThrottledAt = now + canSendAt;
+			nextActionTime = Math.min(nextActionTime, canSendThrottledAt);
 		}
-		
-		int newBrokeAt = brokeAt;
-		for(int i = 0; i < nodes.length; i++) {
-			int idx = (i + brokeAt + 1) % nodes.length;
-			PeerNode pn = nodes[idx];
+	}
+	
+	/**
+	 * Send a packet to a peer if it has anything urgent, and queue it again for the next time it
+	 * will have something urgent.
+	 * @param fullScan If true, this is the periodic check of all peers: also check whether the
+	 * peer has connected, should be disconnected, or needs a handshake.
+	 * @return True if we sent a packet to the peer and then ran out of bandwidth.
+	 */
+	private boolean processPeer(PeerNode pn, long now, boolean fullScan) {
+		boolean ranOut = false;
+		if(fullScan) {
 			lastReceivedPacketFromAnyNode =
 				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
 			pn.maybeOnConnect();
@@ -185,82 +301,78 @@ public class PacketSender implements Runnable, Ticker {
 				// Might as well do it properly.
 				node.peers.disconnect(pn, true, true, false);
 			}
+		}
 
-			if(pn.isConnected()) {
-				
-				if(pn.shouldThrottle() && !canSendThrottled)
-					continue;
-				
-				// Is the node dead?
-				if(now - pn.lastReceivedPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
-					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
-					pn.disconnected(false, false /* hopefully will recover, transient network glitch */);
-					continue;
-				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
-					/*
-					 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
-					 code will only execute because of the scheduled-runnable in start() which executes
-					 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
-					 as being incompatible.
-					 */
-					pn.invalidate();
-					pn.setPeerNodeStatus(now);
-					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
-					continue;
-				}
-				
-				try {
-				if((canSendThrottled || !pn.shouldThrottle()) && pn.maybeSendPacket(now, rpiTemp, rpiIntTemp)) {
-					canSendThrottled = false;
-					count = node.outputThrottle.getCount();
-					if(count > MAX_PACKET_SIZE)
-						canSendThrottled = true;
-					else {
-						long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
-						canSendAt = (canSendAt / (1000*1000)) + (canSendAt % (1000*1000) == 0 ? 0 : 1);
-						if(logMINOR)
-							Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-						nextActionTime = Math.min(nextActionTime, now + canSendAt);
-						newBrokeAt = idx;
-					}
-				}
-				} catch (BlockedTooLongException e) {
-					Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+this+" on "+e.tracker+" - DISCONNECTING!");
-					pn.forceDisconnect(true);
-					onForceDisconnectBlockTooLong(pn, e);
-				}
-				
-				long urgentTime = pn.getNextUrgentTime(now);
-				// Should spam the logs, unless there is a deadlock
-				if(urgentTime < Long.MAX_VALUE && logMINOR)
-					Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn.getPeer());
-				nextActionTime = Math.min(nextActionTime, urgentTime);
-			} else
-				// Not connected
-
-				if(pn.noContactDetails())
-					pn.startARKFetcher();
+		if(pn.isConnected()) {
 			
-			if(pn.shouldSendHandshake()) {
-				// Send handshake if necessary
-				long beforeHandshakeTime = System.currentTimeMillis();
-				pn.getOutgoingMangler().sendHandshake(pn, false);
-				long afterHandshakeTime = System.currentTimeMillis();
-				if((afterHandshakeTime - beforeHandshakeTime) > (2 * 1000))
-					Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
+			if(pn.shouldThrottle() && !canSendThrottled) {
+				// Look at it again when we can send
+				queueUrgent(pn, canSendThrottledAt);
+				return false;
 			}
-			long tempNow = System.currentTimeMillis();
-			if((tempNow - oldTempNow) > (5 * 1000))
-				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
-			oldTempNow = tempNow;
-		}
-		brokeAt = newBrokeAt;
-
-		/* Attempt to connect to old-opennet-peers.
-		 * Constantly send handshake packets, in order to get through a NAT.
-		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
-		 * Well worth it to allow us to reconnect more quickly. */
+			
+			// Is the node dead?
+			if(now - pn.lastReceivedPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
+				Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
+				pn.disconnected(false, false /* hopefully will recover, transient network glitch */);
+				return false;
+			} else if(pn.isRoutable() && pn.noLongerRoutable()) {
+				/*
+				 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
+				 code will only execute because of the scheduled-runnable in start() which executes
+				 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
+				 as being incompatible.
+				 */
+				pn.invalidate();
+				pn.setPeerNodeStatus(now);
+				Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+				return false;
+			}
+			
+			try {
+			if((canSendThrottled || !pn.shouldThrottle()) && pn.maybeSendPacket(now, rpiTemp, rpiIntTemp)) {
+				updateCanSendThrottled(now);
+				ranOut = !canSendThrottled;
+			}
+			} catch (BlockedTooLongException e) {
+				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+this+" on "+e.tracker+" - DISCONNECTING!");
+				pn.forceDisconnect(true);
+				onForceDisconnectBlockTooLong(pn, e);
+			}
+			
+			long urgentTime = pn.getNextUrgentTime(now);
+			// Should spam the logs, unless there is a deadlock
+			if(urgentTime < Long.MAX_VALUE && logMINOR)
+				Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn.getPeer());
+			if(urgentTime < Long.MAX_VALUE)
+				queueUrgent(pn, urgentTime);
+			nextActionTime = Math.min(nextActionTime, urgentTime);
+		} else
+			// Not connected
+
+			if(fullScan && pn.noContactDetails())
+				pn.startARKFetcher();
 		
+		if(fullScan && pn.shouldSendHandshake()) {
+			// Send handshake if necessary
+			long beforeHandshakeTime = System.currentTimeMillis();
+			pn.getOutgoingMangler().sendHandshake(pn, false);
+			long afterHandshakeTime = System.currentTimeMillis();
+			if((afterHandshakeTime - beforeHandshakeTime) > (2 * 1000))
+				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + pn.userToString());
+		}
+		long tempNow = System.currentTimeMillis();
+		if((tempNow - oldTempNow) > (5 * 1000))
+			Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
+		oldTempNow = tempNow;
+		return ranOut;
+	}
+	
+	/* Attempt to connect to old-opennet-peers.
+	 * Constantly send handshake packets, in order to get through a NAT.
+	 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
+	 * Well worth it to allow us to reconnect more quickly. */
+	private void tryOldOpennetPeers(long now) {
 		OpennetManager om = node.getOpennet();
 		if(om != null && node.getUptime() > 30*1000) {
 			PeerNode[] peers = om.getOldPeers();
@@ -290,95 +402,62 @@ public class PacketSender implements Runnable, Ticker {
 			}
 			
 		}
-
-		if(now - lastClearedOldSwapChains > 10000) {
-			node.lm.clearOldSwapChains();
-			lastClearedOldSwapChains = now;
-		}
-
-		long oldNow = now;
-
-		// Send may have taken some time
-		now = System.currentTimeMillis();
-
-		if((now - oldNow) > (10 * 1000))
-			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
-
-		List<Job> jobsToRun = null;
-
-		synchronized(timedJobsByTime) {
-			while(!timedJobsByTime.isEmpty()) {
-				Long tRun = timedJobsByTime.firstKey();
-				if(tRun.longValue() <= now) {
-					if(jobsToRun == null)
-						jobsToRun = new ArrayList<Job>();
-					Object o = timedJobsByTime.remove(tRun);
-					if(o instanceof Job[]) {
-						Job[] r = (Job[]) o;
-						for(int i = 0; i < r.length; i++)
-							jobsToRun.add(r[i]);
-					} else {
-						Job r = (Job) o;
-						jobsToRun.add(r);
-					}
-				} else
-					// FIXME how accurately do we want ticker jobs to be scheduled?
-       				// FIXME can they wait the odd 200ms?
-
-					break;
+	}
+	
+	/**
+	 * Queue a peer to be looked at by the PacketSender at a given time, or earlier if it is
+	 * already queued for an earlier time. Called when something is queued on the peer which
+	 * will have to be sent by then: a message, an ack, a resend request etc.
+	 */
+	void queueUrgent(PeerNode pn, long time) {
+		// Usually already queued, check without the lock. If the peer is taken off the queue
+		// meanwhile, the sender only looks at it afterwards, so it will see what we queued.
+		if(pn.readyQueuedUntil <= time) return;
+		synchronized(readyQueue) {
+			ReadyPeer rp = readyPeers.get(pn);
+			if(rp != null) {
+				if(rp.time <= time) return;
+				readyQueue.remove(rp);
 			}
+			rp = new ReadyPeer(pn, time, readySeq++);
+			readyPeers.put(pn, rp);
+			readyQueue.add(rp);
+			pn.readyQueuedUntil = time;
 		}
-
-		if(jobsToRun != null)
-			for(Job r : jobsToRun) {
-				if(logMINOR)
-					Logger.minor(this, "Running " + r);
-				if(r.job instanceof FastRunnable)
-					// Run in-line
-
-					try {
-						r.job.run();
-					} catch(Throwable t) {
-						Logger.error(this, "Caught " + t + " running " + r, t);
-					}
-				else
-					try {
-						node.executor.execute(r.job, r.name, true);
-					} catch(OutOfMemoryError e) {
-						OOMHandler.handleOOM(e);
-						System.err.println("Will retry above failed operation...");
-						queueTimedJob(r.job, r.name, 200, true, false);
-					} catch(Throwable t) {
-						Logger.error(this, "Caught in PacketSender: " + t, t);
-						System.err.println("Caught in PacketSender: " + t);
-						t.printStackTrace();
-					}
-			}
-
-		long sleepTime = nextActionTime - now;
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
-
-		if(now - node.startupTime > 60 * 1000 * 5)
-			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
-				Logger.error(this, "Have not received any packets from any node in last " + Node.ALARM_TIME / 1000 + " seconds");
-				lastReportedNoPackets = now;
-			}
-
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
-				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
-					wait(sleepTime);
-				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
+		if(time < sleepingUntil)
+			wakeUp();
+	}
+	
+	/** Remove a peer from the ready queue, because we are about to look at it anyway. */
+	private void unqueue(PeerNode pn) {
+		synchronized(readyQueue) {
+			ReadyPeer rp = readyPeers.remove(pn);
+			if(rp != null)
+				readyQueue.remove(rp);
+			pn.readyQueuedUntil = Long.MAX_VALUE;
+		}
+	}
+	
+	/** Remove and return the peers which are due. */
+	private List<PeerNode> takeReadyPeers(long now) {
+		List<PeerNode> ready = new ArrayList<PeerNode>();
+		synchronized(readyQueue) {
+			while(!readyQueue.isEmpty()) {
+				ReadyPeer rp = readyQueue.first();
+				if(rp.time > now) break;
+				readyQueue.remove(rp);
+				readyPeers.remove(rp.pn);
+				rp.pn.readyQueuedUntil = Long.MAX_VALUE;
+				ready.add(rp.pn);
 			}
 		}
-		return brokeAt;
+		return ready;
+	}
+	
+	private long firstReadyTime() {
+		synchronized(readyQueue) {
+			return readyQueue.isEmpty() ? Long.MAX_VALUE : readyQueue.first().time;
+		}
 	}
 
 	private HashSet<Peer> peersDumpedBlockedTooLong = new HashSet<Peer>();
@@ -492,6 +571,11 @@ public class PacketSender implements Runnable, Ticker {
 		}
 	}
 
+	/** Look at a peer as soon as possible, because it has something to send now. */
+	void wakeUp(PeerNode pn) {
+		queueUrgent(pn, System.currentTimeMillis());
+	}
+
 	protected String l10n(String key, String[] patterns, String[] values) {
 		return NodeL10n.getBase().getString("PacketSender."+key, patterns, values);
 	}
@@ -499,63 +583,4 @@ public class PacketSender implements Runnable, Ticker {
 	protected String l10n(String key, String pattern, String value) {
 		return NodeL10n.getBase().getString("PacketSender."+key, pattern, value);
 	}
-
-	public void queueTimedJob(Runnable job, long offset) {
-		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
-	}
-
-	/**
-	 * Queue a job at a specific time.
-	 * @param runner The job to run. FastRunnable's get run directly on the PacketSender thread.
-	 * @param name The name of the job, the thread running it will temporarily take this name,
-	 * assuming it is run on a separate thread.
-	 * @param offset The time at which to run the job in milliseconds after 
-	 * System.currentTimeMillis().
-	 * @param runOnTickerAnyway If false, run jobs with offset <=0 on the ticker, to preserve
-	 * their thread priorities; if true, jobs to run immediately through the executor (which
-	 * normally will also preserve thread priorities, but may need to call back via 
-	 * runOnTickerAnyway=true if it needs to increase the thread priority).
-	 * @param noDupes Don't run this job if it is already scheduled. Relatively expensive, O(n)
-	 * with queued jobs. Necessary for Announcer to ensure that we don't get exponentially 
-	 * increasing numbers of announcement check jobs queued, while ensuring that we do always 
-	 * have one queued within the given period.
-	 */
-	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
-		// Run directly *if* that won't cause any priority problems.
-		if(offset <= 0 && !runOnTickerAnyway) {
-			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
-			node.executor.execute(runner, name);
-			return;
-		}
-		Job job = new Job(name, runner);
-		if(offset < 0) offset = 0;
-		long now = System.currentTimeMillis();
-		Long l = Long.valueOf(offset + now);
-		synchronized(timedJobsByTime) {
-			if(noDupes) {
-				if(timedJobsByTime.containsValue(new Job(name, runner))) {
-					// O(n) but this is okay as it is only used by Announcer.
-					// If you replace this with a lookup set, be *very* careful to ensure that the two are consistent,
-					// otherwise we can forget important recurring jobs e.g. Announcer.
-					Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
-					return;
-				}
-			}
-			Object o = timedJobsByTime.get(l);
-			if(o == null)
-				timedJobsByTime.put(l, job);
-			else if(o instanceof Job)
-				timedJobsByTime.put(l, new Job[]{(Job) o, job});
-			else if(o instanceof Job[]) {
-				Job[] r = (Job[]) o;
-				Job[] jobs = new Job[r.length + 1];
-				System.arraycopy(r, 0, jobs, 0, r.length);
-				jobs[jobs.length - 1] = job;
-				timedJobsByTime.put(l, jobs);
-			}
-		}
-		if(offset < MAX_COALESCING_DELAY) {
-			wakeUp();
-		}
-	}
 }
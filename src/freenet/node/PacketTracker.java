@@ -159,6 +159,7 @@ public class PacketTracker {
 			ackQueue.add(qa);
 		}
 	// Will go urgent in 200ms
+		pn.node.ps.queueUrgent(pn, qa.urgentTime);
 	}
 
 	public void queueForgotten(int seqNumber) {
@@ -177,6 +178,7 @@ public class PacketTracker {
 		synchronized(forgottenQueue) {
 			forgottenQueue.add(qf);
 		}
+		pn.node.ps.queueUrgent(pn, qf.urgentTime);
 	}
 
 	static class PacketActionItem { // anyone got a better name?
@@ -446,6 +448,7 @@ public class PacketTracker {
 	 * @throws UpdatableSortedLinkedListKilledException 
 	 */
 	private void queueResendRequest(int packetNumber) throws UpdatableSortedLinkedListKilledException {
+		long urgentTime;
 		synchronized(resendRequestQueue) {
 			if(queuedResendRequest(packetNumber)) {
 				if(logMINOR)
@@ -456,7 +459,9 @@ public class PacketTracker {
 				Logger.minor(this, "Queueing resend request for " + packetNumber);
 			QueuedResendRequest qrr = new QueuedResendRequest(packetNumber);
 			resendRequestQueue.add(qrr);
+			urgentTime = qrr.urgentTime;
 		}
+		pn.node.ps.queueUrgent(pn, urgentTime);
 	}
 
 	/**
@@ -466,6 +471,7 @@ public class PacketTracker {
 	 * @throws UpdatableSortedLinkedListKilledException 
 	 */
 	private void queueAckRequest(int packetNumber) throws UpdatableSortedLinkedListKilledException {
+		long urgentTime;
 		synchronized(ackRequestQueue) {
 			// FIXME should we just remove the existing ack request? If we do, we get a better
 			// estimate of RTT on lossy links... if we don't, lossy links will include the average
@@ -480,7 +486,9 @@ public class PacketTracker {
 				Logger.minor(this, "Queueing ack request for " + packetNumber + " on " + this);
 			QueuedAckRequest qrr = new QueuedAckRequest(packetNumber);
 			ackRequestQueue.add(qrr);
+			urgentTime = qrr.urgentTime;
 		}
+		pn.node.ps.queueUrgent(pn, urgentTime);
 	}
 
 	/**
@@ -619,7 +627,7 @@ public class PacketTracker {
 			synchronized(packetsToResend) {
 				packetsToResend.add(seqNumber);
 			}
-			pn.node.ps.wakeUp();
+			pn.node.ps.wakeUp(pn);
 		} else {
 			synchronized(this) {
 				if(nextPacketNumber <= seqNumber) {
@@ -722,7 +730,7 @@ public class PacketTracker {
 				} else
 					return false;
 		}
-		pn.node.ps.wakeUp();
+		pn.node.ps.wakeUp(pn);
 		return false;
 	}
 
@@ -1013,7 +1021,7 @@ public class PacketTracker {
 		}
 		pn.requeueMessageItems(messages, 0, messages.length, true);
 
-		pn.node.ps.wakeUp();
+		pn.node.ps.wakeUp(pn);
 	}
 
 	/**
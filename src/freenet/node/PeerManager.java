@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
@@ -56,6 +57,8 @@ public class PeerManager {
 	PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	PeerNode[] connectedPeers;
+	/** Real connections by their detected address, for getByPeer(). Replaced when myPeers changes. */
+	private volatile ConcurrentHashMap<Peer, PeerNode> peersByAddress = new ConcurrentHashMap<Peer, PeerNode>();
 	private String darkFilename;
 	private String openFilename;
 	private PeerManagerUserAlert ua;	// Peers stuff
@@ -91,7 +94,7 @@ public class PeerManager {
 				writePeersInner();
 			}
 			
-			node.ps.queueTimedJob(writePeersRunnable, MIN_WRITEPEERS_DELAY);
+			node.ticker.queueTimedJob(writePeersRunnable, MIN_WRITEPEERS_DELAY);
 		}
 	};
 	
@@ -263,6 +266,7 @@ public class PeerManager {
 			System.arraycopy(myPeers, 0, newMyPeers, 0, myPeers.length);
 			newMyPeers[myPeers.length] = pn;
 			myPeers = newMyPeers;
+			updateAddressIndex();
 			Logger.normal(this, "Added " + pn);
 		}
 		if(pn.recordStatus())
@@ -331,6 +335,7 @@ public class PeerManager {
 					}
 				}
 				myPeers = newMyPeers;
+				updateAddressIndex();
 
 				Logger.normal(this, "Removed " + pn);
 			}
@@ -348,6 +353,7 @@ public class PeerManager {
 			oldPeers = myPeers;
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
+			updateAddressIndex();
 		}
 		for(int i = 0; i < oldPeers.length; i++)
 			oldPeers[i].onRemove();
@@ -453,6 +459,12 @@ public class PeerManager {
 	 * Find the node with the given Peer address.
 	 */
 	public PeerNode getByPeer(Peer peer) {
+		PeerNode pn = peersByAddress.get(peer);
+		if(pn == null)
+			return null;
+		if(peer.equals(pn.getPeer()))
+			return pn;
+		// Changing address right now, or the index is out of date.
 		for(int i = 0; i < myPeers.length; i++) {
 			if(!myPeers[i].isRealConnection())
 				continue;
@@ -462,6 +474,43 @@ public class PeerManager {
 		return null;
 	}
 
+	/**
+	 * Rebuild the address index after changing myPeers. Caller must hold the lock.
+	 */
+	private void updateAddressIndex() {
+		ConcurrentHashMap<Peer, PeerNode> index = new ConcurrentHashMap<Peer, PeerNode>();
+		// Backwards, so that the first peer with an address wins, as in a linear search.
+		for(int i = myPeers.length - 1; i >= 0; i--) {
+			PeerNode pn = myPeers[i];
+			if(!pn.isRealConnection())
+				continue;
+			Peer peer = pn.getPeer();
+			if(peer != null)
+				index.put(peer, pn);
+		}
+		peersByAddress = index;
+	}
+
+	/**
+	 * Called by a PeerNode when its detected address changes, to update the address index.
+	 * Must not be called with the PeerNode locked.
+	 */
+	synchronized void changedAddress(PeerNode pn, Peer oldPeer, Peer newPeer) {
+		if(!pn.isRealConnection() || !havePeer(pn))
+			return;
+		if(oldPeer != null && peersByAddress.remove(oldPeer, pn)) {
+			// Another peer may be using the old address too.
+			for(int i = 0; i < myPeers.length; i++) {
+				if(myPeers[i] != pn && myPeers[i].isRealConnection() && oldPeer.equals(myPeers[i].getPeer())) {
+					peersByAddress.put(oldPeer, myPeers[i]);
+					break;
+				}
+			}
+		}
+		if(newPeer != null)
+			peersByAddress.put(newPeer, pn);
+	}
+
 	/**
 	 * Connect to a node provided the fieldset representing it.
 	 */
@@ -1294,7 +1343,7 @@ public class PeerManager {
 		ua = new PeerManagerUserAlert(node.nodeStats);
 		updatePMUserAlert();
 		node.clientCore.alerts.register(ua);
-		node.ps.queueTimedJob(writePeersRunnable, 0);
+		node.ticker.queueTimedJob(writePeersRunnable, 0);
 	}
 
 	public int countNonBackedOffPeers() {
@@ -1727,6 +1776,7 @@ public class PeerManager {
 			}
 			myPeers = keep.toArray(new PeerNode[keep.size()]);
 			connectedPeers = keep.toArray(new PeerNode[conn.size()]);
+			updateAddressIndex();
 		}
 		updatePMUserAlert();
 	}
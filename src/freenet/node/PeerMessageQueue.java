@@ -2,25 +2,80 @@ package freenet.node;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import freenet.io.comm.DMT;
 
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
- * Will soon be round-robin between different transfers/UIDs/clients too.
+ * Round-robin between different UIDs within a priority.
+ *
+ * Any number of threads can queue messages without locking: new messages go on a linked
+ * multi-producer single-consumer queue, the inbox, which is only read under the lock. Everything
+ * which takes messages off the queue is synchronized, and first sorts the inbox into the
+ * per-priority, per-UID lists. Messages are linked through MessageItem.next, so queueing one
+ * doesn't allocate anything.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
 
 	private final PrioQueue[] queuesByPriority;
+	
+	/** The last message added to the inbox, or the stub */
+	private final AtomicReference<MessageItem> inboxTail;
+	/** The next message to take off the inbox, or the stub. Protected by the lock. */
+	private MessageItem inboxHead;
+	/** Placeholder which keeps the inbox non-empty, so producers never have to touch inboxHead */
+	private final MessageItem stub;
+	/** Total size of the queued messages, including the inbox */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	
+	/** A list of messages linked through MessageItem.next. */
+	private static class MessageList {
+		MessageItem first;
+		MessageItem last;
+		int size;
+		
+		boolean isEmpty() {
+			return first == null;
+		}
+		
+		void addLast(MessageItem item) {
+			item.next = null;
+			if(last == null)
+				first = item;
+			else
+				last.next = item;
+			last = item;
+			size++;
+		}
+		
+		void addFirst(MessageItem item) {
+			item.next = first;
+			first = item;
+			if(last == null)
+				last = item;
+			size++;
+		}
+		
+		MessageItem removeFirst() {
+			MessageItem item = first;
+			first = item.next;
+			if(first == null)
+				last = null;
+			item.next = null;
+			size--;
+			return item;
+		}
+	}
 
 	private static class PrioQueue {
-		LinkedList<MessageItem> itemsNoID;
-		ArrayList<LinkedList<MessageItem>> itemsWithID;
+		MessageList itemsNoID;
+		ArrayList<MessageList> itemsWithID;
 		ArrayList<Long> itemsIDs;
-		Map<Long, LinkedList<MessageItem>> itemsByID;
+		Map<Long, MessageList> itemsByID;
 		// Construct structures lazily, we're protected by the overall synchronized.
 		
 		/** 0 = itemsNoID, else 1-N = in itemsWithID[0-(N-1)].
@@ -29,30 +84,30 @@ public class PeerMessageQueue {
 		
 		public void addLast(MessageItem item) {
 			if(item.msg == null) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
+				if(itemsNoID == null) itemsNoID = new MessageList();
 				itemsNoID.addLast(item);
 				return;
 			}
 			Object o = item.msg.getObject(DMT.UID);
 			if(o == null || !(o instanceof Long)) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
+				if(itemsNoID == null) itemsNoID = new MessageList();
 				itemsNoID.addLast(item);
 				return;
 			}
 			Long id = (Long) o;
-			LinkedList<MessageItem> list;
+			MessageList list;
 			if(itemsByID == null) {
-				itemsByID = new HashMap<Long, LinkedList<MessageItem>>();
-				itemsWithID = new ArrayList<LinkedList<MessageItem>>();
+				itemsByID = new HashMap<Long, MessageList>();
+				itemsWithID = new ArrayList<MessageList>();
 				itemsIDs = new ArrayList<Long>();
-				list = new LinkedList<MessageItem>();
+				list = new MessageList();
 				itemsWithID.add(list);
 				itemsIDs.add(id);
 				itemsByID.put(id, list);
 			} else {
 				list = itemsByID.get(id);
 				if(list == null) {
-					list = new LinkedList<MessageItem>();
+					list = new MessageList();
 					itemsWithID.add(list);
 					itemsByID.put(id, list);
 					itemsIDs.add(id);
@@ -63,30 +118,30 @@ public class PeerMessageQueue {
 		
 		public void addFirst(MessageItem item) {
 			if(item.msg == null) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
+				if(itemsNoID == null) itemsNoID = new MessageList();
 				itemsNoID.addFirst(item);
 				return;
 			}
 			Object o = item.msg.getObject(DMT.UID);
 			if(o == null || !(o instanceof Long)) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
+				if(itemsNoID == null) itemsNoID = new MessageList();
 				itemsNoID.addFirst(item);
 				return;
 			}
 			Long id = (Long) o;
-			LinkedList<MessageItem> list;
+			MessageList list;
 			if(itemsByID == null) {
-				itemsByID = new HashMap<Long, LinkedList<MessageItem>>();
-				itemsWithID = new ArrayList<LinkedList<MessageItem>>();
+				itemsByID = new HashMap<Long, MessageList>();
+				itemsWithID = new ArrayList<MessageList>();
 				itemsIDs = new ArrayList<Long>();
-				list = new LinkedList<MessageItem>();
+				list = new MessageList();
 				itemsWithID.add(list);
 				itemsIDs.add(id);
 				itemsByID.put(id, list);
 			} else {
 				list = itemsByID.get(id);
 				if(list == null) {
-					list = new LinkedList<MessageItem>();
+					list = new MessageList();
 					itemsWithID.add(list);
 					itemsIDs.add(id);
 					itemsByID.put(id, list);
@@ -98,32 +153,32 @@ public class PeerMessageQueue {
 		public int size() {
 			int size = 0;
 			if(itemsNoID != null)
-				size += itemsNoID.size();
+				size += itemsNoID.size;
 			if(itemsWithID != null)
-				for(LinkedList<MessageItem> list : itemsWithID)
-					size += list.size();
+				for(MessageList list : itemsWithID)
+					size += list.size;
 			return size;
 		}
 
 		public int addTo(MessageItem[] output, int ptr) {
 			if(itemsNoID != null)
-				for(MessageItem item : itemsNoID)
+				for(MessageItem item = itemsNoID.first; item != null; item = item.next)
 					output[ptr++] = item;
 			if(itemsWithID != null)
-				for(LinkedList<MessageItem> list : itemsWithID)
-					for(MessageItem item : list)
+				for(MessageList list : itemsWithID)
+					for(MessageItem item = list.first; item != null; item = item.next)
 						output[ptr++] = item;
 			return ptr;
 		}
 
 		public long getNextUrgentTime(long t, long now) {
 			if(itemsNoID != null) {
-				t = Math.min(t, itemsNoID.getFirst().submitted + PacketSender.MAX_COALESCING_DELAY);
+				t = Math.min(t, itemsNoID.first.submitted + PacketSender.MAX_COALESCING_DELAY);
 				if(t <= now) return t;
 			}
 			if(itemsWithID != null) {
-				for(LinkedList<MessageItem> items : itemsWithID) {
-					t = Math.min(t, items.getFirst().submitted + PacketSender.MAX_COALESCING_DELAY);
+				for(MessageList items : itemsWithID) {
+					t = Math.min(t, items.first.submitted + PacketSender.MAX_COALESCING_DELAY);
 					if(t <= now) return t;
 				}
 			}
@@ -132,15 +187,15 @@ public class PeerMessageQueue {
 
 		public int addSize(int length, int maxSize) {
 			if(itemsNoID != null) {
-				for(MessageItem item : itemsNoID) {
+				for(MessageItem item = itemsNoID.first; item != null; item = item.next) {
 					int thisLen = item.getLength();
 					length += thisLen;
 					if(length > maxSize) return length;
 				}
 			}
 			if(itemsWithID != null) {
-				for(LinkedList<MessageItem> list : itemsWithID) {
-					for(MessageItem item : list) {
+				for(MessageList list : itemsWithID) {
+					for(MessageItem item = list.first; item != null; item = item.next) {
 						int thisLen = item.getLength();
 						length += thisLen;
 						if(length > maxSize) return length;
@@ -157,7 +212,7 @@ public class PeerMessageQueue {
 			if(itemsWithID != null)
 				lists += itemsWithID.size();
 			for(int i=0;i<lists;i++) {
-				LinkedList<MessageItem> list;
+				MessageList list;
 				int l = (i + roundRobinCounter + 1) % lists;
 				int listNum = -1;
 				if(itemsNoID != null) {
@@ -173,7 +228,7 @@ public class PeerMessageQueue {
 
 				while(true) {
 					if(list.isEmpty()) break;
-					MessageItem item = list.getFirst();
+					MessageItem item = list.first;
 					if(isUrgent && item.submitted + PacketSender.MAX_COALESCING_DELAY > now) break;
 					
 					int thisSize = item.getLength();
@@ -263,60 +318,85 @@ public class PeerMessageQueue {
 		queuesByPriority = new PrioQueue[DMT.NUM_PRIORITIES];
 		for(int i=0;i<queuesByPriority.length;i++)
 			queuesByPriority[i] = new PrioQueue();
+		stub = new MessageItem(new byte[0], null, false, null, (short)0);
+		inboxHead = stub;
+		inboxTail = new AtomicReference<MessageItem>(stub);
 	}
 
-	public synchronized int queueAndEstimateSize(MessageItem item) {
+	/**
+	 * Queue a message. Doesn't lock, so can be called by any number of threads at once.
+	 * @return The number of bytes queued.
+	 */
+	public int queueAndEstimateSize(MessageItem item) {
+		long x = queuedBytes.addAndGet(item.getLength() + 2);
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNoID != null)
-				for(MessageItem it : pq.itemsNoID) {
-					x += it.getLength() + 2;
-					if(x > 1024)
-						break;
-				}
-			if(pq.itemsWithID != null) {
-				for(LinkedList<MessageItem> q : pq.itemsWithID)
-					for(MessageItem it : q) {
-						x += it.getLength() + 2;
-						if(x > 1024)
-							break;
-					}
-			}
-		}
-		return x;
+		return (int) Math.min(x, Integer.MAX_VALUE);
 	}
 
-	public synchronized long getMessageQueueLengthBytes() {
-		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNoID != null)
-				for(MessageItem it : pq.itemsNoID)
-					x += it.getLength() + 2;
-			if(pq.itemsWithID != null)
-				for(LinkedList<MessageItem> q : pq.itemsWithID)
-					for(MessageItem it : q)
-						x += it.getLength() + 2;
+	public long getMessageQueueLengthBytes() {
+		return queuedBytes.get();
+	}
+	
+	private void enqueuePrioritizedMessageItem(MessageItem addMe) {
+		addMe.next = null;
+		MessageItem prev = inboxTail.getAndSet(addMe);
+		// Until this is set, the consumer can't see addMe or anything after it.
+		prev.next = addMe;
+	}
+	
+	/**
+	 * Take the next message off the inbox. Caller must hold the lock.
+	 * @return The message, or null if the inbox is empty, or the next message is still being
+	 * added by another thread.
+	 */
+	private MessageItem pollInbox() {
+		MessageItem head = inboxHead;
+		MessageItem next = head.next;
+		if(head == stub) {
+			if(next == null) return null;
+			inboxHead = head = next;
+			next = next.next;
+		}
+		if(next != null) {
+			inboxHead = next;
+			return head;
+		}
+		if(head != inboxTail.get()) return null;
+		// head is the last one: put the stub back behind it so it can be taken off.
+		enqueuePrioritizedMessageItem(stub);
+		next = head.next;
+		if(next != null) {
+			inboxHead = next;
+			return head;
 		}
-		return x;
+		return null;
 	}
 	
-	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
-		//Assume it goes on the end, both the common case
-		short prio = addMe.getPriority();
-		queuesByPriority[prio].addLast(addMe);
+	/** Sort the messages on the inbox into the priority queues. Caller must hold the lock. */
+	private void drainInbox() {
+		MessageItem item;
+		while((item = pollInbox()) != null) {
+			//Assume it goes on the end, both the common case
+			queuesByPriority[item.getPriority()].addLast(item);
+		}
 	}
 	
 	/**
 	 * like enqueuePrioritizedMessageItem, but adds it to the front of those in the same priority.
 	 */
 	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
+		queuedBytes.addAndGet(addMe.getLength() + 2);
 		//Assume it goes on the front
 		short prio = addMe.getPriority();
 		queuesByPriority[prio].addFirst(addMe);
 	}
 
+	/**
+	 * Take all the queued messages. Messages which are being queued at the same time may be
+	 * left on the queue.
+	 */
 	public synchronized MessageItem[] grabQueuedMessageItems() {
+		drainInbox();
 		int size = 0;
 		for(int i=0;i<queuesByPriority.length;i++)
 			size += queuesByPriority[i].size();
@@ -326,8 +406,23 @@ public class PeerMessageQueue {
 			ptr = queue.addTo(output, ptr);
 			queue.clear();
 		}
+		removed(output, 0, output.length);
 		return output;
 	}
+	
+	private void removed(MessageItem[] items, int offset, int length) {
+		long bytes = 0;
+		for(int i=offset;i<offset+length;i++)
+			bytes += items[i].getLength() + 2;
+		queuedBytes.addAndGet(-bytes);
+	}
+
+	private void removed(ArrayList<MessageItem> items, int offset) {
+		long bytes = 0;
+		for(int i=offset;i<items.size();i++)
+			bytes += items.get(i).getLength() + 2;
+		queuedBytes.addAndGet(-bytes);
+	}
 
 	/**
 	 * Get the time at which the next message must be sent. If any message is 
@@ -338,6 +433,7 @@ public class PeerMessageQueue {
 	 * @return
 	 */
 	public synchronized long getNextUrgentTime(long t, long now) {
+		drainInbox();
 		for(PrioQueue queue : queuesByPriority) {
 			t = Math.min(t, queue.getNextUrgentTime(t, now));
 			if(t <= now) return t; // How much in the past doesn't matter, as long as it's in the past.
@@ -350,6 +446,7 @@ public class PeerMessageQueue {
 	}
 
 	public synchronized boolean mustSendSize(int minSize, int maxSize) {
+		drainInbox();
 		int length = minSize;
 		for(PrioQueue items : queuesByPriority) {
 			length = items.addSize(length, maxSize);
@@ -369,6 +466,8 @@ public class PeerMessageQueue {
 	 * messages but they don't fit.
 	 */
 	public synchronized int addUrgentMessages(int size, long now, int minSize, int maxSize, ArrayList<MessageItem> messages) {
+		drainInbox();
+		int added = messages.size();
 		boolean gotEnough = false;
 		for(PrioQueue queue : queuesByPriority) {
 			size = queue.addUrgentMessages(size, minSize, maxSize, now, messages);
@@ -377,6 +476,7 @@ public class PeerMessageQueue {
 				gotEnough = true;
 			}
 		}
+		removed(messages, added);
 		if(gotEnough)
 			return -size;
 		else
@@ -394,6 +494,8 @@ public class PeerMessageQueue {
 	 * messages but they don't fit.
 	 */
 	public synchronized int addNonUrgentMessages(int size, long now, int minSize, int maxSize, ArrayList<MessageItem> messages) {
+		drainInbox();
+		int added = messages.size();
 		boolean gotEnough = false;
 		for(PrioQueue queue : queuesByPriority) {
 			size = queue.addMessages(size, minSize, maxSize, now, messages);
@@ -402,6 +504,7 @@ public class PeerMessageQueue {
 				gotEnough = true;
 			}
 		}
+		removed(messages, added);
 		if(gotEnough)
 			return -size;
 		else
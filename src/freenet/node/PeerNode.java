@@ -209,6 +209,9 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 	/** MessageItem's to send ASAP. 
 	 * LOCKING: Lock on self, always take that lock last. Sometimes used inside PeerNode.this lock. */
 	private final PeerMessageQueue messageQueue;
+	/** When the PacketSender is due to look at us, or Long.MAX_VALUE. Only changed by the
+	 * PacketSender, with its ready queue locked, but read without the lock. */
+	volatile long readyQueuedUntil = Long.MAX_VALUE;
 	/** When did we last receive a SwapRequest? */
 	private long timeLastReceivedSwapRequest;
 	/** Average interval between SwapRequest's */
@@ -701,7 +704,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 
 		listeningHandshakeBurstCount = 0;
 		listeningHandshakeBurstSize = Node.MIN_BURSTING_HANDSHAKE_BURST_SIZE
-			+ node.random.nextInt(Node.RANDOMIZED_BURSTING_HANDSHAKE_BURST_SIZE);
+			+ node.fastWeakRandom.nextInt(Node.RANDOMIZED_BURSTING_HANDSHAKE_BURST_SIZE);
 		
 		if(isBurstOnly()) {
 			Logger.minor(this, "First BurstOnly mode handshake in "+(sendHandshakeTime - now)+"ms for "+shortToString()+" (count: "+listeningHandshakeBurstCount+", size: "+listeningHandshakeBurstSize+ ')');
@@ -1054,11 +1057,12 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		int x = messageQueue.queueAndEstimateSize(item);
 		if(x > 1024 || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
-			node.ps.wakeUp();
+			node.ps.wakeUp(this);
+		} else {
+			// Otherwise we do not need to wake up the PacketSender, but it must look at us
+			// before the maximum coalescing delay (100ms).
+			node.ps.queueUrgent(this, now + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 	}
 
 	public long getMessageQueueLengthBytes() {
@@ -1382,11 +1386,11 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 			long delay;
 			if(unroutableOlderVersion || unroutableNewerVersion || disableRouting) {
 				// Let them know we're here, but have no hope of routing general data to them.
-				delay = Node.MIN_TIME_BETWEEN_VERSION_SENDS + node.random.nextInt(Node.RANDOMIZED_TIME_BETWEEN_VERSION_SENDS);
+				delay = Node.MIN_TIME_BETWEEN_VERSION_SENDS + node.fastWeakRandom.nextInt(Node.RANDOMIZED_TIME_BETWEEN_VERSION_SENDS);
 			} else if(invalidVersion() && !firstHandshake) {
-				delay = Node.MIN_TIME_BETWEEN_VERSION_PROBES + node.random.nextInt(Node.RANDOMIZED_TIME_BETWEEN_VERSION_PROBES);
+				delay = Node.MIN_TIME_BETWEEN_VERSION_PROBES + node.fastWeakRandom.nextInt(Node.RANDOMIZED_TIME_BETWEEN_VERSION_PROBES);
 			} else {
-				delay = Node.MIN_TIME_BETWEEN_HANDSHAKE_SENDS + node.random.nextInt(Node.RANDOMIZED_TIME_BETWEEN_HANDSHAKE_SENDS);
+				delay = Node.MIN_TIME_BETWEEN_HANDSHAKE_SENDS + node.fastWeakRandom.nextInt(Node.RANDOMIZED_TIME_BETWEEN_HANDSHAKE_SENDS);
 			}
 			// FIXME proper multi-homing support!
 			delay /= (handshakeIPs == null ? 1 : handshakeIPs.length);
@@ -1412,13 +1416,13 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		long delay;
 		if(listeningHandshakeBurstCount == 0) {  // 0 only if we just reset it above
 			delay = Node.MIN_TIME_BETWEEN_BURSTING_HANDSHAKE_BURSTS
-				+ node.random.nextInt(Node.RANDOMIZED_TIME_BETWEEN_BURSTING_HANDSHAKE_BURSTS);
+				+ node.fastWeakRandom.nextInt(Node.RANDOMIZED_TIME_BETWEEN_BURSTING_HANDSHAKE_BURSTS);
 			listeningHandshakeBurstSize = Node.MIN_BURSTING_HANDSHAKE_BURST_SIZE
-					+ node.random.nextInt(Node.RANDOMIZED_BURSTING_HANDSHAKE_BURST_SIZE);
+					+ node.fastWeakRandom.nextInt(Node.RANDOMIZED_BURSTING_HANDSHAKE_BURST_SIZE);
 			isBursting = false;
 		} else {
 			delay = Node.MIN_TIME_BETWEEN_HANDSHAKE_SENDS
-				+ node.random.nextInt(Node.RANDOMIZED_TIME_BETWEEN_HANDSHAKE_SENDS);
+				+ node.fastWeakRandom.nextInt(Node.RANDOMIZED_TIME_BETWEEN_HANDSHAKE_SENDS);
 		}
 		// FIXME proper multi-homing support!
 		delay /= (handshakeIPs == null ? 1 : handshakeIPs.length);
@@ -1463,7 +1467,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		if(status == AddressTracker.MAYBE_PORT_FORWARDED) return false;
 		long now = System.currentTimeMillis();
 		if(now - timeSetBurstNow > UPDATE_BURST_NOW_PERIOD) {
-			burstNow = (node.random.nextInt(P_BURST_IF_DEFINITELY_FORWARDED) == 0);
+			burstNow = (node.fastWeakRandom.nextInt(P_BURST_IF_DEFINITELY_FORWARDED) == 0);
 			timeSetBurstNow = now;
 		}
 		return burstNow;
@@ -1693,25 +1697,33 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 			Logger.error(this, "Impossible: No address for detected peer! "+p+" on "+this);
 			return;
 		}
+		Peer previousPeer;
+		boolean connected;
 		synchronized(this) {
 			Peer oldPeer = detectedPeer;
+			previousPeer = oldPeer;
 			if((newPeer != null) && ((oldPeer == null) || !oldPeer.equals(newPeer))) {
 				this.detectedPeer = newPeer;
 				updateShortToString();
 				this.lastAttemptedHandshakeIPUpdateTime = 0;
-				if(!isConnected)
-					return;
-				// Prevent leak by clearing, *but keep the current handshake*
-				newPeer = newPeer.dropHostName();
-				oldPeer = oldPeer.dropHostName();
-				byte[] newPeerHandshake = jfkNoncesSent.get(newPeer);
-				byte[] oldPeerHandshake = jfkNoncesSent.get(oldPeer);
-				jfkNoncesSent.clear();
-				jfkNoncesSent.put(newPeer, newPeerHandshake);
-				jfkNoncesSent.put(newPeer, oldPeerHandshake);
+				connected = isConnected;
+				if(connected) {
+					// Prevent leak by clearing, *but keep the current handshake*
+					newPeer = newPeer.dropHostName();
+					oldPeer = oldPeer.dropHostName();
+					byte[] newPeerHandshake = jfkNoncesSent.get(newPeer);
+					byte[] oldPeerHandshake = jfkNoncesSent.get(oldPeer);
+					jfkNoncesSent.clear();
+					jfkNoncesSent.put(newPeer, newPeerHandshake);
+					jfkNoncesSent.put(newPeer, oldPeerHandshake);
+				}
 			} else
 				return;
 		}
+		if(peers != null)
+			peers.changedAddress(this, previousPeer, newPeer);
+		if(!connected)
+			return;
 		getThrottle().maybeDisconnected();
 		sendIPAddressMessage();
 	}
@@ -2888,7 +2900,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 				routingBackoffLength = routingBackoffLength * BACKOFF_MULTIPLIER;
 				if(routingBackoffLength > MAX_ROUTING_BACKOFF_LENGTH)
 					routingBackoffLength = MAX_ROUTING_BACKOFF_LENGTH;
-				int x = node.random.nextInt(routingBackoffLength);
+				int x = node.fastWeakRandom.nextInt(routingBackoffLength);
 				routingBackedOffUntil = now + x;
 				String reasonWrapper = "";
 				if(0 <= reason.length())
@@ -2950,7 +2962,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 				transferBackoffLength = transferBackoffLength * TRANSFER_BACKOFF_MULTIPLIER;
 				if(transferBackoffLength > MAX_TRANSFER_BACKOFF_LENGTH)
 					transferBackoffLength = MAX_TRANSFER_BACKOFF_LENGTH;
-				int x = node.random.nextInt(transferBackoffLength);
+				int x = node.fastWeakRandom.nextInt(transferBackoffLength);
 				transferBackedOffUntil = now + x;
 				String reasonWrapper = "";
 				if(0 <= reason.length())
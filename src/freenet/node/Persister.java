@@ -13,21 +13,21 @@ import freenet.support.io.FileUtil;
 
 class Persister implements Runnable {
 
-	Persister(Persistable t, File persistTemp, File persistTarget, PacketSender ps) {
+	Persister(Persistable t, File persistTemp, File persistTarget, Ticker ticker) {
 		this.persistable = t;
 		this.persistTemp = persistTemp;
 		this.persistTarget = persistTarget;
-		this.ps = ps;
+		this.ticker = ticker;
 	}
 	
 	// Subclass must set the others later
-	protected Persister(Persistable t, PacketSender ps) {
+	protected Persister(Persistable t, Ticker ticker) {
 		this.persistable = t;
-		this.ps = ps;
+		this.ticker = ticker;
 	}
 	
 	final Persistable persistable;
-	private final PacketSender ps;
+	private final Ticker ticker;
 	File persistTemp;
 	File persistTarget;
 	private boolean started;
@@ -51,7 +51,7 @@ class Persister implements Runnable {
 			t.printStackTrace();
 			System.err.println("Will restart ThrottlePersister...");
 		}
-		ps.queueTimedJob(this, 60*1000);
+		ticker.queueTimedJob(this, 60*1000);
 	}
 	
 	private void persistThrottle() {
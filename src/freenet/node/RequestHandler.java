@@ -86,19 +86,21 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 		freenet.support.Logger.OSThread.logPID(this);
 		try {
 			realRun();
-		//The last thing that realRun() does is register as a request-sender listener, so any exception here is the end.
-		} catch(NotConnectedException e) {
-			Logger.normal(this, "requestor gone, could not start request handler wait");
-			node.removeTransferringRequestHandler(uid);
-			tag.handlerThrew(e);
-			node.unlockUID(uid, key instanceof NodeSSK, false, false, false, false, tag);
+		//The last thing that realRun() does is start the async store lookup, so any exception here is the end.
 		} catch(Throwable t) {
-			Logger.error(this, "Caught " + t, t);
-			node.removeTransferringRequestHandler(uid);
-			tag.handlerThrew(t);
-			node.unlockUID(uid, key instanceof NodeSSK, false, false, false, false, tag);
+			handlerThrew(t);
 		}
 	}
+
+	private void handlerThrew(Throwable t) {
+		if(t instanceof NotConnectedException)
+			Logger.normal(this, "requestor gone, could not start request handler wait");
+		else
+			Logger.error(this, "Caught " + t, t);
+		node.removeTransferringRequestHandler(uid);
+		tag.handlerThrew(t);
+		node.unlockUID(uid, key instanceof NodeSSK, false, false, false, false, tag);
+	}
 	private Exception previousApplyByteCountCall;
 
 	private void applyByteCounts() {
@@ -152,7 +154,37 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 		Message accepted = DMT.createFNPAccepted(uid);
 		source.sendAsync(accepted, null, this);
 
-		Object o = node.makeRequestSender(key, htl, uid, source, false, false, false, false, false);
+		node.makeRequestSenderAsync(key, htl, uid, source, false, false, false, new Node.RequestSenderCallback() {
+
+			public void onRequestSender(final Object o) {
+				if(o instanceof KeyBlock) {
+					// Sending the data blocks, don't do it on a datastore I/O thread.
+					node.executor.execute(new Runnable() {
+						public void run() {
+							startRequest(o);
+						}
+					}, "Return local data for " + RequestHandler.this);
+				} else
+					startRequest(o);
+			}
+
+			public void onThrew(Throwable t) {
+				handlerThrew(t);
+			}
+
+		});
+	}
+
+	private void startRequest(Object o) {
+		try {
+			realStartRequest(o);
+		//The last thing that realStartRequest() does is register as a request-sender listener, so any exception here is the end.
+		} catch(Throwable t) {
+			handlerThrew(t);
+		}
+	}
+
+	private void realStartRequest(Object o) throws NotConnectedException {
 		if(o instanceof KeyBlock) {
 			tag.setServedFromDatastore();
 			returnLocalData((KeyBlock) o);
@@ -8,6 +8,8 @@ import java.util.HashSet;
 
 import freenet.crypt.CryptFormatException;
 import freenet.crypt.DSAPublicKey;
+import freenet.io.comm.AsyncMessageCallback;
+import freenet.io.comm.AsyncMessageFilterCallback;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -15,6 +17,7 @@ import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.NullAsyncMessageFilterCallback;
+import freenet.io.comm.PeerContext;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.RetrievalException;
@@ -196,9 +199,13 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
             finish(INTERNAL_ERROR, null, false);
         } finally {
         	if(logMINOR) Logger.minor(this, "Leaving RequestSender.run() for "+uid);
-            node.removeRequestSender(key, origHTL, this);
+        	if(!routingAsync)
+        		node.removeRequestSender(key, origHTL, this);
         }
     }
+    
+    /** Set by realRun() once the request has been handed to an AsyncRouter, which removes it when done */
+    private boolean routingAsync;
 
     private void realRun() {
 	    freenet.support.Logger.OSThread.logPID(this);
@@ -423,63 +430,30 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
         	return;
         }
         
-		int routeAttempts=0;
-		int rejectOverloads=0;
-        HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
-        PeerNode next = null;
-        while(true) {
-            /*
-             * If we haven't routed to any node yet, decrement according to the source.
-             * If we have, decrement according to the node which just failed.
-             * Because:
-             * 1) If we always decrement according to source then we can be at max or min HTL
-             * for a long time while we visit *every* peer node. This is BAD!
-             * 2) The node which just failed can be seen as the requestor for our purposes.
-             */
-            // Decrement at this point so we can DNF immediately on reaching HTL 0.
-            htl = node.decrementHTL((hasForwarded ? next : source), htl);
-
-            if(logMINOR) Logger.minor(this, "htl="+htl);
-            if(htl == 0) {
-            	// This used to be RNF, I dunno why
-				//???: finish(GENERATED_REJECTED_OVERLOAD, null);
-                finish(DATA_NOT_FOUND, null, false);
-                node.failureTable.onFinalFailure(key, null, htl, origHTL, FailureTable.REJECT_TIME, source);
-                return;
-            }
-
-			routeAttempts++;
-            
-            // Route it
-            next = node.peers.closerPeer(source, nodesRoutedTo, target, true, node.isAdvancedModeEnabled(), -1, null,
-			        key);
-            
-            if(next == null) {
-				if (logMINOR && rejectOverloads>0)
-					Logger.minor(this, "no more peers, but overloads ("+rejectOverloads+"/"+routeAttempts+" overloaded)");
-                // Backtrack
-                finish(ROUTE_NOT_FOUND, null, false);
-                node.failureTable.onFinalFailure(key, null, htl, origHTL, -1, source);
-                return;
-            }
-            
-            synchronized(this) {
-            	lastNode = next;
-            }
+		if(node.asyncRequestSenders()) {
+			new AsyncRouter().route();
+			// Not before: if route() throws, run() must remove the request sender itself
+			routingAsync = true;
+			return;
+		}
+		
+		HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
+		PeerNode next = null;
+		while(true) {
+			next = findNextPeer(next, nodesRoutedTo);
+			if(next == null)
+				return;
 			
-            if(logMINOR) Logger.minor(this, "Routing request to "+next);
-            nodesRoutedTo.add(next);
-            
-            Message req = createDataRequest();
-            
-            // Not possible to get an accurate time for sending, guaranteed to be not later than the time of receipt.
-            // Why? Because by the time the sent() callback gets called, it may already have been acked, under heavy load.
-            // So take it from when we first started to try to send the request.
-            // See comments below when handling FNPRecentlyFailed for why we need this.
-            long timeSentRequest = System.currentTimeMillis();
+			Message req = createDataRequest();
 			
-            try {
-            	//This is the first contact to this node, it is more likely to timeout
+			// Not possible to get an accurate time for sending, guaranteed to be not later than the time of receipt.
+			// Why? Because by the time the sent() callback gets called, it may already have been acked, under heavy load.
+			// So take it from when we first started to try to send the request.
+			// See comments below when handling FNPRecentlyFailed for why we need this.
+			long timeSentRequest = System.currentTimeMillis();
+			
+			try {
+				//This is the first contact to this node, it is more likely to timeout
 				/*
 				 * using sendSync could:
 				 *   make ACCEPTED_TIMEOUT more accurate (as it is measured from the send-time),
@@ -488,451 +462,744 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 				 *   make ACCEPTED_TIMEOUT much more likely,
 				 *   leave many hanging-requests/unclaimedFIFO items,
 				 *   potentially make overloaded peers MORE overloaded (we make a request and promptly forget about them).
-				 * 
+				 *
 				 * Don't use sendAsync().
 				 */
-            	next.sendSync(req, this);
-            } catch (NotConnectedException e) {
-            	Logger.minor(this, "Not connected");
-            	continue;
-            }
-            
-            synchronized(this) {
-            	hasForwarded = true;
-            }
-            
-            Message msg = null;
-            
-            while(true) {
-            	
-                /**
-                 * What are we waiting for?
-                 * FNPAccepted - continue
-                 * FNPRejectedLoop - go to another node
-                 * FNPRejectedOverload - propagate back to source, go to another node if local
-                 */
-                
-                MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
-                MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
-                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
+				next.sendSync(req, this);
+			} catch (NotConnectedException e) {
+				Logger.minor(this, "Not connected");
+				continue;
+			}
+			
+			synchronized(this) {
+				hasForwarded = true;
+			}
+			
+			int action;
+			while(true) {
+				try {
+					Message msg = node.usm.waitFor(createAcceptedFilter(next), this);
+					if(logMINOR) Logger.minor(this, "first part got "+msg);
+					action = handleAcceptedReply(msg, next, timeSentRequest);
+				} catch (DisconnectedException e) {
+					Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
+					action = NEXT_PEER;
+				}
+				if(action != WAIT_AGAIN)
+					break;
+			}
+			
+			if(action != ACCEPTED) {
+				// Try another node
+				continue;
+			}
+			
+			if(logMINOR) Logger.minor(this, "Got Accepted");
+			
+			// So wait...
+			onAccepted();
+			while(true) {
+				try {
+					Message msg = node.usm.waitFor(createDataFilter(next), this);
+					if(logMINOR) Logger.minor(this, "second part got "+msg);
+					action = handleDataReply(msg, next, timeSentRequest);
+				} catch (DisconnectedException e) {
+					Logger.normal(this, "Disconnected from "+next+" while waiting for data on "+uid);
+					action = NEXT_PEER;
+				}
+				if(action == FINISHED)
+					return;
+				if(action == NEXT_PEER)
+					break;
+			}
+		}
+	}
+	
+	/** Results of handling a reply from the node we routed to */
+	private static final int WAIT_AGAIN = 0;
+	private static final int NEXT_PEER = 1;
+	private static final int ACCEPTED = 2;
+	private static final int FINISHED = 3;
+	
+	// Only used for logging
+	private int routeAttempts;
+	private int rejectOverloads;
+	private int gotMessages;
+	private String lastMessage;
+	
+	/**
+	 * Decrement the HTL and choose the next node to route to.
+	 * @param prev The node we routed to last, if any.
+	 * @param nodesRoutedTo The nodes we have routed to already. The new node is added to it.
+	 * @return The node to route to, or null if the request has finished.
+	 */
+	private PeerNode findNextPeer(PeerNode prev, HashSet<PeerNode> nodesRoutedTo) {
+        /*
+         * If we haven't routed to any node yet, decrement according to the source.
+         * If we have, decrement according to the node which just failed.
+         * Because:
+         * 1) If we always decrement according to source then we can be at max or min HTL
+         * for a long time while we visit *every* peer node. This is BAD!
+         * 2) The node which just failed can be seen as the requestor for our purposes.
+         */
+        // Decrement at this point so we can DNF immediately on reaching HTL 0.
+        htl = node.decrementHTL((hasForwarded ? prev : source), htl);
 
-                // mfRejectedOverload must be the last thing in the or
-                // So its or pointer remains null
-                // Otherwise we need to recreate it below
-                MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
-                
-                try {
-                    msg = node.usm.waitFor(mf, this);
-                    if(logMINOR) Logger.minor(this, "first part got "+msg);
-                } catch (DisconnectedException e) {
-                    Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
-                    break;
-                }
-                
-            	if(msg == null) {
-            		if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted");
-            		// Timeout waiting for Accepted
-            		next.localRejectedOverload("AcceptedTimeout");
-            		forwardRejectedOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		// Try next node
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedLoop) {
-            		if(logMINOR) Logger.minor(this, "Rejected loop");
-            		next.successNotOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		// Find another node to route to
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedOverload) {
-            		if(logMINOR) Logger.minor(this, "Rejected: overload");
-					// Non-fatal - probably still have time left
-					forwardRejectedOverload();
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						if(logMINOR) Logger.minor(this, "Is local");
-						next.localRejectedOverload("ForwardRejectedOverload");
-	            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-						if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					}
-					//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
-					continue;
-            	}
-            	
-            	if(msg.getSpec() != DMT.FNPAccepted) {
-            		Logger.error(this, "Unrecognized message: "+msg);
-            		continue;
-            	}
-            	
-            	break;
-            }
-            
-            if((msg == null) || (msg.getSpec() != DMT.FNPAccepted)) {
-            	// Try another node
-            	continue;
-            }
+        if(logMINOR) Logger.minor(this, "htl="+htl);
+        if(htl == 0) {
+        	// This used to be RNF, I dunno why
+			//???: finish(GENERATED_REJECTED_OVERLOAD, null);
+            finish(DATA_NOT_FOUND, null, false);
+            node.failureTable.onFinalFailure(key, null, htl, origHTL, FailureTable.REJECT_TIME, source);
+            return null;
+        }
 
-            if(logMINOR) Logger.minor(this, "Got Accepted");
-            
-            // Otherwise, must be Accepted
-            
-            // So wait...
-            int gotMessages=0;
-            String lastMessage=null;
-            while(true) {
-            	
-                MessageFilter mfDNF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPDataNotFound);
-                MessageFilter mfRF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRecentlyFailed);
-                MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
-                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
-                
-                MessageFilter mfPubKey = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKPubKey);
-            	MessageFilter mfRealDFCHK = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPCHKDataFound);
-            	MessageFilter mfAltDFSSKHeaders = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundHeaders);
-            	MessageFilter mfAltDFSSKData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
-                MessageFilter mf = mfDNF.or(mfRF.or(mfRouteNotFound.or(mfRejectedOverload)));
-                if(key instanceof NodeCHK) {
-                	mf = mfRealDFCHK.or(mf);
-                } else {
-                	mf = mfPubKey.or(mfAltDFSSKHeaders.or(mfAltDFSSKData.or(mf)));
-                }
-                
-            	try {
-            		msg = node.usm.waitFor(mf, this);
-            	} catch (DisconnectedException e) {
-            		Logger.normal(this, "Disconnected from "+next+" while waiting for data on "+uid);
-            		break;
-            	}
-            	
-            	if(logMINOR) Logger.minor(this, "second part got "+msg);
-                
-            	if(msg == null) {
-					Logger.normal(this, "request fatal-timeout (null) after accept ("+gotMessages+" messages; last="+lastMessage+")");
-            		// Fatal timeout
-            		next.localRejectedOverload("FatalTimeout");
-            		forwardRejectedOverload();
-            		finish(TIMED_OUT, next, false);
-            		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            		return;
-            	}
-				
-				//For debugging purposes, remember the number of responses AFTER the insert, and the last message type we received.
-				gotMessages++;
-				lastMessage=msg.getSpec().getName();
-            	
-            	if(msg.getSpec() == DMT.FNPDataNotFound) {
-            		next.successNotOverload();
-            		finish(DATA_NOT_FOUND, next, false);
-            		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            		return;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRecentlyFailed) {
-            		next.successNotOverload();
-            		/*
-            		 * Must set a correct recentlyFailedTimeLeft before calling this finish(), because it will be
-            		 * passed to the handler.
-            		 * 
-            		 * It is *VITAL* that the TIME_LEFT we pass on is not larger than it should be.
-            		 * It is somewhat less important that it is not too much smaller than it should be.
-            		 * 
-            		 * Why? Because:
-            		 * 1) We have to use FNPRecentlyFailed to create failure table entries. Because otherwise,
-            		 * the failure table is of little value: A request is routed through a node, which gets a DNF,
-            		 * and adds a failure table entry. Other requests then go through that node via other paths.
-            		 * They are rejected with FNPRecentlyFailed - not with DataNotFound. If this does not create
-            		 * failure table entries, more requests will be pointlessly routed through that chain.
-            		 * 
-            		 * 2) If we use a fixed timeout on receiving FNPRecentlyFailed, they can be self-seeding. 
-            		 * What this means is A sends a request to B, which DNFs. This creates a failure table entry 
-            		 * which lasts for 10 minutes. 5 minutes later, A sends another request to B, which is killed
-            		 * with FNPRecentlyFailed because of the failure table entry. B's failure table lasts for 
-            		 * another 5 minutes, but A's lasts for the full 10 minutes i.e. until 5 minutes after B's. 
-            		 * After B's failure table entry has expired, but before A's expires, B sends a request to A. 
-            		 * A replies with FNPRecentlyFailed. Repeat ad infinitum: A reinforces B's blocks, and B 
-            		 * reinforces A's blocks!
-            		 * 
-            		 * 3) This can still happen even if we check where the request is coming from. A loop could 
-            		 * very easily form: A - B - C - A. A requests from B, DNFs (assume the request comes in from 
-            		 * outside, there are more nodes. C requests from A, sets up a block. B's block expires, C's 
-            		 * is still active. A requests from B which requests from C ... and it goes round again.
-            		 * 
-            		 * 4) It is exactly the same if we specify a timeout, unless the timeout can be guaranteed to 
-            		 * not increase the expiry time.
-            		 */
-            		
-            		// First take the original TIME_LEFT. This will start at 10 minutes if we get rejected in
-            		// the same millisecond as the failure table block was added.
-            		int timeLeft = msg.getInt(DMT.TIME_LEFT);
-            		int origTimeLeft = timeLeft;
-            		
-            		if(timeLeft <= 0) {
-            			Logger.error(this, "Impossible: timeLeft="+timeLeft);
-            			origTimeLeft = 0;
-            			timeLeft=1000; // arbitrary default...
-            		}
-            		
-            		// This is in theory relative to when the request was received by the node. Lets make it relative
-            		// to a known event before that: the time when we sent the request.
-            		
-            		long timeSinceSent = Math.max(0, (System.currentTimeMillis() - timeSentRequest));
-            		timeLeft -= timeSinceSent;
-            		
-            		// Subtract 1% for good measure / to compensate for dodgy clocks
-            		timeLeft -= origTimeLeft / 100;
-            		
-            		//Store the timeleft so that the requestHandler can get at it.
-            		recentlyFailedTimeLeft = timeLeft;
-            		
-           			// Kill the request, regardless of whether there is timeout left.
-            		// If there is, we will avoid sending requests for the specified period.
-            		// FIXME we need to create the FT entry.
-           			finish(RECENTLY_FAILED, next, false);
-           			node.failureTable.onFinalFailure(key, next, htl, origHTL, timeLeft, source);
-            		return;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRouteNotFound) {
-            		// Backtrack within available hops
-            		short newHtl = msg.getShort(DMT.HTL);
-            		if(newHtl < htl) htl = newHtl;
-            		next.successNotOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Non-fatal - probably still have time left
-					forwardRejectedOverload();
-					rejectOverloads++;
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						//NB: IS_LOCAL means it's terminal. not(IS_LOCAL) implies that the rejection message was forwarded from a downstream node.
-						//"Local" from our peers perspective, this has nothing to do with local requests (source==null)
-	            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-						next.localRejectedOverload("ForwardRejectedOverload2");
-						// Node in trouble suddenly??
-						Logger.normal(this, "Local RejectedOverload after Accepted, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					}
-					//so long as the node does not send a (IS_LOCAL) message. Interestingly messages can often timeout having only received this message.
-					continue;
-            	}
+		routeAttempts++;
+        
+        // Route it
+        PeerNode next = node.peers.closerPeer(source, nodesRoutedTo, target, true, node.isAdvancedModeEnabled(), -1, null,
+		        key);
+        
+        if(next == null) {
+			if (logMINOR && rejectOverloads>0)
+				Logger.minor(this, "no more peers, but overloads ("+rejectOverloads+"/"+routeAttempts+" overloaded)");
+            // Backtrack
+            finish(ROUTE_NOT_FOUND, null, false);
+            node.failureTable.onFinalFailure(key, null, htl, origHTL, -1, source);
+            return null;
+        }
+        
+        synchronized(this) {
+        	lastNode = next;
+        }
+		
+        if(logMINOR) Logger.minor(this, "Routing request to "+next);
+        nodesRoutedTo.add(next);
+        return next;
+	}
+	
+	private MessageFilter createAcceptedFilter(PeerNode next) {
+        /**
+         * What are we waiting for?
+         * FNPAccepted - continue
+         * FNPRejectedLoop - go to another node
+         * FNPRejectedOverload - propagate back to source, go to another node if local
+         */
+        
+        MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
+        MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
 
-            	if(msg.getSpec() == DMT.FNPCHKDataFound) {
-            		if(!(key instanceof NodeCHK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-            			break;
-            		}
-            		
-                	// Found data
-                	
-                	// First get headers
-                	
-                	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
-                	
-                	// FIXME: Validate headers
-                	
-                	node.addTransferringSender((NodeCHK)key, this);
-                	
-                	try {
-                		
-                		prb = new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE);
-                		
-                		synchronized(this) {
-                			notifyAll();
-                		}
-                		fireCHKTransferBegins();
-						
-                		long tStart = System.currentTimeMillis();
-                		BlockReceiver br = new BlockReceiver(node.usm, next, uid, prb, this, node.getTicker(), true);
-                		
-                		try {
-                			if(logMINOR) Logger.minor(this, "Receiving data");
-                			final PeerNode from = next;
-                			synchronized(this) {
-                				transferringFrom = next;
-                			}
-                			node.getTicker().queueTimedJob(new Runnable() {
+        // mfRejectedOverload must be the last thing in the or
+        // So its or pointer remains null
+        // Otherwise we need to recreate it below
+        MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
+        return mf;
+	}
+	
+	private MessageFilter createDataFilter(PeerNode next) {
+        MessageFilter mfDNF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPDataNotFound);
+        MessageFilter mfRF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRecentlyFailed);
+        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        
+        MessageFilter mfPubKey = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKPubKey);
+    	MessageFilter mfRealDFCHK = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPCHKDataFound);
+    	MessageFilter mfAltDFSSKHeaders = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundHeaders);
+    	MessageFilter mfAltDFSSKData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
+        MessageFilter mf = mfDNF.or(mfRF.or(mfRouteNotFound.or(mfRejectedOverload)));
+        if(key instanceof NodeCHK) {
+        	mf = mfRealDFCHK.or(mf);
+        } else {
+        	mf = mfPubKey.or(mfAltDFSSKHeaders.or(mfAltDFSSKData.or(mf)));
+        }
+        return mf;
+	}
+	
+	private void onAccepted() {
+		gotMessages = 0;
+		lastMessage = null;
+	}
+	
+	/**
+	 * Handle a reply, or a timeout, while waiting for the node we routed to to accept the request.
+	 * @param msg The reply, or null if we timed out.
+	 * @return WAIT_AGAIN, NEXT_PEER or ACCEPTED.
+	 */
+	private int handleAcceptedReply(Message msg, PeerNode next, long timeSentRequest) {
+    	if(msg == null) {
+    		if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted");
+    		// Timeout waiting for Accepted
+    		next.localRejectedOverload("AcceptedTimeout");
+    		forwardRejectedOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		// Try next node
+    		return NEXT_PEER;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedLoop) {
+    		if(logMINOR) Logger.minor(this, "Rejected loop");
+    		next.successNotOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		// Find another node to route to
+    		return NEXT_PEER;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+    		if(logMINOR) Logger.minor(this, "Rejected: overload");
+			// Non-fatal - probably still have time left
+			forwardRejectedOverload();
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				if(logMINOR) Logger.minor(this, "Is local");
+				next.localRejectedOverload("ForwardRejectedOverload");
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
+				// Give up on this one, try another
+				return NEXT_PEER;
+			}
+			//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
+			return WAIT_AGAIN;
+    	}
+    	
+    	if(msg.getSpec() != DMT.FNPAccepted) {
+    		Logger.error(this, "Unrecognized message: "+msg);
+    		return WAIT_AGAIN;
+    	}
+    	
+		return ACCEPTED;
+	}
+	
+	/**
+	 * Handle a reply, or a timeout, after the node we routed to has accepted the request. May
+	 * block while receiving a CHK.
+	 * @param msg The reply, or null if we timed out.
+	 * @return WAIT_AGAIN, NEXT_PEER or FINISHED.
+	 */
+	private int handleDataReply(Message msg, PeerNode next, long timeSentRequest) {
+    	if(msg == null) {
+			Logger.normal(this, "request fatal-timeout (null) after accept ("+gotMessages+" messages; last="+lastMessage+")");
+    		// Fatal timeout
+    		next.localRejectedOverload("FatalTimeout");
+    		forwardRejectedOverload();
+    		finish(TIMED_OUT, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return FINISHED;
+    	}
+		
+		//For debugging purposes, remember the number of responses AFTER the insert, and the last message type we received.
+		gotMessages++;
+		lastMessage=msg.getSpec().getName();
+    	
+    	if(msg.getSpec() == DMT.FNPDataNotFound) {
+    		next.successNotOverload();
+    		finish(DATA_NOT_FOUND, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return FINISHED;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRecentlyFailed) {
+    		next.successNotOverload();
+    		/*
+    		 * Must set a correct recentlyFailedTimeLeft before calling this finish(), because it will be
+    		 * passed to the handler.
+    		 * 
+    		 * It is *VITAL* that the TIME_LEFT we pass on is not larger than it should be.
+    		 * It is somewhat less important that it is not too much smaller than it should be.
+    		 * 
+    		 * Why? Because:
+    		 * 1) We have to use FNPRecentlyFailed to create failure table entries. Because otherwise,
+    		 * the failure table is of little value: A request is routed through a node, which gets a DNF,
+    		 * and adds a failure table entry. Other requests then go through that node via other paths.
+    		 * They are rejected with FNPRecentlyFailed - not with DataNotFound. If this does not create
+    		 * failure table entries, more requests will be pointlessly routed through that chain.
+    		 * 
+    		 * 2) If we use a fixed timeout on receiving FNPRecentlyFailed, they can be self-seeding. 
+    		 * What this means is A sends a request to B, which DNFs. This creates a failure table entry 
+    		 * which lasts for 10 minutes. 5 minutes later, A sends another request to B, which is killed
+    		 * with FNPRecentlyFailed because of the failure table entry. B's failure table lasts for 
+    		 * another 5 minutes, but A's lasts for the full 10 minutes i.e. until 5 minutes after B's. 
+    		 * After B's failure table entry has expired, but before A's expires, B sends a request to A. 
+    		 * A replies with FNPRecentlyFailed. Repeat ad infinitum: A reinforces B's blocks, and B 
+    		 * reinforces A's blocks!
+    		 * 
+    		 * 3) This can still happen even if we check where the request is coming from. A loop could 
+    		 * very easily form: A - B - C - A. A requests from B, DNFs (assume the request comes in from 
+    		 * outside, there are more nodes. C requests from A, sets up a block. B's block expires, C's 
+    		 * is still active. A requests from B which requests from C ... and it goes round again.
+    		 * 
+    		 * 4) It is exactly the same if we specify a timeout, unless the timeout can be guaranteed to 
+    		 * not increase the expiry time.
+    		 */
+    		
+    		// First take the original TIME_LEFT. This will start at 10 minutes if we get rejected in
+    		// the same millisecond as the failure table block was added.
+    		int timeLeft = msg.getInt(DMT.TIME_LEFT);
+    		int origTimeLeft = timeLeft;
+    		
+    		if(timeLeft <= 0) {
+    			Logger.error(this, "Impossible: timeLeft="+timeLeft);
+    			origTimeLeft = 0;
+    			timeLeft=1000; // arbitrary default...
+    		}
+    		
+    		// This is in theory relative to when the request was received by the node. Lets make it relative
+    		// to a known event before that: the time when we sent the request.
+    		
+    		long timeSinceSent = Math.max(0, (System.currentTimeMillis() - timeSentRequest));
+    		timeLeft -= timeSinceSent;
+    		
+    		// Subtract 1% for good measure / to compensate for dodgy clocks
+    		timeLeft -= origTimeLeft / 100;
+    		
+    		//Store the timeleft so that the requestHandler can get at it.
+    		recentlyFailedTimeLeft = timeLeft;
+    		
+   			// Kill the request, regardless of whether there is timeout left.
+    		// If there is, we will avoid sending requests for the specified period.
+    		// FIXME we need to create the FT entry.
+   			finish(RECENTLY_FAILED, next, false);
+   			node.failureTable.onFinalFailure(key, next, htl, origHTL, timeLeft, source);
+    		return FINISHED;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRouteNotFound) {
+    		// Backtrack within available hops
+    		short newHtl = msg.getShort(DMT.HTL);
+    		if(newHtl < htl) htl = newHtl;
+    		next.successNotOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		return NEXT_PEER;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Non-fatal - probably still have time left
+			forwardRejectedOverload();
+			rejectOverloads++;
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				//NB: IS_LOCAL means it's terminal. not(IS_LOCAL) implies that the rejection message was forwarded from a downstream node.
+				//"Local" from our peers perspective, this has nothing to do with local requests (source==null)
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				next.localRejectedOverload("ForwardRejectedOverload2");
+				// Node in trouble suddenly??
+				Logger.normal(this, "Local RejectedOverload after Accepted, moving on to next peer");
+				// Give up on this one, try another
+				return NEXT_PEER;
+			}
+			//so long as the node does not send a (IS_LOCAL) message. Interestingly messages can often timeout having only received this message.
+			return WAIT_AGAIN;
+    	}
 
-								public void run() {
-									synchronized(RequestSender.this) {
-										if(transferringFrom != from) return;
-									}
-									makeTurtle();
-								}
-                				
-                			}, 60*1000);
-                			byte[] data;
-                			try {
-                				data = br.receive();
-                			} finally {
-                				synchronized(this) {
-                					transferringFrom = null;
-                				}
-                			}
-                			
-                			long tEnd = System.currentTimeMillis();
-                			this.transferTime = tEnd - tStart;
-                			boolean turtle;
-                			boolean turtleBackedOff;
-                			synchronized(this) {
-                				turtle = turtleMode;
-                				turtleBackedOff = sentBackoffTurtle;
-                				sentBackoffTurtle = true;
-                			}
-                			if(!turtle)
-                				next.transferSuccess();
-                			else {
-                				Logger.normal(this, "TURTLE SUCCEEDED: "+key+" for "+this+" in "+TimeUtil.formatTime(transferTime, 2, true));
-                				if(!turtleBackedOff)
-                					next.transferFailed("TurtledTransfer");
-                				node.nodeStats.turtleSucceeded();
-                			}
-                        	next.successNotOverload();
-                        	if(turtle) {
-                        		next.unregisterTurtleTransfer(this);
-                        		node.unregisterTurtleTransfer(this);
-                        	}
-                        	node.nodeStats.successfulBlockReceive();
-                			if(logMINOR) Logger.minor(this, "Received data");
-                			// Received data
-                			try {
-                				verifyAndCommit(data);
-                			} catch (KeyVerifyException e1) {
-                				Logger.normal(this, "Got data but verify failed: "+e1, e1);
-                				finish(VERIFY_FAILURE, next, false);
-                				node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-                				return;
-                			}
-                			finish(SUCCESS, next, false);
-                			return;
-                		} catch (RetrievalException e) {
-                			boolean turtle;
-                			synchronized(this) {
-                				turtle = turtleMode;
-                			}
-            				if(turtle) {
-            					if(e.getReason() != RetrievalException.GONE_TO_TURTLE_MODE) {
-            						Logger.normal(this, "TURTLE FAILED: "+key+" for "+this+" : "+e);
-            						node.nodeStats.turtleFailed();
-            					} else {
-            						if(logMINOR) Logger.minor(this, "Upstream turtled for "+this+" from "+next);
-            					}
-                           		next.unregisterTurtleTransfer(this);
-                           		node.unregisterTurtleTransfer(this);
-            				}
-							if (e.getReason()==RetrievalException.SENDER_DISCONNECTED)
-								Logger.normal(this, "Transfer failed (disconnect): "+e, e);
-							else
-								// A certain number of these are normal, it's better to track them through statistics than call attention to them in the logs.
-								Logger.normal(this, "Transfer failed ("+e.getReason()+"/"+RetrievalException.getErrString(e.getReason())+"): "+e+" from "+next, e);
-							next.localRejectedOverload("TransferFailedRequest"+e.getReason());
-                			finish(TRANSFER_FAILED, next, false);
-                			node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            				int reason = e.getReason();
-                			boolean timeout = (!br.senderAborted()) &&
-    							(reason == RetrievalException.SENDER_DIED || reason == RetrievalException.RECEIVER_DIED || reason == RetrievalException.TIMED_OUT
-    							|| reason == RetrievalException.UNABLE_TO_SEND_BLOCK_WITHIN_TIMEOUT);
-               				if(timeout) {
-               					// Looks like a timeout. Backoff, even if it's a turtle.
-               					if(logMINOR) Logger.minor(this, "Timeout transferring data : "+e, e);
-               					next.transferFailed(e.getErrString());
-               				} else {
-               					// Quick failure (in that we didn't have to timeout). Don't backoff.
-               					// Treat as a DNF.
-               					// If it was turtled, and then failed, still treat it as a DNF.
-           						node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-               				}
-                   			node.nodeStats.failedBlockReceive(true, timeout, reason == RetrievalException.GONE_TO_TURTLE_MODE);
-                			return;
-                		}
-                	} finally {
-                		node.removeTransferringSender((NodeCHK)key, this);
+    	if(msg.getSpec() == DMT.FNPCHKDataFound) {
+    		if(!(key instanceof NodeCHK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+    			return NEXT_PEER;
+    		}
+    		
+        	// Found data
+        	
+        	// First get headers
+        	
+        	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
+        	
+        	// FIXME: Validate headers
+        	
+        	node.addTransferringSender((NodeCHK)key, this);
+        	
+        	try {
+        		
+        		prb = new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE);
+        		
+        		synchronized(this) {
+        			notifyAll();
+        		}
+        		fireCHKTransferBegins();
+				
+        		long tStart = System.currentTimeMillis();
+        		BlockReceiver br = new BlockReceiver(node.usm, next, uid, prb, this, node.getTicker(), true);
+        		
+        		try {
+        			if(logMINOR) Logger.minor(this, "Receiving data");
+        			final PeerNode from = next;
+        			synchronized(this) {
+        				transferringFrom = next;
+        			}
+        			node.getTicker().queueTimedJob(new Runnable() {
+
+						public void run() {
+							synchronized(RequestSender.this) {
+								if(transferringFrom != from) return;
+							}
+							makeTurtle();
+						}
+        				
+        			}, 60*1000);
+        			byte[] data;
+        			try {
+        				data = br.receive();
+        			} finally {
+        				synchronized(this) {
+        					transferringFrom = null;
+        				}
+        			}
+        			
+        			long tEnd = System.currentTimeMillis();
+        			this.transferTime = tEnd - tStart;
+        			boolean turtle;
+        			boolean turtleBackedOff;
+        			synchronized(this) {
+        				turtle = turtleMode;
+        				turtleBackedOff = sentBackoffTurtle;
+        				sentBackoffTurtle = true;
+        			}
+        			if(!turtle)
+        				next.transferSuccess();
+        			else {
+        				Logger.normal(this, "TURTLE SUCCEEDED: "+key+" for "+this+" in "+TimeUtil.formatTime(transferTime, 2, true));
+        				if(!turtleBackedOff)
+        					next.transferFailed("TurtledTransfer");
+        				node.nodeStats.turtleSucceeded();
+        			}
+                	next.successNotOverload();
+                	if(turtle) {
+                		next.unregisterTurtleTransfer(this);
+                		node.unregisterTurtleTransfer(this);
                 	}
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPSSKPubKey) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got pubkey on "+uid);
-            		
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-    				byte[] pubkeyAsBytes = ((ShortBuffer)msg.getObject(DMT.PUBKEY_AS_BYTES)).getData();
-    				try {
-    					if(pubKey == null)
-    						pubKey = DSAPublicKey.create(pubkeyAsBytes);
-    					((NodeSSK)key).setPubKey(pubKey);
-    				} catch (SSKVerifyException e) {
-    					pubKey = null;
-    					Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e.getMessage()+ ')', e);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-    					break; // try next node
-    				} catch (CryptFormatException e) {
-    					Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e+ ')');
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-    					break; // try next node
-    				}
-    				if(sskData != null && headers != null) {
-    					finishSSK(next);
-    					return;
+                	node.nodeStats.successfulBlockReceive();
+        			if(logMINOR) Logger.minor(this, "Received data");
+        			// Received data
+        			try {
+        				verifyAndCommit(data);
+        			} catch (KeyVerifyException e1) {
+        				Logger.normal(this, "Got data but verify failed: "+e1, e1);
+        				finish(VERIFY_FAILURE, next, false);
+        				node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+        				return FINISHED;
+        			}
+        			finish(SUCCESS, next, false);
+        			return FINISHED;
+        		} catch (RetrievalException e) {
+        			boolean turtle;
+        			synchronized(this) {
+        				turtle = turtleMode;
+        			}
+    				if(turtle) {
+    					if(e.getReason() != RetrievalException.GONE_TO_TURTLE_MODE) {
+    						Logger.normal(this, "TURTLE FAILED: "+key+" for "+this+" : "+e);
+    						node.nodeStats.turtleFailed();
+    					} else {
+    						if(logMINOR) Logger.minor(this, "Upstream turtled for "+this+" from "+next);
+    					}
+                   		next.unregisterTurtleTransfer(this);
+                   		node.unregisterTurtleTransfer(this);
     				}
-    				continue;
-            	}
-            	            	
-            	if(msg.getSpec() == DMT.FNPSSKDataFoundData) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got data on "+uid);
-            		
-                	sskData = ((ShortBuffer)msg.getObject(DMT.DATA)).getData();
-                	
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-            		
-                	if(pubKey != null && headers != null) {
-                		finishSSK(next);
-                		return;
-                	}
-                	continue;
+					if (e.getReason()==RetrievalException.SENDER_DISCONNECTED)
+						Logger.normal(this, "Transfer failed (disconnect): "+e, e);
+					else
+						// A certain number of these are normal, it's better to track them through statistics than call attention to them in the logs.
+						Logger.normal(this, "Transfer failed ("+e.getReason()+"/"+RetrievalException.getErrString(e.getReason())+"): "+e+" from "+next, e);
+					next.localRejectedOverload("TransferFailedRequest"+e.getReason());
+        			finish(TRANSFER_FAILED, next, false);
+        			node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    				int reason = e.getReason();
+        			boolean timeout = (!br.senderAborted()) &&
+						(reason == RetrievalException.SENDER_DIED || reason == RetrievalException.RECEIVER_DIED || reason == RetrievalException.TIMED_OUT
+						|| reason == RetrievalException.UNABLE_TO_SEND_BLOCK_WITHIN_TIMEOUT);
+       				if(timeout) {
+       					// Looks like a timeout. Backoff, even if it's a turtle.
+       					if(logMINOR) Logger.minor(this, "Timeout transferring data : "+e, e);
+       					next.transferFailed(e.getErrString());
+       				} else {
+       					// Quick failure (in that we didn't have to timeout). Don't backoff.
+       					// Treat as a DNF.
+       					// If it was turtled, and then failed, still treat it as a DNF.
+   						node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+       				}
+           			node.nodeStats.failedBlockReceive(true, timeout, reason == RetrievalException.GONE_TO_TURTLE_MODE);
+        			return FINISHED;
+        		}
+        	} finally {
+        		node.removeTransferringSender((NodeCHK)key, this);
+        	}
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPSSKPubKey) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got pubkey on "+uid);
+    		
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			return NEXT_PEER;
+    		}
+			byte[] pubkeyAsBytes = ((ShortBuffer)msg.getObject(DMT.PUBKEY_AS_BYTES)).getData();
+			try {
+				if(pubKey == null)
+					pubKey = DSAPublicKey.create(pubkeyAsBytes);
+				((NodeSSK)key).setPubKey(pubKey);
+			} catch (SSKVerifyException e) {
+				pubKey = null;
+				Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e.getMessage()+ ')', e);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				return NEXT_PEER; // try next node
+			} catch (CryptFormatException e) {
+				Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e+ ')');
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				return NEXT_PEER; // try next node
+			}
+			if(sskData != null && headers != null) {
+				finishSSK(next);
+				return FINISHED;
+			}
+			return WAIT_AGAIN;
+    	}
+    	            	
+    	if(msg.getSpec() == DMT.FNPSSKDataFoundData) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got data on "+uid);
+    		
+        	sskData = ((ShortBuffer)msg.getObject(DMT.DATA)).getData();
+        	
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			return NEXT_PEER;
+    		}
+    		
+        	if(pubKey != null && headers != null) {
+        		finishSSK(next);
+        		return FINISHED;
+        	}
+        	return WAIT_AGAIN;
 
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got headers on "+uid);
-            		
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-            		
-                	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
-            		
-                	if(pubKey != null && sskData != null) {
-                		finishSSK(next);
-                		return;
-                	}
-                	continue;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got headers on "+uid);
+    		
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			return NEXT_PEER;
+    		}
+    		
+        	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
+    		
+        	if(pubKey != null && sskData != null) {
+        		finishSSK(next);
+        		return FINISHED;
+        	}
+        	return WAIT_AGAIN;
 
-            	}
-            	
-           		Logger.error(this, "Unexpected message: "+msg);
-            	
-            }
-        }
+    	}
+    	
+   		Logger.error(this, "Unexpected message: "+msg);
+		return WAIT_AGAIN;
 	}
     
+	/**
+	 * Routes the request without tying up a thread while waiting for replies. Used instead of the
+	 * loop in realRun() if {@link Node#asyncRequestSenders()}. The request is sent
+	 * asynchronously, and each reply is waited for with an async filter; the next step runs on
+	 * the executor when the reply arrives, the filter times out or the peer disconnects. Routing
+	 * and the handling of replies are shared with the blocking loop.
+	 * 
+	 * Receiving a CHK still blocks a thread for the duration of the transfer, as BlockReceiver
+	 * is blocking, and so do offered keys.
+	 */
+	private class AsyncRouter {
+		
+		private final HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
+		private PeerNode next;
+		private long timeSentRequest;
+		
+		/** Route to the next node */
+		void route() {
+			while(true) {
+				next = findNextPeer(next, nodesRoutedTo);
+				if(next == null) {
+					finished();
+					return;
+				}
+				// See realRun() for why the time is taken before sending.
+				timeSentRequest = System.currentTimeMillis();
+				SendCallback cb = new SendCallback(next);
+				try {
+					// Only wait for Accepted once the request has been sent, as with sendSync().
+					next.sendAsync(createDataRequest(), cb, RequestSender.this);
+					return;
+				} catch (NotConnectedException e) {
+					Logger.minor(this, "Not connected");
+					// sendAsync() doesn't call the callback, don't let it time out later
+					cb.cancel();
+				}
+			}
+		}
+		
+		private void sent() {
+			synchronized(RequestSender.this) {
+				hasForwarded = true;
+			}
+			waitAccepted();
+		}
+		
+		private void waitAccepted() {
+			try {
+				node.usm.addAsyncFilter(createAcceptedFilter(next), new ReplyCallback(false));
+			} catch (DisconnectedException e) {
+				Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
+				route();
+			}
+		}
+		
+		private void waitData() {
+			try {
+				node.usm.addAsyncFilter(createDataFilter(next), new ReplyCallback(true));
+			} catch (DisconnectedException e) {
+				Logger.normal(this, "Disconnected from "+next+" while waiting for data on "+uid);
+				route();
+			}
+		}
+		
+		private void onReply(Message msg, boolean accepted) {
+			if(!accepted) {
+				if(logMINOR) Logger.minor(this, "first part got "+msg);
+				int action = handleAcceptedReply(msg, next, timeSentRequest);
+				if(action == WAIT_AGAIN) {
+					waitAccepted();
+				} else if(action == NEXT_PEER) {
+					route();
+				} else {
+					if(logMINOR) Logger.minor(this, "Got Accepted");
+					onAccepted();
+					waitData();
+				}
+			} else {
+				if(logMINOR) Logger.minor(this, "second part got "+msg);
+				int action = handleDataReply(msg, next, timeSentRequest);
+				if(action == WAIT_AGAIN)
+					waitData();
+				else if(action == NEXT_PEER)
+					route();
+				else
+					finished();
+			}
+		}
+		
+		private void onDisconnected(boolean accepted) {
+			Logger.normal(this, "Disconnected from "+next+" while waiting for "+(accepted ? "data" : "Accepted")+" on "+uid);
+			route();
+		}
+		
+		private void finished() {
+			if(logMINOR) Logger.minor(this, "Finished async RequestSender for "+uid);
+			node.removeRequestSender(key, origHTL, RequestSender.this);
+		}
+		
+		/** Run a step on the executor, so as not to block the thread which delivered the event */
+		private void execute(final Runnable step) {
+			node.executor.execute(new PrioRunnable() {
+				
+				public void run() {
+					try {
+						step.run();
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t, t);
+						finish(INTERNAL_ERROR, null, false);
+						finished();
+					}
+				}
+				
+				public int getPriority() {
+					return NativeThread.HIGH_PRIORITY;
+				}
+				
+			}, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
+		}
+		
+		/** Waits for the request to be sent, with the same timeout as sendSync() */
+		private class SendCallback extends TimedSendCallback {
+			
+			private final PeerNode peer;
+			
+			SendCallback(PeerNode peer) {
+				super(node.getTicker(), 60*1000);
+				this.peer = peer;
+			}
+			
+			@Override
+			protected void onSent() {
+				execute(new Runnable() {
+					public void run() {
+						AsyncRouter.this.sent();
+					}
+				});
+			}
+			
+			@Override
+			protected void onTimeout() {
+				Logger.error(this, "Waited too long for a send for "+uid+" to "+peer, new Exception("error"));
+				peer.localRejectedOverload("SendSyncTimeout");
+				onSent();
+			}
+			
+			@Override
+			protected void onDisconnected() {
+				Logger.minor(this, "Not connected");
+				execute(new Runnable() {
+					public void run() {
+						route();
+					}
+				});
+			}
+			
+		}
+		
+		private class ReplyCallback implements AsyncMessageFilterCallback {
+			
+			/** True if waiting for the data, false if waiting for Accepted */
+			private final boolean accepted;
+			
+			ReplyCallback(boolean accepted) {
+				this.accepted = accepted;
+			}
+			
+			public void onMatched(final Message m) {
+				execute(new Runnable() {
+					public void run() {
+						onReply(m, accepted);
+					}
+				});
+			}
+			
+			public void onTimeout() {
+				execute(new Runnable() {
+					public void run() {
+						onReply(null, accepted);
+					}
+				});
+			}
+			
+			public void onDisconnect(PeerContext ctx) {
+				execute(new Runnable() {
+					public void run() {
+						onDisconnected(accepted);
+					}
+				});
+			}
+			
+			public void onRestarted(PeerContext ctx) {
+				onDisconnect(ctx);
+			}
+			
+			public boolean shouldTimeout() {
+				return false;
+			}
+			
+		}
+		
+	}
+	
 	protected void makeTurtle() {
 		synchronized(this) {
 			if(tryTurtle) return;
@@ -949,7 +1216,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     	try {
 			block = new SSKBlock(sskData, headers, (NodeSSK)key, false);
 			node.storeShallow(block, canWriteClientCache, canWriteDatastore, false);
-			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
+			if(node.fastWeakRandom.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
 			finish(SUCCESS, next, false);
 		} catch (SSKVerifyException e) {
@@ -971,7 +1238,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     	try {
 			block = new SSKBlock(sskData, headers, (NodeSSK)key, false);
 			node.storeShallow(block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
-			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
+			if(node.fastWeakRandom.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
 			finish(SUCCESS, next, true);
 			return true;
@@ -1001,7 +1268,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     		// store; simulations it is best to only include data from requests
     		// which go all the way i.e. inserts.
     		node.storeShallow(block, canWriteClientCache, canWriteDatastore, tryOffersOnly);
-			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
+			if(node.fastWeakRandom.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
     	} else if (key instanceof NodeSSK) {
     		try {
@@ -7,5 +7,8 @@ public interface Ticker {
 
 	public abstract void queueTimedJob(Runnable job, long offset);
 	public abstract void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes);
+	/** Cancel all queued runs of a job.
+	 * @return True if the job was queued. */
+	public abstract boolean removeQueuedJob(Runnable job);
 
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.io.comm.AsyncMessageCallback;
+
+/**
+ * Waits for a message queued with {@link PeerNode#sendAsync} to leave the node, without
+ * blocking a thread, and gives up after a timeout as {@link PeerNode#sendSync} does. Exactly
+ * one of {@link #onSent()}, {@link #onTimeout()} and {@link #onDisconnected()} is called,
+ * unless it is {@link #cancel()}led because the message could not be queued.
+ */
+abstract class TimedSendCallback implements AsyncMessageCallback {
+
+	private final Ticker ticker;
+	private final Runnable timeoutJob = new Runnable() {
+
+		public void run() {
+			if(complete())
+				onTimeout();
+		}
+
+	};
+	private boolean done;
+
+	TimedSendCallback(Ticker ticker, long timeout) {
+		this.ticker = ticker;
+		ticker.queueTimedJob(timeoutJob, timeout);
+	}
+
+	private synchronized boolean complete() {
+		if(done) return false;
+		done = true;
+		return true;
+	}
+
+	/** Complete before the timeout, and don't leave the timeout job on the ticker */
+	private boolean completeInTime() {
+		if(!complete()) return false;
+		ticker.removeQueuedJob(timeoutJob);
+		return true;
+	}
+
+	public void sent() {
+		if(completeInTime())
+			onSent();
+	}
+
+	public void acknowledged() {
+		sent();
+	}
+
+	public void fatalError() {
+		sent();
+	}
+
+	public void disconnected() {
+		if(completeInTime())
+			onDisconnected();
+	}
+
+	/** The message was never queued, so report nothing and stop the timeout */
+	void cancel() {
+		completeInTime();
+	}
+
+	/** The message has been sent, or lost due to an internal error. */
+	protected abstract void onSent();
+
+	/** The message has not been sent within the timeout. */
+	protected abstract void onTimeout();
+
+	/** The peer disconnected before the message was sent. */
+	protected abstract void onDisconnected();
+
+}
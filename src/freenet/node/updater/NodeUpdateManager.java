@@ -749,7 +749,7 @@ public class NodeUpdateManager {
 		deployUpdate(); // May have been waiting for the revocation.
 		// If we're still here, we didn't update.
 		broadcastUOMAnnounces();
-		node.ps.queueTimedJob(new Runnable() {
+		node.ticker.queueTimedJob(new Runnable() {
 			public void run() {
 				revocationChecker.start(false);
 			}
@@ -762,7 +762,7 @@ public class NodeUpdateManager {
 	}
 	
 	void deployOffThread(long delay) {
-		node.ps.queueTimedJob(new Runnable() {
+		node.ticker.queueTimedJob(new Runnable() {
 			public void run() {
 				if(logMINOR) Logger.minor(this, "Running deployOffThread");
 				try {
@@ -66,7 +66,7 @@ public class NodeUpdater implements ClientGetCallback, USKCallback, RequestClien
 		this.manager = manager;
 		this.node = manager.node;
 		this.URI = URI.setSuggestedEdition(Version.buildNumber() + 1);
-		this.ticker = node.ps;
+		this.ticker = node.ticker;
 		this.core = node.clientCore;
 		this.currentVersion = current;
 		this.availableVersion = -1;
@@ -258,7 +258,7 @@ public class NodeUpdater implements ClientGetCallback, USKCallback, RequestClien
 				System.err.println("Cannot update: result either null or empty for " + availableVersion);
 				// Try again
 				if(result == null || result.asBucket() == null || availableVersion > fetchedVersion)
-					node.ps.queueTimedJob(new Runnable() {
+					node.ticker.queueTimedJob(new Runnable() {
 
 						public void run() {
 							maybeUpdate();
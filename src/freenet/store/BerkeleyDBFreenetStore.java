@@ -40,6 +40,7 @@ import freenet.crypt.RandomSource;
 import freenet.keys.KeyVerifyException;
 import freenet.keys.SSKBlock;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.Logger;
@@ -97,6 +98,8 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 	
 	private boolean closed;
 	private boolean reallyClosed;
+	/** Runs {@link #fetchAsync}, so the caller isn't blocked on the database */
+	private Executor fetchExecutor;
 	
 	public static String getName(boolean isStore, StoreType type) {
 		String newDBPrefix = typeName(type)+ '-' +(isStore ? "store" : "cache")+ '-';
@@ -110,7 +113,7 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 	
 	public static <T extends StorableBlock> FreenetStore<T> construct(File baseStoreDir, boolean isStore, String suffix, long maxStoreKeys,
 	        StoreType type, Environment storeEnvironment, SemiOrderedShutdownHook storeShutdownHook,
-	        File reconstructFile, StoreCallback<T> callback, RandomSource random) throws DatabaseException, IOException {
+	        File reconstructFile, StoreCallback<T> callback, RandomSource random, Executor fetchExecutor) throws DatabaseException, IOException {
 		// Location of new store file
 		String newStoreFileName = typeName(type) + suffix + '.' + (isStore ? "store" : "cache");
 		File newStoreFile = new File(baseStoreDir, newStoreFileName);
@@ -127,11 +130,13 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 		File newFixSecondaryFile = new File(baseStoreDir, "recreate_secondary_db-"+newStoreFileName);
 		
 		System.err.println("Opening database using "+newStoreFile);
-		return openStore(storeEnvironment, newDBPrefix, newStoreFile, lruFile, keysFile, newFixSecondaryFile, maxStoreKeys, storeShutdownHook,
+		BerkeleyDBFreenetStore<T> store = openStore(storeEnvironment, newDBPrefix, newStoreFile, lruFile, keysFile, newFixSecondaryFile, maxStoreKeys, storeShutdownHook,
 				reconstructFile, callback, random);
+		store.fetchExecutor = fetchExecutor;
+		return store;
 	}
 
-	private static <T extends StorableBlock> FreenetStore<T> openStore(Environment storeEnvironment, String newDBPrefix, File newStoreFile, File lruFile,
+	private static <T extends StorableBlock> BerkeleyDBFreenetStore<T> openStore(Environment storeEnvironment, String newDBPrefix, File newStoreFile, File lruFile,
 			File keysFile, File newFixSecondaryFile, long maxStoreKeys, SemiOrderedShutdownHook storeShutdownHook, 
 			File reconstructFile, StoreCallback<T> callback, RandomSource random) throws DatabaseException, IOException {
 		try {
@@ -1167,6 +1172,47 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 		return fetch(routingkey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, null);
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		// FIXME: Not batched.
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			blocks.add(fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache));
+		return blocks;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void fetchAsync(final byte[] routingKey, final byte[] fullKey, final boolean dontPromote,
+			final boolean canReadClientCache, final boolean canReadSlashdotCache, final StoreFetchCallback<T> callback) {
+		if(fetchExecutor == null) {
+			fetchSync(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, callback);
+			return;
+		}
+		// BDB has no asynchronous reads, so block a pooled thread rather than the caller.
+		fetchExecutor.execute(new Runnable() {
+			public void run() {
+				fetchSync(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, callback);
+			}
+		}, "BDB fetch for "+name);
+	}
+
+	private void fetchSync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, StoreFetchCallback<T> callback) {
+		T block;
+		try {
+			block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache);
+		} catch (IOException e) {
+			callback.onFetchFailed(e);
+			return;
+		}
+		callback.onFetched(block);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
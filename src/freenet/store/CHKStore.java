@@ -1,6 +1,7 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.List;
 
 import freenet.crypt.DSAPublicKey;
 import freenet.keys.CHKBlock;
@@ -26,7 +27,17 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 	public CHKBlock fetch(NodeCHK chk, boolean dontPromote) throws IOException {
 		return store.fetch(chk.getRoutingKey(), null, dontPromote, false, false);
 	}
-	
+
+	/**
+	 * @return The block for each key, in the same order, or null if not found.
+	 */
+	public List<CHKBlock> fetchBatch(NodeCHK[] chks, boolean dontPromote) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++)
+			routingKeys[i] = chks[i].getRoutingKey();
+		return store.fetchBatch(routingKeys, null, dontPromote, false, false);
+	}
+
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
 			store.put(b, b.getRawData(), b.getRawHeaders(), false, isOldBlock);
@@ -0,0 +1,363 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sleepycat.je.DatabaseException;
+
+import freenet.support.Fields;
+import freenet.support.FrequencySketch;
+import freenet.support.LRUHashtable;
+
+/**
+ * Hot block cache in front of another store.
+ *
+ * Keeps the most popular blocks in memory, already constructed (decrypted and verified), so
+ * that they can be served without disk I/O. The cache is an LRU within a fixed memory budget.
+ * When it is full, a block read from the underlying store only replaces the least recently
+ * used block if it has been requested more often recently, according to a
+ * {@link FrequencySketch} of all requests (TinyLFU admission). So a scan of many keys, each
+ * requested once, does not flush the popular blocks out.
+ *
+ * Puts go straight to the underlying store and drop the cached block with the same routing key.
+ *
+ * The cache is split into stripes by routing key, each with its own lock, LRU and sketch, so
+ * that concurrent requests for different keys don't wait for each other.
+ */
+public class CachingFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+	/** Estimated memory used by a block apart from the data and headers */
+	private static final int BLOCK_OVERHEAD = 200;
+	private static final int STRIPES = 16;
+
+	private final FreenetStore<T> backDatastore;
+	private final List<Stripe> stripes;
+	private final int maxBlocks;
+	private final int blockSize;
+
+	/** Routing key in the LRU. Stripes reuse one for lookups, so only cached blocks allocate one. */
+	private static final class RoutingKey {
+		private byte[] key;
+		private int hash;
+
+		RoutingKey(byte[] key, int hash) {
+			this.key = key;
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof RoutingKey && Arrays.equals(key, ((RoutingKey) o).key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Part of the cache. Everything is protected by the stripe's lock; the counters are volatile
+	 * so that the statistics can be read without it.
+	 */
+	private class Stripe {
+		private final LRUHashtable<RoutingKey, T> blocksByRoutingKey = new LRUHashtable<RoutingKey, T>();
+		private final FrequencySketch sketch;
+		private final int maxBlocks;
+		private final RoutingKey lookup = new RoutingKey(null, 0);
+
+		/** Incremented on each put, fetched blocks are only cached if no put happened meanwhile */
+		private long invalidations;
+
+		private volatile long hits;
+		private volatile long misses;
+		private volatile long evictions;
+		private volatile long rejections;
+
+		Stripe(int maxBlocks) {
+			this.maxBlocks = maxBlocks;
+			sketch = new FrequencySketch(maxBlocks);
+		}
+
+		/** Look up a block in the cache, and count the request. Caller must hold the lock. */
+		private T getCached(byte[] routingKey, int hash, boolean dontPromote) {
+			sketch.increment(FrequencySketch.hash(routingKey));
+			lookup.key = routingKey;
+			lookup.hash = hash;
+			try {
+				T block = blocksByRoutingKey.get(lookup);
+				if (block == null) {
+					misses++;
+					return null;
+				}
+				hits++;
+				if (!dontPromote)
+					blocksByRoutingKey.push(lookup, block); // keeps the existing key
+				return block;
+			} finally {
+				lookup.key = null;
+			}
+		}
+
+		/** Consider caching a block read from the underlying store */
+		private synchronized void offer(byte[] routingKey, int hash, T block, long generation) {
+			if (generation != invalidations)
+				return; // a put may have replaced it meanwhile
+			RoutingKey key = new RoutingKey(routingKey, hash);
+			if (blocksByRoutingKey.containsKey(key)) {
+				blocksByRoutingKey.push(key, block);
+				return;
+			}
+			if (blocksByRoutingKey.size() >= maxBlocks) {
+				T victim = blocksByRoutingKey.peekValue();
+				if (sketch.frequency(FrequencySketch.hash(routingKey)) <= sketch.frequency(FrequencySketch
+				        .hash(victim.getRoutingKey()))) {
+					rejections++;
+					return;
+				}
+				blocksByRoutingKey.popValue();
+				evictions++;
+			}
+			blocksByRoutingKey.push(key, block);
+		}
+
+		private synchronized void invalidate(byte[] routingKey, int hash) {
+			invalidations++;
+			blocksByRoutingKey.removeKey(new RoutingKey(routingKey, hash));
+		}
+
+		private synchronized boolean contains(byte[] routingKey, int hash) {
+			lookup.key = routingKey;
+			lookup.hash = hash;
+			try {
+				return blocksByRoutingKey.containsKey(lookup);
+			} finally {
+				lookup.key = null;
+			}
+		}
+	}
+
+	/**
+	 * @param callback
+	 *            the callback of the underlying store, to estimate the size of a block. The
+	 *            caller should point it to the new store with
+	 *            {@link StoreCallback#setStore(FreenetStore)}.
+	 * @param maxBytes
+	 *            the memory budget of the cache.
+	 */
+	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, long maxBytes) {
+		this.backDatastore = backDatastore;
+		blockSize = callback.dataLength() + callback.headerLength() + callback.routingKeyLength()
+		        + callback.fullKeyLength() + BLOCK_OVERHEAD;
+		int stripeBlocks = (int) Math.max(1, Math.min(maxBytes / blockSize / STRIPES, Integer.MAX_VALUE / STRIPES));
+		maxBlocks = stripeBlocks * STRIPES;
+		stripes = new ArrayList<Stripe>(STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			stripes.add(new Stripe(stripeBlocks));
+	}
+
+	private Stripe stripe(int hash) {
+		return stripes.get((hash & Integer.MAX_VALUE) % STRIPES);
+	}
+
+	/** Unwrap a store, to get at the disk store below the cache if any */
+	public static <T extends StorableBlock> FreenetStore<T> unwrap(FreenetStore<T> store) {
+		while (store instanceof CachingFreenetStore)
+			store = ((CachingFreenetStore<T>) store).getUnderlyingStore();
+		return store;
+	}
+
+	public FreenetStore<T> getUnderlyingStore() {
+		return backDatastore;
+	}
+
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+	        boolean canReadSlashdotCache) throws IOException {
+		int hash = Fields.hashCode(routingKey);
+		Stripe stripe = stripe(hash);
+		long generation;
+		synchronized (stripe) {
+			T block = stripe.getCached(routingKey, hash, dontPromote);
+			if (block != null)
+				return block;
+			generation = stripe.invalidations;
+		}
+
+		T block = backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache);
+		if (block != null)
+			stripe.offer(routingKey, hash, block, generation);
+		return block;
+	}
+
+	public void fetchAsync(final byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+	        boolean canReadSlashdotCache, final StoreFetchCallback<T> callback) {
+		final int hash = Fields.hashCode(routingKey);
+		final Stripe stripe = stripe(hash);
+		final long generation;
+		T cached;
+		synchronized (stripe) {
+			cached = stripe.getCached(routingKey, hash, dontPromote);
+			generation = stripe.invalidations;
+		}
+		if (cached != null) {
+			callback.onFetched(cached);
+			return;
+		}
+
+		backDatastore.fetchAsync(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache,
+		        new StoreFetchCallback<T>() {
+			        public void onFetched(T block) {
+				        if (block != null)
+					        stripe.offer(routingKey, hash, block, generation);
+				        callback.onFetched(block);
+			        }
+
+			        public void onFetchFailed(IOException e) {
+				        callback.onFetchFailed(e);
+			        }
+		        });
+	}
+
+	public List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+	        boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		List<Integer> missed = new ArrayList<Integer>();
+		int[] hashes = new int[routingKeys.length];
+		long[] generations = new long[routingKeys.length];
+		for (int i = 0; i < routingKeys.length; i++) {
+			hashes[i] = Fields.hashCode(routingKeys[i]);
+			Stripe stripe = stripe(hashes[i]);
+			T block;
+			synchronized (stripe) {
+				block = stripe.getCached(routingKeys[i], hashes[i], dontPromote);
+				generations[i] = stripe.invalidations;
+			}
+			blocks.add(block);
+			if (block == null)
+				missed.add(i);
+		}
+		if (missed.isEmpty())
+			return blocks;
+
+		byte[][] missedRoutingKeys = new byte[missed.size()][];
+		byte[][] missedFullKeys = fullKeys == null ? null : new byte[missed.size()][];
+		for (int i = 0; i < missed.size(); i++) {
+			missedRoutingKeys[i] = routingKeys[missed.get(i)];
+			if (fullKeys != null)
+				missedFullKeys[i] = fullKeys[missed.get(i)];
+		}
+		List<T> fetched = backDatastore.fetchBatch(missedRoutingKeys, missedFullKeys, dontPromote,
+		        canReadClientCache, canReadSlashdotCache);
+		for (int i = 0; i < missed.size(); i++) {
+			T block = fetched.get(i);
+			if (block == null)
+				continue;
+			int index = missed.get(i);
+			blocks.set(index, block);
+			stripe(hashes[index]).offer(routingKeys[index], hashes[index], block, generations[index]);
+		}
+		return blocks;
+	}
+
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean oldBlock) throws IOException,
+	        KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		int hash = Fields.hashCode(routingKey);
+		Stripe stripe = stripe(hash);
+		stripe.invalidate(routingKey, hash);
+		try {
+			backDatastore.put(block, data, header, overwrite, oldBlock);
+		} finally {
+			// Again, in case a concurrent fetch read the old block before the put.
+			stripe.invalidate(routingKey, hash);
+		}
+	}
+
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws DatabaseException, IOException {
+		backDatastore.setMaxKeys(maxStoreKeys, shrinkNow);
+	}
+
+	public long getMaxKeys() {
+		return backDatastore.getMaxKeys();
+	}
+
+	public long hits() {
+		return backDatastore.hits() + getCacheHits();
+	}
+
+	public long misses() {
+		return backDatastore.misses();
+	}
+
+	public long writes() {
+		return backDatastore.writes();
+	}
+
+	public long keyCount() {
+		return backDatastore.keyCount();
+	}
+
+	public long getBloomFalsePositive() {
+		return backDatastore.getBloomFalsePositive();
+	}
+
+	public boolean probablyInStore(byte[] routingKey) {
+		int hash = Fields.hashCode(routingKey);
+		if (stripe(hash).contains(routingKey, hash))
+			return true;
+		return backDatastore.probablyInStore(routingKey);
+	}
+
+	// ------------- Statistics
+
+	/** @return requests served from memory */
+	public long getCacheHits() {
+		long total = 0;
+		for (Stripe stripe : stripes)
+			total += stripe.hits;
+		return total;
+	}
+
+	/** @return requests passed on to the underlying store */
+	public long getCacheMisses() {
+		long total = 0;
+		for (Stripe stripe : stripes)
+			total += stripe.misses;
+		return total;
+	}
+
+	/** @return blocks dropped to make room for more popular ones */
+	public long getCacheEvictions() {
+		long total = 0;
+		for (Stripe stripe : stripes)
+			total += stripe.evictions;
+		return total;
+	}
+
+	/** @return blocks not cached because they were less popular than the LRU block */
+	public long getCacheRejections() {
+		long total = 0;
+		for (Stripe stripe : stripes)
+			total += stripe.rejections;
+		return total;
+	}
+
+	public int getCacheBlockCount() {
+		int total = 0;
+		for (Stripe stripe : stripes)
+			total += stripe.blocksByRoutingKey.size();
+		return total;
+	}
+
+	public long getCacheSize() {
+		return (long) getCacheBlockCount() * blockSize;
+	}
+
+	public long getMaxCacheSize() {
+		return (long) maxBlocks * blockSize;
+	}
+}
@@ -1,6 +1,7 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.List;
 
 import com.sleepycat.je.DatabaseException;
 
@@ -26,6 +27,25 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @throws IOException If a disk I/O error occurs.
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException;
+
+	/**
+	 * Retrieve a block without blocking the calling thread on disk I/O. Stores which are not
+	 * disk based may simply call {@link #fetch} and the callback on the calling thread.
+	 * @param callback Called with the block (or null) when the fetch completes, or with the 
+	 * IOException if it fails. See {@link #fetch} for the other parameters.
+	 */
+	void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, StoreFetchCallback<T> callback);
+
+	/**
+	 * Retrieve many blocks at once. Disk based stores should use this to skip keys which are
+	 * certainly not in the store, and to read the rest in disk order.
+	 * @param routingKeys The routing keys.
+	 * @param fullKeys The full keys, in the same order, or null if the store does not need them.
+	 * @return A list of the same length as routingKeys, with the block for each key, or null if
+	 * the key cannot be found. See {@link #fetch} for the other parameters.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException;
 	
 	/**
 	 * Store a block.
@@ -1,21 +1,38 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.sleepycat.je.DatabaseException;
 
-public class NullFreenetStore implements FreenetStore {
+public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
-	public NullFreenetStore(StoreCallback callback) {
+	public NullFreenetStore(StoreCallback<T> callback) {
 		// Ok.
 	}
 
-	public StorableBlock fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache,
 			boolean canReadSlashdotCache) throws IOException {
 		return null;
 	}
 
+	public void fetchAsync(byte[] routingKey, byte[] fullKey,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, StoreFetchCallback<T> callback) {
+		callback.onFetched(null);
+	}
+
+	public List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache) throws IOException {
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			blocks.add(null);
+		return blocks;
+	}
+
 	public long getBloomFalsePositive() {
 		return 0;
 	}
@@ -40,7 +57,7 @@ public class NullFreenetStore implements FreenetStore {
 		return false;
 	}
 
-	public void put(StorableBlock block, byte[] data, byte[] header,
+	public void put(T block, byte[] data, byte[] header,
 			boolean overwrite, boolean oldBlock) throws IOException,
 			KeyCollisionException {
 		// Do nothing
@@ -1,8 +1,10 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 
 import com.sleepycat.je.DatabaseException;
 
@@ -64,6 +66,28 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		}
 	}
 
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, StoreFetchCallback<T> callback) {
+		// No disk I/O, just fetch it.
+		T block;
+		try {
+			block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache);
+		} catch (IOException e) {
+			callback.onFetchFailed(e);
+			return;
+		}
+		callback.onFetched(block);
+	}
+
+	public List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		// No disk I/O, just fetch them one at a time.
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			blocks.add(fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache));
+		return blocks;
+	}
+
 	public synchronized long getMaxKeys() {
 		return maxKeys;
 	}
@@ -1,6 +1,7 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.List;
 
 import freenet.crypt.DSAPublicKey;
 import freenet.keys.NodeSSK;
@@ -37,6 +38,19 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache);
 	}
 
+	/**
+	 * @return The block for each key, in the same order, or null if not found.
+	 */
+	public List<SSKBlock> fetchBatch(NodeSSK[] chks, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		byte[][] fullKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++) {
+			routingKeys[i] = chks[i].getRoutingKey();
+			fullKeys[i] = chks[i].getFullKey();
+		}
+		return store.fetchBatch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache);
+	}
+
 	public void put(SSKBlock b, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		store.put(b, b.getRawData(), b.getRawHeaders(), overwrite, isOldBlock);
 	}
@@ -130,6 +130,28 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		}
 	}
 
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache, StoreFetchCallback<T> callback) {
+		// Blocks are small and usually in RAM, just fetch it.
+		T block;
+		try {
+			block = fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache);
+		} catch (IOException e) {
+			callback.onFetchFailed(e);
+			return;
+		}
+		callback.onFetched(block);
+	}
+
+	public List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		// Blocks are small and usually in RAM, just fetch them one at a time.
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		for(int i=0;i<routingKeys.length;i++)
+			blocks.add(fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache));
+		return blocks;
+	}
+
 	public long getBloomFalsePositive() {
 		return -1;
 	}
@@ -0,0 +1,23 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+
+/**
+ * Callback for {@link FreenetStore#fetchAsync}. Called exactly once, possibly on the thread
+ * that started the fetch, possibly on another thread. Implementations must not block.
+ */
+public interface StoreFetchCallback<T extends StorableBlock> {
+
+	/**
+	 * @param block
+	 *            The block, or <code>null</code> if the key cannot be found.
+	 */
+	public void onFetched(T block);
+
+	/** A disk I/O error occurred. */
+	public void onFetchFailed(IOException e);
+
+}
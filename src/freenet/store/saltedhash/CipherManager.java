@@ -5,8 +5,6 @@ package freenet.store.saltedhash;
 
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Random;
 
 import freenet.crypt.BlockCipher;
@@ -15,7 +13,6 @@ import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.node.MasterKeys;
-import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 
 /**
@@ -51,30 +48,41 @@ public class CipherManager {
 		return diskSalt;
 	}
 
+	/** Default size of the digested key cache */
+	static final int DEFAULT_DIGEST_CACHE_SIZE = 1024;
+
 	/**
 	 * Cache for digested keys
 	 */
-	@SuppressWarnings("serial")
-	private Map<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new LinkedHashMap<ByteArrayWrapper, byte[]>() {
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
-			return size() > 128;
-		}
-	};
+	private volatile DigestedKeyCache digestRoutingKeyCache = new DigestedKeyCache(DEFAULT_DIGEST_CACHE_SIZE);
+
+	/**
+	 * Resize the digested key cache. The cached keys are dropped.
+	 * 
+	 * @param size
+	 *            number of entries, rounded up to a power of two.
+	 */
+	void setDigestCacheSize(int size) {
+		if (size != digestRoutingKeyCache.capacity())
+			digestRoutingKeyCache = new DigestedKeyCache(size);
+	}
+
+	DigestedKeyCache getDigestCache() {
+		return digestRoutingKeyCache;
+	}
 
 	/**
 	 * Get digested routing key
 	 * 
 	 * @param plainKey
-	 * @return
+	 * @return the digested key, possibly shared with other callers through the cache: do not
+	 *         modify it.
 	 */
 	byte[] getDigestedKey(byte[] plainKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(plainKey);
-		synchronized (digestRoutingKeyCache) {
-			byte[] dk = digestRoutingKeyCache.get(key);
-			if (dk != null)
-				return dk;
-		}
+		DigestedKeyCache cache = digestRoutingKeyCache;
+		byte[] dk = cache.get(plainKey);
+		if (dk != null)
+			return dk;
 
 		MessageDigest digest = SHA256.getMessageDigest();
 		try {
@@ -84,9 +92,7 @@ public class CipherManager {
 			byte[] hashedRoutingKey = digest.digest();
 			assert hashedRoutingKey.length == 0x20;
 
-			synchronized (digestRoutingKeyCache) {
-				digestRoutingKeyCache.put(key, hashedRoutingKey);
-			}
+			cache.put(plainKey, hashedRoutingKey);
 
 			return hashedRoutingKey;
 		} finally {
@@ -97,7 +103,7 @@ public class CipherManager {
 	/**
 	 * Encrypt this entry
 	 */
-	void encrypt(SaltedHashFreenetStore.Entry entry, Random random) {
+	void encrypt(SaltedHashFreenetStore<?>.Entry entry, Random random) {
 		if (entry.isEncrypted)
 			return;
 
@@ -118,7 +124,7 @@ public class CipherManager {
 	 * @param routingKey
 	 * @return <code>true</code> if the <code>routeKey</code> match and the entry is decrypted.
 	 */
-	boolean decrypt(SaltedHashFreenetStore.Entry entry, byte[] routingKey) {
+	boolean decrypt(SaltedHashFreenetStore<?>.Entry entry, byte[] routingKey) {
 		assert entry.header != null;
 		assert entry.data != null;
 
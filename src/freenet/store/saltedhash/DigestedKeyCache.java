@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.support.Fields;
+
+/**
+ * Digested Key Cache
+ * 
+ * A direct mapped cache from plain routing keys to digested routing keys. Lookups take no lock and
+ * allocate nothing; a miss allocates one small entry and a copy of the key, which replace
+ * whatever was in its slot. The hit and miss counts are kept per thread stripe, so that lookups on
+ * different cores don't write to the same cache line.
+ * 
+ * A probe, a put and the bloom filter update hash the same routing key up to three times in a
+ * single operation; those repeats are always hits.
+ */
+public class DigestedKeyCache {
+	/** Immutable, so it can be read without locking. */
+	private static final class CacheEntry {
+		private final byte[] plainKey;
+		private final byte[] digestedKey;
+
+		private CacheEntry(byte[] plainKey, byte[] digestedKey) {
+			this.plainKey = plainKey;
+			this.digestedKey = digestedKey;
+		}
+	}
+
+	/** Hit and miss counters are striped by thread, one cache line per stripe */
+	private static final int COUNTER_STRIPES = 16;
+	private static final int COUNTER_SPACING = 8;
+	private static final int HITS = 0;
+	private static final int MISSES = 1;
+
+	private final CacheEntry[] entries;
+	private final int mask;
+
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTER_STRIPES * COUNTER_SPACING);
+
+	/**
+	 * @param capacity
+	 *            number of entries, rounded up to a power of two.
+	 */
+	DigestedKeyCache(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		entries = new CacheEntry[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * @return the digested key, or <code>null</code> if not in cache. The array is shared with
+	 *         the cache and every other caller: DO NOT MODIFY IT.
+	 */
+	byte[] get(byte[] plainKey) {
+		CacheEntry entry = entries[Fields.hashCode(plainKey) & mask];
+		if (entry != null && Arrays.equals(entry.plainKey, plainKey)) {
+			count(HITS);
+			return entry.digestedKey;
+		}
+		count(MISSES);
+		return null;
+	}
+
+	/**
+	 * @param digestedKey
+	 *            returned to all later callers of {@link #get(byte[])}, so must not be modified
+	 *            afterwards.
+	 */
+	void put(byte[] plainKey, byte[] digestedKey) {
+		// the caller's routing key may be reused, unlike the digest we have just computed
+		entries[Fields.hashCode(plainKey) & mask] = new CacheEntry(plainKey.clone(), digestedKey);
+	}
+
+	private void count(int counter) {
+		int stripe = (int) (Thread.currentThread().getId() % COUNTER_STRIPES);
+		counters.incrementAndGet(stripe * COUNTER_SPACING + counter);
+	}
+
+	private long sum(int counter) {
+		long total = 0;
+		for (int i = 0; i < COUNTER_STRIPES; i++)
+			total += counters.get(i * COUNTER_SPACING + counter);
+		return total;
+	}
+
+	int capacity() {
+		return entries.length;
+	}
+
+	long hits() {
+		return sum(HITS);
+	}
+
+	long misses() {
+		return sum(MISSES);
+	}
+}
@@ -3,9 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -21,10 +23,17 @@ import freenet.support.Logger;
  */
 public class LockManager {
 	private static boolean logDEBUG;
-	private volatile boolean shutdown;
+	protected volatile boolean shutdown;
 	private Lock entryLock = new ReentrantLock();
 	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
 
+	/** Number of locks acquired */
+	protected final AtomicLong lockCount = new AtomicLong();
+	/** Number of locks which have to wait for another holder */
+	protected final AtomicLong lockWaitCount = new AtomicLong();
+	/** Total time spent waiting for locks, in nanoseconds */
+	protected final AtomicLong lockWaitNanos = new AtomicLong();
+
 	LockManager() {
 		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
 	}
@@ -40,6 +49,7 @@ public class LockManager {
 			Logger.debug(this, "try locking " + offset, new Exception());
 
 		Condition condition;
+		long waitStart = -1;
 		try {
 			entryLock.lock();
 			try {
@@ -48,9 +58,11 @@ public class LockManager {
 						return null;
 
 					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
+					if (lockCond != null) {
+						if (waitStart == -1)
+							waitStart = System.nanoTime();
 						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
+					} else
 						break;
 				} while (true);
 				condition = entryLock.newCondition();
@@ -58,6 +70,7 @@ public class LockManager {
 			} finally {
 				entryLock.unlock();
 			}
+			lockAcquired(waitStart);
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
 			return null;
@@ -85,6 +98,43 @@ public class LockManager {
 		}
 	}
 
+	/**
+	 * Update the lock counters after a lock is acquired.
+	 * 
+	 * @param waitStart
+	 *            the {@link System#nanoTime()} when we started waiting, or <code>-1</code> if the
+	 *            lock was acquired without waiting.
+	 */
+	protected void lockAcquired(long waitStart) {
+		lockCount.incrementAndGet();
+		if (waitStart != -1) {
+			lockWaitCount.incrementAndGet();
+			lockWaitNanos.addAndGet(System.nanoTime() - waitStart);
+		}
+	}
+
+	/**
+	 * The order in which multiple offsets must be locked by a single thread to avoid deadlocks.
+	 * 
+	 * @return the comparator, or <code>null</code> for the natural order of the offsets.
+	 */
+	Comparator<Long> getLockOrder() {
+		return null;
+	}
+
+	long getLockCount() {
+		return lockCount.get();
+	}
+
+	long getLockWaitCount() {
+		return lockWaitCount.get();
+	}
+
+	/** Total time spent waiting for locks, in milliseconds */
+	long getLockWaitTime() {
+		return lockWaitNanos.get() / 1000000;
+	}
+
 	/**
 	 * Shutdown and wait for all entries unlocked
 	 */
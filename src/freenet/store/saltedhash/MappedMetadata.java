@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped view of the metadata file
+ *
+ * The file is mapped in fixed size windows, each a multiple of the slot length, so that a slot
+ * never spans two windows. Slots are read and written in place, without any system call.
+ *
+ * The mapping covers the file length at the time it is created. It must be {@link #close()}d
+ * before the file is resized, and recreated afterwards.
+ */
+public class MappedMetadata {
+	/** Size of a mapped window, 1GiB */
+	private static final long WINDOW_SIZE = 1L << 30;
+	/** Maximum metadata file size we would map */
+	private static final long MAX_MAPPED_LENGTH = 128L << 30;
+
+	private final MappedByteBuffer[] windows;
+	/** Non-zero if the window has been written since the last {@link #force()} */
+	private final AtomicIntegerArray dirty;
+	private final long length;
+	private final int slotLength;
+
+	/**
+	 * Map the first <code>length</code> bytes of the channel.
+	 *
+	 * @throws IOException
+	 *             if the mapping failed, e.g. out of address space.
+	 */
+	MappedMetadata(FileChannel fc, long length, int slotLength) throws IOException {
+		assert WINDOW_SIZE % slotLength == 0;
+		this.length = length;
+		this.slotLength = slotLength;
+
+		windows = new MappedByteBuffer[(int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+		dirty = new AtomicIntegerArray(windows.length);
+		for (int i = 0; i < windows.length; i++) {
+			long start = i * WINDOW_SIZE;
+			windows[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, length - start));
+		}
+	}
+
+	/**
+	 * Check if a metadata file of this size can be mapped on this JVM.
+	 *
+	 * @return <code>false</code> on 32-bit JVMs (not enough address space) and for files larger
+	 *         than {@link #MAX_MAPPED_LENGTH}.
+	 */
+	static boolean canMap(long length) {
+		if (length <= 0 || length > MAX_MAPPED_LENGTH)
+			return false;
+
+		String dataModel = System.getProperty("sun.arch.data.model");
+		if (dataModel != null)
+			return dataModel.equals("64");
+		String arch = System.getProperty("os.arch");
+		return arch != null && arch.indexOf("64") != -1;
+	}
+
+	/**
+	 * Get a view of a slot for reading. The view has its own position and limit, and can be used
+	 * while other threads access other slots. Use {@link #putSlot(long, ByteBuffer)} to write.
+	 *
+	 * @return the slot, or <code>null</code> if the slot is not mapped.
+	 */
+	ByteBuffer getSlot(long offset) {
+		long pos = offset * slotLength;
+		if (offset < 0 || pos + slotLength > length)
+			return null;
+
+		ByteBuffer buf = windows[(int) (pos / WINDOW_SIZE)].duplicate();
+		int windowPos = (int) (pos % WINDOW_SIZE);
+		buf.position(windowPos);
+		buf.limit(windowPos + slotLength);
+		return buf.slice();
+	}
+
+	/**
+	 * Write a slot.
+	 *
+	 * @return <code>false</code> if the slot is not mapped.
+	 */
+	boolean putSlot(long offset, ByteBuffer bf) {
+		ByteBuffer slot = getSlot(offset);
+		if (slot == null)
+			return false;
+		slot.put(bf);
+		// after the write, so that a concurrent force() either writes it or leaves it dirty
+		dirty.set((int) (offset * slotLength / WINDOW_SIZE), 1);
+		return true;
+	}
+
+	long length() {
+		return length;
+	}
+
+	/**
+	 * Write the modified windows to disk.
+	 */
+	void force() {
+		for (int i = 0; i < windows.length; i++) {
+			if (dirty.getAndSet(i, 0) == 0)
+				continue;
+			try {
+				windows[i].force();
+			} catch (Exception e) { // may throw an undeclared IOException
+				Logger.error(this, "error flushing mapped metadata", e);
+			}
+		}
+	}
+
+	/**
+	 * Write the modified windows to disk and unmap them, so that the file can be resized. No other
+	 * thread may use this mapping any more.
+	 */
+	void close() {
+		force();
+		for (int i = 0; i < windows.length; i++) {
+			unmap(windows[i]);
+			windows[i] = null;
+		}
+	}
+
+	/**
+	 * Java has no API to unmap a buffer before it is garbage collected, which is too late to
+	 * resize the file on Windows. Use the cleaner of the Sun JVM where available.
+	 */
+	private void unmap(MappedByteBuffer buf) {
+		try {
+			Method cleanerMethod = buf.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buf);
+			if (cleaner == null)
+				return;
+			Method cleanMethod = cleaner.getClass().getMethod("clean");
+			cleanMethod.setAccessible(true);
+			cleanMethod.invoke(cleaner);
+		} catch (Exception e) {
+			Logger.normal(this, "Can't unmap meta-data, it will be unmapped when garbage collected: " + e);
+		}
+	}
+}
@@ -9,15 +9,23 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -46,11 +54,14 @@ import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreFetchCallback;
 import freenet.support.BloomFilter;
+import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.Logger;
+import freenet.support.TimeUtil;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
@@ -65,7 +76,7 @@ import freenet.support.io.NativeThread;
  * 
  * @author sdiz
  */
-public class SaltedHashFreenetStore implements FreenetStore {
+public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 	/** Option for saving plainkey */
 	private static final boolean OPTION_SAVE_PLAINKEY = false;
 	private static final int OPTION_MAX_PROBE = 5;
@@ -76,6 +87,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private boolean checkBloom = true;
 	private int bloomFilterSize;
 	private int bloomFilterK;
+	private int bloomFilterHashVersion;
 	private final BloomFilter bloomFilter;
 
 	private static boolean logMINOR;
@@ -83,30 +95,50 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 	private final File baseDir;
 	private final String name;
-	private final StoreCallback callback;
+	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
 	private final int headerBlockLength;
 	private final int fullKeyLength;
 	private final int dataBlockLength;
 	private final Random random;
 	private final File bloomFile;
+	/** Forked bloom filter of a running resize or rebuild, kept so that it can be resumed */
+	private final File bloomForkFile;
 	
 	private long storeSize;
 	private int generation;
 	private int flags;
 	
 	private boolean preallocate = true;
+	private boolean mapMetadata = false;
+	private volatile boolean batchProbe = false;
+	/** Memory budget of the write-behind queue in bytes, <code>0</code> to write synchronously */
+	private long writeBehindSize = 0;
+	private boolean started = false;
 
-	public static SaltedHashFreenetStore construct(File baseDir, String name, StoreCallback callback, Random random,
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
-		SaltedHashFreenetStore store = new SaltedHashFreenetStore(baseDir, name, callback, random, maxKeys, bloomFilterSize, bloomCounting,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		return construct(baseDir, name, callback, random, maxKeys, bloomFilterSize, bloomCounting, shutdownHook,
+		        preallocate, resizeOnStart, exec, masterKey, 0);
+	}
+
+	/**
+	 * @param lockStripes
+	 *            number of stripes for per-slot locking, or <code>0</code> to use the classic
+	 *            {@link LockManager}.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        int lockStripes) throws IOException {
+		SaltedHashFreenetStore<T> store = new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, bloomFilterSize, bloomCounting,
+		        shutdownHook, preallocate, resizeOnStart, masterKey, lockStripes);
 		return store;
 	}
 
-	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback callback, Random random, long maxKeys,
-	        int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
+	        int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        int lockStripes) throws IOException {
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
 
@@ -127,7 +159,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		this.bloomFilterSize = bloomFilterSize;
 		this.preallocate = preallocate;
 
-		lockManager = new LockManager();
+		lockManager = lockStripes > 0 ? new StripedLockManager(lockStripes) : new LockManager();
 
 		// Create a directory it not exist
 		this.baseDir.mkdirs();
@@ -138,7 +170,9 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		newStore |= openStoreFiles(baseDir, name);
 
 		bloomFile = new File(this.baseDir, name + ".bloom");
+		bloomForkFile = new File(this.baseDir, name + ".bloom.fork");
 		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting);
+		bloomFilter.setHashVersion(bloomFilterHashVersion);
 
 		System.err.println("Bloomfilter (" + bloomFilter + ") for " + name + " is loaded.");
 		
@@ -159,6 +193,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		callback.setStore(this);
 		shutdownHook.addEarlyJob(new Thread(new ShutdownDB()));
 
+		resumeCleaner();
 		cleanerThread = new Cleaner();
 		cleanerStatusUserAlert = new CleanerStatusUserAlert(cleanerThread);
 
@@ -199,7 +234,25 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		
 		WrapperManager.signalStarting(10 * 60 * 1000); // 10minutes, for filesystem that support no sparse file.
 		setStoreFileSize(storeFileSize, true);
+
+		configLock.writeLock().lock();
+		try {
+			started = true;
+			if (prevStoreSize == 0)
+				mapMetadata();
+		} finally {
+			configLock.writeLock().unlock();
+		}
 		
+		if (writeBehindSize > 0) {
+			writeBehindThread = new WriteBehindFlusher();
+			writeBehindThread.start();
+		}
+
+		for (int i = 0; i < fetchThreadCount; i++)
+			new FetchThread(i).start();
+		fetchThreadsStarted = fetchThreadCount > 0;
+
 		if(ticker == null) {
 			cleanerThread.start();
 		} else
@@ -212,10 +265,200 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			}, "Start cleaner thread", 0, true, false);
 	}
 
-	public StorableBlock fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		resetSyscallCount();
+		try {
+			return fetch0(routingKey, fullKey, canReadClientCache, canReadSlashdotCache);
+		} finally {
+			fetches.incrementAndGet();
+			fetchSyscalls.addAndGet(resetSyscallCount());
+		}
+	}
+
+	/**
+	 * Fetch many keys. Keys rejected by the bloom filter are not read at all; the others are
+	 * fetched in the order of their slots in the store file, so that the disk sees one forward
+	 * sweep instead of random reads. Locks are taken per key as in
+	 * {@link #fetch(byte[], byte[], boolean, boolean, boolean)}. A key which cannot be read
+	 * because of an I/O error is logged and returned as <code>null</code>.
+	 */
+	public List<T> fetchBatch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+	        boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		int count = routingKeys.length;
+		List<T> blocks = new ArrayList<T>(count);
+		for (int i = 0; i < count; i++)
+			blocks.add(null);
+
+		// first probe slot of each key, possibly in the bloom filter
+		final long[] slot = new long[count];
+		List<Integer> order = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] digestedKey = cipherManager.getDigestedKey(routingKeys[i]);
+			if (checkBloom && !bloomFilter.checkFilter(digestedKey)) {
+				misses.incrementAndGet();
+				fetches.incrementAndGet();
+				continue;
+			}
+			slot[i] = getOffsetFromDigestedKey(digestedKey, storeSize)[0];
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				long s1 = slot[o1];
+				long s2 = slot[o2];
+				return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+			}
+		});
+
+		if (logMINOR)
+			Logger.minor(this, "Batch fetch " + order.size() + " of " + count + " keys for " + callback);
+
+		for (int i : order) {
+			if (shutdown)
+				break;
+			resetSyscallCount();
+			try {
+				blocks.set(i, fetch0(routingKeys[i], fullKeys == null ? null : fullKeys[i], canReadClientCache,
+				        canReadSlashdotCache));
+			} catch (IOException e) {
+				// don't lose the keys already read, nor the rest of the batch
+				Logger.error(this, "Caught " + e + " fetching " + HexUtil.bytesToHex(routingKeys[i]) + " from " + name, e);
+			} finally {
+				fetches.incrementAndGet();
+				fetchSyscalls.addAndGet(resetSyscallCount());
+			}
+		}
+		return blocks;
+	}
+
+	// ------------- Asynchronous fetch
+	/** Maximum number of fetches waiting for an I/O thread, beyond this we fetch on the caller thread */
+	private static final int MAX_QUEUED_FETCHES = 256;
+	/** Number of I/O threads serving {@link #fetchAsync}, <code>0</code> to fetch on the caller thread */
+	private int fetchThreadCount = 0;
+	/** Runs the callbacks of fetches served by the I/O threads */
+	private Executor fetchCallbackExecutor;
+	private final BlockingQueue<FetchJob> fetchQueue = new LinkedBlockingQueue<FetchJob>(MAX_QUEUED_FETCHES);
+	private volatile boolean fetchThreadsStarted;
+
+	public void fetchAsync(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+	        boolean canReadSlashdotCache, StoreFetchCallback<T> callback) {
+		FetchJob job = new FetchJob(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, callback);
+
+		// no I/O threads, or they are too far behind
+		if (!fetchThreadsStarted || shutdown || !fetchQueue.offer(job)) {
+			job.fetch();
+			job.run();
+			return;
+		}
+		// raced with close(), the I/O threads may be gone
+		if (shutdown && fetchQueue.remove(job)) {
+			job.fetch();
+			job.run();
+		}
+	}
+
+	/** A fetch for {@link #fetchAsync}. {@link #run()} calls back with the result of {@link #fetch()}. */
+	private class FetchJob implements Runnable {
+		private final byte[] routingKey;
+		private final byte[] fullKey;
+		private final boolean dontPromote;
+		private final boolean canReadClientCache;
+		private final boolean canReadSlashdotCache;
+		private final StoreFetchCallback<T> callback;
+		private T block;
+		private IOException failure;
+
+		FetchJob(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+		        boolean canReadSlashdotCache, StoreFetchCallback<T> callback) {
+			this.routingKey = routingKey;
+			this.fullKey = fullKey;
+			this.dontPromote = dontPromote;
+			this.canReadClientCache = canReadClientCache;
+			this.canReadSlashdotCache = canReadSlashdotCache;
+			this.callback = callback;
+		}
+
+		void fetch() {
+			try {
+				block = SaltedHashFreenetStore.this.fetch(routingKey, fullKey, dontPromote, canReadClientCache,
+				        canReadSlashdotCache);
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				// the caller would never hear back otherwise
+				Logger.error(this, "Caught " + e + " fetching from " + name, e);
+				failure = new IOException(e.toString());
+				failure.initCause(e);
+			}
+		}
+
+		public void run() {
+			if (failure != null)
+				callback.onFetchFailed(failure);
+			else
+				callback.onFetched(block);
+		}
+	}
+
+	private class FetchThread extends NativeThread {
+		public FetchThread(int i) {
+			super("Store-" + name + "-IO-" + i, NativeThread.HIGH_PRIORITY, false);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			super.run();
+
+			while (true) {
+				FetchJob job;
+				try {
+					job = fetchQueue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (job == null) {
+					if (shutdown)
+						return; // queue drained
+					continue;
+				}
+
+				try {
+					job.fetch();
+					// don't hold up the disk with the caller's work
+					fetchCallbackExecutor.execute(job, "Store-" + name + " fetch callback");
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " in fetch for " + name, t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serve {@link #fetchAsync} from a pool of dedicated I/O threads. Must be called before
+	 * {@link #start(Ticker)}.
+	 * 
+	 * @param fetchThreadCount
+	 *            number of threads, <code>0</code> to fetch on the calling thread.
+	 * @param callbackExecutor
+	 *            runs the callbacks of the fetches served by the I/O threads.
+	 */
+	public void setFetchThreads(int fetchThreadCount, Executor callbackExecutor) {
+		this.fetchThreadCount = fetchThreadCount;
+		this.fetchCallbackExecutor = callbackExecutor;
+	}
+
+	/** Only for tests: fetching this routing key fails with an IOException */
+	volatile byte[] failFetchForTest;
+
+	private T fetch0(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		byte[] fail = failFetchForTest;
+		if (fail != null && Arrays.equals(fail, routingKey))
+			throw new IOException("failure injected by test");
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -243,7 +486,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				}
 
 				try {
-					StorableBlock block = entry.getStorableBlock(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, null);
+					T block = entry.getStorableBlock(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, null);
 					if (block == null) {
 						misses.incrementAndGet();
 						return null;
@@ -291,6 +534,21 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		Entry entry = null;
 		long[] offset = getOffsetFromPlainKey(routingKey, probeStoreSize);
 
+		List<Entry> entries = readEntries(offset);
+		if (entries != null) {
+			for (int i = 0; i < offset.length; i++) {
+				if (entries.get(i) == null) {
+					if (prevStoreSize == 0) // may occur on store shrinking
+						Logger.error(this, "EOFException on probeEntry", new EOFException());
+					continue;
+				}
+				entry = matchEntry(entries.get(i), routingKey, withData);
+				if (entry != null)
+					return entry;
+			}
+			return null;
+		}
+
 		for (int i = 0; i < offset.length; i++) {
 			if (logDEBUG)
 				Logger.debug(this, "probing for i=" + i + ", offset=" + offset[i]);
@@ -308,13 +566,26 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		return null;
 	}
 
-	public void put(StorableBlock block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
 		if (logMINOR)
 			Logger.minor(this, "Putting " + HexUtil.bytesToHex(routingKey) + " (" + name + ")");
 
+		resetSyscallCount();
+		try {
+			// the writer is falling behind, write the queue here before taking any lock
+			if (writeBehindThread != null && pendingWriteBytes.get() > 2 * writeBehindSize)
+				flushWrites();
+			put0(block, routingKey, fullKey, data, header, overwrite, isOldBlock);
+		} finally {
+			puts.incrementAndGet();
+			putSyscalls.addAndGet(resetSyscallCount());
+		}
+	}
+
+	private void put0(StorableBlock block, byte[] routingKey, byte[] fullKey, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -367,9 +638,11 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 				Entry entry = new Entry(routingKey, header, data, !isOldBlock);
 				long[] offset = entry.getOffset();
+				List<Entry> entries = readEntries(offset);
 
 				for (int i = 0; i < offset.length; i++) {
-					if (offset[i] < storeFileOffsetReady && isFree(offset[i])) {
+					if (offset[i] < storeFileOffsetReady
+					        && (entries == null ? isFree(offset[i]) : entries.get(i) != null && entries.get(i).isFree())) {
 						// write to free block
 						if (logDEBUG)
 							Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
@@ -386,7 +659,10 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				if (logDEBUG)
 					Logger.debug(this, "collision, write to i=0, offset=" + offset[0]);
 				bloomFilter.addKey(cipherManager.getDigestedKey(routingKey));
-				oldEntry = readEntry(offset[0], null, false);
+				if (entries != null && entries.get(0) != null)
+					oldEntry = entries.get(0);
+				else
+					oldEntry = readEntry(offset[0], null, false);
 				writeEntry(entry, offset[0]);
 				writes.incrementAndGet();
 				if (oldEntry.generation == generation)
@@ -406,6 +682,8 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private File metaFile;
 	private RandomAccessFile metaRAF;
 	private FileChannel metaFC;
+	/** Memory mapped view of the meta-data file, <code>null</code> if not mapped */
+	private volatile MappedMetadata metaMap;
 	// header+data file
 	private File hdFile;
 	private RandomAccessFile hdRAF;
@@ -575,13 +853,13 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			return out;
 		}
 
-		private StorableBlock getStorableBlock(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, DSAPublicKey knownKey) throws KeyVerifyException {
+		private T getStorableBlock(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, DSAPublicKey knownKey) throws KeyVerifyException {
 			if (isFree() || header == null || data == null)
 				return null; // this is a free block
 			if (!cipherManager.decrypt(this, routingKey))
 				return null;
 
-			StorableBlock block = callback.construct(data, header, routingKey, fullKey, canReadClientCache, canReadSlashdotCache, knownKey);
+			T block = callback.construct(data, header, routingKey, fullKey, canReadClientCache, canReadSlashdotCache, knownKey);
 			byte[] blockRoutingKey = block.getRoutingKey();
 
 			if (!Arrays.equals(blockRoutingKey, routingKey)) {
@@ -647,36 +925,111 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	 *         the key does not match the entry.
 	 */
 	private Entry readEntry(long offset, byte[] routingKey, boolean withData) throws IOException {
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		MappedMetadata map = metaMap;
+		PendingWrite pending = pendingWrites.isEmpty() ? null : pendingWrites.get(offset);
+		ByteBuffer mbf;
+		if (pending != null)
+			mbf = pending.metaData.duplicate();
+		else
+			mbf = map == null ? null : map.getSlot(offset);
+
+		if (mbf == null) {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+			do {
+				countSyscall();
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
 
-		if (routingKey != null) {
-			if (entry.isFree())
-				return null;
-			if (!Arrays.equals(cipherManager.getDigestedKey(routingKey), entry.digestedRoutingKey))
-				return null;
+		if (routingKey != null)
+			return matchEntry(entry, routingKey, withData);
 
-			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
-				boolean decrypted = cipherManager.decrypt(entry, routingKey);
-				if (!decrypted)
-					return null;
-			}
+		return entry;
+	}
+
+	/**
+	 * Check if an entry matches the routing key, and read and decrypt header + data if requested.
+	 * 
+	 * @return <code>entry</code>, or <code>null</code> if the key does not match the entry.
+	 */
+	private Entry matchEntry(Entry entry, byte[] routingKey, boolean withData) throws IOException {
+		if (entry.isFree())
+			return null;
+		if (!Arrays.equals(cipherManager.getDigestedKey(routingKey), entry.digestedRoutingKey))
+			return null;
+
+		if (withData) {
+			ByteBuffer hdBuf = readHD(entry.curOffset);
+			entry.setHD(hdBuf);
+			boolean decrypted = cipherManager.decrypt(entry, routingKey);
+			if (!decrypted)
+				return null;
 		}
 
 		return entry;
 	}
 
+	/** Meta-data of all the probe offsets of a key, see {@link #readEntries(long[])} */
+	private final ThreadLocal<ByteBuffer> probeBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(OPTION_MAX_PROBE * Entry.METADATA_LENGTH);
+		}
+	};
+
+	/**
+	 * Read the meta-data of all the probe offsets of a key back to back, into one buffer reused by
+	 * the calling thread. Before calling this function, you should acquire all required locks.
+	 * 
+	 * @return entries in the order of <code>offsets</code>, an element is <code>null</code> if the
+	 *         offset is beyond the end of file; or <code>null</code> if batch probing is disabled or
+	 *         not needed (the meta-data is mapped).
+	 */
+	private List<Entry> readEntries(long[] offsets) throws IOException {
+		if (!batchProbe || metaMap != null)
+			return null;
+
+		ByteBuffer buf = probeBuffer.get();
+		List<Entry> entries = new ArrayList<Entry>(offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			// not written to disk yet
+			PendingWrite pending = pendingWrites.isEmpty() ? null : pendingWrites.get(offsets[i]);
+			if (pending != null) {
+				Entry entry = new Entry(pending.metaData.duplicate(), null);
+				entry.curOffset = offsets[i];
+				entries.add(entry);
+				continue;
+			}
+
+			int pos = i * Entry.METADATA_LENGTH;
+			buf.limit(pos + Entry.METADATA_LENGTH);
+			buf.position(pos);
+			long fileOffset = offsets[i] * Entry.METADATA_LENGTH - pos;
+			boolean eof = false;
+			do {
+				countSyscall();
+				if (metaFC.read(buf, fileOffset + buf.position()) == -1)
+					eof = true; // may occur on store shrinking
+			} while (!eof && buf.hasRemaining());
+			if (eof) {
+				entries.add(null);
+				continue;
+			}
+
+			buf.position(pos);
+			Entry entry = new Entry(buf.slice(), null);
+			entry.curOffset = offsets[i];
+			entries.add(entry);
+		}
+		return entries;
+	}
+
 	/**
 	 * Read header + data from disk
 	 * 
@@ -684,10 +1037,15 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
+		PendingWrite pending = pendingWrites.isEmpty() ? null : pendingWrites.get(offset);
+		if (pending != null && pending.hd != null)
+			return pending.hd.duplicate();
+
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 		do {
+			countSyscall();
 			int status = hdFC.read(buf, pos + buf.position());
 			if (status == -1)
 				throw new EOFException();
@@ -719,28 +1077,186 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private void writeEntry(Entry entry, long offset) throws IOException {
 		cipherManager.encrypt(entry, random);
 
-		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		ByteBuffer metaData = entry.toMetaDataBuffer();
+		ByteBuffer hd = entry.toHDBuffer();
+		entry.curOffset = offset;
+
+		if (writeBehindThread != null && !shutdown) {
+			queueWrite(offset, metaData, hd);
+			return;
+		}
+
+		writeMetaData(offset, metaData);
+		if (hd != null)
+			writeHD(offset, hd);
+	}
 
-		bf = entry.toHDBuffer();
-		if (bf != null) {
-			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+	private void writeMetaData(long offset, ByteBuffer bf) throws IOException {
+		MappedMetadata map = metaMap;
+		if (map == null || !map.putSlot(offset, bf)) {
 			do {
-				int status = hdFC.write(bf, pos + bf.position());
+				countSyscall();
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 				if (status == -1)
 					throw new EOFException();
 			} while (bf.hasRemaining());
 		}
+	}
 
-		entry.curOffset = offset;
+	private void writeHD(long offset, ByteBuffer bf) throws IOException {
+		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+		do {
+			countSyscall();
+			int status = hdFC.write(bf, pos + bf.position());
+			if (status == -1)
+				throw new EOFException();
+		} while (bf.hasRemaining());
+	}
+
+	// ------------- Write-behind
+	/** How often the write-behind queue is flushed */
+	private static final int WRITE_BEHIND_PERIOD = 1000; // 1 second
+
+	/** An entry written to the queue but not to disk yet. Buffers are never modified. */
+	private static final class PendingWrite {
+		private final ByteBuffer metaData;
+		private final ByteBuffer hd;
+		private final int size;
+
+		private PendingWrite(ByteBuffer metaData, ByteBuffer hd) {
+			this.metaData = metaData;
+			this.hd = hd;
+			size = metaData.capacity() + (hd == null ? 0 : hd.capacity());
+		}
+	}
+
+	/**
+	 * Entries not written to disk yet, by offset. Readers must check this before reading from disk.
+	 * An entry is only removed after it is written, and only if it was not replaced meanwhile.
+	 */
+	private final Map<Long, PendingWrite> pendingWrites = new ConcurrentHashMap<Long, PendingWrite>();
+	private final AtomicLong pendingWriteBytes = new AtomicLong();
+	/** Serialize flushes */
+	private final Lock flushLock = new ReentrantLock();
+	/** Signalled to flush the queue before the end of the period */
+	private final Lock writeBehindLock = new ReentrantLock();
+	private final Condition writeBehindCondition = writeBehindLock.newCondition();
+	private WriteBehindFlusher writeBehindThread;
+
+	/**
+	 * Queue a write. Caller must hold the lock of the offset. If the queue is over its memory
+	 * budget, wake up the writer thread: we must not write to disk while holding the lock.
+	 */
+	private void queueWrite(long offset, ByteBuffer metaData, ByteBuffer hd) {
+		PendingWrite pending = new PendingWrite(metaData, hd);
+		PendingWrite old = pendingWrites.put(offset, pending);
+		long size = pendingWriteBytes.addAndGet(pending.size - (old == null ? 0 : old.size));
+
+		if (size > writeBehindSize) {
+			writeBehindLock.lock();
+			try {
+				writeBehindCondition.signal();
+			} finally {
+				writeBehindLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write all queued entries to disk, sorted by offset, then sync the store files.
+	 */
+	private void flushWrites() throws IOException {
+		if (pendingWrites.isEmpty())
+			return;
+
+		flushLock.lock();
+		try {
+			SortedMap<Long, PendingWrite> batch = new TreeMap<Long, PendingWrite>(pendingWrites);
+			if (batch.isEmpty())
+				return;
+
+			try {
+				for (Map.Entry<Long, PendingWrite> e : batch.entrySet())
+					writeMetaData(e.getKey(), e.getValue().metaData.duplicate());
+				for (Map.Entry<Long, PendingWrite> e : batch.entrySet())
+					if (e.getValue().hd != null)
+						writeHD(e.getKey(), e.getValue().hd.duplicate());
+
+				MappedMetadata map = metaMap;
+				if (map != null)
+					map.force();
+				metaFC.force(false);
+				hdFC.force(false);
+			} finally {
+				// remove what we wrote, unless replaced meanwhile
+				for (Map.Entry<Long, PendingWrite> e : batch.entrySet()) {
+					if (pendingWrites.remove(e.getKey(), e.getValue()))
+						pendingWriteBytes.addAndGet(-e.getValue().size);
+				}
+			}
+
+			if (logMINOR)
+				Logger.minor(this, "Flushed " + batch.size() + " entries (" + name + ")");
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private class WriteBehindFlusher extends NativeThread {
+		public WriteBehindFlusher() {
+			super("Store-" + name + "-Writer", NativeThread.NORM_PRIORITY, false);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			super.run();
+
+			while (!shutdown) {
+				writeBehindLock.lock();
+				try {
+					if (pendingWriteBytes.get() <= writeBehindSize)
+						writeBehindCondition.await(WRITE_BEHIND_PERIOD, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// check shutdown
+				} finally {
+					writeBehindLock.unlock();
+				}
+				if (shutdown)
+					return; // the rest is written in flushAndClose()
+
+				try {
+					flushWrites();
+				} catch (IOException e) {
+					Logger.error(this, "error flushing write-behind queue of " + name, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue writes in memory and write them in batches, sorted by offset, followed by a single
+	 * sync. Queued entries can be read back before they are written. Must be called before
+	 * {@link #start(Ticker)}.
+	 * 
+	 * Writes still queued are lost if the node crashes; {@link #close()} writes them.
+	 * 
+	 * @param writeBehindSize
+	 *            memory budget of the queue in bytes, <code>0</code> to write synchronously.
+	 *            Beyond it the writer thread flushes at once; at twice this, puts flush it themselves.
+	 */
+	public void setWriteBehindSize(long writeBehindSize) {
+		this.writeBehindSize = writeBehindSize;
 	}
 
 	private void flushAndClose() {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		try {
+			flushWrites();
+		} catch (Exception e) {
+			Logger.error(this, "error flushing write-behind queue", e);
+		}
+		unmapMetadata();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -765,6 +1281,74 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		this.preallocate = preallocate;
 	}
 	
+	/**
+	 * Use a memory mapped meta-data file. Must be called before {@link #start(Ticker)}. Falls back
+	 * to plain file I/O on 32-bit JVMs, for very large stores and while resizing.
+	 * 
+	 * @param mapMetadata
+	 */
+	public void setMapMetadata(boolean mapMetadata) {
+		this.mapMetadata = mapMetadata;
+	}
+
+	/**
+	 * Read all the probe offsets of a key back to back into one reused buffer, instead of one
+	 * buffer per offset. Has no effect when the meta-data is memory mapped.
+	 * 
+	 * @param batchProbe
+	 */
+	public void setBatchProbe(boolean batchProbe) {
+		this.batchProbe = batchProbe;
+	}
+
+	/**
+	 * Set the number of entries in the digested routing key cache.
+	 * 
+	 * @param size
+	 */
+	public void setDigestCacheSize(int size) {
+		cipherManager.setDigestCacheSize(size);
+	}
+
+	/**
+	 * Map the meta-data file, if enabled. Caller must hold the write lock of
+	 * <code>configLock</code>, and the store must not be resizing.
+	 */
+	private void mapMetadata() {
+		assert prevStoreSize == 0;
+		unmapMetadata();
+		if (!mapMetadata || !started)
+			return;
+
+		long length = Entry.METADATA_LENGTH * storeSize;
+		if (!MappedMetadata.canMap(length)) {
+			Logger.normal(this, "Not mapping meta-data of " + name + " (" + length + " bytes) on this JVM");
+			return;
+		}
+		try {
+			metaMap = new MappedMetadata(metaFC, length, Entry.METADATA_LENGTH);
+			if (logMINOR)
+				Logger.minor(this, "Mapped meta-data of " + name + " (" + length + " bytes)");
+		} catch (IOException e) {
+			Logger.error(this, "Can't map meta-data of " + name + ", falling back to file I/O", e);
+		}
+	}
+
+	/**
+	 * Write back and unmap the meta-data, so that the file can be resized. Caller must hold the
+	 * write lock of <code>configLock</code>.
+	 */
+	private void unmapMetadata() {
+		MappedMetadata map = metaMap;
+		metaMap = null;
+		if (map == null)
+			return;
+		// Fetches and puts hold the read lock, but the write-behind thread only holds flushLock.
+		flushLock.lock();
+		flushLock.unlock();
+		map.close();
+	}
+
 	/**
 	 * Change on disk store file size
 	 * 
@@ -853,11 +1437,13 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |                       |
-	 *  +----+-------+-----------------------+
+	 *  |0030|   K   | HVer  | Cleaner Prog  |
+	 *  +----+-------+-------+---------------+
 	 *  
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 * HVer = Hash version of bloom filter, see BloomFilter.HASH_*
+	 * Cleaner Prog = Progress of an interrupted resize or bloom filter rebuild, in chunks
 	 * </pre>
 	 */
 	private final File configFile;
@@ -891,6 +1477,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			}
 			cipherManager = new CipherManager(newsalt, diskSalt);
 			bloomFilterK = BloomFilter.optimialK(bloomFilterSize, storeSize);
+			bloomFilterHashVersion = BloomFilter.HASH_DOUBLE;
 
 			writeConfigFile();
 			return true;
@@ -935,6 +1522,18 @@ public class SaltedHashFreenetStore implements FreenetStore {
 							flags |= FLAG_REBUILD_BLOOM;
 							checkBloom = false;
 						}
+						// 0 (HASH_MERSENNE_TWISTER) in older stores
+						bloomFilterHashVersion = raf.readInt();
+						if (bloomFilterHashVersion != BloomFilter.HASH_MERSENNE_TWISTER
+						        && bloomFilterHashVersion != BloomFilter.HASH_DOUBLE) {
+							bloomFilterHashVersion = BloomFilter.HASH_MERSENNE_TWISTER;
+							flags |= FLAG_REBUILD_BLOOM;
+							checkBloom = false;
+						}
+						// 0 in older stores. Not trusted after a crash, the forked filter may be stale.
+						cleanerProgress = raf.readLong();
+						if ((flags & FLAG_DIRTY) != 0)
+							cleanerProgress = 0;
 					} catch (IOException e) {
 						flags |= FLAG_REBUILD_BLOOM;
 					}
@@ -978,8 +1577,8 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			raf.writeInt(generation);
 			raf.writeInt(flags);
 			raf.writeInt(bloomFilterK);
-			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeInt(bloomFilterHashVersion);
+			raf.writeLong(cleanerProgress);
 
 			raf.getFD().sync();
 			raf.close();
@@ -997,12 +1596,93 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
+	private Lock cleanerStoreLock = new ReentrantLock(); // used instead of the global lock in parallel mode
 	private Cleaner cleanerThread;
 	private CleanerStatusUserAlert cleanerStatusUserAlert;
+	/**
+	 * Chunks processed by the last resize or bloom filter rebuild, <code>0</code> if none was
+	 * interrupted. Only saved after the forked bloom filter is written to {@link #bloomForkFile}.
+	 */
+	private long cleanerProgress;
+	/** The forked filter of an interrupted resize or rebuild was reopened, resume it */
+	private boolean cleanerResume;
+	/** Number of threads used for resize and bloom filter rebuild */
+	private int cleanerThreads = 1;
+	/** Maximum cleaner I/O in bytes per second, <code>0</code> for the default pacing */
+	private long cleanerIORate = 0;
+	/** Bytes read and written by the cleaner */
+	private final AtomicLong cleanerBytes = new AtomicLong();
+
+	/**
+	 * Reopen the forked bloom filter of a resize or rebuild interrupted by a clean shutdown, so
+	 * that it is resumed where it stopped. Must be called before the store is used.
+	 */
+	private void resumeCleaner() {
+		if (cleanerProgress == 0)
+			return;
+
+		boolean resizing = prevStoreSize != 0;
+		if (resizing || (flags & FLAG_REBUILD_BLOOM) != 0) {
+			int k = resizing ? BloomFilter.optimialK(bloomFilterSize, storeSize) : bloomFilterK;
+			try {
+				if (bloomFilter.fork(k, bloomForkFile)) {
+					cleanerResume = true;
+					System.out.println("Resuming " + (resizing ? "resize" : "maintenance") + " of datastore ("
+					        + name + ")");
+					return;
+				}
+				bloomFilter.discard();
+			} catch (IOException e) {
+				Logger.error(this, "can't reopen forked bloom filter (" + name + ")", e);
+			}
+		}
+		cleanerProgress = 0;
+	}
+
+	/**
+	 * Fork the bloom filter to {@link #bloomForkFile}, or to a temporary file if that fails.
+	 * Caller must hold the configLock write lock.
+	 */
+	private void forkBloomFilter(int k) {
+		bloomForkFile.delete();
+		try {
+			bloomFilter.fork(k, bloomForkFile);
+		} catch (IOException e) {
+			Logger.error(this, "can't create forked bloom filter, progress won't be saved (" + name + ")", e);
+			bloomFilter.fork(k);
+		}
+	}
+
+	/**
+	 * Lock held by a resize or bloom filter rebuild. Shared by all the datastores, unless the
+	 * cleaner runs in parallel.
+	 */
+	private Lock getMaintenanceLock() {
+		return cleanerThreads > 1 ? cleanerStoreLock : cleanerGlobalLock;
+	}
+
+	/**
+	 * Resize and rebuild the bloom filter with several threads, each processing its own part of
+	 * the store. Resize and rebuild of different datastores can then run at the same time. Must
+	 * be called before {@link #start(Ticker)}.
+	 */
+	public void setCleanerThreads(int cleanerThreads) {
+		this.cleanerThreads = Math.max(1, cleanerThreads);
+	}
+
+	/**
+	 * Limit the disk I/O of an online resize or bloom filter rebuild.
+	 * 
+	 * @param cleanerIORate
+	 *            bytes per second, <code>0</code> to pause 100ms between chunks.
+	 */
+	public void setCleanerIORate(long cleanerIORate) {
+		this.cleanerIORate = cleanerIORate;
+	}
 	
 	private final Entry NOT_MODIFIED = new Entry();
 
-	private interface BatchProcessor {
+	private interface BatchProcessor<T extends StorableBlock> {
 		// initialize
 		void init();
 
@@ -1017,7 +1697,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		
 		// return <code>null</code> to free the entry
 		// return NOT_MODIFIED to keep the old entry
-		Entry process(Entry entry);
+		SaltedHashFreenetStore<T>.Entry process(SaltedHashFreenetStore<T>.Entry entry);
 	}
 
 	private class Cleaner extends NativeThread {
@@ -1060,13 +1740,14 @@ public class SaltedHashFreenetStore implements FreenetStore {
 						configLock.readLock().unlock();
 					}
 
-					if (_prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
+					Lock maintenanceLock = getMaintenanceLock();
+					if (_prevStoreSize != 0 && maintenanceLock.tryLock()) {
 						try {
 							isResizing = true;
 							resizeStore(_prevStoreSize, true);
 						} finally {
 							isResizing = false;
-							cleanerGlobalLock.unlock();
+							maintenanceLock.unlock();
 						}
 					}
 
@@ -1077,13 +1758,13 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					} finally {
 						configLock.readLock().unlock();
 					}
-					if (_rebuildBloom && prevStoreSize == 0 && cleanerGlobalLock.tryLock()) {
+					if (_rebuildBloom && prevStoreSize == 0 && maintenanceLock.tryLock()) {
 						try {
 							isRebuilding = true;
 							rebuildBloom(false);
 						} finally {
 							isRebuilding = false;
-							cleanerGlobalLock.unlock();
+							maintenanceLock.unlock();
 						}
 					}
 
@@ -1114,8 +1795,10 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		private void resizeStore(final long _prevStoreSize, final boolean sleep) {
 			Logger.normal(this, "Starting datastore resize");
 
-			BatchProcessor resizeProcesser = new BatchProcessor() {
+			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
 				List<Entry> oldEntryList = new LinkedList<Entry>();
+				// chunks are processed in parallel before the list is resolved
+				int maxOldEntries = RESIZE_MEMORY_ENTRIES * cleanerThreads;
 				int optimialK;
 
 				public void init() {
@@ -1125,9 +1808,11 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					optimialK = BloomFilter.optimialK(bloomFilterSize, storeSize);
 					configLock.writeLock().lock();
 					try {
-						generation++;
-						bloomFilter.fork(optimialK);
-						keyCount.set(0);
+						if (!cleanerResume) {
+							generation++;
+							forkBloomFilter(optimialK);
+							keyCount.set(0);
+						}
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1164,9 +1849,12 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.remove(0);
+						cleanerBytes.addAndGet(headerBlockLength + dataBlockLength + hdPadding);
+						synchronized (oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > maxOldEntries)
+								oldEntryList.remove(0);
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
@@ -1185,10 +1873,12 @@ public class SaltedHashFreenetStore implements FreenetStore {
 						setStoreFileSize(Math.max(storeSize, entriesLeft), false);
 
 					// try to resolve the list
-					ListIterator<Entry> it = oldEntryList.listIterator();
-					while (it.hasNext())
-						if (resolveOldEntry(it.next()))
-							it.remove();
+					synchronized (oldEntryList) {
+						ListIterator<Entry> it = oldEntryList.listIterator();
+						while (it.hasNext())
+							if (resolveOldEntry(it.next()))
+								it.remove();
+					}
 
 					return _prevStoreSize == prevStoreSize;
 				}
@@ -1208,6 +1898,10 @@ public class SaltedHashFreenetStore implements FreenetStore {
 						flags &= ~FLAG_REBUILD_BLOOM;
 						checkBloom = true;
 						bloomFilterK = optimialK;
+						// the merged filter may use a new hash version, save it now
+						bloomFilterHashVersion = bloomFilter.getHashVersion();
+						writeConfigFile();
+						mapMetadata();
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1227,7 +1921,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				return;
 			Logger.normal(this, "Start rebuilding bloom filter (" + name + ")");
 
-			BatchProcessor rebuildBloomProcessor = new BatchProcessor() {
+			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				int optimialK;
 
 				public void init() {
@@ -1235,9 +1929,11 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 					configLock.writeLock().lock();
 					try {
-						generation++;
-						bloomFilter.fork(bloomFilterK);
-						keyCount.set(0);
+						if (!cleanerResume) {
+							generation++;
+							forkBloomFilter(bloomFilterK);
+							keyCount.set(0);
+						}
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1271,12 +1967,15 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				}
 
 				public void finish() {
-					bloomFilter.merge();
 					configLock.writeLock().lock();
 					try {
+						bloomFilter.merge();
 						flags &= ~FLAG_REBUILD_BLOOM;
 						checkBloom = true;
 						bloomFilterK = optimialK;
+						// the merged filter may use a new hash version, save it now
+						bloomFilterHashVersion = bloomFilter.getHashVersion();
+						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
 					}
@@ -1290,50 +1989,213 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		/** Speed of the running resize or rebuild, <code>0</code> if unknown */
+		private volatile long entriesPerSecond;
+
+		/** Chunks waiting for a helper thread */
+		private final BlockingQueue<Runnable> cleanerJobs = new LinkedBlockingQueue<Runnable>();
 		
-		private void batchProcessEntries(BatchProcessor processor, long storeSize, boolean reverse, boolean sleep) {
-			entriesLeft = entriesTotal = storeSize;
-			
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
+			long chunks = (storeSize + RESIZE_MEMORY_ENTRIES - 1) / RESIZE_MEMORY_ENTRIES;
+			long startChunk = cleanerResume ? Math.min(cleanerProgress, chunks) : 0;
+			long jobPrevStoreSize;
+			configLock.readLock().lock();
+			try {
+				jobPrevStoreSize = prevStoreSize;
+			} finally {
+				configLock.readLock().unlock();
 			}
 
+			entriesTotal = storeSize;
+			entriesLeft = entriesLeft(startChunk, chunks, storeSize, reverse);
+			entriesPerSecond = 0;
+			if (startChunk > 0)
+				System.err.println(name + " cleaner resuming at " + (entriesTotal - entriesLeft) + "/" + entriesTotal);
+
+			int threads = cleanerThreads;
+			List<CleanerHelper> helpers = new ArrayList<CleanerHelper>(threads - 1);
+			for (int i = 0; i < threads - 1; i++) {
+				CleanerHelper helper = new CleanerHelper(i);
+				helper.start();
+				helpers.add(helper);
+			}
+
+			long startTime = System.currentTimeMillis();
+			long startBytes = cleanerBytes.get();
 			int i = 0;
 			processor.init();
+			cleanerResume = false;
 			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
+				for (long chunk = startChunk; chunk < chunks;) {
 					if (shutdown) {
-						processor.abort();
+						processor.abort(); // keep the progress
 						return;
 					}
 					
 					if (i++ % 64 == 0)
 						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
 						        + entriesTotal);
-						
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
+
+					long[] offsets = new long[(int) Math.min(threads, chunks - chunk)];
+					for (int j = 0; j < offsets.length; j++)
+						offsets[j] = (reverse ? chunks - 1 - (chunk + j) : chunk + j) * RESIZE_MEMORY_ENTRIES;
+					processChunks(offsets, processor);
+					chunk += offsets.length;
+
+					entriesLeft = entriesLeft(chunk, chunks, storeSize, reverse);
+					long elapsed = System.currentTimeMillis() - startTime;
+					if (elapsed > 0)
+						entriesPerSecond = (chunk - startChunk) * RESIZE_MEMORY_ENTRIES * 1000 / elapsed;
+
 					if (!processor.batch(entriesLeft)) {
 						processor.abort();
+						clearProgress();
 						return;
 					}
 
-					try {
-						if (sleep) 
-							Thread.sleep(100);
-					} catch (InterruptedException e) {
-						processor.abort();
-						return;
-					}
+					if (i % 16 == 0)
+						saveProgress(chunk, jobPrevStoreSize);
+
+					if (sleep) 
+						throttle(startTime, startBytes);
+				}
+				configLock.writeLock().lock();
+				try {
+					cleanerProgress = 0;
+				} finally {
+					configLock.writeLock().unlock();
 				}
 				processor.finish();
+				bloomForkFile.delete();
+			} catch (InterruptedException e) {
+				processor.abort(); // shutting down, keep the progress
 			} catch (Exception e) {
+				Logger.error(this, "cleaner failed (" + name + ")", e);
 				processor.abort();
+				if (!shutdown)
+					clearProgress();
+			} finally {
+				for (CleanerHelper helper : helpers)
+					helper.finish();
+				entriesPerSecond = 0;
+			}
+		}
+
+		private long entriesLeft(long chunk, long chunks, long storeSize, boolean reverse) {
+			if (reverse)
+				return Math.min((chunks - chunk) * RESIZE_MEMORY_ENTRIES, storeSize);
+			return Math.max(storeSize - chunk * RESIZE_MEMORY_ENTRIES, 0);
+		}
+
+		/**
+		 * Process chunks, on the helper threads and this thread. Returns when all are processed.
+		 */
+		private void processChunks(long[] offsets, final BatchProcessor<T> processor) throws InterruptedException {
+			if (offsets.length == 1) {
+				batchProcessEntries(offsets[0], RESIZE_MEMORY_ENTRIES, processor);
+				return;
+			}
+
+			final CountDownLatch done = new CountDownLatch(offsets.length);
+			final Throwable[] failure = new Throwable[1];
+			for (final long offset : offsets) {
+				cleanerJobs.add(new Runnable() {
+					public void run() {
+						try {
+							batchProcessEntries(offset, RESIZE_MEMORY_ENTRIES, processor);
+						} catch (Throwable t) {
+							synchronized (failure) {
+								failure[0] = t;
+							}
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+
+			Runnable job;
+			while ((job = cleanerJobs.poll()) != null)
+				job.run();
+			done.await();
+
+			synchronized (failure) {
+				if (failure[0] != null)
+					throw new RuntimeException(failure[0]);
+			}
+		}
+
+		/**
+		 * Sleep to keep the I/O rate under {@link #cleanerIORate}.
+		 */
+		private void throttle(long startTime, long startBytes) throws InterruptedException {
+			long rate = cleanerIORate;
+			if (rate <= 0) {
+				Thread.sleep(100);
+				return;
+			}
+
+			long due = startTime + (cleanerBytes.get() - startBytes) * 1000 / rate;
+			long wait = due - System.currentTimeMillis();
+			if (wait > 0)
+				Thread.sleep(wait);
+		}
+
+		/**
+		 * Save the progress, unless another job has started meanwhile.
+		 */
+		private void saveProgress(long chunk, long jobPrevStoreSize) {
+			bloomFilter.forceForked();
+			configLock.writeLock().lock();
+			try {
+				if (prevStoreSize != jobPrevStoreSize)
+					return;
+				cleanerProgress = chunk;
+				writeConfigFile();
+			} finally {
+				configLock.writeLock().unlock();
+			}
+		}
+
+		private void clearProgress() {
+			configLock.writeLock().lock();
+			try {
+				cleanerProgress = 0;
+				writeConfigFile();
+			} finally {
+				configLock.writeLock().unlock();
+			}
+			bloomForkFile.delete();
+		}
+
+		private class CleanerHelper extends NativeThread {
+			private volatile boolean finished;
+
+			public CleanerHelper(int i) {
+				super("Store-" + name + "-Cleaner-" + i, NativeThread.LOW_PRIORITY, false);
+				setPriority(MIN_PRIORITY);
+				setDaemon(true);
+			}
+
+			@Override
+			public void run() {
+				super.run();
+
+				while (!finished && !shutdown) {
+					Runnable job;
+					try {
+						job = cleanerJobs.poll(1, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						continue;
+					}
+					if (job != null)
+						job.run();
+				}
+			}
+
+			void finish() {
+				finished = true;
+				interrupt();
 			}
 		}
 
@@ -1350,21 +2212,35 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		 * @return <code>true</code> if operation complete successfully; <code>false</code>
 		 *         otherwise (e.g. can't acquire locks, node shutting down)
 		 */
-		private boolean batchProcessEntries(long offset, int length, BatchProcessor processor) {
+		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			Condition[] locked = new Condition[length];
 			try {
 				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
+				SortedSet<Long> lockOffsets = new TreeSet<Long>(lockManager.getLockOrder());
+				for (int i = 0; i < length; i++)
+					lockOffsets.add(offset + i);
+				for (long lockOffset : lockOffsets) {
+					int i = (int) (lockOffset - offset);
+					locked[i] = lockManager.lockEntry(lockOffset);
 					if (locked[i] == null)
 						return false;
 				}
 
+				// queued writes may be in this region
+				try {
+					flushWrites();
+				} catch (IOException ioe) {
+					if (shutdown)
+						return false;
+					Logger.error(this, "unexpected IOException", ioe);
+				}
+
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
 				long bufLen = Entry.METADATA_LENGTH * entriesToRead;
 
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
+				cleanerBytes.addAndGet(bufLen);
 				boolean dirty = false;
 				try {
 					while (buf.hasRemaining()) {
@@ -1417,6 +2293,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					// write back.
 					if (dirty) {
 						buf.flip();
+						cleanerBytes.addAndGet(buf.remaining());
 
 						try {
 							while (buf.hasRemaining()) {
@@ -1521,16 +2398,24 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		}
 
 		public String getText() {
+			String text;
 			if (cleaner.isResizing)
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
+				text = NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
 				        new String[] { "name", "processed", "total" },// 
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
 				                cleaner.entriesTotal + "" });
 			else
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress", //
+				text = NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress", //
 				        new String[] { "name", "processed", "total" },// 
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
 				                cleaner.entriesTotal + "" });
+
+			long speed = cleaner.entriesPerSecond;
+			if (speed > 0)
+				text += " " + NodeL10n.getBase().getString("SaltedHashFreenetStore.cleanerSpeed", //
+				        new String[] { "speed", "eta" }, //
+				        new String[] { speed + "", TimeUtil.formatTime(cleaner.entriesLeft * 1000 / speed) });
+			return text;
 		}
 
 		public String getTitle() {
@@ -1588,6 +2473,10 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			// the file will be resized, fall back to file I/O until finished
+			unmapMetadata();
+			// a new job, anything interrupted is abandoned
+			cleanerProgress = 0;
 			writeConfigFile();
 		} finally {
 			configLock.writeLock().unlock();
@@ -1629,7 +2518,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
 		// use a set to prevent duplicated offsets,
 		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
+		SortedSet<Long> offsets = new TreeSet<Long>(lockManager.getLockOrder());
 		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
 		for (long offset : offsetArray)
 			offsets.add(offset);
@@ -1706,6 +2595,8 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		} finally {
 			cleanerLock.unlock();
 		}
+		if (writeBehindThread != null)
+			writeBehindThread.interrupt();
 
 		configLock.writeLock().lock();
 		try {
@@ -1744,6 +2635,32 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private AtomicLong writes = new AtomicLong();
 	private AtomicLong keyCount = new AtomicLong();
 	private AtomicLong bloomFalsePos = new AtomicLong();
+	private AtomicLong fetches = new AtomicLong();
+	private AtomicLong fetchSyscalls = new AtomicLong();
+	private AtomicLong puts = new AtomicLong();
+	private AtomicLong putSyscalls = new AtomicLong();
+
+	/** Number of read/write calls done by the current thread, see {@link #resetSyscallCount()} */
+	private final ThreadLocal<int[]> syscallCount = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private void countSyscall() {
+		syscallCount.get()[0]++;
+	}
+
+	/**
+	 * @return number of read/write calls done by the current thread since the last reset.
+	 */
+	private int resetSyscallCount() {
+		int[] count = syscallCount.get();
+		int ret = count[0];
+		count[0] = 0;
+		return ret;
+	}
 
 	public long hits() {
 		return hits.get();
@@ -1772,6 +2689,43 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		return bloomFalsePos.get();
 	}
 
+	/** Average number of read/write calls per fetch */
+	public double getSyscallsPerFetch() {
+		long _fetches = fetches.get();
+		return _fetches == 0 ? 0 : 1.0 * fetchSyscalls.get() / _fetches;
+	}
+
+	/** Average number of read/write calls per put */
+	public double getSyscallsPerPut() {
+		long _puts = puts.get();
+		return _puts == 0 ? 0 : 1.0 * putSyscalls.get() / _puts;
+	}
+
+	/** Number of digested routing key cache hits */
+	public long getDigestCacheHits() {
+		return cipherManager.getDigestCache().hits();
+	}
+
+	/** Number of digested routing key cache misses */
+	public long getDigestCacheMisses() {
+		return cipherManager.getDigestCache().misses();
+	}
+
+	/** Number of slot locks acquired */
+	public long getLockCount() {
+		return lockManager.getLockCount();
+	}
+
+	/** Number of slot locks which had to wait for another thread */
+	public long getLockWaitCount() {
+		return lockManager.getLockWaitCount();
+	}
+
+	/** Total time spent waiting for slot locks, in milliseconds */
+	public long getLockWaitTime() {
+		return lockManager.getLockWaitTime();
+	}
+
 	// ------------- Migration
 	public void migrationFrom(File storeFile, File keyFile) {
 		try {
@@ -1804,7 +2758,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				}
 
 				try {
-					StorableBlock b = callback.construct(data, header, null, keyRead ? key : null, false, false, null);
+					T b = callback.construct(data, header, null, keyRead ? key : null, false, false, null);
 					put(b, data, header, true, true);
 				} catch (KeyVerifyException e) {
 					System.out.println("kve at block " + l);
@@ -1835,5 +2789,6 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		hdFile.delete();
 		configFile.delete();
 		bloomFile.delete();
+		bloomForkFile.delete();
 	}
 }
@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.support.Logger;
+
+/**
+ * Striped Lock Manager
+ *
+ * Offsets are hashed onto a fixed number of stripes, each with its own lock. Unlike
+ * {@link LockManager}, there is no global lock and nothing is allocated per call. Two offsets
+ * sharing a stripe are locked together; the stripe locks are re-entrant, so a thread locking
+ * several offsets of the same stripe is fine as long as it locks them in
+ * {@link #getLockOrder()}.
+ */
+public class StripedLockManager extends LockManager {
+	private static boolean logDEBUG;
+
+	private final ReentrantLock[] stripes;
+	/** One condition per stripe, returned as the lock token. Never signalled. */
+	private final Condition[] tokens;
+	private final int mask;
+
+	private final Comparator<Long> lockOrder = new Comparator<Long>() {
+		public int compare(Long o1, Long o2) {
+			int s1 = stripeOf(o1);
+			int s2 = stripeOf(o2);
+			if (s1 != s2)
+				return s1 < s2 ? -1 : 1;
+			return o1.compareTo(o2);
+		}
+	};
+
+	/**
+	 * @param stripeCount
+	 *            number of stripes, rounded up to a power of two.
+	 */
+	StripedLockManager(int stripeCount) {
+		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
+
+		int size = 1;
+		while (size < stripeCount)
+			size <<= 1;
+		mask = size - 1;
+
+		stripes = new ReentrantLock[size];
+		tokens = new Condition[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new ReentrantLock();
+			tokens[i] = stripes[i].newCondition();
+		}
+	}
+
+	private int stripeOf(long offset) {
+		// spread the bits, neighbouring offsets should not share a stripe
+		long h = offset ^ (offset >>> 32);
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (int) h & mask;
+	}
+
+	@Override
+	Condition lockEntry(long offset) {
+		if (logDEBUG)
+			Logger.debug(this, "try locking " + offset);
+
+		int stripe = stripeOf(offset);
+		ReentrantLock lock = stripes[stripe];
+		long waitStart = -1;
+		try {
+			if (!lock.tryLock()) {
+				waitStart = System.nanoTime();
+				do {
+					if (shutdown)
+						return null;
+				} while (!lock.tryLock(10, TimeUnit.SECONDS)); // 10s for checking shutdown
+			}
+		} catch (InterruptedException e) {
+			Logger.error(this, "lock interrupted", e);
+			return null;
+		}
+
+		if (shutdown) {
+			lock.unlock();
+			return null;
+		}
+		lockAcquired(waitStart);
+
+		if (logDEBUG)
+			Logger.debug(this, "locked " + offset);
+		return tokens[stripe];
+	}
+
+	@Override
+	void unlockEntry(long offset, Condition condition) {
+		if (logDEBUG)
+			Logger.debug(this, "unlocking " + offset);
+
+		int stripe = stripeOf(offset);
+		assert tokens[stripe] == condition;
+		stripes[stripe].unlock();
+	}
+
+	@Override
+	Comparator<Long> getLockOrder() {
+		return lockOrder;
+	}
+
+	/**
+	 * Shutdown and wait for all entries unlocked
+	 */
+	@Override
+	void shutdown() {
+		shutdown = true;
+		for (ReentrantLock lock : stripes) {
+			lock.lock();
+			lock.unlock();
+		}
+	}
+}
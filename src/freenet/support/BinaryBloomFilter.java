@@ -77,10 +77,17 @@ public class BinaryBloomFilter extends BloomFilter {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
 			forkedFilter = new BinaryBloomFilter(tempFile, length, k);
+			forkedFilter.setHashVersion(HASH_DOUBLE);
 		} catch (IOException e) {
 			forkedFilter = new BinaryBloomFilter(length, k);
+			forkedFilter.setHashVersion(HASH_DOUBLE);
 		} finally {
 			lock.writeLock().unlock();
 		}
 	}
+
+	@Override
+	protected BloomFilter createForkedFilter(File file, int k) throws IOException {
+		return new BinaryBloomFilter(file, length, k);
+	}
 }
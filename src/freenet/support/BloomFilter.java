@@ -12,13 +12,31 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.spaceroots.mantissa.random.MersenneTwister;
 
 public abstract class BloomFilter {
+	/** Hash a key by seeding a MersenneTwister with it. Used by filters created before HASH_DOUBLE. */
+	public static final int HASH_MERSENNE_TWISTER = 0;
+	/**
+	 * Double hashing: the k indexes are h1 + i * h2, with h1 and h2 taken from the last 16 bytes of
+	 * the key. Keys must be cryptographic hashes (e.g. SHA-256 digests). Shorter keys fall back to
+	 * {@link #HASH_MERSENNE_TWISTER}.
+	 */
+	public static final int HASH_DOUBLE = 1;
+
 	protected ByteBuffer filter;
 
 	/** Number of hash functions */
 	protected final int k;
 	protected final int length;
+	/** How the indexes of a key are computed, {@link #HASH_MERSENNE_TWISTER} or {@link #HASH_DOUBLE} */
+	protected volatile int hashVersion = HASH_MERSENNE_TWISTER;
 
 	protected ReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Incremented after every change made under the write lock, so that lock-free readers see the
+	 * changes.
+	 */
+	private volatile int modCount;
+	/** Odd while a bulk change ({@link #merge()}, {@link #unsetAll()}) is in progress. */
+	private volatile int bulkModCount;
 
 	public static BloomFilter createFilter(int length, int k, boolean counting) {
 		if (length == 0)
@@ -48,11 +66,14 @@ public abstract class BloomFilter {
 
 	//-- Core
 	public void addKey(byte[] key) {
-		Random hashes = getHashes(key);
 		lock.writeLock().lock();
 		try {
+			Random hashes = getHashes(key);
+			long h1 = hashes == null ? getHash1(key) : 0;
+			long h2 = hashes == null ? getHash2(key) : 0;
 			for (int i = 0; i < k; i++)
-				setBit(hashes.nextInt(length));
+				setBit(getIndex(hashes, h1, h2, i));
+			modCount++;
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -67,25 +88,51 @@ public abstract class BloomFilter {
 			forkedFilter.addKey(key);
 	}
 
+	/**
+	 * Check if a key is probably in the filter.
+	 * 
+	 * This does not take the lock unless a bulk change ({@link #merge()}, {@link #unsetAll()}) is
+	 * in progress: single bits are updated atomically (a byte at a time), so a key which is in the
+	 * filter never looks missing while other keys are added or removed.
+	 */
 	public boolean checkFilter(byte[] key) {
-		Random hashes = getHashes(key);
+		int bulk = bulkModCount;
+		if ((bulk & 1) == 0) {
+			@SuppressWarnings("unused")
+			int mod = modCount; // volatile read: see the changes made under the write lock
+			boolean result = checkFilter0(key);
+			mod = modCount; // volatile read: keep the reads of the filter above before the recheck
+			if (bulk == bulkModCount)
+				return result;
+		}
+
 		lock.readLock().lock();
 		try {
-			for (int i = 0; i < k; i++)
-				if (!getBit(hashes.nextInt(length)))
-					return false;
+			return checkFilter0(key);
 		} finally {
 			lock.readLock().unlock();
 		}
+	}
+
+	private boolean checkFilter0(byte[] key) {
+		Random hashes = getHashes(key);
+		long h1 = hashes == null ? getHash1(key) : 0;
+		long h2 = hashes == null ? getHash2(key) : 0;
+		for (int i = 0; i < k; i++)
+			if (!getBit(getIndex(hashes, h1, h2, i)))
+				return false;
 		return true;
 	}
 
 	public void removeKey(byte[] key) {
-		Random hashes = getHashes(key);
 		lock.writeLock().lock();
 		try {
+			Random hashes = getHashes(key);
+			long h1 = hashes == null ? getHash1(key) : 0;
+			long h2 = hashes == null ? getHash2(key) : 0;
 			for (int i = 0; i < k; i++)
-				unsetBit(hashes.nextInt(length));
+				unsetBit(getIndex(hashes, h1, h2, i));
+			modCount++;
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -103,24 +150,108 @@ public abstract class BloomFilter {
 	
 	// Wierd impl's should override
 	public void unsetAll() {
-		int x = filter.limit();
-		for(int i=0;i<x;i++)
-			filter.put(i, (byte)0);
+		lock.writeLock().lock();
+		try {
+			bulkModCount++;
+			int x = filter.limit();
+			for(int i=0;i<x;i++)
+				filter.put(i, (byte)0);
+		} finally {
+			bulkModCount++;
+			lock.writeLock().unlock();
+		}
 	}
 
+	/**
+	 * @return a MersenneTwister seeded with the key, or <code>null</code> if the key is hashed
+	 *         with {@link #HASH_DOUBLE}.
+	 */
 	protected Random getHashes(byte[] key) {
+		if (hashVersion == HASH_DOUBLE && key.length >= 16)
+			return null;
 		return new MersenneTwister(key);
 	}
 
+	private static long getHash1(byte[] key) {
+		return Fields.bytesToLong(key, key.length - 16);
+	}
+
+	private static long getHash2(byte[] key) {
+		return Fields.bytesToLong(key, key.length - 8) | 1; // odd, never 0
+	}
+
+	/**
+	 * Get the i-th index of a key.
+	 * 
+	 * @param hashes
+	 *            from {@link #getHashes(byte[])}, or <code>null</code> for double hashing with
+	 *            <code>h1</code> and <code>h2</code>.
+	 */
+	private int getIndex(Random hashes, long h1, long h2, int i) {
+		if (hashes != null)
+			return hashes.nextInt(length);
+		return (int) (((h1 + i * h2) & Long.MAX_VALUE) % length);
+	}
+
+	public int getHashVersion() {
+		return hashVersion;
+	}
+
+	/**
+	 * Set how keys are hashed. Must be called before any key is added, and must match the
+	 * version the filter was built with.
+	 */
+	public void setHashVersion(int hashVersion) {
+		if (hashVersion != HASH_MERSENNE_TWISTER && hashVersion != HASH_DOUBLE)
+			throw new IllegalArgumentException("Unknown hash version: " + hashVersion);
+		this.hashVersion = hashVersion;
+	}
+
 	//-- Fork & Merge
 	protected BloomFilter forkedFilter;
 
 	/**
 	 * Create an empty, in-memory copy of bloom filter. New updates are written to both filters.
 	 * This is written back to disk on #merge()
+	 * 
+	 * The copy always uses {@link #HASH_DOUBLE}, so a filter using an older hash version is
+	 * upgraded on the next rebuild. Callers persisting the hash version must save
+	 * {@link #getHashVersion()} after {@link #merge()}.
 	 */
 	public abstract void fork(int k);
 
+	/**
+	 * Like {@link #fork(int)}, but keep the copy in <code>file</code>, so that it survives a
+	 * restart. If the file already holds a copy of the right size, it is reused as it is.
+	 * 
+	 * @return <code>true</code> if an existing copy was reused.
+	 */
+	public boolean fork(int k, File file) throws IOException {
+		lock.writeLock().lock();
+		try {
+			BloomFilter forked = createForkedFilter(file, k);
+			forked.setHashVersion(HASH_DOUBLE);
+			forkedFilter = forked;
+			return !forked.needRebuild();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Create a filter of the same type and length, backed by <code>file</code>.
+	 */
+	protected abstract BloomFilter createForkedFilter(File file, int k) throws IOException;
+
+	/**
+	 * Write the forked copy to disk, if it is backed by a file.
+	 */
+	public void forceForked() {
+		BloomFilter forked = forkedFilter;
+		if (forked != null)
+			forked.force();
+	}
+
 	public void merge() {
 		lock.writeLock().lock();
 		try {
@@ -130,15 +261,18 @@ public abstract class BloomFilter {
 			Lock forkedLock = forkedFilter.lock.writeLock();
 			forkedLock.lock();
 			try {
+				bulkModCount++;
 				filter.position(0);
 				forkedFilter.filter.position(0);
 
 				filter.put(forkedFilter.filter);
 
 				filter.position(0);
+				hashVersion = forkedFilter.hashVersion;
 				forkedFilter.close();
 				forkedFilter = null;
 			} finally {
+				bulkModCount++;
 				forkedLock.unlock();
 			}
 		} finally {
@@ -22,7 +22,6 @@ package freenet.support;
 import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 
 import freenet.io.WritableToDataOutputStream;
 
@@ -144,10 +143,7 @@ public class Buffer implements WritableToDataOutputStream {
 		if (_length != buffer._length) {
 			return false;
 		}
-		if (_start != buffer._start) {
-			return false;
-		}
-		if (!Arrays.equals(_data, buffer._data)) {
+		if (!Fields.byteArrayEqual(_data, buffer._data, _start, buffer._start, _length)) {
 			return false;
 		}
 
@@ -156,7 +152,7 @@ public class Buffer implements WritableToDataOutputStream {
 
 	@Override
 	public int hashCode() {
-	    return Fields.hashCode(_data) ^ _start ^ _length;
+	    return Fields.hashCode(_data, _start, _length) ^ _length;
 	}
 	
 	public int getLength() {
@@ -103,10 +103,17 @@ public class CountingBloomFilter extends BloomFilter {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
 			forkedFilter = new CountingBloomFilter(tempFile, length, k);
+			forkedFilter.setHashVersion(HASH_DOUBLE);
 		} catch (IOException e) {
 			forkedFilter = new CountingBloomFilter(length, k);
+			forkedFilter.setHashVersion(HASH_DOUBLE);
 		} finally {
 			lock.writeLock().unlock();
 		}
 	}
+
+	@Override
+	protected BloomFilter createForkedFilter(File file, int k) throws IOException {
+		return new CountingBloomFilter(file, length, k);
+	}
 }
@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Approximate access frequency of keys, for cache admission (TinyLFU).
+ *
+ * A count-min sketch with four 4-bit counters per key, sixteen counters packed in each long. The
+ * estimate is the smallest of the four counters. Once there have been ten increments per entry
+ * of the table, all counters are halved, so that keys which are no longer popular fade away.
+ *
+ * Not thread safe, callers must synchronize.
+ */
+public class FrequencySketch {
+	/** Largest value of a counter */
+	public static final int MAX_FREQUENCY = 15;
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+	        0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param capacity
+	 *            approximate number of distinct keys of interest, e.g. the number of entries of
+	 *            the cache.
+	 */
+	public FrequencySketch(int capacity) {
+		capacity = Math.max(capacity, 1);
+		int size = 1;
+		while (size < capacity && size < (1 << 30))
+			size <<= 1;
+		table = new long[size];
+		mask = size - 1;
+		sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+	}
+
+	/** Hash a key, e.g. a routing key */
+	public static long hash(byte[] key) {
+		return Fields.longHashCode(key);
+	}
+
+	/** Record an access to a key */
+	public void increment(long hash) {
+		int start = (int) (spread(hash) & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++)
+			added |= incrementAt(indexOf(hash, i), start + i);
+		if (added && ++additions >= sampleSize)
+			reset();
+	}
+
+	/** @return the estimated number of recent accesses of a key, at most {@link #MAX_FREQUENCY} */
+	public int frequency(long hash) {
+		int start = (int) (spread(hash) & 3) << 2;
+		int frequency = MAX_FREQUENCY;
+		for (int i = 0; i < 4; i++) {
+			int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	private boolean incrementAt(int index, int counter) {
+		int shift = counter << 2;
+		long bits = 0xfL << shift;
+		if ((table[index] & bits) == bits)
+			return false;
+		table[index] += 1L << shift;
+		return true;
+	}
+
+	/** Halve all counters */
+	void reset() {
+		for (int i = 0; i < table.length; i++)
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		additions /= 2;
+	}
+
+	private int indexOf(long hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & mask;
+	}
+
+	private static long spread(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -99,6 +99,19 @@ public class ShortBuffer implements WritableToDataOutputStream {
 		System.arraycopy(_data, _start, array, position, _length);
 	}
 
+	/**
+	 * The array this buffer is a slice of, without copying. DO NOT MODIFY IT, and read only
+	 * <code>getLength()</code> bytes from <code>getOffset()</code>.
+	 */
+	public byte[] getBackingArray() {
+		return _data;
+	}
+
+	/** @return The offset of the data in <code>getBackingArray()</code> */
+	public int getOffset() {
+		return _start;
+	}
+
 	public byte byteAt(int pos) {
 		if (pos >= _length) {
 			throw new ArrayIndexOutOfBoundsException();
@@ -140,10 +153,7 @@ public class ShortBuffer implements WritableToDataOutputStream {
 		if (_length != buffer._length) {
 			return false;
 		}
-		if (_start != buffer._start) {
-			return false;
-		}
-		if (!Arrays.equals(_data, buffer._data)) {
+		if (!Fields.byteArrayEqual(_data, buffer._data, _start, buffer._start, _length)) {
 			return false;
 		}
 
@@ -152,7 +162,7 @@ public class ShortBuffer implements WritableToDataOutputStream {
 
 	@Override
 	public int hashCode() {
-	    return Fields.hashCode(_data) ^ _start ^ (_length << 16);
+	    return Fields.hashCode(_data, _start, _length) ^ (_length << 16);
 	}
 	
 	public int getLength() {
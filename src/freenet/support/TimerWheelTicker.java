@@ -0,0 +1,349 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.node.FastRunnable;
+import freenet.node.Ticker;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker on a hierarchical timer wheel, with its own thread.
+ *
+ * Time is divided into ticks of {@link #TICK_LENGTH} milliseconds. Each level of the wheel has
+ * {@link #SLOTS} slots, a slot of the first level is one tick, a slot of the next level is a
+ * whole turn of the previous level, and so on. A job goes in the slot of its deadline on the
+ * lowest level which covers it. When the first level completes a turn, the next slot of the
+ * level above is emptied into the lower levels. So queueing and removing a job take constant
+ * time, and each job is moved at most once per level.
+ *
+ * The thread runs at maximum priority, so jobs it runs on the executor can be given any
+ * priority (see {@link PooledExecutor}). FastRunnable's are run on the ticker thread itself.
+ */
+public class TimerWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(Logger.MINOR, this);
+			}
+		});
+	}
+
+	/** Length of a tick in milliseconds. Jobs run at most this late, if the ticker is not busy. */
+	static final int TICK_LENGTH = 10;
+	private static final int SLOT_BITS = 8;
+	/** Slots per level */
+	static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	/** 4 levels cover 2^32 ticks, more than a year */
+	private static final int LEVELS = 4;
+	private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+	private static final class Job {
+		final String name;
+		final Runnable job;
+		long deadline;
+		/** Slot list */
+		Job prev;
+		Job next;
+		int level;
+		int slot;
+		/** Other queued jobs with the same Runnable */
+		Job nextSameJob;
+
+		Job(String name, Runnable job) {
+			this.name = name;
+			this.job = job;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final Executor executor;
+	private final NativeThread thread;
+	/** Head of the list of jobs in each slot of each level */
+	private final Job[][] wheel = new Job[LEVELS][SLOTS];
+	/** Queued jobs by Runnable, for noDupes and removal */
+	private final IdentityHashMap<Runnable, Job> jobsByRunnable = new IdentityHashMap<Runnable, Job>();
+	/** Jobs in the first level */
+	private int nearJobs;
+	private int size;
+	/** The last tick processed */
+	private long currentTick;
+	/** When the ticker thread will next wake up, in ticks */
+	private long wakeTick;
+	private boolean stopped;
+
+	public TimerWheelTicker(Executor executor, String name) {
+		this.executor = executor;
+		currentTick = System.currentTimeMillis() / TICK_LENGTH;
+		wakeTick = Long.MAX_VALUE;
+		thread = new NativeThread(this, name, NativeThread.MAX_PRIORITY, false);
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/** Stop the ticker thread. Jobs still queued are not run. */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time.
+	 * @param runner The job to run. FastRunnable's get run directly on the ticker thread.
+	 * @param name The name of the job, the thread running it will temporarily take this name,
+	 * assuming it is run on a separate thread.
+	 * @param offset The time at which to run the job in milliseconds after
+	 * System.currentTimeMillis().
+	 * @param runOnTickerAnyway If false, run jobs with offset <=0 directly on the executor; if
+	 * true, queue them anyway, so they are started from the ticker thread, which can give them
+	 * a higher priority.
+	 * @param noDupes Don't queue this job if it is already queued.
+	 */
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		// Run directly *if* that won't cause any priority problems.
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		if(offset < 0) offset = 0;
+		long deadline = (System.currentTimeMillis() + offset + TICK_LENGTH - 1) / TICK_LENGTH;
+		Job job = new Job(name, runner);
+		synchronized(this) {
+			Job other = jobsByRunnable.get(runner);
+			if(noDupes && other != null) {
+				Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+				return;
+			}
+			job.nextSameJob = other;
+			jobsByRunnable.put(runner, job);
+			job.deadline = deadline;
+			insert(job);
+			size++;
+			if(deadline < wakeTick)
+				notifyAll();
+		}
+	}
+
+	/**
+	 * Remove all queued instances of a job.
+	 * @return True if the job was queued.
+	 */
+	public synchronized boolean removeQueuedJob(Runnable runner) {
+		Job job = jobsByRunnable.remove(runner);
+		if(job == null) return false;
+		for(; job != null; job = job.nextSameJob) {
+			unlink(job);
+			size--;
+		}
+		return true;
+	}
+
+	/** @return The number of queued jobs */
+	public synchronized int queuedJobs() {
+		return size;
+	}
+
+	/** Put a job in the slot for its deadline. Caller must hold the lock. */
+	private void insert(Job job) {
+		if(job.deadline <= currentTick)
+			job.deadline = currentTick + 1;
+		long delta = Math.min(job.deadline - currentTick, MAX_TICKS);
+		int level = 0;
+		while(delta >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+		// The slot may be the current one of its level, if the deadline is a whole turn away:
+		// it will be emptied when the level comes round to it again.
+		int slot = (int) ((currentTick + delta) >>> (SLOT_BITS * level)) & SLOT_MASK;
+		job.level = level;
+		job.slot = slot;
+		job.prev = null;
+		job.next = wheel[level][slot];
+		if(job.next != null)
+			job.next.prev = job;
+		wheel[level][slot] = job;
+		if(level == 0)
+			nearJobs++;
+	}
+
+	/** Remove a job from its slot. Caller must hold the lock. */
+	private void unlink(Job job) {
+		if(job.prev != null)
+			job.prev.next = job.next;
+		else
+			wheel[job.level][job.slot] = job.next;
+		if(job.next != null)
+			job.next.prev = job.prev;
+		job.prev = null;
+		job.next = null;
+		if(job.level == 0)
+			nearJobs--;
+	}
+
+	/** Forget a job which is about to run. Caller must hold the lock. */
+	private void forget(Job job) {
+		Job first = jobsByRunnable.get(job.job);
+		if(first == job) {
+			if(job.nextSameJob == null)
+				jobsByRunnable.remove(job.job);
+			else
+				jobsByRunnable.put(job.job, job.nextSameJob);
+		} else {
+			for(Job j = first; j != null; j = j.nextSameJob) {
+				if(j.nextSameJob == job) {
+					j.nextSameJob = job.nextSameJob;
+					break;
+				}
+			}
+		}
+		job.nextSameJob = null;
+		size--;
+	}
+
+	/**
+	 * Advance the wheel to a tick.
+	 * @return The jobs which are due. Caller must hold the lock.
+	 */
+	private List<Job> advance(long nowTick) {
+		List<Job> jobsToRun = null;
+		while(currentTick < nowTick) {
+			if(size == 0) {
+				currentTick = nowTick;
+				break;
+			}
+			currentTick++;
+			int slot = (int) (currentTick & SLOT_MASK);
+			if(slot == 0)
+				cascade(1);
+			Job job = wheel[0][slot];
+			while(job != null) {
+				Job next = job.next;
+				unlink(job);
+				forget(job);
+				if(jobsToRun == null)
+					jobsToRun = new ArrayList<Job>();
+				jobsToRun.add(job);
+				job = next;
+			}
+		}
+		return jobsToRun;
+	}
+
+	/** Move the jobs in the current slot of a level down to the lower levels. */
+	private void cascade(int level) {
+		if(level >= LEVELS) return;
+		int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+		if(slot == 0)
+			cascade(level + 1);
+		Job job = wheel[level][slot];
+		wheel[level][slot] = null;
+		while(job != null) {
+			Job next = job.next;
+			insert(job);
+			job = next;
+		}
+	}
+
+	/** @return The next tick at which a job may be due, or Long.MAX_VALUE. Caller must hold the lock. */
+	private long nextWakeTick() {
+		if(size == 0) return Long.MAX_VALUE;
+		// Wake up at the end of the turn of the first level at the latest, to cascade.
+		long endOfTurn = (currentTick | SLOT_MASK) + 1;
+		if(nearJobs > 0) {
+			for(long t = currentTick + 1; t < endOfTurn; t++) {
+				if(wheel[0][(int) (t & SLOT_MASK)] != null)
+					return t;
+			}
+		}
+		return endOfTurn;
+	}
+
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				if(!realRun())
+					return;
+			} catch(OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in "+this+" : "+t, t);
+			}
+		}
+	}
+
+	/** @return False if the ticker has been stopped */
+	private boolean realRun() {
+		List<Job> jobsToRun;
+		synchronized(this) {
+			while(true) {
+				if(stopped)
+					return false;
+				long now = System.currentTimeMillis();
+				jobsToRun = advance(now / TICK_LENGTH);
+				if(jobsToRun != null) {
+					wakeTick = currentTick;
+					break;
+				}
+				wakeTick = nextWakeTick();
+				long sleepTime = wakeTick == Long.MAX_VALUE ? Long.MAX_VALUE : wakeTick * TICK_LENGTH - now;
+				if(sleepTime > 0) {
+					try {
+						wait(Math.min(sleepTime, 60*1000));
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+
+		for(Job r : jobsToRun) {
+			if(logMINOR)
+				Logger.minor(this, "Running " + r);
+			if(r.job instanceof FastRunnable)
+				// Run in-line
+				try {
+					r.job.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running " + r, t);
+				}
+			else
+				try {
+					executor.execute(r.job, r.name, true);
+				} catch(OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+					System.err.println("Will retry above failed operation...");
+					queueTimedJob(r.job, r.name, 200, true, false);
+				} catch(Throwable t) {
+					Logger.error(this, "Caught in "+this+" : " + t, t);
+				}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return thread.getName();
+	}
+}
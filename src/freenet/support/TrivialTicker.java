@@ -1,6 +1,8 @@
 package freenet.support;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -22,44 +24,19 @@ public class TrivialTicker implements Ticker {
 	
 	private final Executor executor;
 	
-	private final HashSet<Runnable> jobs = new HashSet<Runnable>();
+	private final HashMap<Runnable, List<TimerTask>> jobs = new HashMap<Runnable, List<TimerTask>>();
 	
 	public TrivialTicker(Executor executor) {
 		this.executor = executor;
 	}
 	
 	public void queueTimedJob(final Runnable job, long offset) {
-		synchronized(this) {
-			jobs.add(job);
-		}
-		timer.schedule(new TimerTask() {
-
-			@Override
-			public void run() {
-				try {
-					if(job instanceof FastRunnable) {
-						job.run();
-					} else {
-						executor.execute(job, "Delayed task: "+job);
-					}
-				} finally {
-					synchronized(this) {
-						jobs.remove(job);
-					}
-				}
-				
-			}
-			
-		}, offset);
+		queueTimedJob(job, "Delayed task: "+job, offset, false, false);
 	}
 
 	public void queueTimedJob(final Runnable job, final String name, long offset,
 			boolean runOnTickerAnyway, boolean noDupes) {
-		synchronized(this) {
-			if(noDupes && jobs.contains(job)) return;
-			jobs.add(job);
-		}
-		timer.schedule(new TimerTask() {
+		TimerTask task = new TimerTask() {
 
 			@Override
 			public void run() {
@@ -70,14 +47,41 @@ public class TrivialTicker implements Ticker {
 						executor.execute(job, name);
 					}
 				} finally {
-					synchronized(this) {
-						jobs.remove(job);
-					}
+					removed(job, this);
 				}
 				
 			}
 			
-		}, offset);
+		};
+		synchronized(this) {
+			List<TimerTask> tasks = jobs.get(job);
+			if(noDupes && tasks != null) return;
+			if(tasks == null) {
+				tasks = new ArrayList<TimerTask>(1);
+				jobs.put(job, tasks);
+			}
+			tasks.add(task);
+		}
+		timer.schedule(task, Math.max(offset, 0));
+	}
+
+	private synchronized void removed(Runnable job, TimerTask task) {
+		List<TimerTask> tasks = jobs.get(job);
+		if(tasks == null) return;
+		tasks.remove(task);
+		if(tasks.isEmpty())
+			jobs.remove(job);
+	}
+
+	public boolean removeQueuedJob(Runnable job) {
+		List<TimerTask> tasks;
+		synchronized(this) {
+			tasks = jobs.remove(job);
+		}
+		if(tasks == null) return false;
+		for(TimerTask task : tasks)
+			task.cancel();
+		return true;
 	}
 
 }
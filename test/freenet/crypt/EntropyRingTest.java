@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import junit.framework.TestCase;
+
+public class EntropyRingTest extends TestCase {
+
+	public void testOrderAndFull() {
+		EntropyRing ring = new EntropyRing(4);
+		EntropySource source = new EntropySource();
+		EntropyRing.Sample sample = new EntropyRing.Sample();
+		assertFalse(ring.poll(sample));
+		for(int i = 0; i < 4; i++)
+			assertTrue(ring.offer(source, i, 8, 0.5, i % 2 == 0));
+		assertFalse(ring.offer(source, 4, 8, 0.5, false));
+		for(int round = 0; round < 3; round++) {
+			for(int i = 0; i < 4; i++) {
+				assertTrue(ring.poll(sample));
+				assertSame(source, sample.source);
+				assertEquals(round * 4 + i, sample.data);
+				assertEquals(i % 2 == 0, sample.timer);
+				assertTrue(ring.offer(source, round * 4 + i + 4, 8, 0.5, i % 2 == 0));
+			}
+		}
+	}
+
+	public void testConcurrentProducers() throws InterruptedException {
+		final EntropyRing ring = new EntropyRing(1024);
+		final int producers = 4;
+		final int perProducer = 100000;
+		Thread[] threads = new Thread[producers];
+		for(int t = 0; t < producers; t++) {
+			final EntropySource source = new EntropySource();
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i = 0; i < perProducer; i++) {
+						// Spin rather than drop, so we can count them
+						while(!ring.offer(source, ((long) id << 32) | i, 8, 1.0, false))
+							Thread.yield();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		EntropyRing.Sample sample = new EntropyRing.Sample();
+		int[] next = new int[producers];
+		int received = 0;
+		while(received < producers * perProducer) {
+			if(!ring.poll(sample)) {
+				Thread.yield();
+				continue;
+			}
+			int id = (int) (sample.data >>> 32);
+			// Each producer's samples arrive in order, none lost or repeated
+			assertEquals(next[id]++, (int) sample.data);
+			received++;
+		}
+		for(Thread t : threads)
+			t.join();
+		assertFalse(ring.poll(sample));
+	}
+}
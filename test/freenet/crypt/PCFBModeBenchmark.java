@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Compare blockEncipher() with the previous implementation, which refilled the
+ * feedback register and tracked registerPointer a block at a time, for the
+ * 256-bit block we use now, and for a 128-bit block (AES, via the JCA if
+ * available). Not run as part of the unit tests:
+ *
+ * java -cp build:build-test freenet.crypt.PCFBModeBenchmark [buffer size] [seconds]
+ */
+public class PCFBModeBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) throws UnsupportedCipherException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 32768;
+		long millis = (args.length > 1 ? Integer.parseInt(args[1]) : 2) * 1000L;
+		for(int blocksize : new int[] { 256, 128 }) {
+			Rijndael c = new Rijndael(256, blocksize);
+			byte[] key = new byte[32];
+			new Random(0).nextBytes(key);
+			c.initialize(key);
+			byte[] iv = new byte[blocksize / 8];
+			byte[] buf = new byte[size];
+			checkSameOutput(c, iv, size);
+			for(int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(c, iv, buf, false, millis / 4);
+				run(c, iv, buf, true, millis / 4);
+			}
+			System.out.println("Block size "+blocksize+", "+size+" byte buffers:");
+			System.out.println("  previous: "+run(c, iv, buf, false, millis)+" MB/s");
+			System.out.println("  current:  "+run(c, iv, buf, true, millis)+" MB/s");
+		}
+	}
+
+	/**
+	 * blockEncipher() as it was before whole blocks were processed separately,
+	 * kept here as the baseline.
+	 */
+	private static void previousBlockEncipher(PCFBMode pcfb, byte[] buf, int off, int len) {
+		while (len > 0) {
+			if (pcfb.registerPointer == pcfb.feedback_register.length) {
+				pcfb.c.encipher(pcfb.feedback_register, pcfb.feedback_register);
+				pcfb.registerPointer = 0;
+			}
+			int n = Math.min(len, pcfb.feedback_register.length - pcfb.registerPointer);
+			for (int i=off; i<off+n; ++i)
+				buf[i] = (pcfb.feedback_register[pcfb.registerPointer++] ^= buf[i]);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private static void checkSameOutput(Rijndael c, byte[] iv, int size) {
+		byte[] previous = new byte[size];
+		new Random(1).nextBytes(previous);
+		byte[] current = previous.clone();
+		previousBlockEncipher(PCFBMode.create(c, iv), previous, 0, size);
+		PCFBMode.create(c, iv).blockEncipher(current, 0, size);
+		if(!Arrays.equals(previous, current))
+			throw new IllegalStateException("Output differs from the previous implementation");
+	}
+
+	/** @return Throughput in megabytes per second */
+	private static long run(Rijndael c, byte[] iv, byte[] buf, boolean current, long millis) {
+		long bytes = 0;
+		long start = System.nanoTime();
+		long end = start + millis * 1000 * 1000;
+		long now;
+		do {
+			PCFBMode pcfb = PCFBMode.create(c, iv);
+			if(current)
+				pcfb.blockEncipher(buf, 0, buf.length);
+			else
+				previousBlockEncipher(pcfb, buf, 0, buf.length);
+			bytes += buf.length;
+		} while((now = System.nanoTime()) < end);
+		return bytes * 1000 / (now - start);
+	}
+}
@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Check that the block-at-a-time methods give the same results as enciphering
+ * and deciphering one byte at a time, however the data is split up.
+ */
+public class PCFBModeTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private Rijndael cipher(int blocksize) throws UnsupportedCipherException {
+		Rijndael c = new Rijndael(256, blocksize);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		c.initialize(key);
+		return c;
+	}
+
+	private void checkSplits(int blocksize) throws UnsupportedCipherException {
+		Rijndael c = cipher(blocksize);
+		byte[] iv = new byte[blocksize / 8];
+		random.nextBytes(iv);
+		for(int round = 0; round < 50; round++) {
+			byte[] plain = new byte[random.nextInt(5000)];
+			random.nextBytes(plain);
+
+			PCFBMode bytewise = PCFBMode.create(c, iv);
+			byte[] expected = new byte[plain.length];
+			for(int i = 0; i < plain.length; i++)
+				expected[i] = (byte) bytewise.encipher(plain[i]);
+
+			byte[] buf = plain.clone();
+			PCFBMode pcfb = PCFBMode.create(c, iv);
+			for(int off = 0; off < buf.length; ) {
+				int len = Math.min(buf.length - off, random.nextInt(300));
+				pcfb.blockEncipher(buf, off, len);
+				off += len;
+			}
+			assertTrue(Arrays.equals(expected, buf));
+
+			pcfb = PCFBMode.create(c, iv);
+			for(int off = 0; off < buf.length; ) {
+				int len = Math.min(buf.length - off, random.nextInt(300));
+				pcfb.blockDecipher(buf, off, len);
+				off += len;
+			}
+			assertTrue(Arrays.equals(plain, buf));
+
+			bytewise = PCFBMode.create(c, iv);
+			for(int i = 0; i < expected.length; i++)
+				assertEquals(plain[i] & 0xff, bytewise.decipher(expected[i]));
+		}
+	}
+
+	public void testBlockSize256() throws UnsupportedCipherException {
+		checkSplits(256);
+	}
+
+	public void testBlockSize128() throws UnsupportedCipherException {
+		checkSplits(128);
+	}
+
+	public void testContinuesAfterBulk() throws UnsupportedCipherException {
+		Rijndael c = cipher(128);
+		byte[] iv = new byte[16];
+		byte[] plain = new byte[4096 + 7];
+		random.nextBytes(plain);
+		byte[] buf = plain.clone();
+		PCFBMode pcfb = PCFBMode.create(c, iv);
+		pcfb.blockEncipher(buf, 0, 4096);
+		int b = pcfb.encipher(plain[4096]);
+		pcfb.blockEncipher(buf, 4097, 6);
+
+		PCFBMode bytewise = PCFBMode.create(c, iv);
+		for(int i = 0; i < plain.length; i++) {
+			int e = bytewise.encipher(plain[i]);
+			if(i == 4096)
+				assertEquals(e, b);
+			else
+				assertEquals((byte) e, buf[i]);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.HexUtil;
+
+public class SHA256Test extends TestCase {
+
+	public void testKnownValue() {
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+				HexUtil.bytesToHex(SHA256.digest(new byte[] { 'a', 'b', 'c' })));
+	}
+
+	public void testOneShotMatchesMessageDigest() {
+		Random random = new Random(4321);
+		byte[] data = new byte[2048];
+		random.nextBytes(data);
+		byte[] out = new byte[SHA256.getDigestLength()];
+		for(int i = 0; i < 100; i++) {
+			int offset = random.nextInt(data.length);
+			int length = random.nextInt(data.length - offset);
+			MessageDigest md = SHA256.getMessageDigest();
+			md.update(data, offset, length);
+			byte[] expected = md.digest();
+			SHA256.returnMessageDigest(md);
+			SHA256.digest(data, offset, length, out);
+			assertTrue(Arrays.equals(expected, out));
+		}
+	}
+
+	public void testNestedDigests() {
+		MessageDigest md1 = SHA256.getMessageDigest();
+		MessageDigest md2 = SHA256.getMessageDigest();
+		assertNotSame(md1, md2);
+		md1.update((byte) 1);
+		SHA256.returnMessageDigest(md2);
+		// A returned digest is reset and reused, one in use is not handed out again
+		assertSame(md2, SHA256.getMessageDigest());
+		assertNotSame(md1, SHA256.getMessageDigest());
+		assertTrue(Arrays.equals(SHA256.digest(new byte[] { 1 }), md1.digest()));
+	}
+
+	public void testShortOutput() {
+		try {
+			SHA256.digest(new byte[10], 0, 10, new byte[16]);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		// Not left with the input buffered
+		byte[] out = new byte[32];
+		SHA256.digest(new byte[] { 'a', 'b', 'c' }, 0, 3, out);
+		assertTrue(Arrays.equals(SHA256.digest(new byte[] { 'a', 'b', 'c' }), out));
+	}
+}
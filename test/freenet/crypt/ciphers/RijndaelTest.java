@@ -1083,4 +1083,68 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	public void testTempArrays() throws UnsupportedCipherException {
+		Rijndael aes = new Rijndael(256, 256);
+		aes.initialize(KEY256_1);
+		int[] a = new int[aes.getTempArraySize()];
+		int[] t = new int[aes.getTempArraySize()];
+
+		byte[] cipher = new byte[32];
+		aes.encipher(PLAINTXT256_1, cipher, a, t);
+		assertTrue(Arrays.equals(CIPHER256_1, cipher));
+
+		byte[] plain = new byte[32];
+		aes.decipher(cipher, plain, a, t);
+		assertTrue(Arrays.equals(PLAINTXT256_1, plain));
+	}
+
+	public void testConcurrent() throws Exception {
+		final int[] SIZE = new int[] { 128, 256 };
+
+		for (int k = 0; k < SIZE.length; k++) {
+			final int size = SIZE[k];
+			final Rijndael aes = new Rijndael(256, size);
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			aes.initialize(key);
+
+			final byte[][] plain = new byte[256][size / 8];
+			final byte[][] expected = new byte[plain.length][size / 8];
+			for (int i = 0; i < plain.length; i++) {
+				rand.nextBytes(plain[i]);
+				aes.encipher(plain[i], expected[i]);
+			}
+
+			final boolean[] failed = new boolean[1];
+			Thread[] threads = new Thread[4];
+			for (int x = 0; x < threads.length; x++) {
+				threads[x] = new Thread() {
+					@Override
+					public void run() {
+						byte[] cipher = new byte[size / 8];
+						byte[] plain2 = new byte[size / 8];
+						for (int j = 0; j < 50; j++) {
+							for (int i = 0; i < plain.length; i++) {
+								aes.encipher(plain[i], cipher);
+								aes.decipher(cipher, plain2);
+								if (!Arrays.equals(cipher, expected[i]) || !Arrays.equals(plain2, plain[i])) {
+									synchronized (failed) {
+										failed[0] = true;
+									}
+									return;
+								}
+							}
+						}
+					}
+				};
+				threads[x].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			synchronized (failed) {
+				assertFalse("Wrong result with concurrent use, block size " + size, failed[0]);
+			}
+		}
+	}
 }
@@ -0,0 +1,157 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Check that MessageCodec produces exactly the bytes the old Serializer based encoding did,
+ * for every field type used in DMT, and that it decodes them back to the same values.
+ */
+public class MessageCodecTest extends TestCase {
+
+	private static final MessageType allTypes = new MessageType("messageCodecTestAllTypes", DMT.PRIORITY_LOW) {{
+		addField("boolean", Boolean.class);
+		addField("byte", Byte.class);
+		addField("short", Short.class);
+		addField("int", Integer.class);
+		addField("long", Long.class);
+		addField("double", Double.class);
+		addField("string", String.class);
+		addField("buffer", Buffer.class);
+		addField("shortBuffer", ShortBuffer.class);
+		// Handled by Serializer
+		addField("bitArray", BitArray.class);
+		addLinkedListField("list", Integer.class);
+	}};
+
+	private static final MessageType subType = new MessageType("messageCodecTestSub", DMT.PRIORITY_LOW) {{
+		addField("long", Long.class);
+		addField("string", String.class);
+	}};
+
+	/** Encode the way Message.encodeToPacket() did before MessageCodec */
+	private static byte[] serializerEncode(Message m, boolean includeSubMessages) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		MessageType spec = m.getSpec();
+		dos.writeInt(spec.getName().hashCode());
+		for(String name : spec.getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos, null);
+		if(includeSubMessages && m._subMessages != null) {
+			for(Message sub : m._subMessages) {
+				byte[] temp = serializerEncode(sub, false);
+				dos.writeShort(temp.length);
+				dos.write(temp);
+			}
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private Message makeMessage(boolean b, byte y, short s, int i, long l, double d, String str,
+			byte[] data, int bufferOffset, int bufferLength) {
+		Message m = new Message(allTypes);
+		m.set("boolean", b);
+		m.set("byte", y);
+		m.set("short", s);
+		m.set("int", i);
+		m.set("long", l);
+		m.set("double", d);
+		m.set("string", str);
+		m.set("buffer", new Buffer(data, bufferOffset, bufferLength));
+		m.set("shortBuffer", new ShortBuffer(data, bufferOffset, bufferLength));
+		BitArray bits = new BitArray(37);
+		for(int x = 0; x < 37; x += 3)
+			bits.setBit(x, true);
+		m.set("bitArray", bits);
+		LinkedList<Integer> list = new LinkedList<Integer>();
+		list.add(i);
+		list.add(-i);
+		m.set("list", list);
+		return m;
+	}
+
+	private void checkRoundTrip(Message m) throws IOException {
+		byte[] expected = serializerEncode(m, true);
+		byte[] encoded = m.encodeToPacket(null);
+		assertTrue("Encoding differs from Serializer for "+m, Arrays.equals(expected, encoded));
+
+		// Decode from the middle of a larger packet
+		byte[] packet = new byte[expected.length + 10];
+		System.arraycopy(expected, 0, packet, 5, expected.length);
+		Message decoded = Message.decodeMessageFromPacket(packet, 5, expected.length, null, 0);
+		assertNotNull(decoded);
+		assertSame(m.getSpec(), decoded.getSpec());
+		for(String name : m.getSpec().getOrderedFields())
+			assertEquals(name, m.getObject(name), decoded.getObject(name));
+		assertTrue(Arrays.equals(expected, decoded.encodeToPacket(null)));
+	}
+
+	public void testAllTypes() throws IOException {
+		byte[] data = new byte[300];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 7);
+		checkRoundTrip(makeMessage(true, (byte) -3, (short) -5, 77, 0x123456789abcdefL, Math.PI,
+				"héllo 世界", data, 10, 250));
+	}
+
+	public void testExtremeValues() throws IOException {
+		byte[] data = new byte[0];
+		checkRoundTrip(makeMessage(false, Byte.MIN_VALUE, Short.MIN_VALUE, Integer.MIN_VALUE,
+				Long.MIN_VALUE, Double.NaN, "", data, 0, 0));
+		checkRoundTrip(makeMessage(true, Byte.MAX_VALUE, Short.MAX_VALUE, Integer.MAX_VALUE,
+				Long.MAX_VALUE, Double.NEGATIVE_INFINITY, "￿", new byte[] { 1 }, 0, 1));
+	}
+
+	public void testSubMessages() throws IOException {
+		Message m = makeMessage(true, (byte) 1, (short) 2, 3, 4, 5.5, "main", new byte[20], 0, 20);
+		for(int i = 0; i < 3; i++) {
+			Message sub = new Message(subType);
+			sub.set("long", i * 1000L);
+			sub.set("string", "sub " + i);
+			m.addSubMessage(sub);
+		}
+		checkRoundTrip(m);
+
+		byte[] encoded = m.encodeToPacket(null);
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		Message sub = decoded.getSubMessage(subType);
+		assertNotNull(sub);
+		assertEquals(0L, sub.getLong("long"));
+		assertEquals("sub 0", sub.getString("string"));
+		assertEquals(3, decoded._subMessages.size());
+	}
+
+	public void testDecodedBuffersAreSlices() throws IOException {
+		byte[] data = new byte[50];
+		Arrays.fill(data, (byte) 9);
+		Message m = makeMessage(true, (byte) 1, (short) 2, 3, 4, 5.5, "x", data, 5, 40);
+		byte[] encoded = m.encodeToPacket(null);
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		Buffer buffer = (Buffer) decoded.getObject("buffer");
+		assertEquals(40, buffer.getLength());
+		byte[] copy = buffer.getData();
+		assertEquals(40, copy.length);
+		for(byte b : copy)
+			assertEquals(9, b);
+
+		// Bulk consumers read the payload in place
+		ShortBuffer shortBuffer = (ShortBuffer) decoded.getObject("shortBuffer");
+		assertSame(encoded, shortBuffer.getBackingArray());
+		assertEquals(40, shortBuffer.getLength());
+		for(int i = 0; i < 40; i++)
+			assertEquals(9, encoded[shortBuffer.getOffset() + i]);
+	}
+}
@@ -0,0 +1,64 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.support.io.ArrayBucket;
+
+/**
+ * Measure SSK verification throughput: constructing an SSKBlock from the raw
+ * data and headers, as when a block arrives or is read from the store, first
+ * for blocks not seen before and then for the same blocks again, which the
+ * verify cache should answer. Not run as part of the unit tests:
+ *
+ * java -cp ... freenet.keys.SSKVerifyBenchmark [blocks] [threads]
+ */
+public class SSKVerifyBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		DummyRandomSource random = new DummyRandomSource(1234);
+		InsertableClientSSK key = InsertableClientSSK.createRandom(random, "benchmark");
+		final SSKBlock[] blocks = new SSKBlock[count];
+		for(int i = 0; i < count; i++) {
+			InsertableClientSSK ik = new InsertableClientSSK("benchmark-" + i, key.pubKeyHash, key.getPubKey(),
+					key.privKey, key.cryptoKey, Key.ALGO_AES_PCFB_256_SHA256);
+			byte[] data = ("Block " + i).getBytes("UTF-8");
+			blocks[i] = ik.encode(new ArrayBucket(data), false, true, (short) -1, data.length, random, null);
+		}
+		System.out.println("Uncached: " + run(blocks, threads) + " verifies/sec with " + threads + " threads");
+		System.out.println("Cached:   " + run(blocks, threads) + " verifies/sec with " + threads + " threads");
+	}
+
+	/** @return Blocks verified per second */
+	private static long run(final SSKBlock[] blocks, int threads) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		final Exception[] failed = new Exception[1];
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++) {
+			final int first = t;
+			final int step = threads;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = first; i < blocks.length; i += step) {
+							SSKBlock block = blocks[i];
+							new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+						}
+					} catch (SSKVerifyException e) {
+						failed[0] = e;
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for(Thread t : workers)
+			t.join();
+		if(failed[0] != null)
+			throw new RuntimeException(failed[0]);
+		return blocks.length * 1000L * 1000 * 1000 / (System.nanoTime() - start);
+	}
+}
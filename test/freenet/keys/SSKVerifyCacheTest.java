@@ -0,0 +1,40 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SSKVerifyCacheTest extends TestCase {
+
+	private final Random random = new Random(5678);
+
+	private byte[] randomEntry() {
+		byte[] entry = new byte[32];
+		random.nextBytes(entry);
+		return entry;
+	}
+
+	public void testVerified() {
+		byte[] entry = randomEntry();
+		assertFalse(SSKVerifyCache.isVerified(entry));
+		SSKVerifyCache.verified(entry);
+		assertTrue(SSKVerifyCache.isVerified(entry));
+		assertTrue(SSKVerifyCache.isVerified(entry.clone()));
+	}
+
+	public void testSameSlot() {
+		byte[] a = randomEntry();
+		byte[] b = randomEntry();
+		b[0] = a[0];
+		b[1] = a[1];
+		SSKVerifyCache.verified(a);
+		assertFalse(SSKVerifyCache.isVerified(b));
+		SSKVerifyCache.verified(b);
+		// Replaced, so a would be verified again
+		assertFalse(SSKVerifyCache.isVerified(a));
+		assertTrue(SSKVerifyCache.isVerified(b));
+	}
+}
@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import junit.framework.TestCase;
+
+public class TimedSendCallbackTest extends TestCase {
+
+	/** Holds the timeout job until the test runs it */
+	private static class ManualTicker implements Ticker {
+
+		private volatile Runnable job;
+		private long offset;
+
+		public void queueTimedJob(Runnable job, long offset) {
+			assertNull(this.job);
+			this.job = job;
+			this.offset = offset;
+		}
+
+		public void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+			queueTimedJob(job, offset);
+		}
+
+		public boolean removeQueuedJob(Runnable job) {
+			if(this.job != job) return false;
+			this.job = null;
+			return true;
+		}
+
+		void timeout() {
+			Runnable r = job;
+			if(r != null) r.run();
+		}
+	}
+
+	/** Records which outcome was reported, as AsyncRouter moves on to the next peer on all but onSent() */
+	private static class Outcome extends TimedSendCallback {
+
+		private int sent;
+		private int timedOut;
+		private int disconnected;
+
+		Outcome(Ticker ticker) {
+			super(ticker, 60*1000);
+		}
+
+		@Override
+		protected void onSent() {
+			sent++;
+		}
+
+		@Override
+		protected void onTimeout() {
+			timedOut++;
+		}
+
+		@Override
+		protected void onDisconnected() {
+			disconnected++;
+		}
+
+		void check(int sent, int timedOut, int disconnected) {
+			assertEquals(sent, this.sent);
+			assertEquals(timedOut, this.timedOut);
+			assertEquals(disconnected, this.disconnected);
+		}
+	}
+
+	public void testSent() {
+		ManualTicker ticker = new ManualTicker();
+		Outcome outcome = new Outcome(ticker);
+		assertEquals(60*1000, ticker.offset);
+		outcome.sent();
+		assertNull("Timeout not cancelled", ticker.job);
+		outcome.acknowledged();
+		outcome.check(1, 0, 0);
+		ticker.timeout();
+		outcome.disconnected();
+		outcome.check(1, 0, 0);
+	}
+
+	public void testFatalErrorCountsAsSent() {
+		ManualTicker ticker = new ManualTicker();
+		Outcome outcome = new Outcome(ticker);
+		outcome.fatalError();
+		ticker.timeout();
+		outcome.check(1, 0, 0);
+	}
+
+	public void testTimeout() {
+		ManualTicker ticker = new ManualTicker();
+		Outcome outcome = new Outcome(ticker);
+		ticker.timeout();
+		outcome.check(0, 1, 0);
+		// Sent after we gave up
+		outcome.sent();
+		outcome.acknowledged();
+		outcome.disconnected();
+		outcome.check(0, 1, 0);
+	}
+
+	public void testDisconnected() {
+		ManualTicker ticker = new ManualTicker();
+		Outcome outcome = new Outcome(ticker);
+		outcome.disconnected();
+		assertNull("Timeout not cancelled", ticker.job);
+		outcome.check(0, 0, 1);
+		ticker.timeout();
+		outcome.sent();
+		outcome.check(0, 0, 1);
+	}
+
+	public void testCancel() {
+		ManualTicker ticker = new ManualTicker();
+		Outcome outcome = new Outcome(ticker);
+		Runnable timeoutJob = ticker.job;
+		outcome.cancel();
+		assertNull("Timeout not cancelled", ticker.job);
+		outcome.check(0, 0, 0);
+		// Already running when it was removed
+		timeoutJob.run();
+		outcome.sent();
+		outcome.disconnected();
+		outcome.check(0, 0, 0);
+	}
+
+	public void testConcurrentOutcomes() throws InterruptedException {
+		for(int i = 0; i < 100; i++) {
+			final ManualTicker ticker = new ManualTicker();
+			final Outcome outcome = new Outcome(ticker);
+			Thread timer = new Thread() {
+				@Override
+				public void run() {
+					ticker.timeout();
+				}
+			};
+			timer.start();
+			outcome.sent();
+			timer.join();
+			assertEquals(1, outcome.sent + outcome.timedOut + outcome.disconnected);
+		}
+	}
+}
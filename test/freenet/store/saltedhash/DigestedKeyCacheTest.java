@@ -0,0 +1,63 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DigestedKeyCacheTest extends TestCase {
+
+	private final Random random = new Random(4321);
+
+	private byte[] randomKey() {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		return key;
+	}
+
+	public void testGetPut() {
+		DigestedKeyCache cache = new DigestedKeyCache(100);
+		assertEquals(128, cache.capacity());
+		byte[] plainKey = randomKey();
+		byte[] digestedKey = randomKey();
+		assertNull(cache.get(plainKey));
+		cache.put(plainKey, digestedKey);
+		assertTrue(Arrays.equals(digestedKey, cache.get(plainKey.clone())));
+		assertEquals(1, cache.hits());
+		assertEquals(1, cache.misses());
+	}
+
+	public void testPlainKeyCopied() {
+		DigestedKeyCache cache = new DigestedKeyCache(16);
+		byte[] plainKey = randomKey();
+		byte[] original = plainKey.clone();
+		cache.put(plainKey, randomKey());
+		// the caller reuses its buffer
+		plainKey[0]++;
+		assertNotNull(cache.get(original));
+	}
+
+	public void testCountsFromManyThreads() throws InterruptedException {
+		final DigestedKeyCache cache = new DigestedKeyCache(16);
+		final byte[] plainKey = randomKey();
+		cache.put(plainKey, randomKey());
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++)
+						cache.get(plainKey);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(8000, cache.hits());
+		assertEquals(0, cache.misses());
+	}
+}
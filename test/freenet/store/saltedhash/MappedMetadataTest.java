@@ -0,0 +1,86 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import junit.framework.TestCase;
+
+public class MappedMetadataTest extends TestCase {
+	private static final int SLOT_LENGTH = 0x80;
+	private static final int SLOTS = 64;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel fc;
+
+	protected void setUp() throws IOException {
+		file = File.createTempFile("mappedmetadatatest", ".metadata");
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(SLOT_LENGTH * SLOTS);
+		fc = raf.getChannel();
+	}
+
+	protected void tearDown() throws IOException {
+		fc.close();
+		raf.close();
+		file.delete();
+	}
+
+	public void testReadWrite() throws IOException {
+		MappedMetadata map = new MappedMetadata(fc, SLOT_LENGTH * SLOTS, SLOT_LENGTH);
+
+		// write through the mapping, read through the channel
+		assertEquals(SLOT_LENGTH, map.getSlot(3).remaining());
+		assertTrue(map.putSlot(3, counting()));
+		map.force();
+
+		ByteBuffer buf = ByteBuffer.allocate(SLOT_LENGTH);
+		fc.read(buf, 3 * SLOT_LENGTH);
+		buf.flip();
+		for (int i = 0; i < SLOT_LENGTH; i++)
+			assertEquals((byte) i, buf.get());
+
+		// write through the channel, read through the mapping
+		buf.clear();
+		buf.put(0, (byte) 42);
+		fc.write(buf, 5 * SLOT_LENGTH);
+		assertEquals(42, map.getSlot(5).get());
+
+		// neighbouring slots untouched
+		assertEquals(0, map.getSlot(4).get());
+	}
+
+	public void testOutOfRange() throws IOException {
+		MappedMetadata map = new MappedMetadata(fc, SLOT_LENGTH * SLOTS, SLOT_LENGTH);
+		assertNotNull(map.getSlot(SLOTS - 1));
+		assertNull(map.getSlot(SLOTS));
+		assertNull(map.getSlot(-1));
+		assertFalse(map.putSlot(SLOTS, counting()));
+	}
+
+	public void testCloseThenResize() throws IOException {
+		MappedMetadata map = new MappedMetadata(fc, SLOT_LENGTH * SLOTS, SLOT_LENGTH);
+		assertTrue(map.putSlot(SLOTS - 1, counting()));
+		map.close();
+
+		// the written slot survives both shrinking and growing the file
+		raf.setLength(SLOT_LENGTH * SLOTS * 2);
+		raf.setLength(SLOT_LENGTH * SLOTS);
+		ByteBuffer buf = ByteBuffer.allocate(SLOT_LENGTH);
+		fc.read(buf, (SLOTS - 1) * SLOT_LENGTH);
+		buf.flip();
+		for (int i = 0; i < SLOT_LENGTH; i++)
+			assertEquals((byte) i, buf.get());
+	}
+
+	private static ByteBuffer counting() {
+		ByteBuffer buf = ByteBuffer.allocate(SLOT_LENGTH);
+		for (int i = 0; i < SLOT_LENGTH; i++)
+			buf.put((byte) i);
+		buf.flip();
+		return buf;
+	}
+}
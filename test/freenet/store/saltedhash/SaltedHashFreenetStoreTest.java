@@ -0,0 +1,94 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.Ticker;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.TrivialTicker;
+import freenet.support.io.FileUtil;
+
+public class SaltedHashFreenetStoreTest extends TestCase {
+
+	private static final int KEYS = 10;
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+	private File tempDir;
+
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-saltedhashfreenetstoretest");
+		tempDir.mkdir();
+		exec.start();
+	}
+
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private CHKBlock randomBlock() throws CHKVerifyException {
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		byte[] headers = new byte[CHKBlock.TOTAL_HEADERS_LENGTH];
+		weakPRNG.nextBytes(data);
+		weakPRNG.nextBytes(headers);
+		headers[0] = (byte) (KeyBlock.HASH_SHA256 >> 8);
+		headers[1] = (byte) KeyBlock.HASH_SHA256;
+		return CHKBlock.construct(data, headers);
+	}
+
+	public void testFetchBatchContinuesAfterIOException() throws Exception {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"),
+		        "teststore", store, weakPRNG, KEYS * 10, 0, false, new SemiOrderedShutdownHook(), true, true, ticker,
+		        null);
+		saltStore.start(null);
+		try {
+			NodeCHK[] keys = new NodeCHK[KEYS];
+			for (int i = 0; i < KEYS; i++) {
+				CHKBlock block = randomBlock();
+				store.put(block, false);
+				keys[i] = block.getKey();
+			}
+
+			// One key in the middle of the batch can't be read
+			int failing = KEYS / 2;
+			saltStore.failFetchForTest = keys[failing].getRoutingKey();
+			try {
+				store.fetch(keys[failing], false);
+				fail("Injected failure not thrown");
+			} catch (IOException e) {
+				// Expected
+			}
+			List<CHKBlock> found = store.fetchBatch(keys, false);
+
+			assertEquals(KEYS, found.size());
+			for (int i = 0; i < KEYS; i++) {
+				if (i == failing)
+					assertNull(found.get(i));
+				else
+					assertEquals(keys[i], found.get(i).getKey());
+			}
+
+			// Nothing was lost
+			saltStore.failFetchForTest = null;
+			found = store.fetchBatch(keys, false);
+			for (int i = 0; i < KEYS; i++)
+				assertEquals(keys[i], found.get(i).getKey());
+		} finally {
+			saltStore.close();
+		}
+	}
+}
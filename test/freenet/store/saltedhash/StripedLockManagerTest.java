@@ -0,0 +1,73 @@
+package freenet.store.saltedhash;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+
+import junit.framework.TestCase;
+
+public class StripedLockManagerTest extends TestCase {
+	private static final int THREADS = 8;
+	private static final int LOOPS = 2000;
+
+	public void testReentrantSameStripe() {
+		StripedLockManager lockManager = new StripedLockManager(1);
+		Condition c1 = lockManager.lockEntry(1);
+		Condition c2 = lockManager.lockEntry(2);
+		assertNotNull(c1);
+		assertSame(c1, c2);
+		lockManager.unlockEntry(2, c2);
+		lockManager.unlockEntry(1, c1);
+		assertEquals(2, lockManager.getLockCount());
+		assertEquals(0, lockManager.getLockWaitCount());
+	}
+
+	public void testShutdown() {
+		StripedLockManager lockManager = new StripedLockManager(16);
+		lockManager.shutdown();
+		assertNull(lockManager.lockEntry(1));
+	}
+
+	public void testMutualExclusion() throws InterruptedException {
+		final StripedLockManager lockManager = new StripedLockManager(4);
+		final int[] counters = new int[16];
+		final boolean[] failed = new boolean[1];
+
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < LOOPS; i++) {
+						// lock a few offsets at once, like lockDigestedKey()
+						SortedSet<Long> offsets = new TreeSet<Long>(lockManager.getLockOrder());
+						for (int j = 0; j < 3; j++)
+							offsets.add((long) ((seed + i * 7 + j * 5) % counters.length));
+
+						Condition[] locked = new Condition[counters.length];
+						for (long offset : offsets) {
+							locked[(int) offset] = lockManager.lockEntry(offset);
+							if (locked[(int) offset] == null)
+								failed[0] = true;
+						}
+						for (long offset : offsets)
+							counters[(int) offset]++;
+						for (long offset : offsets)
+							lockManager.unlockEntry(offset, locked[(int) offset]);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertFalse(failed[0]);
+		int total = 0;
+		for (int counter : counters)
+			total += counter;
+		assertEquals(THREADS * LOOPS * 3, total);
+		assertEquals(THREADS * LOOPS * 3, lockManager.getLockCount());
+	}
+}
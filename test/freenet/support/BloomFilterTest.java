@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -149,4 +151,79 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testDoubleHashCountingFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		filter.setHashVersion(BloomFilter.HASH_DOUBLE);
+		_testFilterPositive(filter);
+	}
+
+	public void testDoubleHashBinaryFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
+		filter.setHashVersion(BloomFilter.HASH_DOUBLE);
+		_testFilterPositive(filter);
+	}
+
+	public void testDoubleHashCountingFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		filter.setHashVersion(BloomFilter.HASH_DOUBLE);
+		_testFilterFalsePositive(filter);
+	}
+
+	public void testDoubleHashBinaryFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
+		filter.setHashVersion(BloomFilter.HASH_DOUBLE);
+		_testFilterFalsePositive(filter);
+	}
+
+	public void testForkUpgradesHashVersion() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		assertEquals(BloomFilter.HASH_MERSENNE_TWISTER, filter.getHashVersion());
+
+		byte[][] list = new byte[PASS_POS][];
+		for (int i = 0; i < PASS_POS; i++) {
+			list[i] = new byte[32];
+			rand.nextBytes(list[i]);
+			filter.addKey(list[i]);
+		}
+
+		// rebuild, as the datastore does
+		filter.fork(K);
+		for (byte[] b : list)
+			filter.addKeyForked(b);
+		filter.merge();
+
+		assertEquals(BloomFilter.HASH_DOUBLE, filter.getHashVersion());
+		for (byte[] b : list)
+			assertTrue(filter.checkFilter(b));
+	}
+
+	public void testForkToFileIsReused() throws IOException {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
+		File forkFile = File.createTempFile("bloom-fork-", ".tmp");
+		forkFile.delete();
+		forkFile.deleteOnExit();
+
+		assertFalse(filter.fork(K, forkFile));
+		byte[][] list = new byte[PASS_POS][];
+		for (int i = 0; i < PASS_POS; i++) {
+			list[i] = new byte[32];
+			rand.nextBytes(list[i]);
+			filter.addKeyForked(list[i]);
+		}
+		filter.forceForked();
+		// interrupted, e.g. by a restart
+		filter.discard();
+
+		assertTrue(filter.fork(K, forkFile));
+		filter.merge();
+		for (byte[] b : list)
+			assertTrue(filter.checkFilter(b));
+	}
 }
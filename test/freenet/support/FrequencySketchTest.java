@@ -0,0 +1,58 @@
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FrequencySketchTest extends TestCase {
+	private final Random random = new Random(1234);
+
+	public void testIncrement() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		long key = random.nextLong();
+		assertEquals(0, sketch.frequency(key));
+		for (int i = 1; i <= 5; i++) {
+			sketch.increment(key);
+			assertEquals(i, sketch.frequency(key));
+		}
+	}
+
+	public void testSaturate() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		long key = random.nextLong();
+		for (int i = 0; i < 100; i++)
+			sketch.increment(key);
+		assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(key));
+	}
+
+	public void testReset() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		long key = random.nextLong();
+		for (int i = 0; i < 10; i++)
+			sketch.increment(key);
+		sketch.reset();
+		assertEquals(5, sketch.frequency(key));
+	}
+
+	public void testAging() {
+		FrequencySketch sketch = new FrequencySketch(16);
+		long hot = random.nextLong();
+		for (int i = 0; i < 15; i++)
+			sketch.increment(hot);
+		// many other keys, more than the sample size
+		for (int i = 0; i < 1000; i++)
+			sketch.increment(random.nextLong());
+		assertTrue(sketch.frequency(hot) < FrequencySketch.MAX_FREQUENCY);
+	}
+
+	public void testHotBeatsCold() {
+		FrequencySketch sketch = new FrequencySketch(256);
+		long hot = FrequencySketch.hash(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		for (int i = 0; i < 200; i++) {
+			if (i % 4 == 0)
+				sketch.increment(hot);
+			sketch.increment(random.nextLong());
+		}
+		assertTrue(sketch.frequency(hot) > sketch.frequency(random.nextLong()));
+	}
+}
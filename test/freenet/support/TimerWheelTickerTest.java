@@ -0,0 +1,112 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.node.FastRunnable;
+import freenet.support.io.NativeThread;
+
+public class TimerWheelTickerTest extends TestCase {
+	private TimerWheelTicker ticker;
+	private List<String> ran;
+
+	private class Job implements FastRunnable {
+		private final String name;
+
+		Job(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			synchronized (ran) {
+				ran.add(name);
+				ran.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ran = new ArrayList<String>();
+		ticker = new TimerWheelTicker(new SerialExecutor(NativeThread.NORM_PRIORITY), "Test ticker");
+		ticker.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ticker.stop();
+		super.tearDown();
+	}
+
+	private void waitFor(int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (ran) {
+			long now;
+			while (ran.size() < count && (now = System.currentTimeMillis()) < end)
+				ran.wait(end - now);
+		}
+	}
+
+	public void testOrder() throws InterruptedException {
+		ticker.queueTimedJob(new Job("c"), 300);
+		ticker.queueTimedJob(new Job("a"), 50);
+		ticker.queueTimedJob(new Job("b"), 150);
+		waitFor(3, 2000);
+		assertEquals("[a, b, c]", ran.toString());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testNotEarly() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		ticker.queueTimedJob(new Job("a"), 200);
+		waitFor(1, 2000);
+		assertEquals(1, ran.size());
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	public void testCascade() throws InterruptedException {
+		// Longer than a turn of the first level
+		long offset = TimerWheelTicker.TICK_LENGTH * TimerWheelTicker.SLOTS + 300;
+		long start = System.currentTimeMillis();
+		ticker.queueTimedJob(new Job("late"), offset);
+		ticker.queueTimedJob(new Job("early"), 100);
+		waitFor(2, offset + 2000);
+		assertEquals("[early, late]", ran.toString());
+		assertTrue(System.currentTimeMillis() - start >= offset);
+	}
+
+	public void testRemove() throws InterruptedException {
+		Job a = new Job("a");
+		ticker.queueTimedJob(a, 100);
+		ticker.queueTimedJob(a, 200);
+		ticker.queueTimedJob(new Job("b"), 300);
+		assertEquals(3, ticker.queuedJobs());
+		assertTrue(ticker.removeQueuedJob(a));
+		assertFalse(ticker.removeQueuedJob(a));
+		assertEquals(1, ticker.queuedJobs());
+		waitFor(1, 2000);
+		Thread.sleep(100);
+		assertEquals("[b]", ran.toString());
+	}
+
+	public void testNoDupes() throws InterruptedException {
+		Job a = new Job("a");
+		ticker.queueTimedJob(a, "a", 100, false, true);
+		ticker.queueTimedJob(a, "a", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		waitFor(1, 2000);
+		ticker.queueTimedJob(a, "a", 100, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		waitFor(2, 2000);
+		assertEquals("[a, a]", ran.toString());
+	}
+
+	public void testStop() throws InterruptedException {
+		ticker.queueTimedJob(new Job("a"), 100);
+		ticker.stop();
+		Thread.sleep(300);
+		assertEquals(0, ran.size());
+	}
+}